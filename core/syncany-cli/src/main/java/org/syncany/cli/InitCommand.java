@@ -27,6 +27,7 @@ import joptsimple.OptionParser;
 import joptsimple.OptionSet;
 import joptsimple.OptionSpec;
 
+import org.syncany.chunk.FixedChunker;
 import org.syncany.config.to.ConfigTO;
 import org.syncany.config.to.DefaultRepoTOFactory;
 import org.syncany.config.to.RepoTO;
@@ -96,6 +97,7 @@ public class InitCommand extends AbstractInitCommand {
 		OptionSpec<Void> optionAddDaemon = parser.acceptsAll(asList("n", "add-daemon"));
 		OptionSpec<Void> optionShortUrl = parser.acceptsAll(asList("s", "short"));
 		OptionSpec<String> optionPassword = parser.acceptsAll(asList("password")).withRequiredArg();
+		OptionSpec<String> optionChunker = parser.acceptsAll(asList("chunker")).withRequiredArg().defaultsTo(FixedChunker.TYPE);
 
 		OptionSet options = parser.parse(operationArguments);
 
@@ -114,9 +116,9 @@ public class InitCommand extends AbstractInitCommand {
 		// Cipher specs: --no-encryption, --advanced
 		List<CipherSpec> cipherSpecs = getCipherSpecs(encryptionEnabled, advancedModeEnabled);
 
-		// Compression: --no-compression 
+		// Compression: --no-compression, chunker: --chunker
 		// DefaultRepoTOFactory also creates default chunkers
-		RepoTOFactory repoTOFactory = new DefaultRepoTOFactory(compressionEnabled, cipherSpecs);
+		RepoTOFactory repoTOFactory = new DefaultRepoTOFactory(compressionEnabled, cipherSpecs, options.valueOf(optionChunker));
 
 		// Genlink options: --short
 		GenlinkOperationOptions genlinkOptions = new GenlinkOperationOptions();
@@ -70,6 +70,7 @@ public class UpCommand extends Command {
 
 		OptionSpec<Void> optionForceUpload = parser.acceptsAll(asList("F", "force-upload"));
 		OptionSpec<Void> optionNoResumeUpload = parser.acceptsAll(asList("R", "no-resume"));
+		OptionSpec<Void> optionStreamingUpload = parser.acceptsAll(asList("S", "streaming-upload"));
 
 		OptionSet options = parser.parse(operationArgs);
 
@@ -82,6 +83,9 @@ public class UpCommand extends Command {
 		// -R, --no-resume
 		operationOptions.setResume(!options.has(optionNoResumeUpload));
 
+		// -S, --streaming-upload
+		operationOptions.setStreamingUploadEnabled(options.has(optionStreamingUpload));
+
 		return operationOptions;
 	}
 
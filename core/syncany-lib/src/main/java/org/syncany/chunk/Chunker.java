@@ -20,6 +20,11 @@ package org.syncany.chunk;
 import java.io.File;
 import java.io.IOException;
 import java.util.Enumeration;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.syncany.util.StringUtil;
 
 /**
  * The chunker implements a core part of the deduplication process by breaking
@@ -32,12 +37,25 @@ import java.util.Enumeration;
  * @author Philipp C. Heckel <philipp.heckel@gmail.com>
  */
 public abstract class Chunker {	
+	private static final Logger logger = Logger.getLogger(Chunker.class.getSimpleName());
+
 	/**
 	 * Property used by the config to indicate the exact or 
 	 * approximate size of a chunk. In bytes. 
 	 */
 	public static final String PROPERTY_SIZE = "size";
 	
+	/**
+	 * Initializes the chunker using a settings map, as stored in the repository
+	 * config. Chunkers created by {@link #getInstance(String)} must be initialized
+	 * before they can be used. The default implementation does nothing.
+	 * 
+	 * @param settings Chunker settings, e.g. {@link #PROPERTY_SIZE}
+	 */
+	public void init(Map<String, String> settings) {
+		// Nothing.
+	}
+	
     /**
      * Opens the given file and creates enumeration of {@link Chunk}s. This method 
      * should not read the file into memory at once, but instead read and emit new 
@@ -87,4 +105,32 @@ public abstract class Chunker {
     	 */
     	public void close();   
     }
+    
+	/**
+	 * Instantiates a chunker by its name, using the default constructor. 
+	 * <br>
+	 * The given type attribute is mapped to fully qualified class name (FQCN) of the form
+	 * <tt>org.syncany.chunk.XChunker</tt>, where <tt>X</tt> is the camel-cased type
+	 * attribute (e.g. <tt>fast-cdc</tt> becomes <tt>FastCdcChunker</tt>).
+	 * 
+	 * <p>The chunker must be initialized with {@link #init(Map)} before it can be used.
+	 * 
+	 * @param type Type/name of the chunker (corresponds to its camel case class name)
+	 * @return A new chunker instance, or <tt>null</tt> if no chunker with this type exists
+	 */
+	public static Chunker getInstance(String type) {
+		String thisPackage = Chunker.class.getPackage().getName();
+		String camelCaseName = StringUtil.toCamelCase(type);
+		String fqClassName = thisPackage + "." + camelCaseName + Chunker.class.getSimpleName();
+
+		// Try to load!
+		try {
+			Class<?> clazz = Class.forName(fqClassName);
+			return (Chunker) clazz.newInstance();
+		}
+		catch (Exception ex) {
+			logger.log(Level.INFO, "Could not find chunker FQCN " + fqClassName, ex);
+			return null;
+		}
+	}
 }
\ No newline at end of file
@@ -17,10 +17,28 @@
  */
 package org.syncany.chunk;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.syncany.chunk.Chunker.ChunkEnumeration;
 import org.syncany.database.MultiChunkEntry.MultiChunkId;
@@ -36,6 +54,21 @@ import org.syncany.database.MultiChunkEntry.MultiChunkId;
  * <p>This class does not maintain a chunk index itself. Instead, it calls a listener to
  * lookup a chunk, and skips further chunk processing if the chunk already exists. 
  * 
+ * <p>Chunking and hashing is done in a pipeline: A number of chunker threads read the files
+ * ahead of time (at most a few files per thread), while the calling thread processes the
+ * chunks strictly in file order. All {@link DeduperListener} callbacks and all multichunk
+ * writes happen in the calling thread, in the same order as without the pipeline, so that
+ * the result does not depend on the number of threads. If a file was modified after it was
+ * chunked ahead of time, or if that failed, it is chunked again in the calling thread.
+ * 
+ * <p>Full multichunks are sealed in the background: The calling thread writes a multichunk
+ * to memory, and when it is closed, the {@link Transformer}s (compression, encryption) are
+ * applied and the file is written and synced to disk by a sealer thread. Only a small number
+ * of multichunks may be sealed at the same time; if more are closed, the calling thread waits.
+ * All multichunk files are complete when {@link #deduplicate(List, DeduperListener) deduplicate()}
+ * returns. To process a multichunk file as soon as it is complete (e.g. to upload it while
+ * deduplication continues), a {@link MultiChunkSealListener} can be set.
+ * 
  * <p>For a detailed description of the algorithm, please refer to chapter 5.3 of the thesis:
  * <i>"Minimizing remote storage usage and synchronization time using deduplication and
  * multichunking: Syncany as an example"</i>
@@ -44,14 +77,53 @@ import org.syncany.database.MultiChunkEntry.MultiChunkId;
  * @author Philipp C. Heckel <philipp.heckel@gmail.com>
  */
 public class Deduper {	
+	private static final Logger logger = Logger.getLogger(Deduper.class.getSimpleName());
+
+	private static final int FILES_AHEAD_PER_THREAD = 2;
+	private static final int CHUNK_QUEUE_SIZE = 4; // Chunks per file buffered ahead of time
+	private static final int MAX_SEALING_MULTICHUNKS = 2; // Closed multichunks kept in memory until written
+	
+	private static final Object END_OF_FILE = new Object();
+	private static final Object CHUNKING_FAILED = new Object();
+	
 	private Chunker chunker;
 	private MultiChunker multiChunker;
 	private Transformer transformer;
+	private int chunkerThreads;
+	private MultiChunkSealListener multiChunkSealListener;
+
+	/**
+	 * Listener that is notified when a multichunk file is complete, i.e. transformed,
+	 * written and closed. With background sealing, this happens after 
+	 * {@link DeduperListener#onMultiChunkClose(MultiChunk)}, and the listener is called 
+	 * by a sealer thread. Implementations must therefore be thread-safe.
+	 */
+	public interface MultiChunkSealListener {
+		public void onMultiChunkSealed(MultiChunkId multiChunkId, File multiChunkFile) throws IOException;
+	}
 
 	public Deduper(Chunker chunker, MultiChunker multiChunker, Transformer transformer) {		
+		this(chunker, multiChunker, transformer, Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Creates a new deduper that chunks files using the given number of threads. If the
+	 * number of threads is 1, files are chunked and multichunks are written in the calling
+	 * thread, i.e. no pipeline is used.
+	 */
+	public Deduper(Chunker chunker, MultiChunker multiChunker, Transformer transformer, int chunkerThreads) {		
 		this.chunker = chunker;
 		this.multiChunker = multiChunker;
 		this.transformer = transformer;
+		this.chunkerThreads = Math.max(1, chunkerThreads);
+	}
+	
+	/**
+	 * Sets a listener that is notified whenever a multichunk file is complete.
+	 * If the listener throws an exception, deduplication fails.
+	 */
+	public void setMultiChunkSealListener(MultiChunkSealListener multiChunkSealListener) {
+		this.multiChunkSealListener = multiChunkSealListener;
 	}
 	
 	/**
@@ -65,18 +137,60 @@ public class Deduper {
 	 * @throws IOException If a file cannot be read or an unexpected exception occurs
 	 */
 	public void deduplicate(List<File> files, DeduperListener listener) throws IOException {
+		ExecutorService chunkerExecutor = null;
+		LinkedList<ChunkingTask> chunkingTasks = new LinkedList<ChunkingTask>();
+		MultiChunkSealer multiChunkSealer = new MultiChunkSealer();
+
+		if (chunkerThreads > 1) {
+			chunkerExecutor = Executors.newFixedThreadPool(chunkerThreads, new DeduperThreadFactory("Chunker"));
+			multiChunkSealer.start(Math.min(chunkerThreads, MAX_SEALING_MULTICHUNKS));
+		}
+		
+		try {
+			deduplicate(files, listener, chunkerExecutor, chunkingTasks, multiChunkSealer);
+		}
+		finally {
+			if (chunkerExecutor != null) {
+				for (ChunkingTask chunkingTask : chunkingTasks) {
+					chunkingTask.cancel();
+				}
+				
+				chunkerExecutor.shutdownNow();
+			}
+			
+			multiChunkSealer.shutdown();
+		}
+	}
+	
+	private void deduplicate(List<File> files, DeduperListener listener, ExecutorService chunkerExecutor, LinkedList<ChunkingTask> chunkingTasks,
+			MultiChunkSealer multiChunkSealer) throws IOException {
 		Chunk chunk = null;
 		MultiChunk multiChunk = null;
+		int nextChunkingTaskIndex = 0;
 		
 		listener.onStart(files.size());
 		
 		for (int i=0; i<files.size(); i++) {
 			File file = files.get(i);
+			ChunkingTask chunkingTask = null;
+			
+			// Chunk upcoming files ahead of time (in file order, see ChunkingTask)
+			if (chunkerExecutor != null) {
+				while (nextChunkingTaskIndex < files.size() && nextChunkingTaskIndex <= i + chunkerThreads * FILES_AHEAD_PER_THREAD) {
+					ChunkingTask newChunkingTask = new ChunkingTask(files.get(nextChunkingTaskIndex++));
+					newChunkingTask.submit(chunkerExecutor);
+					
+					chunkingTasks.add(newChunkingTask);
+				}
+				
+				chunkingTask = chunkingTasks.removeFirst();
+			}
 			
 			// Filter ignored files
 			boolean fileAccepted = listener.onFileFilter(file);
 			
 			if (!fileAccepted) {
+				cancel(chunkingTask);
 				continue;
 			}
 			
@@ -84,11 +198,20 @@ public class Deduper {
 			boolean dedupContents = listener.onFileStart(file, i);
 
 			if (dedupContents) {
-				// Create chunks from file
-				ChunkEnumeration chunksEnum = chunker.createChunks(file);
+				// Create chunks from file (or take the chunks created ahead of time)
+				ChunkEnumeration chunksEnum = (chunkingTask != null) ? chunkingTask.getChunks() : null;
+				
+				if (chunksEnum == null) {
+					chunksEnum = chunker.createChunks(file);
+				}
 
 				while (chunksEnum.hasMoreElements()) {
 					chunk = chunksEnum.nextElement();
+					
+					if (chunk == null) {
+						chunksEnum.close();
+						throw new IOException("Cannot read chunk from file " + file);
+					}
 
 					// old chunk
 					if (!listener.onChunk(chunk)) {
@@ -111,8 +234,7 @@ public class Deduper {
 							MultiChunkId newMultiChunkId = listener.createNewMultiChunkId(chunk);
 							File multiChunkFile = listener.getMultiChunkFile(newMultiChunkId);
 							
-							multiChunk = multiChunker.createMultiChunk(newMultiChunkId, 
-								transformer.createOutputStream(new FileOutputStream(multiChunkFile)));
+							multiChunk = multiChunker.createMultiChunk(newMultiChunkId, multiChunkSealer.createOutputStream(newMultiChunkId, multiChunkFile));
 
 							listener.onMultiChunkOpen(multiChunk);
 						}
@@ -128,6 +250,9 @@ public class Deduper {
 				// Closing file is necessary!
 				chunksEnum.close(); 
 			}
+			else {
+				cancel(chunkingTask);
+			}
 
 			if (chunk != null) {			
 				listener.onFileEnd(file, chunk.getFileChecksum());
@@ -149,6 +274,339 @@ public class Deduper {
 			multiChunk = null;
 		}	
 		
+		// Wait until all multichunks are written
+		multiChunkSealer.awaitAll();
+		
 		listener.onFinish();
 	}	
+	
+	private void cancel(ChunkingTask chunkingTask) {
+		if (chunkingTask != null) {
+			chunkingTask.cancel();
+		}
+	}
+	
+	/**
+	 * Chunks a single file in a chunker thread, and hands the chunks to the calling thread
+	 * via a small bounded queue. Tasks are submitted in file order, and the chunker threads
+	 * take them in this order, so the file the calling thread waits for is always being chunked
+	 * -- even if the threads chunking later files are blocked because their queues are full.
+	 *
+	 * <p>Because the file is read before the {@link DeduperListener} looks at it, its size and
+	 * modification date are captured before chunking. If they differ when the calling thread
+	 * gets to the file, the chunks are discarded and the file is chunked again.
+	 */
+	private class ChunkingTask implements Runnable, ChunkEnumeration {
+		private File file;
+		private BlockingQueue<Object> chunkQueue;
+		private Future<?> future;
+		
+		private long fileSize; // Written before the first queue item, read after it
+		private long lastModified;
+		
+		private Object nextItem;
+		
+		public ChunkingTask(File file) {
+			this.file = file;
+			this.chunkQueue = new ArrayBlockingQueue<Object>(CHUNK_QUEUE_SIZE);
+		}
+		
+		public void submit(ExecutorService chunkerExecutor) {
+			future = chunkerExecutor.submit(this);
+		}
+		
+		public void cancel() {
+			future.cancel(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (!Files.isRegularFile(file.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+					chunkQueue.put(CHUNKING_FAILED); // The listener will most likely not want the contents
+					return;
+				}
+				
+				fileSize = file.length();
+				lastModified = file.lastModified();
+				
+				chunkFile();
+			}
+			catch (InterruptedException e) {
+				// Cancelled, because the file is skipped (or the deduper failed)
+			}
+		}
+		
+		private void chunkFile() throws InterruptedException {
+			ChunkEnumeration chunksEnum = null;
+			
+			try {
+				chunksEnum = chunker.createChunks(file);
+				
+				while (chunksEnum.hasMoreElements()) {
+					Chunk chunk = chunksEnum.nextElement();
+					
+					if (chunk == null) {
+						chunkQueue.put(CHUNKING_FAILED);
+						return;
+					}
+
+					chunkQueue.put(chunk);
+				}
+				
+				chunkQueue.put(END_OF_FILE);
+			}
+			catch (IOException | RuntimeException e) {
+				logger.log(Level.FINE, "Cannot chunk file " + file + " ahead of time.", e);
+				chunkQueue.put(CHUNKING_FAILED);
+			}
+			finally {
+				if (chunksEnum != null) {
+					chunksEnum.close();
+				}
+			}
+		}
+		
+		/**
+		 * Returns the chunks of this file, or <tt>null</tt> if the file could not be
+		 * chunked ahead of time, or if it was modified since then.
+		 */
+		public ChunkEnumeration getChunks() throws IOException {
+			nextItem = take();
+			
+			if (nextItem == CHUNKING_FAILED) {
+				return null;
+			}
+			else if (file.length() != fileSize || file.lastModified() != lastModified) {
+				logger.log(Level.FINE, "File " + file + " was modified after chunking it ahead of time; chunking it again.");
+				
+				cancel();
+				return null;
+			}
+			else {
+				return this;
+			}
+		}
+
+		@Override
+		public boolean hasMoreElements() {
+			return nextItem != END_OF_FILE;
+		}
+
+		@Override
+		public Chunk nextElement() {
+			if (nextItem == END_OF_FILE || nextItem == CHUNKING_FAILED) {
+				return null;
+			}
+			
+			try {
+				Chunk chunk = (Chunk) nextItem;
+				nextItem = take();
+
+				return chunk;
+			}
+			catch (IOException e) {
+				logger.log(Level.SEVERE, "Error while retrieving next chunk.", e);
+				
+				nextItem = CHUNKING_FAILED;
+				return null;
+			}
+		}
+
+		@Override
+		public void close() {
+			cancel();
+		}
+		
+		private Object take() throws IOException {
+			try {
+				return chunkQueue.take();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for chunks of file " + file, e);
+			}
+		}
+	}
+	
+	/**
+	 * Creates the output streams for new multichunks. If the sealer was not started, the
+	 * streams apply the transformers and write to the multichunk file directly. Otherwise,
+	 * the multichunk is written to memory, and sealed (transformed, written and synced) in
+	 * a sealer thread when the stream is closed. 
+	 * 
+	 * <p>The number of multichunks that are closed, but not yet written, is limited by 
+	 * {@link #MAX_SEALING_MULTICHUNKS}. Closing a stream blocks until a permit is available. 
+	 */
+	private class MultiChunkSealer {
+		private ExecutorService sealerExecutor;
+		private Semaphore sealingPermits;
+		private List<Future<Void>> pendingSeals;
+		private volatile Exception sealingException;
+		
+		public void start(int sealerThreads) {
+			sealerExecutor = Executors.newFixedThreadPool(sealerThreads, new DeduperThreadFactory("Sealer"));
+			sealingPermits = new Semaphore(MAX_SEALING_MULTICHUNKS);
+			pendingSeals = new ArrayList<Future<Void>>();
+		}
+		
+		public OutputStream createOutputStream(MultiChunkId multiChunkId, File multiChunkFile) throws IOException {
+			if (sealerExecutor == null) {
+				return transformer.createOutputStream(new MultiChunkFileOutputStream(multiChunkId, multiChunkFile, false));
+			}
+			else {
+				return new SealingOutputStream(multiChunkId, multiChunkFile);
+			}
+		}
+		
+		/**
+		 * Waits for all multichunks to be written, and throws the first sealing error (if any).
+		 */
+		public void awaitAll() throws IOException {
+			if (sealerExecutor == null) {
+				return;
+			}
+			
+			try {
+				for (Future<Void> pendingSeal : pendingSeals) {
+					pendingSeal.get();
+				}
+			}
+			catch (ExecutionException e) {
+				throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for multichunks to be written.", e);
+			}
+			finally {
+				pendingSeals.clear();
+			}
+		}
+		
+		public void shutdown() {
+			if (sealerExecutor != null) {
+				sealerExecutor.shutdownNow();
+			}
+		}
+		
+		private void seal(final MultiChunkId multiChunkId, final File multiChunkFile, final byte[] multiChunkBytes, final int multiChunkLength) throws IOException {
+			if (sealingException != null) {
+				throw new IOException("Cannot write multichunk " + multiChunkFile + ", a previous multichunk failed.", sealingException);
+			}
+			
+			try {
+				sealingPermits.acquire();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for multichunks to be written.", e);
+			}
+			
+			pendingSeals.add(sealerExecutor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try {
+						OutputStream transformedOutputStream = transformer.createOutputStream(new MultiChunkFileOutputStream(multiChunkId, multiChunkFile, true));
+						
+						transformedOutputStream.write(multiChunkBytes, 0, multiChunkLength);
+						transformedOutputStream.close();
+						
+						return null;
+					}
+					catch (Exception e) {
+						sealingException = e;
+						throw e;
+					}
+					finally {
+						sealingPermits.release();
+					}
+				}
+			}));
+		}
+		
+		/**
+		 * Buffers the (untransformed) multichunk in memory, and hands it to the 
+		 * sealer when it is closed. The buffer is not copied. 
+		 */
+		private class SealingOutputStream extends ByteArrayOutputStream {
+			private MultiChunkId multiChunkId;
+			private File multiChunkFile;
+			private boolean closed;
+			
+			public SealingOutputStream(MultiChunkId multiChunkId, File multiChunkFile) {
+				super(multiChunker.minMultiChunkSize * 1024 + 64 * 1024);
+				
+				this.multiChunkId = multiChunkId;
+				this.multiChunkFile = multiChunkFile;
+				this.closed = false;
+			}
+			
+			@Override
+			public void close() throws IOException {
+				if (!closed) {
+					closed = true;
+					seal(multiChunkId, multiChunkFile, buf, count);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * File output stream for a multichunk file that notifies the {@link MultiChunkSealListener}
+	 * (if any) when it is closed. If requested, the file is synced to disk before it is closed, 
+	 * so that a sealed multichunk is durable before it is uploaded.
+	 */
+	private class MultiChunkFileOutputStream extends FileOutputStream {
+		private MultiChunkId multiChunkId;
+		private File multiChunkFile;
+		private boolean sync;
+		private boolean closed;
+		
+		public MultiChunkFileOutputStream(MultiChunkId multiChunkId, File multiChunkFile, boolean sync) throws IOException {
+			super(multiChunkFile);
+			
+			this.multiChunkId = multiChunkId;
+			this.multiChunkFile = multiChunkFile;
+			this.sync = sync;
+			this.closed = false;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				
+				try {
+					if (sync) {
+						getFD().sync();
+					}
+				}
+				finally {
+					super.close();
+				}
+				
+				if (multiChunkSealListener != null) {
+					multiChunkSealListener.onMultiChunkSealed(multiChunkId, multiChunkFile);
+				}
+			}
+		}
+	}
+	
+	private static class DeduperThreadFactory implements ThreadFactory {
+		private String threadName;
+		private AtomicInteger threadNumber = new AtomicInteger(1);
+
+		public DeduperThreadFactory(String threadName) {
+			this.threadName = threadName;
+		}
+		
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, threadName + "-" + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+
+			return thread;
+		}
+	}
 }
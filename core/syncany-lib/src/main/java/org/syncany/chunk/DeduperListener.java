@@ -137,6 +137,10 @@ public interface DeduperListener {
 	 * Called by {@link Deduper} during the deduplication process whenever a multichunk is closed. This can 
 	 * happen either because the multichunk is full (max. size reached/exceeded), or because there are no 
 	 * more files to chunk/index.
+	 * 
+	 * <p>Note that the multichunk file might still be written (transformed) in the background when this
+	 * method is called. All multichunk files are complete when {@link Deduper#deduplicate(java.util.List, DeduperListener)}
+	 * returns, i.e. before {@link #onFinish()} is called.
 	 *  
 	 * @param multiChunk The multichunk that's being closed 
 	 */
@@ -0,0 +1,341 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.chunk;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The FastCDC chunker is a content-based {@link Chunker} implementing the FastCDC
+ * chunking method of Wen Xia et al., 2016. Compared to the {@link TttdChunker}, it
+ * is considerably faster per byte, and produces chunks whose sizes are much closer
+ * to the average chunk size.
+ *
+ * <p>Breakpoints are found with a <i>gear hash</i>: For each byte, the hash is shifted
+ * left by one bit and a random 64-bit value (looked up in a table by the byte value)
+ * is added. The most significant bits of the hash therefore depend on the last 64 bytes,
+ * i.e. it is a rolling hash without the need to remove bytes leaving the window. A
+ * breakpoint is found if the bits selected by a mask are all zero -- which needs no
+ * division per byte.
+ *
+ * <p>Like TTTD, the chunker never emits chunks smaller than a minimum or larger than
+ * a maximum size, and it does not even hash the bytes below the minimum size (cut-point
+ * skipping). To narrow the chunk size distribution, it uses <i>normalized chunking</i>:
+ * Below the average chunk size, a mask with more bits is used (i.e. a breakpoint is less
+ * likely), and above it, a mask with fewer bits (i.e. a breakpoint is more likely).
+ *
+ * <p>The gear table and masks are part of the chunk format: Changing them changes
+ * the chunk boundaries, and hence the chunk checksums of all files.
+ *
+ * @see <a href="https://www.usenix.org/conference/atc16/technical-sessions/presentation/xia">FastCDC: a Fast and Efficient Content-Defined
+ *      Chunking Approach for Data Deduplication</a>, 2016, Wen Xia, Yukun Zhou, Hong Jiang, et al.
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class FastCdcChunker extends Chunker {
+	private static final Logger logger = Logger.getLogger(FastCdcChunker.class.getSimpleName());
+
+	public static final String TYPE = "fast-cdc";
+	public static final String DEFAULT_DIGEST_ALG = "SHA1";
+
+	private static final int MIN_SIZE_DIVISOR = 4; // min. chunk size = avg. chunk size / 4
+	private static final int MAX_SIZE_FACTOR = 8; // max. chunk size = avg. chunk size * 8
+	private static final int NORMALIZATION_LEVEL = 2; // Mask bits added/removed below/above avg. chunk size
+	private static final long GEAR_SEED = 0x5379_6e63_616e_7921L; // "Syncany!"; never change, see class comment
+
+	private static final long[] GEAR = createGearTable();
+
+	private int avgChunkSize;
+	private int minChunkSize;
+	private int maxChunkSize;
+	private long maskSmall;
+	private long maskLarge;
+	private String checksumAlgorithm;
+
+	/**
+	 * Creates a new FastCDC chunker, which must be initialized with {@link #init(Map)}
+	 * before it can be used. This constructor is used by {@link Chunker#getInstance(String)}.
+	 */
+	public FastCdcChunker() {
+		// Nothing.
+	}
+
+	/**
+	 * Creates a new FastCDC chunker with the default checksum algorithm SHA1.
+	 *
+	 * @param avgChunkSize Average size of a chunk in bytes
+	 */
+	public FastCdcChunker(int avgChunkSize) {
+		this(avgChunkSize, DEFAULT_DIGEST_ALG);
+	}
+
+	/**
+	 * Creates a new FastCDC chunker.
+	 *
+	 * @param avgChunkSize Average size of a chunk in bytes
+	 * @param checksumAlgorithm Algorithm to calculate the chunk and file checksums (e.g. SHA1, MD5)
+	 */
+	public FastCdcChunker(int avgChunkSize, String checksumAlgorithm) {
+		setChunkSize(avgChunkSize);
+		this.checksumAlgorithm = checksumAlgorithm;
+	}
+
+	/**
+	 * Initializes the chunker using a settings map.
+	 * <br>
+	 * Required settings are:
+	 * <ul>
+	 *  <li> key: {@link Chunker#PROPERTY_SIZE}, value: average chunk size in bytes, integer encoded as String
+	 * </ul>
+	 */
+	@Override
+	public void init(Map<String, String> settings) {
+		String size = settings.get(PROPERTY_SIZE);
+
+		if (size == null) {
+			throw new IllegalArgumentException(String.format("Property %s must not be null.", PROPERTY_SIZE));
+		}
+
+		try {
+			setChunkSize(Integer.parseInt(size));
+			checksumAlgorithm = DEFAULT_DIGEST_ALG;
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format("Property %s could not be parsed as Integer.", PROPERTY_SIZE), e);
+		}
+	}
+
+	private void setChunkSize(int avgChunkSize) {
+		if (avgChunkSize < 64) {
+			throw new IllegalArgumentException("Average chunk size must be at least 64 bytes, but was " + avgChunkSize);
+		}
+
+		int avgChunkSizeBits = (int) Math.round(Math.log(avgChunkSize) / Math.log(2));
+
+		this.avgChunkSize = avgChunkSize;
+		this.minChunkSize = avgChunkSize / MIN_SIZE_DIVISOR;
+		this.maxChunkSize = avgChunkSize * MAX_SIZE_FACTOR;
+		this.maskSmall = createMask(avgChunkSizeBits + NORMALIZATION_LEVEL);
+		this.maskLarge = createMask(avgChunkSizeBits - NORMALIZATION_LEVEL);
+	}
+
+	@Override
+	public ChunkEnumeration createChunks(File file) throws IOException {
+		return new FastCdcEnumeration(new FileInputStream(file));
+	}
+
+	@Override
+	public String getChecksumAlgorithm() {
+		return checksumAlgorithm;
+	}
+
+	@Override
+	public String toString() {
+		return "FastCDC-" + avgChunkSize + "-" + checksumAlgorithm;
+	}
+
+	/**
+	 * Returns the size of the chunk starting at the given offset, i.e. the position of the
+	 * first breakpoint (plus one). At most <tt>length</tt> bytes are examined, which must not
+	 * be more than the maximum chunk size.
+	 */
+	private int findBreakpoint(byte[] buffer, int offset, int length) {
+		if (length <= minChunkSize) {
+			return length;
+		}
+
+		int normalSize = Math.min(avgChunkSize, length);
+		long hash = 0;
+		int i = minChunkSize;
+
+		for (; i < normalSize; i++) {
+			hash = (hash << 1) + GEAR[buffer[offset + i] & 0xff];
+
+			if ((hash & maskSmall) == 0) {
+				return i + 1;
+			}
+		}
+
+		for (; i < length; i++) {
+			hash = (hash << 1) + GEAR[buffer[offset + i] & 0xff];
+
+			if ((hash & maskLarge) == 0) {
+				return i + 1;
+			}
+		}
+
+		return length;
+	}
+
+	/**
+	 * Creates a mask of the given number of bits, using the most significant bits
+	 * of the hash (the least significant ones only depend on the last few bytes).
+	 */
+	private static long createMask(int bits) {
+		return -1L << (64 - bits);
+	}
+
+	/**
+	 * Creates the (fixed) table of random values for the gear hash, using the SplitMix64
+	 * generator with a fixed seed. The values must never change, see class comment.
+	 */
+	private static long[] createGearTable() {
+		long[] gearTable = new long[256];
+		long state = GEAR_SEED;
+
+		for (int i = 0; i < gearTable.length; i++) {
+			state += 0x9e3779b97f4a7c15L;
+
+			long value = state;
+			value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+			value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+
+			gearTable[i] = value ^ (value >>> 31);
+		}
+
+		return gearTable;
+	}
+
+	/**
+	 * Enumerates the chunks of a stream. Like the {@link TttdChunker.TTTDEnumeration}, the stream is
+	 * read in bulk into a buffer that holds the maximum chunk size plus one bulk read, and that is
+	 * reused for the whole stream.
+	 *
+	 * <p>The last chunk of a stream carries the file checksum. An empty stream has no chunks.
+	 */
+	public class FastCdcEnumeration implements ChunkEnumeration {
+		private static final int READ_SIZE = 64 * 1024;
+
+		private InputStream in;
+		private boolean closed;
+		private boolean endOfStream;
+		private byte[] buffer;
+		private int bufferStart;
+		private int bufferEnd;
+
+		private MessageDigest chunkDigest;
+		private MessageDigest fileDigest;
+
+		public FastCdcEnumeration(InputStream in) throws IOException {
+			this.in = in;
+			this.closed = false;
+			this.endOfStream = false;
+			this.buffer = new byte[maxChunkSize + READ_SIZE];
+			this.bufferStart = 0;
+			this.bufferEnd = 0;
+
+			try {
+				chunkDigest = MessageDigest.getInstance(checksumAlgorithm);
+				fileDigest = MessageDigest.getInstance(checksumAlgorithm);
+			}
+			catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+
+			fillBuffer();
+
+			if (bufferEnd == bufferStart) {
+				in.close();
+				closed = true;
+			}
+		}
+
+		@Override
+		public boolean hasMoreElements() {
+			return !closed;
+		}
+
+		@Override
+		public Chunk nextElement() {
+			if (closed) {
+				return null;
+			}
+
+			try {
+				int chunkSize = findBreakpoint(buffer, bufferStart, Math.min(maxChunkSize, bufferEnd - bufferStart));
+
+				chunkDigest.reset();
+				chunkDigest.update(buffer, bufferStart, chunkSize);
+
+				byte[] chunkChecksum = chunkDigest.digest();
+				byte[] chunkContents = Arrays.copyOfRange(buffer, bufferStart, bufferStart + chunkSize);
+
+				// Buffer next chunk (if any) to find out whether this was the last one
+				bufferStart += chunkSize;
+				fillBuffer();
+
+				byte[] fileChecksum = null;
+
+				if (bufferEnd == bufferStart) {
+					in.close();
+					closed = true;
+
+					fileChecksum = fileDigest.digest();
+				}
+
+				return new Chunk(chunkChecksum, chunkContents, chunkSize, fileChecksum);
+			}
+			catch (IOException e) {
+				logger.log(Level.SEVERE, "Error while retrieving next chunk.", e);
+				return null;
+			}
+		}
+
+		@Override
+		public void close() {
+			try {
+				in.close();
+			}
+			catch (IOException e) {
+				logger.log(Level.INFO, "Error while closing", e);
+			}
+		}
+
+		/**
+		 * Reads from the input stream until at least the maximum chunk size is buffered, or
+		 * until the end of the stream is reached. Streams may return fewer bytes than requested
+		 * (e.g. Cipher streams), so this method reads repeatedly.
+		 */
+		private void fillBuffer() throws IOException {
+			while (bufferEnd - bufferStart < maxChunkSize && !endOfStream) {
+				if (bufferEnd == buffer.length) {
+					System.arraycopy(buffer, bufferStart, buffer, 0, bufferEnd - bufferStart);
+
+					bufferEnd -= bufferStart;
+					bufferStart = 0;
+				}
+
+				int bytesRead = in.read(buffer, bufferEnd, buffer.length - bufferEnd);
+
+				if (bytesRead == -1) {
+					endOfStream = true;
+				}
+				else {
+					fileDigest.update(buffer, bufferEnd, bytesRead);
+					bufferEnd += bytesRead;
+				}
+			}
+		}
+	}
+}
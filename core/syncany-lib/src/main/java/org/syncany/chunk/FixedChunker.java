@@ -22,6 +22,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -148,8 +149,8 @@ public class FixedChunker extends Chunker {
 				fileDigest.update(buffer, 0, read);
 				byte[] fileChecksum = (closed) ? fileDigest.digest() : null;
 
-				// Create chunk
-				return new Chunk(digest.digest(), buffer, read, fileChecksum);
+				// Create chunk (with its own copy of the data, chunks may be processed later)
+				return new Chunk(digest.digest(), Arrays.copyOf(buffer, read), read, fileChecksum);
 			}
 			catch (IOException ex) {
 				logger.log(Level.SEVERE, "Error while retrieving next chunk.", ex);
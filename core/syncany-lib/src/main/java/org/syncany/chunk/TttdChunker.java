@@ -22,6 +22,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -130,12 +131,23 @@ public class TttdChunker extends Chunker {
 		return name;
 	}
 
+	/**
+	 * Enumerates the chunks of a stream. The stream is read in bulk into a read buffer that
+	 * is reused for the whole stream; a chunk is never longer than <i>Tmax</i>, so the buffer
+	 * only needs to hold <i>Tmax</i> bytes plus one bulk read.
+	 *
+	 * <p>For each chunk, the fingerprint is calculated over the buffered bytes directly, and
+	 * only the bytes of the chunk itself are copied (into the chunk's content array).
+	 */
 	public class TTTDEnumeration implements ChunkEnumeration {
+		private static final int READ_SIZE = 64 * 1024;
+
 		private InputStream in;
 		private boolean closed;
-		private byte[] c;
-		private int clen;
-		private int cpos;
+		private boolean endOfStream;
+		private byte[] buffer;
+		private int bufferStart;
+		private int bufferEnd;
 
 		private MessageDigest chunkDigest;
 		private MessageDigest fileDigest;
@@ -144,9 +156,10 @@ public class TttdChunker extends Chunker {
 		public TTTDEnumeration(InputStream in) throws IOException {
 			this.in = in;
 			this.closed = false;
-			this.c = new byte[8192];
-			this.clen = -1;
-			this.cpos = -1;
+			this.endOfStream = false;
+			this.buffer = new byte[Tmax + READ_SIZE];
+			this.bufferStart = 0;
+			this.bufferEnd = 0;
 
 			try {
 				fingerprinter = Fingerprinter.getInstance(fingerprintAlgorithm);
@@ -175,85 +188,49 @@ public class TttdChunker extends Chunker {
 			fingerprinter.reset();
 
 			try {
-				int backupBreak = 0;
+				// Make sure that the next Tmax bytes are buffered (or the rest of the stream)
+				fillBuffer();
+
+				int available = Math.min(Tmax, bufferEnd - bufferStart);
 				int breakpoint = -1;
 
-				byte[] buf = new byte[Tmax];
-				int bufpos = -1;
+				if (available > Tmin) {
+					fingerprinter.check(buffer, bufferStart + Tmin - windowSize, windowSize);
 
-				while (bufpos < buf.length - 1) {
-					if (cpos == -1 || cpos == clen - 1) {
-						cpos = -1;
-						clen = readFromInputStreamFixed(c, in);//in.read(c);
+					for (int pos = Tmin; pos < available; pos++) {
+						if (pos > Tmin) {
+							fingerprinter.roll(buffer[bufferStart + pos]);
+						}
 
-						if (clen == -1) {
+						// The value of r (right side) plays no role! #39  
+						if ((fingerprinter.getValue() % D) == D - 1) {
+							breakpoint = pos;
 							break;
 						}
-
-						fileDigest.update(c, 0, clen);
-					}
-
-					bufpos++;
-					cpos++;
-					buf[bufpos] = c[cpos];
-
-					if (bufpos < Tmin) {
-						continue;
-					}
-					else if (bufpos == Tmin) {
-						fingerprinter.check(buf, bufpos - windowSize, windowSize);
-					}
-					else {
-						fingerprinter.roll(buf[bufpos]);
-					}
-
-					int hash = fingerprinter.getValue();
-
-					// The value of r (right side) plays no role! #39  
-					if ((hash % Ddash) == Ddash - 1) {
-						backupBreak = bufpos;
-					}
-
-					if ((hash % D) == D - 1) {
-						breakpoint = bufpos;
-						break;
 					}
+				}
 
-					if (bufpos < Tmax) {
-						continue;
-					}
+				// No breakpoint found: Cut at Tmax, or at the end of the stream.
+				// Note that the backup divisor D' never applies here, because the original
+				// implementation only considered it beyond Tmax; boundaries are kept identical.
+				int chunkSize = (breakpoint != -1) ? breakpoint + 1 : available;
 
-					if (backupBreak != 0) {
-						breakpoint = backupBreak;
-						break;
-					}
-					else {
-						breakpoint = bufpos;
-						break;
-					}
-				}
+				// Close if this was the last bytes (i.e. the chunk needs more bytes than there are)
+				boolean lastChunk = breakpoint == -1 && available < Tmax;
 
-				// Close if this was the last bytes
-				if (clen == -1) {
+				if (lastChunk) {
 					in.close();
 					closed = true;
 				}
 
-				// EOF as breakpoint
-				if (breakpoint == -1) {
-					breakpoint = bufpos;
-				}
-
-				// Increase breakpoint
-				breakpoint++;
-
 				// Create chunk
-				chunkDigest.update(buf, 0, breakpoint);
+				chunkDigest.update(buffer, bufferStart, chunkSize);
 
 				byte[] chunkChecksum = chunkDigest.digest();
-				byte[] chunkContents = buf;
-				int chunkSize = breakpoint;
-				byte[] fileChecksum = (clen == -1) ? fileDigest.digest() : null;
+				byte[] chunkContents = Arrays.copyOfRange(buffer, bufferStart, bufferStart + chunkSize);
+				byte[] fileChecksum = (lastChunk) ? fileDigest.digest() : null;
+
+				bufferStart += chunkSize;
 
 				return new Chunk(chunkChecksum, chunkContents, chunkSize, fileChecksum);
 			}
@@ -274,24 +251,32 @@ public class TttdChunker extends Chunker {
 		}
 
 		/**
-		 * Fixes the read errors occurring with Cipher streams in the standard
-		 * Java read implementation.
+		 * Reads from the input stream until at least <i>Tmax</i> bytes are buffered, or until
+		 * the end of the stream is reached. If there is no room left behind the buffered bytes,
+		 * they are moved to the beginning of the buffer first.
+		 *
+		 * <p>Streams may return fewer bytes than requested (e.g. Cipher streams), so this method
+		 * reads repeatedly instead of relying on a single call.
 		 */
-		private int readFromInputStreamFixed(byte[] readToBuffer, InputStream inputStream) throws IOException {
-			int bytesRead = 0;
+		private void fillBuffer() throws IOException {
+			while (bufferEnd - bufferStart < Tmax && !endOfStream) {
+				if (bufferEnd == buffer.length) {
+					System.arraycopy(buffer, bufferStart, buffer, 0, bufferEnd - bufferStart);
 
-			while (bytesRead < readToBuffer.length) {
-				int byteRead = inputStream.read();
-
-				if (byteRead == -1) {
-					return (bytesRead != 0) ? bytesRead : -1;
+					bufferEnd -= bufferStart;
+					bufferStart = 0;
 				}
 
-				readToBuffer[bytesRead] = (byte) byteRead;
-				bytesRead++;
-			}
+				int bytesRead = in.read(buffer, bufferEnd, buffer.length - bufferEnd);
 
-			return (bytesRead != 0) ? bytesRead : -1;
+				if (bytesRead == -1) {
+					endOfStream = true;
+				}
+				else {
+					fileDigest.update(buffer, bufferEnd, bytesRead);
+					bufferEnd += bytesRead;
+				}
+			}
 		}
 	}
 }
@@ -48,6 +48,7 @@ public class Cache {
     private static long DEFAULT_CACHE_KEEP_BYTES = 500*1024*1024;
 	private static String FILE_FORMAT_MULTICHUNK_ENCRYPTED = "multichunk-%s";
 	private static String FILE_FORMAT_MULTICHUNK_DECRYPTED = "multichunk-%s-decrypted";
+	private static String FILE_FORMAT_MULTICHUNK_PARTIAL = "multichunk-%s-partial";
     private static String FILE_FORMAT_DATABASE_FILE_ENCRYPTED = "%s";
     
     private long keepBytes;
@@ -66,6 +67,15 @@ public class Cache {
     	return getFileInCache(FILE_FORMAT_MULTICHUNK_DECRYPTED, multiChunkId.toString());
     }    
 
+    /**
+     * Returns a file path of a partial (decrypted) multichunk file, i.e. a multichunk
+     * that only contains some of the original multichunk's chunks, given the identifier 
+     * of a multichunk.
+     */
+    public File getPartialMultiChunkFile(MultiChunkId multiChunkId) {
+    	return getFileInCache(FILE_FORMAT_MULTICHUNK_PARTIAL, multiChunkId.toString());
+    }    
+
     /**
      * Returns a file path of a encrypted multichunk file, 
      * given the identifier of a multichunk.
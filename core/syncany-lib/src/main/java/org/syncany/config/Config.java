@@ -29,6 +29,7 @@ import org.syncany.chunk.NoTransformer;
 import org.syncany.chunk.Transformer;
 import org.syncany.config.to.ConfigTO;
 import org.syncany.config.to.RepoTO;
+import org.syncany.config.to.RepoTO.ChunkerTO;
 import org.syncany.config.to.RepoTO.MultiChunkerTO;
 import org.syncany.config.to.RepoTO.TransformerTO;
 import org.syncany.crypto.SaltedSecretKey;
@@ -65,8 +66,9 @@ public class Config {
 	public static final String FILE_REPO = "syncany";
 	public static final String FILE_MASTER = "master";
 
-	// File in .syncany/db
+	// Files in .syncany/db
 	public static final String FILE_DATABASE = "local.db";
+	public static final String FILE_CHUNK_FILTER = "chunks.bloom";
 
 	// Files in .syncany/state
 	public static final String FILE_PORT = "port.xml";
@@ -159,11 +161,25 @@ public class Config {
 		repoId = repoTO.getRepoId();
 	}
 
-	private void initChunker(RepoTO repoTO) throws Exception {
+	private void initChunker(RepoTO repoTO) throws ConfigException {
 		// TODO [feature request] make chunking options configurable, something like described in #29
 		// See: https://github.com/syncany/syncany/issues/29#issuecomment-43425647
 
-		chunker = new FixedChunker(512 * 1024, "SHA1");
+		ChunkerTO chunkerTO = repoTO.getChunkerTO();
+
+		// Fixed chunker settings were never applied; keep 512 KB for existing repos
+		if (chunkerTO == null || FixedChunker.TYPE.equals(chunkerTO.getType())) {
+			chunker = new FixedChunker(512 * 1024, "SHA1");
+		}
+		else {
+			chunker = Chunker.getInstance(chunkerTO.getType());
+
+			if (chunker == null) {
+				throw new ConfigException("Invalid chunker type or settings: " + chunkerTO.getType());
+			}
+
+			chunker.init(chunkerTO.getSettings());
+		}
 	}
 
 	private void initMultiChunker(RepoTO repoTO) throws ConfigException {
@@ -329,6 +345,10 @@ public class Config {
 		return new File(databaseDir, FILE_DATABASE);
 	}
 
+	public File getChunkFilterFile() {
+		return new File(databaseDir, FILE_CHUNK_FILTER);
+	}
+
 	public File getPortFile() {
 		return new File(stateDir, FILE_PORT);
 	}
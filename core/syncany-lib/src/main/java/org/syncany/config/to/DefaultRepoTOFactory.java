@@ -25,6 +25,7 @@ import java.util.Map;
 
 import org.syncany.chunk.Chunker;
 import org.syncany.chunk.CipherTransformer;
+import org.syncany.chunk.FastCdcChunker;
 import org.syncany.chunk.FixedChunker;
 import org.syncany.chunk.GzipTransformer;
 import org.syncany.chunk.MultiChunker;
@@ -49,7 +50,16 @@ public class DefaultRepoTOFactory implements RepoTOFactory {
 	private List<TransformerTO> transformersTO;
 
 	public DefaultRepoTOFactory(boolean gzipEnabled, List<CipherSpec> cipherSpecs) {
-		chunkerTO = getDefaultChunkerTO();
+		this(gzipEnabled, cipherSpecs, FixedChunker.TYPE);
+	}
+
+	/**
+	 * Creates a factory for repositories using the given chunker type. Only
+	 * {@link FixedChunker#TYPE} (the default) and {@link FastCdcChunker#TYPE} are supported.
+	 * Note that the chunker cannot be changed after the repository has been created. 
+	 */
+	public DefaultRepoTOFactory(boolean gzipEnabled, List<CipherSpec> cipherSpecs, String chunkerType) {
+		chunkerTO = getChunkerTO(chunkerType);
 		multiChunkerTO = getDefaultMultiChunkerTO();
 		transformersTO = getTransformersTO(gzipEnabled, cipherSpecs);
 	}
@@ -91,6 +101,18 @@ public class DefaultRepoTOFactory implements RepoTOFactory {
 		return repoTO;
 	}
 
+	protected ChunkerTO getChunkerTO(String chunkerType) {
+		if (FixedChunker.TYPE.equals(chunkerType)) {
+			return getDefaultChunkerTO();
+		}
+		else if (FastCdcChunker.TYPE.equals(chunkerType)) {
+			return getFastCdcChunkerTO();
+		}
+		else {
+			throw new IllegalArgumentException("Unknown chunker type: " + chunkerType);
+		}
+	}
+
 	protected ChunkerTO getDefaultChunkerTO() {
 		ChunkerTO chunkerTO = new ChunkerTO();
 
@@ -101,6 +123,16 @@ public class DefaultRepoTOFactory implements RepoTOFactory {
 		return chunkerTO;
 	}
 
+	protected ChunkerTO getFastCdcChunkerTO() {
+		ChunkerTO chunkerTO = new ChunkerTO();
+
+		chunkerTO.setType(FastCdcChunker.TYPE);
+		chunkerTO.setSettings(new HashMap<String, String>());
+		chunkerTO.getSettings().put(Chunker.PROPERTY_SIZE, "" + (512 * 1024));
+
+		return chunkerTO;
+	}
+
 	protected MultiChunkerTO getDefaultMultiChunkerTO() {
 		MultiChunkerTO multichunkerTO = new MultiChunkerTO();
 
@@ -52,6 +52,9 @@ import org.syncany.util.StringUtil;
  *       files are processed.
  * </ul>
  *
+ * <p>A cipher session is thread-safe, i.e. it can be shared by streams that are
+ * written or read in different threads (e.g. multichunks sealed in the background).
+ *
  * @author Philipp C. Heckel <philipp.heckel@gmail.com>
  */
 public class CipherSession {
@@ -123,7 +126,7 @@ public class CipherSession {
 	 * @return Returns a newly created secret key or a cached key
 	 * @throws Exception If an error occurs with key creation
 	 */
-	public SaltedSecretKey getWriteSecretKey(CipherSpec cipherSpec) throws Exception {
+	public synchronized SaltedSecretKey getWriteSecretKey(CipherSpec cipherSpec) throws Exception {
 		SecretKeyCacheEntry secretKeyCacheEntry = secretKeyWriteCache.get(cipherSpec);
 
 		// Remove key if use more than X times
@@ -170,7 +173,7 @@ public class CipherSession {
 	 * @return Returns a newly created secret key or a cached key
 	 * @throws Exception If an error occurs with key creation
 	 */
-	public SaltedSecretKey getReadSecretKey(CipherSpec cipherSpec, byte[] salt) throws Exception {
+	public synchronized SaltedSecretKey getReadSecretKey(CipherSpec cipherSpec, byte[] salt) throws Exception {
 		CipherSpecWithSalt cipherSpecWithSalt = new CipherSpecWithSalt(cipherSpec, salt);
 		SecretKeyCacheEntry secretKeyCacheEntry = secretKeyReadCache.get(cipherSpecWithSalt);
 
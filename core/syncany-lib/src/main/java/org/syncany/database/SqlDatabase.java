@@ -74,7 +74,7 @@ public class SqlDatabase {
 	public SqlDatabase(Config config) {
 		this.connection = config.createDatabaseConnection();
 		this.applicationDao = new ApplicationSqlDao(connection);
-		this.chunkDao = new ChunkSqlDao(connection);
+		this.chunkDao = new ChunkSqlDao(connection, config.getChunkFilterFile());
 		this.fileContentDao = new FileContentSqlDao(connection);
 		this.fileVersionDao = new FileVersionSqlDao(connection);
 		this.fileHistoryDao = new FileHistorySqlDao(connection, fileVersionDao);
@@ -94,6 +94,7 @@ public class SqlDatabase {
 
 	public void rollback() throws SQLException {
 		connection.rollback();
+		databaseVersionDao.clearCaches(); // Cache may contain rolled back chunks
 	}
 
 	public void removeUnreferencedDatabaseEntities() {
@@ -0,0 +1,238 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.database.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The chunk filter is a persistent Bloom filter over the checksums of all chunks in the
+ * local database. It is used by the {@link ChunkSqlDao} in front of the {@link ChunkIndex}:
+ * If the filter says that a chunk is unknown, it definitely is, and neither the index nor
+ * the database must be queried. This is the common case when new data is indexed. If the
+ * filter says that a chunk might be known, it is looked up in the index (about 1% of the
+ * unknown chunks are false positives).
+ *
+ * <p>The filter is stored in a file, which is memory-mapped. It consists of a header and
+ * the bit array. The header contains the number of chunks in the database that the filter
+ * covers. When the filter is opened, this number must match the number of chunks in the
+ * database; otherwise, the filter is rebuilt from the database. The filter never misses a
+ * chunk: Checksums are added <i>before</i> the chunks are inserted, and the new number of
+ * chunks is only written to the header after the bit array has been synced to disk. If
+ * the insert is rolled back, or if the application crashes, the numbers do not match, and
+ * the filter is rebuilt.
+ *
+ * <p>Bits cannot be removed from a Bloom filter. Removed chunks therefore remain in the filter
+ * (leading to more false positives), until the filter is rebuilt because it is full.
+ *
+ * <p>Lookups are lock-free; updates are serialized.
+ *
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class ChunkFilter {
+	private static final Logger logger = Logger.getLogger(ChunkFilter.class.getSimpleName());
+
+	private static final int MAGIC = 0x5342464c; // "SBFL"
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 64;
+	private static final int HEADER_OFFSET_MAGIC = 0;
+	private static final int HEADER_OFFSET_VERSION = 4;
+	private static final int HEADER_OFFSET_HASH_COUNT = 8;
+	private static final int HEADER_OFFSET_BIT_COUNT = 16;
+	private static final int HEADER_OFFSET_CHUNK_COUNT = 24;
+	private static final int HEADER_OFFSET_INSERT_COUNT = 32;
+
+	private static final int BITS_PER_CHUNK = 10; // ~1% false positives with 7 hash functions
+	private static final int HASH_COUNT = 7;
+	private static final long MIN_CAPACITY = 1024 * 1024; // Chunks, i.e. 1.25 MB
+	private static final long MAX_BIT_COUNT = (Integer.MAX_VALUE - HEADER_SIZE) / 64 * 64 * 8L;
+
+	private MappedByteBuffer buffer;
+	private long bitCount;
+	private int hashCount;
+
+	private ChunkFilter(MappedByteBuffer buffer) {
+		this.buffer = buffer;
+		this.bitCount = buffer.getLong(HEADER_OFFSET_BIT_COUNT);
+		this.hashCount = buffer.getInt(HEADER_OFFSET_HASH_COUNT);
+	}
+
+	/**
+	 * Opens the chunk filter stored in the given file. Returns <tt>null</tt> if the file does not
+	 * exist, is invalid, does not cover the given number of chunks, or if the filter is full. In
+	 * this case, the filter must be recreated with {@link #create(File, long) create()}.
+	 *
+	 * @param filterFile File in which the filter is stored
+	 * @param chunkCount Number of chunks that are currently in the database
+	 */
+	public static ChunkFilter open(File filterFile, long chunkCount) throws IOException {
+		if (!filterFile.exists() || filterFile.length() < HEADER_SIZE) {
+			return null;
+		}
+
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(filterFile, "r")) {
+			int magic = randomAccessFile.readInt();
+			int version = randomAccessFile.readInt();
+
+			randomAccessFile.seek(HEADER_OFFSET_BIT_COUNT);
+
+			long bitCount = randomAccessFile.readLong();
+			long filterChunkCount = randomAccessFile.readLong();
+			long insertCount = randomAccessFile.readLong();
+
+			if (magic != MAGIC || version != VERSION || filterFile.length() != HEADER_SIZE + bitCount / 8) {
+				logger.log(Level.INFO, "Chunk filter " + filterFile + " is invalid.");
+				return null;
+			}
+			else if (filterChunkCount != chunkCount) {
+				logger.log(Level.INFO, "Chunk filter " + filterFile + " is outdated; covers " + filterChunkCount + " chunk(s), but database has "
+						+ chunkCount + ".");
+				return null;
+			}
+			else if (insertCount > bitCount / BITS_PER_CHUNK) {
+				logger.log(Level.INFO, "Chunk filter " + filterFile + " is full (" + insertCount + " inserts).");
+				return null;
+			}
+		}
+
+		return new ChunkFilter(map(filterFile));
+	}
+
+	/**
+	 * Creates a new, empty chunk filter with space for (at least) the given number of chunks,
+	 * and replaces the given file with it. The number of chunks that the filter covers is zero;
+	 * the chunks must be added with {@link #add(byte[])} and {@link #setChunkCount(long)}.
+	 *
+	 * <p>The filter is created in a temporary file, and then moved to the target file, so that
+	 * a filter that may still be mapped by another instance is not modified.
+	 */
+	public static ChunkFilter create(File filterFile, long expectedChunks) throws IOException {
+		long capacity = Math.max(MIN_CAPACITY, expectedChunks * 2);
+		long bitCount = Math.min(MAX_BIT_COUNT, (capacity * BITS_PER_CHUNK + 63) / 64 * 64);
+
+		File tempFilterFile = new File(filterFile.getParentFile(), filterFile.getName() + ".tmp");
+
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(tempFilterFile, "rw")) {
+			randomAccessFile.setLength(0);
+			randomAccessFile.setLength(HEADER_SIZE + bitCount / 8);
+
+			randomAccessFile.writeInt(MAGIC);
+			randomAccessFile.writeInt(VERSION);
+			randomAccessFile.writeInt(HASH_COUNT);
+			randomAccessFile.seek(HEADER_OFFSET_BIT_COUNT);
+			randomAccessFile.writeLong(bitCount);
+			randomAccessFile.writeLong(-1); // Chunk count, not valid yet
+			randomAccessFile.writeLong(0); // Inserts
+		}
+
+		Files.move(tempFilterFile.toPath(), filterFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return new ChunkFilter(map(filterFile));
+	}
+
+	private static MappedByteBuffer map(File filterFile) throws IOException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(filterFile, "rw"); FileChannel fileChannel = randomAccessFile.getChannel()) {
+			return fileChannel.map(MapMode.READ_WRITE, 0, fileChannel.size());
+		}
+	}
+
+	/**
+	 * Returns <tt>false</tt> if the chunk with the given checksum is definitely not in the
+	 * database, and <tt>true</tt> if it might be.
+	 */
+	public boolean mightContain(byte[] checksum) {
+		long hash1 = hash(checksum, 0);
+		long hash2 = hash(checksum, checksum.length - 8) | 1;
+
+		for (int i = 0; i < hashCount; i++) {
+			long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % bitCount;
+
+			if ((buffer.getLong(getOffset(bit)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Adds a checksum to the filter. This must be done before the chunk is inserted
+	 * into the database.
+	 */
+	public synchronized void add(byte[] checksum) {
+		long hash1 = hash(checksum, 0);
+		long hash2 = hash(checksum, checksum.length - 8) | 1;
+
+		for (int i = 0; i < hashCount; i++) {
+			long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % bitCount;
+			int offset = getOffset(bit);
+
+			buffer.putLong(offset, buffer.getLong(offset) | (1L << bit));
+		}
+
+		buffer.putLong(HEADER_OFFSET_INSERT_COUNT, buffer.getLong(HEADER_OFFSET_INSERT_COUNT) + 1);
+	}
+
+	/**
+	 * Returns the number of chunks in the database that this filter covers.
+	 */
+	public synchronized long getChunkCount() {
+		return buffer.getLong(HEADER_OFFSET_CHUNK_COUNT);
+	}
+
+	/**
+	 * Syncs the filter to disk, and then sets the number of chunks in the database
+	 * that this filter covers. This must be done after the chunks have been inserted
+	 * into (or removed from) the database.
+	 */
+	public synchronized void setChunkCount(long chunkCount) {
+		buffer.force();
+
+		buffer.putLong(HEADER_OFFSET_CHUNK_COUNT, chunkCount);
+		buffer.force();
+	}
+
+	private int getOffset(long bit) {
+		return (int) (HEADER_SIZE + (bit >>> 6) * 8);
+	}
+
+	/**
+	 * Reads eight bytes of the checksum at the given offset and mixes them (finalizer of MurmurHash3).
+	 * For SHA1 checksums, the two hashes use bytes 0-7 and 12-19.
+	 */
+	private static long hash(byte[] checksum, int offset) {
+		long hash = 0;
+
+		for (int i = Math.max(0, offset); i < Math.max(0, offset) + 8 && i < checksum.length; i++) {
+			hash = (hash << 8) | (checksum[i] & 0xff);
+		}
+
+		hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+		hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+
+		return hash ^ (hash >>> 33);
+	}
+}
@@ -0,0 +1,317 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.database.dao;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.syncany.database.ChunkEntry.ChunkChecksum;
+
+/**
+ * The chunk index is a compact hash table that maps chunk checksums to chunk sizes. It is
+ * used by the {@link ChunkSqlDao} to look up existing chunks during deduplication, and
+ * replaces a <tt>HashMap</tt> of {@link ChunkChecksum}s and chunk entries, which needed well
+ * over 100 bytes of heap per chunk.
+ *
+ * <p>The table uses open addressing with linear probing, and is stored outside of the Java
+ * heap in direct {@link ByteBuffer}s. Each slot holds the raw checksum and the chunk size
+ * inline, i.e. 24 bytes per slot for SHA1 checksums. With a load factor of at most 0.7, a
+ * chunk needs about 24-70 bytes. Note that direct memory is limited by the JVM option
+ * <tt>-XX:MaxDirectMemorySize</tt> (which defaults to the maximum heap size).
+ *
+ * <p>Checksums of a different length than the one given in the constructor (e.g. from a
+ * different checksum algorithm) are kept in a small on-heap map instead.
+ *
+ * <p>The index is <b>thread-safe</b>: Lookups are lock-free and may run concurrently to each
+ * other and to updates. Updates are serialized. A lookup detects a concurrent update with a
+ * sequence counter (seqlock) and simply retries. Resizing the table does not block lookups;
+ * they use the old table until the new one is published. Since there is no removal, a slot
+ * never changes its checksum once it is set -- at worst, a lookup racing with the update that
+ * adds a chunk does not find that chunk yet.
+ *
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class ChunkIndex {
+	public static final int DEFAULT_CHECKSUM_LENGTH = 20; // SHA1
+
+	private static final int SEGMENT_BITS = 22; // Slots per buffer, i.e. 96 MB for SHA1
+	private static final int MIN_CAPACITY = 1024;
+	private static final double MAX_LOAD_FACTOR = 0.7;
+	private static final int OCCUPIED = 0x80000000; // Flag in size field, sizes are never negative
+
+	private final int checksumLength;
+	private final int slotSize;
+
+	private volatile Table table;
+	private volatile int updateCount; // Odd while a slot is written
+	private Map<ChunkChecksum, Integer> otherChecksums;
+
+	public ChunkIndex() {
+		this(DEFAULT_CHECKSUM_LENGTH, 0);
+	}
+
+	/**
+	 * Creates a new chunk index for checksums of the given length (in bytes). The table
+	 * is sized to hold the expected number of chunks without resizing.
+	 */
+	public ChunkIndex(int checksumLength, long expectedChunks) {
+		if (checksumLength < 8 || checksumLength > 64) {
+			throw new IllegalArgumentException("Checksum length must be between 8 and 64 bytes, but was " + checksumLength);
+		}
+
+		this.checksumLength = checksumLength;
+		this.slotSize = checksumLength + 4;
+		this.table = new Table(getCapacity(expectedChunks));
+		this.updateCount = 0;
+		this.otherChecksums = new ConcurrentHashMap<ChunkChecksum, Integer>();
+	}
+
+	/**
+	 * Returns the size of the chunk with the given checksum, or <tt>-1</tt> if the
+	 * chunk is not in the index.
+	 */
+	public int get(byte[] checksum) {
+		if (checksum.length != checksumLength) {
+			Integer size = otherChecksums.get(new ChunkChecksum(checksum));
+			return (size != null) ? size : -1;
+		}
+
+		long hash = hash(checksum);
+
+		while (true) {
+			int startUpdateCount = updateCount;
+
+			if ((startUpdateCount & 1) == 0) {
+				Table currentTable = table;
+				long slot = currentTable.find(checksum, hash);
+				int size = (slot >= 0) ? currentTable.getSize(slot) : -1;
+
+				if (updateCount == startUpdateCount) {
+					return size;
+				}
+			}
+
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Adds a chunk to the index, or updates the size if the chunk already exists.
+	 */
+	public synchronized void put(byte[] checksum, int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("Chunk size must not be negative, but was " + size);
+		}
+
+		if (checksum.length != checksumLength) {
+			otherChecksums.put(new ChunkChecksum(checksum), size);
+			return;
+		}
+
+		if (table.count + 1 > table.capacity * MAX_LOAD_FACTOR) {
+			resize(table.capacity * 2);
+		}
+
+		updateCount++;
+
+		try {
+			table.put(checksum, hash(checksum), size);
+		}
+		finally {
+			updateCount++;
+		}
+	}
+
+	/**
+	 * Returns the number of chunks in the index.
+	 */
+	public synchronized long size() {
+		return table.count + otherChecksums.size();
+	}
+
+	/**
+	 * Returns the number of bytes allocated outside of the heap.
+	 */
+	public synchronized long getAllocatedBytes() {
+		return table.capacity * slotSize;
+	}
+
+	/**
+	 * Creates a new table, copies all slots and publishes it. Lookups continue to use
+	 * the old table while the new one is filled; the old table is not modified.
+	 */
+	private void resize(long newCapacity) {
+		Table oldTable = table;
+		Table newTable = new Table(newCapacity);
+		byte[] checksum = new byte[checksumLength];
+
+		for (long slot = 0; slot < oldTable.capacity; slot++) {
+			int size = oldTable.getSize(slot);
+
+			if (size >= 0) {
+				oldTable.getChecksum(slot, checksum);
+				newTable.put(checksum, hash(checksum), size);
+			}
+		}
+
+		table = newTable;
+	}
+
+	private static long getCapacity(long expectedChunks) {
+		long capacity = MIN_CAPACITY;
+
+		while (expectedChunks > capacity * MAX_LOAD_FACTOR) {
+			capacity *= 2;
+		}
+
+		return capacity;
+	}
+
+	/**
+	 * Uses the first eight bytes of the checksum as hash code. Checksums are already
+	 * uniformly distributed; the bits are mixed anyway (finalizer of MurmurHash3).
+	 */
+	private static long hash(byte[] checksum) {
+		long hash = readLong(checksum);
+
+		hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+		hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+
+		return hash ^ (hash >>> 33);
+	}
+
+	private static long readLong(byte[] checksum) {
+		long value = 0;
+
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (checksum[i] & 0xff);
+		}
+
+		return value;
+	}
+
+	/**
+	 * Hash table with a power-of-two number of slots, split into segments (direct
+	 * buffers) of at most 2^{@link #SEGMENT_BITS} slots. A slot consists of the checksum,
+	 * followed by the chunk size with the {@link #OCCUPIED} flag set.
+	 */
+	private class Table {
+		private final long capacity;
+		private final long mask;
+		private final ByteBuffer[] segments;
+		private long count;
+
+		public Table(long capacity) {
+			int segmentSlots = (int) Math.min(capacity, 1L << SEGMENT_BITS);
+
+			this.capacity = capacity;
+			this.mask = capacity - 1;
+			this.segments = new ByteBuffer[(int) (capacity / segmentSlots)];
+			this.count = 0;
+
+			for (int i = 0; i < segments.length; i++) {
+				segments[i] = ByteBuffer.allocateDirect(segmentSlots * slotSize);
+			}
+		}
+
+		/**
+		 * Returns the slot of the given checksum, or <tt>-1</tt> if it is not in the
+		 * table. If the table is modified concurrently, the result may be wrong, but the
+		 * method always terminates.
+		 */
+		public long find(byte[] checksum, long hash) {
+			long firstLong = readLong(checksum);
+
+			for (long probe = 0, slot = hash & mask; probe < capacity; probe++, slot = (slot + 1) & mask) {
+				ByteBuffer segment = getSegment(slot);
+				int offset = getOffset(slot);
+
+				if ((segment.getInt(offset + checksumLength) & OCCUPIED) == 0) {
+					return -1;
+				}
+				else if (segment.getLong(offset) == firstLong && checksumEquals(segment, offset, checksum)) {
+					return slot;
+				}
+			}
+
+			return -1;
+		}
+
+		public void put(byte[] checksum, long hash, int size) {
+			long slot = hash & mask;
+
+			while (true) {
+				ByteBuffer segment = getSegment(slot);
+				int offset = getOffset(slot);
+
+				if ((segment.getInt(offset + checksumLength) & OCCUPIED) == 0) {
+					for (int i = 0; i < checksumLength; i++) {
+						segment.put(offset + i, checksum[i]);
+					}
+
+					segment.putInt(offset + checksumLength, size | OCCUPIED);
+					count++;
+
+					return;
+				}
+				else if (checksumEquals(segment, offset, checksum)) {
+					segment.putInt(offset + checksumLength, size | OCCUPIED);
+					return;
+				}
+
+				slot = (slot + 1) & mask;
+			}
+		}
+
+		/**
+		 * Returns the chunk size stored in the given slot, or <tt>-1</tt> if the slot is empty.
+		 */
+		public int getSize(long slot) {
+			int sizeField = getSegment(slot).getInt(getOffset(slot) + checksumLength);
+			return ((sizeField & OCCUPIED) != 0) ? sizeField & ~OCCUPIED : -1;
+		}
+
+		public void getChecksum(long slot, byte[] checksum) {
+			ByteBuffer segment = getSegment(slot);
+			int offset = getOffset(slot);
+
+			for (int i = 0; i < checksumLength; i++) {
+				checksum[i] = segment.get(offset + i);
+			}
+		}
+
+		private boolean checksumEquals(ByteBuffer segment, int offset, byte[] checksum) {
+			for (int i = 0; i < checksumLength; i++) {
+				if (segment.get(offset + i) != checksum[i]) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		private ByteBuffer getSegment(long slot) {
+			return segments[(int) (slot >>> SEGMENT_BITS)];
+		}
+
+		private int getOffset(long slot) {
+			return (int) (slot & ((1L << SEGMENT_BITS) - 1)) * slotSize;
+		}
+	}
+}
@@ -17,6 +17,8 @@
  */
 package org.syncany.database.dao;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -24,32 +26,58 @@ import java.sql.SQLException;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.syncany.database.ChunkEntry;
 import org.syncany.database.ChunkEntry.ChunkChecksum;
 import org.syncany.database.VectorClock;
+import org.syncany.util.StringUtil;
 
 /**
  * The chunk data access object (DAO) writes and queries the SQL database for information
  * on {@link ChunkEntry}s. It translates the relational data in the "chunk" table to
  * Java objects.
  * 
+ * <p>To look up chunks during deduplication, the DAO keeps all chunks in a {@link ChunkIndex}
+ * (outside of the Java heap), which is loaded on first use and updated when new chunks
+ * are written. If a chunk filter file is given, a persistent {@link ChunkFilter} is checked
+ * first, so that unknown chunks can be ruled out without loading the index.
+ * 
  * @author Philipp C. Heckel <philipp.heckel@gmail.com>
  */
 public class ChunkSqlDao extends AbstractSqlDao {
 	protected static final Logger logger = Logger.getLogger(ChunkSqlDao.class.getSimpleName());
-	private Map<ChunkChecksum, ChunkEntry> chunkCache;
+	private volatile ChunkIndex chunkCache;
+
+	private File chunkFilterFile;
+	private volatile ChunkFilter chunkFilter;
+	private volatile boolean chunkFilterDisabled;
 
 	public ChunkSqlDao(Connection connection) {
+		this(connection, null);
+	}
+
+	/**
+	 * Creates a new chunk DAO that maintains a {@link ChunkFilter} in the given file.
+	 * If the file is <tt>null</tt>, no chunk filter is used.
+	 */
+	public ChunkSqlDao(Connection connection, File chunkFilterFile) {
 		super(connection);
+		
 		this.chunkCache = null;
+		this.chunkFilterFile = chunkFilterFile;
+		this.chunkFilter = null;
+		this.chunkFilterDisabled = (chunkFilterFile == null);
 	}
 
 	/**
 	 * Writes a list of {@link ChunkEntry}s to the database using <tt>INSERT</tt>s and the given connection.
 	 * 
-	 * <p><b>Note:</b> This method executes, but <b>does not commit</b> the query.
+	 * <p><b>Note:</b> This method executes, but <b>does not commit</b> the query. If the chunk
+	 * cache is loaded, the chunks are added to it; if the transaction is rolled back, the
+	 * cache must be cleared with {@link #clearCache()}. The chunks are also added to the 
+	 * chunk filter (if any) -- before they are inserted, see {@link ChunkFilter}.
 	 * 
 	 * @param connection The connection used to execute the statements
 	 * @param databaseVersionId 
@@ -58,6 +86,14 @@ public class ChunkSqlDao extends AbstractSqlDao {
 	 */
 	public void writeChunks(Connection connection, long databaseVersionId, Collection<ChunkEntry> chunks) throws SQLException {
 		if (chunks.size() > 0) {
+			ChunkFilter chunkFilter = getChunkFilter();
+			
+			if (chunkFilter != null) {
+				for (ChunkEntry chunk : chunks) {
+					chunkFilter.add(chunk.getChecksum().getBytes());
+				}
+			}
+			
 			PreparedStatement preparedStatement = getStatement(connection, "chunk.insert.all.writeChunks.sql");
 
 			for (ChunkEntry chunk : chunks) {
@@ -70,6 +106,18 @@ public class ChunkSqlDao extends AbstractSqlDao {
 
 			preparedStatement.executeBatch();
 			preparedStatement.close();
+
+			if (chunkFilter != null) {
+				chunkFilter.setChunkCount(chunkFilter.getChunkCount() + chunks.size());
+			}
+
+			ChunkIndex chunkIndex = chunkCache;
+
+			if (chunkIndex != null) {
+				for (ChunkEntry chunk : chunks) {
+					chunkIndex.put(chunk.getChecksum().getBytes(), chunk.getSize());
+				}
+			}
 		}
 	}	
 
@@ -80,12 +128,22 @@ public class ChunkSqlDao extends AbstractSqlDao {
 	 * <p>During the cleanup process, when file versions are deleted, unused chunks 
 	 * are left over. This method removes these chunks from the database.
 	 * 
-	 * <p><b>Note:</b> This method executes, but <b>does not commit</b> the query. 
+	 * <p><b>Note:</b> This method executes, but <b>does not commit</b> the query. The chunk
+	 * cache is cleared. The removed chunks remain in the chunk filter (if any), but the filter
+	 * is updated to cover the new number of chunks.
 	 */
 	public void removeUnreferencedChunks() {
+		ChunkFilter chunkFilter = getChunkFilter();
+		
 		try (PreparedStatement preparedStatement = getStatement("chunk.delete.all.removeUnreferencesChunks.sql")) {
-			preparedStatement.execute();
+			int removedChunkCount = preparedStatement.executeUpdate();
 			preparedStatement.close();
+
+			if (chunkFilter != null) {
+				chunkFilter.setChunkCount(chunkFilter.getChunkCount() - removedChunkCount);
+			}
+			
+			clearCache();
 		}
 		catch (SQLException e) {
 			throw new RuntimeException(e);
@@ -98,30 +156,45 @@ public class ChunkSqlDao extends AbstractSqlDao {
 	 * <p>Note: When first called, this method loads the <b>chunk cache</b> and keeps
 	 * this cache until it is cleared explicitly with {@link #clearCache()}. 
 	 * 
-	 * <p>Also note that this method will return <tt>null</tt> if the chunk has been
-	 * added after the cache has been filled. 
+	 * <p>Chunks written with {@link #writeChunks(Connection, long, Collection) writeChunks()}
+	 * are added to the cache. Other changes to the chunk table are not reflected in the cache. 
+	 * 
+	 * <p>If a chunk filter is used, it is checked first: If the filter rules out the chunk,
+	 * the cache is not needed (and not loaded). 
+	 * 
+	 * <p>Once the cache is loaded, this method does not lock, i.e. it can be called 
+	 * concurrently by many threads.
 	 * 
 	 * @param chunkChecksum Chunk checksum of the chunk to be selected
 	 * @return Returns the chunk entry, or <tt>null</tt> if the chunk does not exist.
 	 */	
-	public synchronized ChunkEntry getChunk(ChunkChecksum chunkChecksum) {
-		if (chunkCache == null) {
-			loadChunkCache();
+	public ChunkEntry getChunk(ChunkChecksum chunkChecksum) {
+		byte[] checksum = chunkChecksum.getBytes();
+		ChunkFilter chunkFilter = getChunkFilter();
+		
+		if (chunkFilter != null && !chunkFilter.mightContain(checksum)) {
+			return null;
+		}
+		
+		ChunkIndex chunkIndex = chunkCache;
+
+		if (chunkIndex == null) {
+			chunkIndex = loadChunkCache();
 		}
 
-		return chunkCache.get(chunkChecksum);
+		int chunkSize = chunkIndex.get(checksum);
+		return (chunkSize >= 0) ? new ChunkEntry(chunkChecksum, chunkSize) : null;
 	}
 	
 	/**
 	 * Clears the chunk cache loaded by {@link #getChunk(ChunkChecksum) getChunk()}
 	 * and resets the cache. If {@link #getChunk(ChunkChecksum) getChunk()} is called
-	 * after the cache is cleared, it is re-populated.
+	 * after the cache is cleared, it is re-populated. The chunk filter is re-opened, 
+	 * i.e. it is checked against the database again.
 	 */
 	public synchronized void clearCache() {
-		if (chunkCache != null) {
-			chunkCache.clear();
-			chunkCache = null;
-		}
+		chunkCache = null;
+		chunkFilter = null;
 	}
 
 	/**
@@ -164,16 +237,88 @@ public class ChunkSqlDao extends AbstractSqlDao {
 		return new ChunkEntry(chunkChecksum, resultSet.getInt("size"));
 	}
 	
-	protected void loadChunkCache() {
+	protected synchronized ChunkIndex loadChunkCache() {
+		if (chunkCache != null) {
+			return chunkCache;
+		}
+
 		try (PreparedStatement preparedStatement = getStatement("chunk.select.all.loadChunkCache.sql")) {
+			ChunkIndex chunkIndex = new ChunkIndex(ChunkIndex.DEFAULT_CHECKSUM_LENGTH, getChunkCount());
+
 			try (ResultSet resultSet = preparedStatement.executeQuery()) {
-				chunkCache = createChunkEntries(resultSet);
+				while (resultSet.next()) {
+					chunkIndex.put(StringUtil.fromHex(resultSet.getString("checksum")), resultSet.getInt("size"));
+				}
 			}
+
+			logger.log(Level.INFO, "Loaded chunk cache with {0} chunk(s), {1} KB off-heap.", new Object[] { chunkIndex.size(),
+					chunkIndex.getAllocatedBytes() / 1024 });
+
+			chunkCache = chunkIndex;
+			return chunkIndex;
 		}
 		catch (SQLException e) {
 			throw new RuntimeException(e);
 		}
 	}
+
+	/**
+	 * Returns the chunk filter, and opens it if necessary. If the filter file does not
+	 * cover the chunks in the database, the filter is rebuilt. Returns <tt>null</tt> if
+	 * no chunk filter is used, or if it cannot be opened.
+	 */
+	protected ChunkFilter getChunkFilter() {
+		ChunkFilter currentChunkFilter = chunkFilter;
+		return (currentChunkFilter != null || chunkFilterDisabled) ? currentChunkFilter : loadChunkFilter();
+	}
+
+	private synchronized ChunkFilter loadChunkFilter() {
+		if (chunkFilter != null || chunkFilterDisabled) {
+			return chunkFilter;
+		}
+
+		try {
+			long chunkCount = getChunkCount();
+			ChunkFilter newChunkFilter = ChunkFilter.open(chunkFilterFile, chunkCount);
+
+			if (newChunkFilter == null) {
+				newChunkFilter = rebuildChunkFilter(chunkCount);
+			}
+
+			chunkFilter = newChunkFilter;
+			return newChunkFilter;
+		}
+		catch (IOException | SQLException e) {
+			logger.log(Level.WARNING, "Cannot open chunk filter " + chunkFilterFile + ", not using chunk filter.", e);
+
+			chunkFilterDisabled = true;
+			return null;
+		}
+	}
+
+	private ChunkFilter rebuildChunkFilter(long chunkCount) throws IOException, SQLException {
+		logger.log(Level.INFO, "Rebuilding chunk filter {0} for {1} chunk(s) ...", new Object[] { chunkFilterFile, chunkCount });
+		ChunkFilter newChunkFilter = ChunkFilter.create(chunkFilterFile, chunkCount);
+
+		try (PreparedStatement preparedStatement = getStatement("chunk.select.all.loadChunkCache.sql")) {
+			try (ResultSet resultSet = preparedStatement.executeQuery()) {
+				while (resultSet.next()) {
+					newChunkFilter.add(StringUtil.fromHex(resultSet.getString("checksum")));
+				}
+			}
+		}
+
+		newChunkFilter.setChunkCount(chunkCount);
+		return newChunkFilter;
+	}
+
+	private long getChunkCount() throws SQLException {
+		try (PreparedStatement preparedStatement = getStatement("chunk.select.all.getChunkCount.sql")) {
+			try (ResultSet resultSet = preparedStatement.executeQuery()) {
+				return (resultSet.next()) ? resultSet.getLong("chunkcount") : 0;
+			}
+		}
+	}
 	
 	/**
 	 * no commit
@@ -104,11 +104,8 @@ public class DatabaseVersionSqlDao extends AbstractSqlDao {
 
 	public long writeDatabaseVersion(DatabaseVersion databaseVersion) {
 		try {
-			// Insert & commit database version
+			// Insert database version (new chunks are added to the chunk cache)
 			long databaseVersionId = writeDatabaseVersion(connection, databaseVersion);
-			
-			// Commit & clear local caches
-			clearCaches();
 
 			return databaseVersionId;
 		}
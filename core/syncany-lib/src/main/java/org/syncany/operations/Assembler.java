@@ -111,6 +111,10 @@ public class Assembler {
 
 				File decryptedMultiChunkFile = config.getCache().getDecryptedMultiChunkFile(multiChunkIdForChunk);
 
+				if (!decryptedMultiChunkFile.exists() && config.getCache().getPartialMultiChunkFile(multiChunkIdForChunk).exists()) {
+					decryptedMultiChunkFile = config.getCache().getPartialMultiChunkFile(multiChunkIdForChunk); // See Downloader#downloadChunks()
+				}
+
 				MultiChunk multiChunk = multiChunker.createMultiChunk(decryptedMultiChunkFile);
 				InputStream chunkInputStream = multiChunk.getChunkInputStream(chunkChecksum.getBytes());
 
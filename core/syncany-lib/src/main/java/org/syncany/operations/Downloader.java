@@ -23,23 +23,34 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.io.IOUtils;
+import org.syncany.chunk.NoTransformer;
 import org.syncany.config.Config;
 import org.syncany.config.LocalEventBus;
+import org.syncany.database.ChunkEntry.ChunkChecksum;
 import org.syncany.database.MultiChunkEntry.MultiChunkId;
 import org.syncany.operations.daemon.messages.DownDownloadFileSyncExternalEvent;
+import org.syncany.plugins.transfer.PartialDownloadTransferManager;
 import org.syncany.plugins.transfer.StorageException;
+import org.syncany.plugins.transfer.TransferExecutor;
 import org.syncany.plugins.transfer.TransferManager;
+import org.syncany.plugins.transfer.TransferSettings;
 import org.syncany.plugins.transfer.files.MultichunkRemoteFile;
 
 /**
  * The downloader uses a {@link TransferManager} to download a given set of multichunks,
  * decrypt them and store them in the local cache folder. 
  * 
+ * <p>If only some chunks of the multichunks are needed, and the transfer manager supports
+ * it, the downloader can also download only these chunks, see {@link #downloadChunks(Map)}.
+ * 
  * @author Philipp C. Heckel <philipp.heckel@gmail.com>
  */
 public class Downloader {
@@ -62,12 +73,11 @@ public class Downloader {
 	public void downloadAndDecryptMultiChunks(Set<MultiChunkId> unknownMultiChunkIds) throws StorageException, IOException {
 		logger.log(Level.INFO, "Downloading and extracting multichunks ...");
 
+		TransferExecutor downloadExecutor = new TransferExecutor(getMaxConcurrentTransfers(), "Download");
 		int multiChunkNumber = 0;
 
-		for (MultiChunkId multiChunkId : unknownMultiChunkIds) {
-			File localEncryptedMultiChunkFile = config.getCache().getEncryptedMultiChunkFile(multiChunkId);
+		for (final MultiChunkId multiChunkId : unknownMultiChunkIds) {
 			File localDecryptedMultiChunkFile = config.getCache().getDecryptedMultiChunkFile(multiChunkId);
-			MultichunkRemoteFile remoteMultiChunkFile = new MultichunkRemoteFile(multiChunkId);
 
 			multiChunkNumber++;
 
@@ -78,40 +88,145 @@ public class Downloader {
 				eventBus.post(new DownDownloadFileSyncExternalEvent(config.getLocalDir().getAbsolutePath(), "multichunk", multiChunkNumber,
 						unknownMultiChunkIds.size()));
 
-				logger.log(Level.INFO, "  + Downloading multichunk " + multiChunkId + " ...");
-				transferManager.download(remoteMultiChunkFile, localEncryptedMultiChunkFile);
-
-				try {
-					logger.log(Level.INFO, "  + Decrypting multichunk " + multiChunkId + " ...");
-					InputStream multiChunkInputStream = config.getTransformer().createInputStream(new FileInputStream(localEncryptedMultiChunkFile));
-					OutputStream decryptedMultiChunkOutputStream = new FileOutputStream(localDecryptedMultiChunkFile);
-
-					IOUtils.copy(multiChunkInputStream, decryptedMultiChunkOutputStream);
-
-					decryptedMultiChunkOutputStream.close();
-					multiChunkInputStream.close();
-
-				}
-				catch (IOException e) {
-					// Security: Deleting the multichunk if the decryption/extraction failed is important!
-					//           If it is not deleted, the partially decrypted multichunk will reside in the
-					//           local cache and the next 'down' will try to use it. If this is the only
-					//           multichunk that has been tampered with, other changes might be applied to the 
-					//           file system! See https://github.com/syncany/syncany/issues/59#issuecomment-55154793
-
-					logger.log(Level.FINE, "    -> FAILED: Decryption/extraction of multichunk failed, deleting " + multiChunkId + " ...");
-					localDecryptedMultiChunkFile.delete();
-
-					throw new IOException("Decryption/extraction of multichunk " + multiChunkId
-							+ " failed. The multichunk might have been tampered with!", e);
-				}
-				finally {
-					logger.log(Level.FINE, "  + Locally deleting multichunk " + multiChunkId + " ...");
-					localEncryptedMultiChunkFile.delete();
-				}
+				downloadExecutor.submit(new TransferExecutor.TransferTask() {
+					@Override
+					public void execute() throws StorageException, IOException {
+						downloadAndDecryptMultiChunk(multiChunkId);
+					}
+				});
 			}
 		}
 
+		downloadExecutor.awaitAll();
 		transferManager.disconnect();
 	}
+
+	/**
+	 * Downloads the given chunks of the given multichunks to the local cache folder. If the
+	 * transfer manager is a {@link PartialDownloadTransferManager}, and the multichunks are
+	 * neither encrypted nor compressed, only the given chunks are downloaded, and stored as
+	 * partial multichunks (see {@link org.syncany.config.Cache#getPartialMultiChunkFile(MultiChunkId)}). Otherwise,
+	 * or if a multichunk cannot be downloaded partially, the entire multichunk is downloaded
+	 * (see {@link #downloadAndDecryptMultiChunks(Set)}).
+	 * 
+	 * <p>Partial multichunks are always downloaded anew, because they might not contain the
+	 * chunks needed this time. 
+	 */
+	public void downloadChunks(Map<MultiChunkId, Set<ChunkChecksum>> multiChunkChunks) throws StorageException, IOException {
+		if (!(transferManager instanceof PartialDownloadTransferManager) || !(config.getTransformer() instanceof NoTransformer)) {
+			downloadAndDecryptMultiChunks(multiChunkChunks.keySet());
+			return;
+		}
+
+		logger.log(Level.INFO, "Downloading chunks of multichunks ...");
+
+		TransferExecutor downloadExecutor = new TransferExecutor(getMaxConcurrentTransfers(), "Download");
+		final Set<MultiChunkId> fullDownloadMultiChunkIds = Collections.synchronizedSet(new HashSet<MultiChunkId>());
+		int multiChunkNumber = 0;
+
+		for (final Map.Entry<MultiChunkId, Set<ChunkChecksum>> multiChunkEntry : multiChunkChunks.entrySet()) {
+			final MultiChunkId multiChunkId = multiChunkEntry.getKey();
+			File localDecryptedMultiChunkFile = config.getCache().getDecryptedMultiChunkFile(multiChunkId);
+
+			multiChunkNumber++;
+
+			if (localDecryptedMultiChunkFile.exists()) {
+				logger.log(Level.INFO, "  + Decrypted multichunk exists locally " + multiChunkId + ". No need to download it!");
+			}
+			else {
+				eventBus.post(new DownDownloadFileSyncExternalEvent(config.getLocalDir().getAbsolutePath(), "multichunk", multiChunkNumber,
+						multiChunkChunks.size()));
+
+				downloadExecutor.submit(new TransferExecutor.TransferTask() {
+					@Override
+					public void execute() throws StorageException, IOException {
+						if (!downloadChunks(multiChunkId, multiChunkEntry.getValue())) {
+							fullDownloadMultiChunkIds.add(multiChunkId);
+						}
+					}
+				});
+			}
+		}
+
+		downloadExecutor.awaitAll();
+
+		if (fullDownloadMultiChunkIds.size() > 0) {
+			downloadAndDecryptMultiChunks(fullDownloadMultiChunkIds); // Disconnects
+		}
+		else {
+			transferManager.disconnect();
+		}
+	}
+
+	/**
+	 * Downloads the given chunks of the given multichunk as partial multichunk. Returns <tt>false</tt>
+	 * if the multichunk has to be downloaded entirely, i.e. if the transfer manager cannot download
+	 * the chunks, or if the partial download fails. The full download reports any real problem
+	 * with the multichunk.
+	 */
+	private boolean downloadChunks(MultiChunkId multiChunkId, Set<ChunkChecksum> chunkChecksums) throws StorageException {
+		File localPartialMultiChunkFile = config.getCache().getPartialMultiChunkFile(multiChunkId);
+		MultichunkRemoteFile remoteMultiChunkFile = new MultichunkRemoteFile(multiChunkId);
+
+		logger.log(Level.INFO, "  + Downloading " + chunkChecksums.size() + " chunk(s) of multichunk " + multiChunkId + " ...");
+		boolean downloaded;
+
+		try {
+			downloaded = ((PartialDownloadTransferManager) transferManager).downloadChunks(remoteMultiChunkFile, chunkChecksums, localPartialMultiChunkFile);
+		}
+		catch (StorageException e) {
+			logger.log(Level.WARNING, "    -> Partial download of multichunk " + multiChunkId + " failed.", e);
+			downloaded = false;
+		}
+
+		if (!downloaded) {
+			logger.log(Level.INFO, "    -> Partial download not possible for multichunk " + multiChunkId + ". Downloading entire multichunk.");
+			localPartialMultiChunkFile.delete();
+		}
+
+		return downloaded;
+	}
+
+	private void downloadAndDecryptMultiChunk(MultiChunkId multiChunkId) throws StorageException, IOException {
+		File localEncryptedMultiChunkFile = config.getCache().getEncryptedMultiChunkFile(multiChunkId);
+		File localDecryptedMultiChunkFile = config.getCache().getDecryptedMultiChunkFile(multiChunkId);
+		MultichunkRemoteFile remoteMultiChunkFile = new MultichunkRemoteFile(multiChunkId);
+
+		logger.log(Level.INFO, "  + Downloading multichunk " + multiChunkId + " ...");
+		transferManager.download(remoteMultiChunkFile, localEncryptedMultiChunkFile);
+
+		try {
+			logger.log(Level.INFO, "  + Decrypting multichunk " + multiChunkId + " ...");
+			InputStream multiChunkInputStream = config.getTransformer().createInputStream(new FileInputStream(localEncryptedMultiChunkFile));
+			OutputStream decryptedMultiChunkOutputStream = new FileOutputStream(localDecryptedMultiChunkFile);
+
+			IOUtils.copy(multiChunkInputStream, decryptedMultiChunkOutputStream);
+
+			decryptedMultiChunkOutputStream.close();
+			multiChunkInputStream.close();
+
+		}
+		catch (IOException e) {
+			// Security: Deleting the multichunk if the decryption/extraction failed is important!
+			//           If it is not deleted, the partially decrypted multichunk will reside in the
+			//           local cache and the next 'down' will try to use it. If this is the only
+			//           multichunk that has been tampered with, other changes might be applied to the 
+			//           file system! See https://github.com/syncany/syncany/issues/59#issuecomment-55154793
+
+			logger.log(Level.FINE, "    -> FAILED: Decryption/extraction of multichunk failed, deleting " + multiChunkId + " ...");
+			localDecryptedMultiChunkFile.delete();
+
+			throw new IOException("Decryption/extraction of multichunk " + multiChunkId
+					+ " failed. The multichunk might have been tampered with!", e);
+		}
+		finally {
+			logger.log(Level.FINE, "  + Locally deleting multichunk " + multiChunkId + " ...");
+			localEncryptedMultiChunkFile.delete();
+		}
+	}
+
+	private int getMaxConcurrentTransfers() {
+		TransferSettings transferSettings = config.getConnection();
+		return (transferSettings != null) ? Math.max(1, transferSettings.getMaxConcurrentTransfers()) : 1;
+	}
 }
@@ -18,13 +18,17 @@
 package org.syncany.operations.restore;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.syncany.config.Config;
+import org.syncany.database.ChunkEntry.ChunkChecksum;
+import org.syncany.database.FileContent;
 import org.syncany.database.FileContent.FileChecksum;
 import org.syncany.database.FileVersion;
 import org.syncany.database.FileVersion.FileType;
@@ -114,15 +118,32 @@ public class RestoreOperation extends AbstractTransferOperation {
 		}
 	}
 
+	/**
+	 * Downloads the chunks of the given file version. Only the chunks of the file are
+	 * needed, so the multichunks are downloaded partially if possible, see
+	 * {@link Downloader#downloadChunks(Map)}.
+	 */
 	private void downloadMultiChunks(FileVersion restoreFileVersion) throws StorageException, IOException {
-		Set<MultiChunkId> multiChunksToDownload = new HashSet<MultiChunkId>();
+		Map<MultiChunkId, Set<ChunkChecksum>> multiChunksToDownload = new HashMap<MultiChunkId, Set<ChunkChecksum>>();
 		FileChecksum restoreFileChecksum = restoreFileVersion.getChecksum();
 			
 		if (restoreFileChecksum != null) {
-			multiChunksToDownload.addAll(localDatabase.getMultiChunkIds(restoreFileChecksum));
+			FileContent restoreFileContent = localDatabase.getFileContent(restoreFileChecksum, true);
+			Map<ChunkChecksum, MultiChunkId> restoreFileMultiChunkIds = localDatabase.getMultiChunkIdsByChecksums(restoreFileContent.getChunks());
+
+			for (Map.Entry<ChunkChecksum, MultiChunkId> chunkEntry : restoreFileMultiChunkIds.entrySet()) {
+				Set<ChunkChecksum> multiChunkChunks = multiChunksToDownload.get(chunkEntry.getValue());
+
+				if (multiChunkChunks == null) {
+					multiChunkChunks = new HashSet<ChunkChecksum>();
+					multiChunksToDownload.put(chunkEntry.getValue(), multiChunkChunks);
+				}
+
+				multiChunkChunks.add(chunkEntry.getKey());
+			}
 
 			logger.log(Level.INFO, "Downloading " + multiChunksToDownload.size() + " multichunk(s) to restore file ...");
-			downloader.downloadAndDecryptMultiChunks(multiChunksToDownload);
+			downloader.downloadChunks(multiChunksToDownload);
 		}
 	}
 }
@@ -23,13 +23,17 @@ import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.syncany.chunk.Deduper;
+import org.syncany.chunk.Deduper.MultiChunkSealListener;
 import org.syncany.config.Config;
 import org.syncany.database.ChunkEntry;
 import org.syncany.database.DatabaseVersion;
@@ -83,6 +87,11 @@ import org.syncany.plugins.transfer.to.TransactionTO;
  *   <li>Add delta database to local database and store it locally</li>
  * </ol>
  *
+ * <p>If streaming upload is enabled (see {@link UpOperationOptions#isStreamingUploadEnabled()}), 
+ * new multichunks are uploaded to their temporary remote location as soon as they are written,
+ * i.e. while the remaining files are still being indexed. The transaction (and hence the new 
+ * database version) is still only committed after indexing is complete.
+ *
  * @author Philipp C. Heckel <philipp.heckel@gmail.com>
  */
 public class UpOperation extends AbstractTransferOperation {
@@ -95,6 +104,7 @@ public class UpOperation extends AbstractTransferOperation {
 
 	private SqlDatabase localDatabase;
 	private RemoteTransaction remoteTransaction;
+	private Set<MultiChunkId> streamedMultiChunkIds;
 
 	public UpOperation(Config config) {
 		this(config, new UpOperationOptions());
@@ -107,6 +117,7 @@ public class UpOperation extends AbstractTransferOperation {
 		this.result = new UpOperationResult();
 		this.localDatabase = new SqlDatabase(config);
 		this.remoteTransaction = new RemoteTransaction(config, transferManager);
+		this.streamedMultiChunkIds = Collections.synchronizedSet(new HashSet<MultiChunkId>());
 	}
 
 	@Override
@@ -173,13 +184,21 @@ public class UpOperation extends AbstractTransferOperation {
 			ChangeSet localChanges = result.getStatusResult().getChangeSet();
 			List<File> locallyUpdatedFiles = extractLocallyUpdatedFiles(localChanges);
 
-			// Index
-			newDatabaseVersion = index(locallyUpdatedFiles);
+			// Index (and upload new multichunks in the background, if enabled)
+			try {
+				newDatabaseVersion = index(locallyUpdatedFiles);
+			}
+			catch (Exception e) {
+				remoteTransaction.cancelBackgroundUploads();
+				throw e;
+			}
 
 			if (newDatabaseVersion.getFileHistories().size() == 0) {
 				logger.log(Level.INFO, "Local database is up-to-date. NOTHING TO DO!");
 				result.setResultCode(UpResultCode.OK_NO_CHANGES);
 
+				remoteTransaction.cancelBackgroundUploads();
+
 				finishOperation();
 				fireEndEvent();
 
@@ -488,7 +507,8 @@ public class UpOperation extends AbstractTransferOperation {
 
 	/**
 	 * This methods adds the multichunks that are not yet present in the remote repo to the {@link RemoteTransaction} for
-	 * uploading. Multichunks are not uploaded if they are dirty.
+	 * uploading. Multichunks are not uploaded if they are dirty, or if they are already being uploaded in the
+	 * background (streaming upload).
 	 *
 	 * @param multiChunkEntries Collection of multiChunkEntries that are included in the new {@link DatabaseVersion}
 	 */
@@ -499,6 +519,9 @@ public class UpOperation extends AbstractTransferOperation {
 			if (dirtyMultiChunkIds.contains(multiChunkEntry.getId())) {
 				logger.log(Level.INFO, "- Ignoring multichunk (from dirty database, already uploaded), " + multiChunkEntry.getId() + " ...");
 			}
+			else if (streamedMultiChunkIds.contains(multiChunkEntry.getId())) {
+				logger.log(Level.INFO, "- Ignoring multichunk (already uploading in background), " + multiChunkEntry.getId() + " ...");
+			}
 			else {
 				File localMultiChunkFile = config.getCache().getEncryptedMultiChunkFile(multiChunkEntry.getId());
 				MultichunkRemoteFile remoteMultiChunkFile = new MultichunkRemoteFile(multiChunkEntry.getId());
@@ -519,6 +542,8 @@ public class UpOperation extends AbstractTransferOperation {
 
 	/**
 	 * This method starts the indexing process, using the configured Chunker, MultiChunker and Transformer.
+	 * If streaming upload is enabled, each multichunk is added to the transaction and uploaded in the
+	 * background as soon as its file is complete.
 	 *
 	 * @param localFiles List of Files that have been altered in some way.
 	 *
@@ -527,6 +552,24 @@ public class UpOperation extends AbstractTransferOperation {
 	private DatabaseVersion index(List<File> localFiles) throws FileNotFoundException, IOException {
 		// Index
 		Deduper deduper = new Deduper(config.getChunker(), config.getMultiChunker(), config.getTransformer());
+
+		if (options.isStreamingUploadEnabled()) {
+			deduper.setMultiChunkSealListener(new MultiChunkSealListener() {
+				@Override
+				public void onMultiChunkSealed(MultiChunkId multiChunkId, File multiChunkFile) throws IOException {
+					logger.log(Level.INFO, "- Uploading multichunk {0} from {1} (background) ...", new Object[] { multiChunkId, multiChunkFile });
+
+					try {
+						remoteTransaction.uploadInBackground(multiChunkFile, new MultichunkRemoteFile(multiChunkId));
+						streamedMultiChunkIds.add(multiChunkId);
+					}
+					catch (StorageException e) {
+						throw new IOException("Cannot upload multichunk " + multiChunkId, e);
+					}
+				}
+			});
+		}
+
 		Indexer indexer = new Indexer(config, deduper);
 
 		DatabaseVersion newDatabaseVersion = indexer.index(localFiles);
@@ -33,6 +33,9 @@ public class UpOperationOptions implements OperationOptions {
 	@Element(required = false)
 	private boolean resume = true;
 
+	@Element(required = false)
+	private boolean streamingUploadEnabled = false;
+
 	public StatusOperationOptions getStatusOptions() {
 		return statusOptions;
 	}
@@ -56,4 +59,12 @@ public class UpOperationOptions implements OperationOptions {
 	public void setResume(boolean resume) {
 		this.resume = resume;
 	}
+
+	public boolean isStreamingUploadEnabled() {
+		return streamingUploadEnabled;
+	}
+
+	public void setStreamingUploadEnabled(boolean streamingUploadEnabled) {
+		this.streamingUploadEnabled = streamingUploadEnabled;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,58 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com> 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.plugins.transfer;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+import org.syncany.plugins.transfer.files.RemoteFile;
+
+/**
+ * Optional extension of a {@link TransferManager} for storages that can move and delete
+ * many files more efficiently than one by one, e.g. by looking up all files with a single
+ * listing and sending the requests in parallel. The {@link RemoteTransaction} uses it to
+ * delete files, which matters most for the cleanup of large numbers of unused multichunks.
+ * 
+ * <p>Unlike {@link TransferManager#move(RemoteFile, RemoteFile) move()}, the bulk methods
+ * ignore files that do not exist, since a resumed transaction might have moved or deleted
+ * them already.
+ * 
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public interface BulkDeleteTransferManager extends TransferManager {
+	/**
+	 * Moves the given source files to their target files. Source files that do not
+	 * exist are ignored.
+	 * 
+	 * @param sourceToTargetFiles Map of existing remote files to their destinations
+	 * @throws StorageException If the connection fails, or a file cannot be moved
+	 */
+	public void moveAll(Map<RemoteFile, RemoteFile> sourceToTargetFiles) throws StorageException;
+
+	/**
+	 * Deletes the given files permanently. Files that do not exist are ignored. Unlike
+	 * with a failed move, the caller can usually continue if some files cannot be deleted;
+	 * they are therefore returned rather than reported with an exception.
+	 * 
+	 * @param remoteFiles Remote files to be deleted
+	 * @return Returns the files that could not be deleted (empty if all were deleted)
+	 * @throws StorageException If the connection fails before any file could be deleted
+	 */
+	public Set<RemoteFile> deleteAll(Collection<RemoteFile> remoteFiles) throws StorageException;
+}
@@ -0,0 +1,54 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com> 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.plugins.transfer;
+
+import java.io.File;
+import java.util.Set;
+
+import org.syncany.database.ChunkEntry.ChunkChecksum;
+import org.syncany.plugins.transfer.files.MultichunkRemoteFile;
+
+/**
+ * Optional extension of a {@link TransferManager} for storages that can download
+ * only parts of a multichunk, e.g. via HTTP range requests. Operations that only need
+ * a few chunks of a multichunk (such as restoring a single file) can use it to avoid
+ * downloading the entire multichunk.
+ * 
+ * <p>Partial downloads only work on unencrypted and uncompressed multichunks, because
+ * a transformed multichunk can only be read from the beginning. The caller must
+ * make sure that no transformers are configured, and fall back to
+ * {@link TransferManager#download(org.syncany.plugins.transfer.files.RemoteFile, File) download()}
+ * if a partial download is not possible.
+ * 
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public interface PartialDownloadTransferManager extends TransferManager {
+	/**
+	 * Downloads the given chunks of a remote multichunk, and writes them to a local
+	 * multichunk file that contains only these chunks (in the format of the configured
+	 * {@link org.syncany.chunk.MultiChunker MultiChunker}).
+	 * 
+	 * @param remoteFile Remote multichunk containing the chunks
+	 * @param chunkChecksums Checksums of the chunks to download
+	 * @param localFile Local file to write the partial multichunk to
+	 * @return Returns <tt>true</tt> if the chunks were downloaded, or <tt>false</tt> if this
+	 *         multichunk cannot be downloaded partially; nothing is written in this case
+	 * @throws StorageException If the connection fails, or the chunks cannot be downloaded
+	 */
+	public boolean downloadChunks(MultichunkRemoteFile remoteFile, Set<ChunkChecksum> chunkChecksums, File localFile) throws StorageException;
+}
@@ -18,6 +18,12 @@
 package org.syncany.plugins.transfer;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -38,6 +44,11 @@ import org.syncany.plugins.transfer.to.TransactionTO;
  * This class represents a transaction in a remote system. It will keep track of
  * what files are to be added and ensures atomic operation.
  *
+ * <p>Files can be added to the transaction while it is being built, and their upload to
+ * the temporary remote location can already be started in the background (see 
+ * {@link #uploadInBackground(File, RemoteFile) uploadInBackground()}). The transaction
+ * itself is only started (and committed) by {@link #commit()}.
+ *
  * @author Pim Otte
  */
 public class RemoteTransaction {
@@ -46,6 +57,7 @@ public class RemoteTransaction {
 	private TransferManager transferManager;
 	private Config config;
 	private TransactionTO transactionTO;
+	private TransferExecutor backgroundUploadExecutor;
 
 	private LocalEventBus eventBus;
 
@@ -63,14 +75,61 @@ public class RemoteTransaction {
 	/**
 	 * Returns whether the transaction is empty.
 	 */
-	public boolean isEmpty() {
+	public synchronized boolean isEmpty() {
 		return transactionTO.getActions().size() == 0;
 	}
 
 	/**
 	 * Adds a file to this transaction. Generates a temporary file to store it.
 	 */
-	public void upload(File localFile, RemoteFile remoteFile) throws StorageException {
+	public synchronized void upload(File localFile, RemoteFile remoteFile) throws StorageException {
+		addUploadAction(localFile, remoteFile);
+	}
+
+	/**
+	 * Adds a file to this transaction, and immediately starts uploading it to its temporary
+	 * remote location in the background. The action's status is set to STARTED once the upload
+	 * has succeeded, so that {@link #commit()} does not upload it again.
+	 *
+	 * <p>This method may be called from any thread. Background uploads are not visible to other
+	 * clients until the transaction is committed; if the transaction is never committed, the
+	 * temporary files are eventually removed by the cleanup operation (like the temporary files 
+	 * of any other interrupted transaction). Failed uploads are retried by {@link #commit()}.
+	 */
+	public synchronized void uploadInBackground(final File localFile, RemoteFile remoteFile) throws StorageException {
+		final ActionTO action = addUploadAction(localFile, remoteFile);
+		final RemoteFile tempRemoteFile = action.getTempRemoteFile();
+
+		if (backgroundUploadExecutor == null) {
+			backgroundUploadExecutor = new TransferExecutor(getMaxConcurrentTransfers(), "TxBgUpload", true);
+		}
+
+		submitUpload(backgroundUploadExecutor, new TransferExecutor.TransferTask() {
+			@Override
+			public void execute() throws StorageException {
+				eventBus.post(new UpUploadFileSyncExternalEvent(config.getLocalDir().getAbsolutePath(), tempRemoteFile.getName()));
+
+				logger.log(Level.INFO, "- Uploading {0} to temp. file {1} (background) ...", new Object[] { localFile, tempRemoteFile });
+				transferManager.upload(localFile, tempRemoteFile);
+				action.setStatus(ActionStatus.STARTED);
+			}
+		});
+	}
+
+	/**
+	 * Cancels all background uploads started by {@link #uploadInBackground(File, RemoteFile) uploadInBackground()}.
+	 * Files that have already been uploaded remain in the temporary remote location.
+	 */
+	public synchronized void cancelBackgroundUploads() {
+		if (backgroundUploadExecutor != null) {
+			logger.log(Level.INFO, "Cancelling background uploads ...");
+
+			backgroundUploadExecutor.cancelAll();
+			backgroundUploadExecutor = null;
+		}
+	}
+
+	private ActionTO addUploadAction(File localFile, RemoteFile remoteFile) throws StorageException {
 		TempRemoteFile temporaryRemoteFile = new TempRemoteFile(remoteFile);
 
 		logger.log(Level.INFO, "- Adding file to TX for UPLOAD: " + localFile + " -> Temp. remote file: " + temporaryRemoteFile
@@ -83,13 +142,14 @@ public class RemoteTransaction {
 		action.setRemoteTempLocation(temporaryRemoteFile);
 
 		transactionTO.addAction(action);
+		return action;
 	}
 
 	/**
 	 * Adds the deletion of a file to this transaction. Generates a temporary file
 	 * to store it while the transaction is being finalized.
 	 */
-	public void delete(RemoteFile remoteFile) throws StorageException {
+	public synchronized void delete(RemoteFile remoteFile) throws StorageException {
 		TempRemoteFile temporaryRemoteFile = new TempRemoteFile(remoteFile);
 
 		logger.log(Level.INFO, "- Adding file to TX for DELETE: " + remoteFile + "-> Temp. remote file: " + temporaryRemoteFile);
@@ -116,9 +176,13 @@ public class RemoteTransaction {
 	 * <p>If this was successful, the transaction file is deleted and the
 	 * temporary files. After deleting the transaction file, the transaction
 	 * is successfully committed.
+	 *
+	 * <p>Before anything else, the method waits for all background uploads to finish
+	 * (see {@link #uploadInBackground(File, RemoteFile) uploadInBackground()}).
 	 */
 	public void commit() throws StorageException {
 		logger.log(Level.INFO, "Starting TX.commit() ...");
+		awaitBackgroundUploads();
 
 		if (isEmpty()) {
 			logger.log(Level.INFO, "- Empty transaction, not committing anything.");
@@ -138,6 +202,7 @@ public class RemoteTransaction {
 	 */
 	public void commit(File localTransactionFile, TransactionRemoteFile remoteTransactionFile) throws StorageException {
 		logger.log(Level.INFO, "- Starting to upload data in commit.");
+		awaitBackgroundUploads();
 
 		uploadAndMoveToTempLocation();
 		moveToFinalLocation();
@@ -146,6 +211,31 @@ public class RemoteTransaction {
 		deleteTempRemoteFiles();
 	}
 
+	/**
+	 * Waits for all background uploads to finish, so that the transfer manager is 
+	 * not used concurrently by the commit. If background uploads failed, the status
+	 * of their actions is still UNSTARTED, i.e. they are uploaded again by the commit.
+	 */
+	private void awaitBackgroundUploads() {
+		TransferExecutor uploadExecutor;
+
+		synchronized (this) {
+			uploadExecutor = backgroundUploadExecutor;
+			backgroundUploadExecutor = null;
+		}
+
+		if (uploadExecutor != null) {
+			logger.log(Level.INFO, "- Waiting for background uploads to finish ...");
+
+			try {
+				uploadExecutor.awaitAll();
+			}
+			catch (StorageException | IOException e) {
+				logger.log(Level.WARNING, "- Background upload(s) failed, retrying in commit.", e);
+			}
+		}
+	}
+
 	/**
 	 * This method serializes the current state of the {@link RemoteTransaction} to a file.
 	 * 
@@ -200,27 +290,44 @@ public class RemoteTransaction {
 	 * 
 	 * This is the expensive part of the committing process, when we are talking about I/O. Hence this is also
 	 * the most likely part to be interrupted on weak connections.
+	 * 
+	 * If the transfer settings allow concurrent transfers (see {@link TransferSettings#getMaxConcurrentTransfers()}),
+	 * the uploads are performed in parallel. An action's status is only set to STARTED once its upload has
+	 * succeeded, so that a transaction interrupted during the upload can always be resumed.
+	 * 
+	 * If the transfer manager is a {@link BulkDeleteTransferManager}, the DELETE moves are performed
+	 * in one batch before the uploads (see {@link #moveToTempLocationInBulk()}).
 	 */
 	private void uploadAndMoveToTempLocation() throws StorageException {
 		TransactionStats stats = gatherTransactionStats();
+		TransferExecutor uploadExecutor = new TransferExecutor(getMaxConcurrentTransfers(), "TxUpload");
 		int uploadFileIndex = 0;
 
-		for (ActionTO action : transactionTO.getActions()) {
+		if (transferManager instanceof BulkDeleteTransferManager) {
+			moveToTempLocationInBulk();
+		}
+
+		for (final ActionTO action : transactionTO.getActions()) {
 			if (action.getStatus().equals(ActionStatus.UNSTARTED)) {
 				// If we are resuming, this has not been started yet.
-				RemoteFile tempRemoteFile = action.getTempRemoteFile();
+				final RemoteFile tempRemoteFile = action.getTempRemoteFile();
 
 				if (action.getType().equals(ActionType.UPLOAD)) {
 					// The action is an UPLOAD, upload file to temporary remote location
-					File localFile = action.getLocalTempLocation();
+					final File localFile = action.getLocalTempLocation();
 					long localFileSize = localFile.length();
 
 					eventBus.post(new UpUploadFileInTransactionSyncExternalEvent(config.getLocalDir().getAbsolutePath(), ++uploadFileIndex,
 							stats.totalUploadFileCount, localFileSize, stats.totalUploadSize));
 
-					logger.log(Level.INFO, "- Uploading {0} to temp. file {1} ...", new Object[] { localFile, tempRemoteFile });
-					transferManager.upload(localFile, tempRemoteFile);
-					action.setStatus(ActionStatus.STARTED);
+					submitUpload(uploadExecutor, new TransferExecutor.TransferTask() {
+						@Override
+						public void execute() throws StorageException {
+							logger.log(Level.INFO, "- Uploading {0} to temp. file {1} ...", new Object[] { localFile, tempRemoteFile });
+							transferManager.upload(localFile, tempRemoteFile);
+							action.setStatus(ActionStatus.STARTED);
+						}
+					});
 				}
 				else if (action.getType().equals(ActionType.DELETE)) {
 					// The action is a DELETE, move file to temporary remote location.
@@ -237,6 +344,53 @@ public class RemoteTransaction {
 				}
 			}
 		}
+
+		try {
+			uploadExecutor.awaitAll();
+		}
+		catch (IOException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * Moves the files of all unstarted DELETE actions to their temporary remote location
+	 * in one batch, and sets the actions' status to STARTED. Files that do not exist are ignored
+	 * by {@link BulkDeleteTransferManager#moveAll(Map)}, like in the one-by-one case.
+	 */
+	private void moveToTempLocationInBulk() throws StorageException {
+		Map<RemoteFile, RemoteFile> moveFiles = new LinkedHashMap<RemoteFile, RemoteFile>();
+		List<ActionTO> moveActions = new ArrayList<ActionTO>();
+
+		for (ActionTO action : transactionTO.getActions()) {
+			if (action.getStatus().equals(ActionStatus.UNSTARTED) && action.getType().equals(ActionType.DELETE)) {
+				moveFiles.put(action.getRemoteFile(), action.getTempRemoteFile());
+				moveActions.add(action);
+			}
+		}
+
+		if (!moveFiles.isEmpty()) {
+			logger.log(Level.INFO, "- Moving {0} file(s) to temp. files ...", moveFiles.size());
+			((BulkDeleteTransferManager) transferManager).moveAll(moveFiles);
+
+			for (ActionTO action : moveActions) {
+				action.setStatus(ActionStatus.STARTED);
+			}
+		}
+	}
+
+	private void submitUpload(TransferExecutor uploadExecutor, TransferExecutor.TransferTask uploadTask) throws StorageException {
+		try {
+			uploadExecutor.submit(uploadTask);
+		}
+		catch (IOException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	private int getMaxConcurrentTransfers() {
+		TransferSettings transferSettings = config.getConnection();
+		return (transferSettings != null) ? Math.max(1, transferSettings.getMaxConcurrentTransfers()) : 1;
 	}
 
 	/**
@@ -297,15 +451,26 @@ public class RemoteTransaction {
 	 * it cannot be rolled back! If this fails, the temporary files will eventually
 	 * be cleaned up by Cleanup and download will not download these, because
 	 * they are not in any transaction file.
+	 * 
+	 * If the transfer manager is a {@link BulkDeleteTransferManager}, the temporary files
+	 * are deleted in one batch.
 	 */
 	private void deleteTempRemoteFiles() throws StorageException {
 		boolean success = true;
+		List<RemoteFile> bulkDeleteFiles = new ArrayList<RemoteFile>();
+
 		for (ActionTO action : transactionTO.getActions()) {
 			if (action.getStatus().equals(ActionStatus.STARTED)) {
 				// If we are resuming, this action has not been comopleted.
 				if (action.getType().equals(ActionType.DELETE)) {
 					RemoteFile tempRemoteFile = action.getTempRemoteFile();
 
+					if (transferManager instanceof BulkDeleteTransferManager) {
+						bulkDeleteFiles.add(tempRemoteFile);
+						action.setStatus(ActionStatus.DONE);
+						continue;
+					}
+
 					logger.log(Level.INFO, "- Deleting temp. file {0}  ...", new Object[] { tempRemoteFile });
 					try {
 						transferManager.delete(tempRemoteFile);
@@ -319,6 +484,23 @@ public class RemoteTransaction {
 			}
 		}
 
+		if (!bulkDeleteFiles.isEmpty()) {
+			logger.log(Level.INFO, "- Deleting {0} temp. file(s) ...", bulkDeleteFiles.size());
+
+			try {
+				Set<RemoteFile> failedRemoteFiles = ((BulkDeleteTransferManager) transferManager).deleteAll(bulkDeleteFiles);
+
+				if (!failedRemoteFiles.isEmpty()) {
+					logger.log(Level.INFO, "Failed to delete: " + failedRemoteFiles);
+					success = false;
+				}
+			}
+			catch (StorageException e) {
+				logger.log(Level.INFO, "Failed to delete " + bulkDeleteFiles.size() + " temp. file(s) because of: " + e);
+				success = false;
+			}
+		}
+
 		if (success) {
 			logger.log(Level.INFO, "END of TX.delTemp(): Sucessfully deleted final files.");
 		}
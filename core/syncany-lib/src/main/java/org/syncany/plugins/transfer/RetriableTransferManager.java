@@ -18,10 +18,15 @@
 package org.syncany.plugins.transfer;
 
 import java.io.File;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.syncany.database.ChunkEntry.ChunkChecksum;
+import org.syncany.plugins.transfer.files.MultichunkRemoteFile;
 import org.syncany.plugins.transfer.files.RemoteFile;
 
 /**
@@ -33,7 +38,7 @@ import org.syncany.plugins.transfer.files.RemoteFile;
  * 
  * @author Philipp C. Heckel <philipp.heckel@gmail.com>
  */
-public class RetriableTransferManager implements TransferManager {
+public class RetriableTransferManager implements PartialDownloadTransferManager, BulkDeleteTransferManager {
 	private static final Logger logger = Logger.getLogger(RetriableTransferManager.class.getSimpleName());
 
 	// Values are public to enable quicker testing
@@ -46,11 +51,9 @@ public class RetriableTransferManager implements TransferManager {
 	}
 
 	private TransferManager underlyingTransferManager;
-	private int tryCount;
 
 	public RetriableTransferManager(TransferManager underlyingTransferManager) {
 		this.underlyingTransferManager = underlyingTransferManager;
-		this.tryCount = 0;
 	}
 
 	@Override
@@ -97,6 +100,20 @@ public class RetriableTransferManager implements TransferManager {
 		});
 	}
 
+	@Override
+	public boolean downloadChunks(final MultichunkRemoteFile remoteFile, final Set<ChunkChecksum> chunkChecksums, final File localFile) throws StorageException {
+		if (!(underlyingTransferManager instanceof PartialDownloadTransferManager)) {
+			return false;
+		}
+
+		return (Boolean) retryMethod(new RetriableMethod() {
+			@Override
+			public Object execute() throws StorageException {
+				return ((PartialDownloadTransferManager) underlyingTransferManager).downloadChunks(remoteFile, chunkChecksums, localFile);
+			}
+		});
+	}
+
 	@Override
 	public void move(final RemoteFile sourceFile, final RemoteFile targetFile) throws StorageException {
 		retryMethod(new RetriableMethod() {
@@ -129,6 +146,68 @@ public class RetriableTransferManager implements TransferManager {
 		});
 	}
 
+	/**
+	 * Moves the given files, using the bulk method of the underlying transfer manager if it
+	 * supports it (retrying the entire batch; files moved before a failure do not exist anymore
+	 * and are ignored), and moving them one by one otherwise.
+	 */
+	@Override
+	public void moveAll(final Map<RemoteFile, RemoteFile> sourceToTargetFiles) throws StorageException {
+		if (!(underlyingTransferManager instanceof BulkDeleteTransferManager)) {
+			for (Map.Entry<RemoteFile, RemoteFile> sourceToTargetFile : sourceToTargetFiles.entrySet()) {
+				try {
+					move(sourceToTargetFile.getKey(), sourceToTargetFile.getValue());
+				}
+				catch (StorageMoveException e) {
+					logger.log(Level.INFO, "Source file " + sourceToTargetFile.getKey() + " does not exist. Ignoring.");
+				}
+			}
+
+			return;
+		}
+
+		retryMethod(new RetriableMethod() {
+			@Override
+			public Object execute() throws StorageException {
+				((BulkDeleteTransferManager) underlyingTransferManager).moveAll(sourceToTargetFiles);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Deletes the given files, using the bulk method of the underlying transfer manager if it
+	 * supports it, and deleting them one by one otherwise.
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public Set<RemoteFile> deleteAll(final Collection<RemoteFile> remoteFiles) throws StorageException {
+		if (!(underlyingTransferManager instanceof BulkDeleteTransferManager)) {
+			Set<RemoteFile> failedRemoteFiles = new HashSet<RemoteFile>();
+
+			for (RemoteFile remoteFile : remoteFiles) {
+				try {
+					if (!delete(remoteFile)) {
+						failedRemoteFiles.add(remoteFile);
+					}
+				}
+				catch (StorageException e) {
+					logger.log(Level.INFO, "Failed to delete " + remoteFile, e);
+					failedRemoteFiles.add(remoteFile);
+				}
+			}
+
+			return failedRemoteFiles;
+		}
+
+		return (Set<RemoteFile>) retryMethod(new RetriableMethod() {
+			@Override
+			public Object execute() throws StorageException {
+				return ((BulkDeleteTransferManager) underlyingTransferManager).deleteAll(remoteFiles);
+			}
+		});
+	}
+
 	@Override
 	@SuppressWarnings("unchecked")
 	public <T extends RemoteFile> Map<String, T> list(final Class<T> remoteFileClass) throws StorageException {
@@ -186,7 +265,7 @@ public class RetriableTransferManager implements TransferManager {
 	}
 
 	private Object retryMethod(RetriableMethod retryableMethod) throws StorageException {
-		tryCount = 0;
+		int tryCount = 0; // Local, because methods might be called concurrently (see TransferExecutor)
 
 		while (true) {
 			try {
@@ -194,10 +273,7 @@ public class RetriableTransferManager implements TransferManager {
 					logger.log(Level.WARNING, "Retrying method: " + tryCount + "/" + RETRY_MAX_COUNT + " ...");
 				}
 
-				Object result = retryableMethod.execute();
-
-				tryCount = 0;
-				return result;
+				return retryableMethod.execute();
 			}
 			catch (StorageMoveException | StorageFileNotFoundException e) {
 				logger.log(Level.INFO, "StorageException caused by missing file, not the connection. Not retrying.");
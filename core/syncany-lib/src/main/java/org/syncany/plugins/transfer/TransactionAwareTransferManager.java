@@ -32,6 +32,8 @@ import java.util.logging.Logger;
 
 import org.syncany.chunk.Transformer;
 import org.syncany.config.Config;
+import org.syncany.database.ChunkEntry.ChunkChecksum;
+import org.syncany.plugins.transfer.files.MultichunkRemoteFile;
 import org.syncany.plugins.transfer.files.RemoteFile;
 import org.syncany.plugins.transfer.files.TempRemoteFile;
 import org.syncany.plugins.transfer.files.TransactionRemoteFile;
@@ -45,7 +47,7 @@ import org.syncany.plugins.transfer.to.TransactionTO;
  *
  * @author Pim Otte
  */
-public class TransactionAwareTransferManager implements TransferManager {
+public class TransactionAwareTransferManager implements PartialDownloadTransferManager, BulkDeleteTransferManager {
 	private static final Logger logger = Logger.getLogger(TransactionAwareTransferManager.class.getSimpleName());
 
 	private TransferManager underlyingTransferManager;
@@ -82,6 +84,26 @@ public class TransactionAwareTransferManager implements TransferManager {
 		}
 	}
 
+	/**
+	 * Downloads the given chunks of a multichunk, if the underlying transfer manager supports
+	 * partial downloads. If the multichunk does not exist (e.g. because it is being deleted),
+	 * <tt>false</tt> is returned, so that the caller falls back to {@link #download(RemoteFile, File) download()}.
+	 */
+	@Override
+	public boolean downloadChunks(MultichunkRemoteFile remoteFile, Set<ChunkChecksum> chunkChecksums, File localFile) throws StorageException {
+		if (!(underlyingTransferManager instanceof PartialDownloadTransferManager)) {
+			return false;
+		}
+
+		try {
+			return ((PartialDownloadTransferManager) underlyingTransferManager).downloadChunks(remoteFile, chunkChecksums, localFile);
+		}
+		catch (StorageFileNotFoundException e) {
+			logger.log(Level.FINE, "Could not find the Storage file for partial download", e);
+			return false;
+		}
+	}
+
 	/**
 	 * Downloads all transaction files and looks for the corresponding temporary file
 	 * for the given remote file. If there is a temporary file, the file is downloaded
@@ -134,6 +156,54 @@ public class TransactionAwareTransferManager implements TransferManager {
 		return underlyingTransferManager.delete(remoteFile);
 	}
 
+	/**
+	 * Moves the given files, using the bulk method of the underlying transfer manager if it
+	 * supports it, and moving them one by one otherwise. Missing source files are ignored.
+	 */
+	@Override
+	public void moveAll(Map<RemoteFile, RemoteFile> sourceToTargetFiles) throws StorageException {
+		if (underlyingTransferManager instanceof BulkDeleteTransferManager) {
+			((BulkDeleteTransferManager) underlyingTransferManager).moveAll(sourceToTargetFiles);
+			return;
+		}
+
+		for (Map.Entry<RemoteFile, RemoteFile> sourceToTargetFile : sourceToTargetFiles.entrySet()) {
+			try {
+				underlyingTransferManager.move(sourceToTargetFile.getKey(), sourceToTargetFile.getValue());
+			}
+			catch (StorageMoveException e) {
+				logger.log(Level.INFO, "Source file " + sourceToTargetFile.getKey() + " does not exist. Ignoring.");
+			}
+		}
+	}
+
+	/**
+	 * Deletes the given files, using the bulk method of the underlying transfer manager if it
+	 * supports it, and deleting them one by one otherwise.
+	 */
+	@Override
+	public Set<RemoteFile> deleteAll(Collection<RemoteFile> remoteFiles) throws StorageException {
+		if (underlyingTransferManager instanceof BulkDeleteTransferManager) {
+			return ((BulkDeleteTransferManager) underlyingTransferManager).deleteAll(remoteFiles);
+		}
+
+		Set<RemoteFile> failedRemoteFiles = new HashSet<RemoteFile>();
+
+		for (RemoteFile remoteFile : remoteFiles) {
+			try {
+				if (!underlyingTransferManager.delete(remoteFile)) {
+					failedRemoteFiles.add(remoteFile);
+				}
+			}
+			catch (StorageException e) {
+				logger.log(Level.INFO, "Failed to delete " + remoteFile, e);
+				failedRemoteFiles.add(remoteFile);
+			}
+		}
+
+		return failedRemoteFiles;
+	}
+
 	@Override
 	public <T extends RemoteFile> Map<String, T> list(final Class<T> remoteFileClass) throws StorageException {
 		return addAndFilterFilesInTransaction(remoteFileClass, underlyingTransferManager.list(remoteFileClass));
@@ -0,0 +1,175 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.plugins.transfer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The transfer executor runs transfer tasks (uploads, downloads) with a bounded
+ * degree of parallelism, as defined by {@link TransferSettings#getMaxConcurrentTransfers()}.
+ *
+ * <p>If the maximum number of concurrent transfers is 1 (the default for all plugins),
+ * tasks are executed immediately in the calling thread when they are submitted, i.e. the
+ * behavior is identical to calling the transfer manager directly. Otherwise, tasks are
+ * executed by a fixed-size thread pool, and {@link #awaitAll()} blocks until all tasks
+ * have completed.
+ *
+ * <p>A <i>background</i> executor always uses a thread pool (even for one concurrent
+ * transfer), so that transfers can run while the caller is doing other work, e.g. to
+ * upload multichunks while files are still being indexed. The caller must not use the
+ * transfer manager itself until {@link #awaitAll()} has returned, unless it is thread-safe.
+ *
+ * <p>Callers must make sure that the underlying {@link TransferManager} is thread-safe
+ * if more than one concurrent transfer is allowed.
+ *
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class TransferExecutor {
+	private static final Logger logger = Logger.getLogger(TransferExecutor.class.getSimpleName());
+
+	public interface TransferTask {
+		public void execute() throws StorageException, IOException;
+	}
+
+	private ExecutorService executorService;
+	private List<Future<Void>> pendingTasks;
+
+	public TransferExecutor(int maxConcurrentTransfers, String threadName) {
+		this(maxConcurrentTransfers, threadName, false);
+	}
+
+	public TransferExecutor(int maxConcurrentTransfers, String threadName, boolean background) {
+		maxConcurrentTransfers = Math.max(1, maxConcurrentTransfers);
+
+		if (maxConcurrentTransfers > 1 || background) {
+			this.executorService = Executors.newFixedThreadPool(maxConcurrentTransfers, new TransferThreadFactory(threadName));
+			this.pendingTasks = new ArrayList<Future<Void>>();
+
+			logger.log(Level.INFO, "Transfer executor '" + threadName + "' started with " + maxConcurrentTransfers + " threads.");
+		}
+	}
+
+	/**
+	 * Submits a task for execution. If this executor is sequential, the task is
+	 * executed immediately and exceptions are thrown by this method. Otherwise,
+	 * exceptions are thrown by {@link #awaitAll()}.
+	 */
+	public void submit(final TransferTask task) throws StorageException, IOException {
+		if (executorService == null) {
+			task.execute();
+		}
+		else {
+			pendingTasks.add(executorService.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					task.execute();
+					return null;
+				}
+			}));
+		}
+	}
+
+	/**
+	 * Waits for all submitted tasks to complete and shuts down the executor. If one or
+	 * more tasks failed, the exception of the first failed task is thrown -- but only
+	 * after all other tasks have completed, so that no task is left running.
+	 */
+	public void awaitAll() throws StorageException, IOException {
+		if (executorService == null) {
+			return;
+		}
+
+		Exception firstException = null;
+
+		try {
+			for (Future<Void> pendingTask : pendingTasks) {
+				try {
+					pendingTask.get();
+				}
+				catch (ExecutionException e) {
+					if (firstException == null) {
+						firstException = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+					}
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			throw new StorageException("Interrupted while waiting for transfers to complete.", e);
+		}
+		finally {
+			pendingTasks.clear();
+			executorService.shutdownNow();
+		}
+
+		if (firstException instanceof StorageException) {
+			throw (StorageException) firstException;
+		}
+		else if (firstException instanceof IOException) {
+			throw (IOException) firstException;
+		}
+		else if (firstException != null) {
+			throw new StorageException(firstException);
+		}
+	}
+
+	/**
+	 * Cancels all submitted tasks and shuts down the executor. Tasks that are running are
+	 * interrupted, and their results (and exceptions) are discarded.
+	 */
+	public void cancelAll() {
+		if (executorService == null) {
+			return;
+		}
+
+		for (Future<Void> pendingTask : pendingTasks) {
+			pendingTask.cancel(true);
+		}
+
+		pendingTasks.clear();
+		executorService.shutdownNow();
+	}
+
+	private static class TransferThreadFactory implements ThreadFactory {
+		private String threadName;
+		private AtomicInteger threadNumber;
+
+		public TransferThreadFactory(String threadName) {
+			this.threadName = threadName;
+			this.threadNumber = new AtomicInteger(1);
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, threadName + "-" + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+
+			return thread;
+		}
+	}
+}
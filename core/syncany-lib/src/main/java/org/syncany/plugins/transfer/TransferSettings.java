@@ -212,6 +212,20 @@ public abstract class TransferSettings {
 		}
 	}
 
+	/**
+	 * Returns the maximum number of transfers (uploads, downloads) that may be performed
+	 * concurrently using a transfer manager created from these settings.
+	 *
+	 * <p>By default, this method returns 1, i.e. all transfers are performed sequentially.
+	 * Plugins whose transfer managers are thread-safe may override this method, e.g. to
+	 * return a user-configurable value. See {@link TransferExecutor} for details.
+	 *
+	 * @return Returns the maximum number of concurrent transfers (at least 1)
+	 */
+	public int getMaxConcurrentTransfers() {
+		return 1;
+	}
+
 	private String findPluginId() {
 		Class<? extends TransferPlugin> transferPluginClass = TransferPluginUtil.getTransferPluginClass(this.getClass());
 
@@ -0,0 +1,4 @@
+-- Count all chunks (to size the chunk index)
+
+select count(*) as chunkcount
+from chunk
@@ -1 +1,4 @@
-select * from chunk
+-- Load all chunks into the chunk index
+
+select checksum, size
+from chunk
@@ -0,0 +1,113 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.integration.chunk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Enumeration;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.syncany.chunk.Chunk;
+import org.syncany.chunk.Chunker;
+import org.syncany.chunk.FastCdcChunker;
+import org.syncany.chunk.TttdChunker;
+import org.syncany.tests.unit.util.TestFileUtil;
+
+/**
+ * Measures the throughput of the content-based chunkers ({@link TttdChunker} and
+ * {@link FastCdcChunker}) for various average chunk sizes, i.e. the CPU time spent per
+ * file while indexing. Each measurement is repeated after a warm-up phase, and the best
+ * run is reported.
+ *
+ * <p>The results are logged; the test only fails if the chunks do not add up to the
+ * file size, or if the throughput drops below a (very conservative) minimum.
+ */
+public class ChunkerPerformanceTest {
+	private static final Logger logger = Logger.getLogger(ChunkerPerformanceTest.class.getSimpleName());
+
+	private static final int FILE_SIZE = 32 * 1024 * 1024;
+	private static final int[] AVG_CHUNK_SIZES = new int[] { 4 * 1024, 16 * 1024, 512 * 1024 };
+
+	private static final int WARMUP_RUNS = 2;
+	private static final int MEASURED_RUNS = 3;
+
+	private static final double MIN_THROUGHPUT = 5.0; // MB/s
+
+	private File tempDir;
+	private File inputFile;
+
+	@Before
+	public void setUp() throws Exception {
+		tempDir = TestFileUtil.createTempDirectoryInSystemTemp();
+		inputFile = TestFileUtil.createRandomFileInDirectory(tempDir, FILE_SIZE);
+	}
+
+	@After
+	public void tearDown() {
+		TestFileUtil.deleteDirectory(tempDir);
+	}
+
+	@Test
+	public void testChunkingPerformance() throws Exception {
+		logger.log(Level.INFO, String.format("%-24s %-10s %-10s", "Chunker", "Chunks", "MB/s"));
+
+		for (int avgChunkSize : AVG_CHUNK_SIZES) {
+			measure(new TttdChunker(avgChunkSize));
+			measure(new FastCdcChunker(avgChunkSize));
+		}
+	}
+
+	private void measure(Chunker chunker) throws Exception {
+		long bestDuration = Long.MAX_VALUE;
+		int chunkCount = 0;
+
+		for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+			long startTime = System.nanoTime();
+			chunkCount = createChunks(chunker);
+
+			if (run >= WARMUP_RUNS) {
+				bestDuration = Math.min(bestDuration, System.nanoTime() - startTime);
+			}
+		}
+
+		double throughput = (FILE_SIZE / 1024.0 / 1024.0) / (Math.max(1, bestDuration) / 1e9);
+		logger.log(Level.INFO, String.format("%-24s %-10d %-10.2f", chunker, chunkCount, throughput));
+
+		assertTrue("Chunking too slow for " + chunker + ": " + throughput + " MB/s", throughput >= MIN_THROUGHPUT);
+	}
+
+	private int createChunks(Chunker chunker) throws Exception {
+		Enumeration<Chunk> chunkEnumeration = chunker.createChunks(inputFile);
+		long totalSize = 0;
+		int chunkCount = 0;
+
+		while (chunkEnumeration.hasMoreElements()) {
+			totalSize += chunkEnumeration.nextElement().getSize();
+			chunkCount++;
+		}
+
+		assertEquals(FILE_SIZE, totalSize);
+		return chunkCount;
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.integration.chunk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.syncany.chunk.Chunk;
+import org.syncany.chunk.Deduper;
+import org.syncany.chunk.DeduperListener;
+import org.syncany.chunk.FixedChunker;
+import org.syncany.chunk.MultiChunk;
+import org.syncany.chunk.GzipTransformer;
+import org.syncany.chunk.ZipMultiChunker;
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
+import org.syncany.tests.unit.util.TestFileUtil;
+import org.syncany.util.StringUtil;
+
+/**
+ * Measures the indexing throughput of the {@link Deduper} for many small files, with
+ * and without the chunking pipeline and background sealing of (gzipped) multichunks, i.e.
+ * the wall-clock time spent in the deduplication step of 'up'. Each measurement is repeated after a warm-up phase, and the best run is
+ * reported.
+ *
+ * <p>The results are logged; the test only fails if the pipeline does not produce the
+ * same chunks, or if the pipeline is (considerably) slower than the single-threaded run.
+ */
+public class DeduperPerformanceTest {
+	private static final Logger logger = Logger.getLogger(DeduperPerformanceTest.class.getSimpleName());
+
+	private static final int FILE_COUNT = 2000;
+	private static final int FILE_SIZE = 16 * 1024;
+	private static final int[] CHUNKER_THREADS = new int[] { 1, 2, 4, Runtime.getRuntime().availableProcessors() };
+
+	private static final int WARMUP_RUNS = 2;
+	private static final int MEASURED_RUNS = 3;
+
+	private File tempDir;
+	private List<File> inputFiles;
+
+	@Before
+	public void setUp() throws Exception {
+		tempDir = TestFileUtil.createTempDirectoryInSystemTemp();
+
+		File inputDir = new File(tempDir, "input");
+		inputDir.mkdir();
+
+		inputFiles = TestFileUtil.createRandomFilesInDirectory(inputDir, FILE_SIZE, FILE_COUNT);
+	}
+
+	@After
+	public void tearDown() {
+		TestFileUtil.deleteDirectory(tempDir);
+	}
+
+	@Test
+	public void testDeduplicationPerformance() throws Exception {
+		logger.log(Level.INFO, String.format("%-16s %-10s %-10s", "Chunker threads", "Chunks", "Files/s"));
+
+		double singleThreadedThroughput = 0;
+
+		for (int chunkerThreads : CHUNKER_THREADS) {
+			long bestDuration = Long.MAX_VALUE;
+			int chunkCount = 0;
+
+			for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+				long startTime = System.nanoTime();
+				chunkCount = deduplicate(chunkerThreads, new File(tempDir, "multichunks-" + chunkerThreads + "-" + run));
+
+				if (run >= WARMUP_RUNS) {
+					bestDuration = Math.min(bestDuration, System.nanoTime() - startTime);
+				}
+			}
+
+			double throughput = FILE_COUNT / (Math.max(1, bestDuration) / 1e9);
+			logger.log(Level.INFO, String.format("%-16d %-10d %-10.2f", chunkerThreads, chunkCount, throughput));
+
+			assertEquals(FILE_COUNT, chunkCount);
+
+			if (chunkerThreads == 1) {
+				singleThreadedThroughput = throughput;
+			}
+			else {
+				assertTrue("Pipeline with " + chunkerThreads + " threads too slow: " + throughput + " files/s", throughput >= singleThreadedThroughput * 0.5);
+			}
+		}
+	}
+
+	private int deduplicate(int chunkerThreads, final File multiChunkDir) throws Exception {
+		final Set<String> chunkChecksums = new HashSet<String>();
+		multiChunkDir.mkdir();
+
+		Deduper deduper = new Deduper(new FixedChunker(512 * 1024), new ZipMultiChunker(4 * 1024), new GzipTransformer(), chunkerThreads);
+		deduper.deduplicate(inputFiles, new DeduperListener() {
+			@Override
+			public boolean onFileFilter(File file) {
+				return true;
+			}
+
+			@Override
+			public boolean onFileStart(File file, int fileNumber) {
+				return true;
+			}
+
+			@Override
+			public void onFileAddChunk(File file, Chunk chunk) {
+				// Nothing
+			}
+
+			@Override
+			public void onFileEnd(File file, byte[] checksum) {
+				// Nothing
+			}
+
+			@Override
+			public boolean onChunk(Chunk chunk) {
+				return chunkChecksums.add(StringUtil.toHex(chunk.getChecksum()));
+			}
+
+			@Override
+			public void onMultiChunkOpen(MultiChunk multiChunk) {
+				// Nothing
+			}
+
+			@Override
+			public MultiChunkId createNewMultiChunkId(Chunk firstChunk) {
+				return MultiChunkId.secureRandomMultiChunkId();
+			}
+
+			@Override
+			public File getMultiChunkFile(MultiChunkId multiChunkId) {
+				return new File(multiChunkDir, "multichunk-" + multiChunkId);
+			}
+
+			@Override
+			public void onMultiChunkWrite(MultiChunk multiChunk, Chunk chunk) {
+				// Nothing
+			}
+
+			@Override
+			public void onMultiChunkClose(MultiChunk multiChunk) {
+				// Nothing
+			}
+
+			@Override
+			public void onStart(int size) {
+				// Nothing
+			}
+
+			@Override
+			public void onFinish() {
+				// Nothing
+			}
+		});
+
+		return chunkChecksums.size();
+	}
+}
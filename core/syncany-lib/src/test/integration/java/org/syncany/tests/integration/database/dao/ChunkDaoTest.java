@@ -20,14 +20,17 @@ package org.syncany.tests.integration.database.dao;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.sql.Connection;
+import java.util.Arrays;
 import java.util.Map;
 
 import org.junit.Test;
 import org.syncany.config.Config;
 import org.syncany.database.ChunkEntry;
 import org.syncany.database.ChunkEntry.ChunkChecksum;
+import org.syncany.database.dao.ChunkFilter;
 import org.syncany.database.dao.ChunkSqlDao;
 import org.syncany.tests.util.TestConfigUtil;
 import org.syncany.tests.util.TestDatabaseUtil;
@@ -65,6 +68,88 @@ public class ChunkDaoTest {
 		TestConfigUtil.deleteTestLocalConfigAndData(testConfig);
 	}
 	
+	@Test
+	public void testGetChunkAfterWriteChunks() throws Exception {
+		// Setup
+		Config testConfig = TestConfigUtil.createTestLocalConfig();
+		Connection databaseConnection = testConfig.createDatabaseConnection();
+
+		// Run
+		TestSqlUtil.runSqlFromResource(databaseConnection, "test.insert.set3.sql");
+		
+		ChunkSqlDao chunkDao = new ChunkSqlDao(databaseConnection);
+		ChunkChecksum newChunkChecksum = ChunkChecksum.parseChunkChecksum("beefbeefbeefbeefbeefbeefbeefbeefbeefbeef");
+		
+		assertNull(chunkDao.getChunk(newChunkChecksum)); // Loads cache
+		
+		long databaseVersionId = Long.parseLong(TestSqlUtil.runSqlSelect("select max(id) from databaseversion", databaseConnection));
+		chunkDao.writeChunks(databaseConnection, databaseVersionId, Arrays.asList(new ChunkEntry(newChunkChecksum, 1234)));
+		
+		ChunkEntry newChunk = chunkDao.getChunk(newChunkChecksum);
+		ChunkEntry existingChunk = chunkDao.getChunk(ChunkChecksum.parseChunkChecksum("615fba8c2281d5bee891eb092a252d235c237457"));
+		
+		// Test
+		assertNotNull(newChunk);
+		assertEquals(1234, newChunk.getSize());
+		
+		assertNotNull(existingChunk);
+		assertEquals(8387, existingChunk.getSize());
+		
+		// Rollback and clear cache
+		databaseConnection.rollback();
+		chunkDao.clearCache();
+		
+		assertNull(chunkDao.getChunk(newChunkChecksum));
+		
+		// Tear down
+		databaseConnection.close();
+		TestConfigUtil.deleteTestLocalConfigAndData(testConfig);
+	}
+	
+	@Test
+	public void testGetChunkWithChunkFilter() throws Exception {
+		// Setup
+		Config testConfig = TestConfigUtil.createTestLocalConfig();
+		Connection databaseConnection = testConfig.createDatabaseConnection();
+
+		// Run
+		TestSqlUtil.runSqlFromResource(databaseConnection, "test.insert.set3.sql");
+		
+		ChunkSqlDao chunkDao = new ChunkSqlDao(databaseConnection, testConfig.getChunkFilterFile());
+		ChunkChecksum existingChunkChecksum = ChunkChecksum.parseChunkChecksum("615fba8c2281d5bee891eb092a252d235c237457");
+		ChunkChecksum newChunkChecksum1 = ChunkChecksum.parseChunkChecksum("beefbeefbeefbeefbeefbeefbeefbeefbeefbeef");
+		ChunkChecksum newChunkChecksum2 = ChunkChecksum.parseChunkChecksum("cafecafecafecafecafecafecafecafecafecafe");
+		
+		assertNull(chunkDao.getChunk(newChunkChecksum1)); // Creates filter
+		assertNotNull(chunkDao.getChunk(existingChunkChecksum));
+		assertTrue(testConfig.getChunkFilterFile().exists());
+		
+		long databaseVersionId = Long.parseLong(TestSqlUtil.runSqlSelect("select max(id) from databaseversion", databaseConnection));
+		chunkDao.writeChunks(databaseConnection, databaseVersionId, Arrays.asList(new ChunkEntry(newChunkChecksum1, 1234)));
+		databaseConnection.commit();
+		
+		long chunkCount = Long.parseLong(TestSqlUtil.runSqlSelect("select count(*) from chunk", databaseConnection));
+		
+		// Test: Filter covers new chunk and is reused by other DAO
+		assertNotNull(chunkDao.getChunk(newChunkChecksum1));
+		assertNotNull(ChunkFilter.open(testConfig.getChunkFilterFile(), chunkCount));
+		assertNotNull(new ChunkSqlDao(databaseConnection, testConfig.getChunkFilterFile()).getChunk(newChunkChecksum1));
+		
+		// Test: Filter is outdated after rollback, and rebuilt
+		chunkDao.writeChunks(databaseConnection, databaseVersionId, Arrays.asList(new ChunkEntry(newChunkChecksum2, 4321)));
+		databaseConnection.rollback();
+		chunkDao.clearCache();
+		
+		assertNull(ChunkFilter.open(testConfig.getChunkFilterFile(), chunkCount));
+		assertNull(chunkDao.getChunk(newChunkChecksum2));
+		assertNotNull(chunkDao.getChunk(newChunkChecksum1));
+		assertNotNull(ChunkFilter.open(testConfig.getChunkFilterFile(), chunkCount));
+		
+		// Tear down
+		databaseConnection.close();
+		TestConfigUtil.deleteTestLocalConfigAndData(testConfig);
+	}
+
 	@Test
 	public void testGetChunksForDatabaseVersion() throws Exception {
 		// Setup
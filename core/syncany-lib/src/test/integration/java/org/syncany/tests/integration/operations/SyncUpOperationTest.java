@@ -34,6 +34,7 @@ import org.syncany.config.Config;
 import org.syncany.database.DatabaseVersion;
 import org.syncany.database.FileVersion;
 import org.syncany.database.MemoryDatabase;
+import org.syncany.database.MultiChunkEntry;
 import org.syncany.database.PartialFileHistory;
 import org.syncany.database.PartialFileHistory.FileHistoryId;
 import org.syncany.database.SqlDatabase;
@@ -41,6 +42,7 @@ import org.syncany.database.dao.DatabaseXmlSerializer;
 import org.syncany.database.dao.DatabaseXmlSerializer.DatabaseReadType;
 import org.syncany.operations.AbstractTransferOperation;
 import org.syncany.operations.up.UpOperation;
+import org.syncany.operations.up.UpOperationOptions;
 import org.syncany.plugins.local.LocalTransferSettings;
 import org.syncany.tests.unit.util.TestFileUtil;
 import org.syncany.tests.util.TestConfigUtil;
@@ -119,6 +121,55 @@ public class SyncUpOperationTest {
 		compareFileVersionsAgainstOriginalFiles(originalFiles, remoteFileVersions);
 	}
 
+	@Test
+	public void testUploadWithStreamingUpload() throws Exception {
+		int fileSize = 1230 * 1024;
+		int fileAmount = 5;
+
+		List<File> originalFiles = TestFileUtil.createRandomFilesInDirectory(testConfig.getLocalDir(), fileSize,
+				fileAmount);
+
+		// Run!
+		UpOperationOptions upOptions = new UpOperationOptions();
+		upOptions.setStreamingUploadEnabled(true);
+
+		AbstractTransferOperation op = new UpOperation(testConfig, upOptions);
+		op.execute();
+
+		// Get remote database
+		LocalTransferSettings localConnection = (LocalTransferSettings) testConfig.getConnection();
+		File remoteDatabaseFile = new File(localConnection.getPath() + "/databases/database-" + testConfig.getMachineName() + "-0000000001");
+
+		assertTrue(remoteDatabaseFile.exists());
+
+		MemoryDatabase remoteDatabase = new MemoryDatabase();
+		new DatabaseXmlSerializer(testConfig.getTransformer()).load(remoteDatabase, remoteDatabaseFile, null, null, DatabaseReadType.FULL);
+
+		DatabaseVersion remoteDatabaseVersion = remoteDatabase.getLastDatabaseVersion();
+
+		// Compare!
+		List<FileVersion> remoteFileVersions = new ArrayList<FileVersion>();
+
+		for (PartialFileHistory partialFileHistory : remoteDatabaseVersion.getFileHistories()) {
+			remoteFileVersions.add(partialFileHistory.getLastVersion());
+		}
+
+		compareFileVersionsAgainstOriginalFiles(originalFiles, remoteFileVersions);
+
+		// All multichunks moved to their final location, no temporary files or transactions left
+		File remoteMultiChunkDir = new File(localConnection.getPath(), "multichunks");
+
+		assertTrue(remoteDatabaseVersion.getMultiChunks().size() > 1);
+		assertEquals(remoteDatabaseVersion.getMultiChunks().size(), remoteMultiChunkDir.listFiles().length);
+
+		for (MultiChunkEntry multiChunkEntry : remoteDatabaseVersion.getMultiChunks()) {
+			assertTrue(new File(remoteMultiChunkDir, "multichunk-" + multiChunkEntry.getId()).exists());
+		}
+
+		assertEquals(0, new File(localConnection.getPath(), "temporary").listFiles().length);
+		assertEquals(0, new File(localConnection.getPath(), "transactions").listFiles().length);
+	}
+
 	private void compareFileVersionsAgainstOriginalFiles(List<File> originalFiles, List<FileVersion> localFileVersions) throws Exception {
 		int toFind = originalFiles.size();
 		for (File originalFile : originalFiles) {
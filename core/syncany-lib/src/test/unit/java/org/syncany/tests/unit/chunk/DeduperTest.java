@@ -0,0 +1,261 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com> 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.unit.chunk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.syncany.chunk.Chunk;
+import org.syncany.chunk.Deduper;
+import org.syncany.chunk.DeduperListener;
+import org.syncany.chunk.FastCdcChunker;
+import org.syncany.chunk.GzipTransformer;
+import org.syncany.chunk.MultiChunk;
+import org.syncany.chunk.NoTransformer;
+import org.syncany.chunk.Transformer;
+import org.syncany.chunk.ZipMultiChunker;
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
+import org.syncany.tests.unit.util.TestFileUtil;
+import org.syncany.util.FileUtil;
+import org.syncany.util.StringUtil;
+
+public class DeduperTest {
+	private File tempDir;
+	private List<File> inputFiles;
+
+	@Before
+	public void setUp() throws Exception {
+		tempDir = TestFileUtil.createTempDirectoryInSystemTemp();
+		inputFiles = new ArrayList<File>();
+
+		File inputDir = new File(tempDir, "input");
+		inputDir.mkdir();
+
+		Random random = new Random(4711);
+		byte[] duplicateContents = TestFileUtil.createArray(100 * 1024, random);
+
+		for (int i = 0; i < 60; i++) {
+			File inputFile = new File(inputDir, "file-" + i + ((i % 7 == 0) ? "-skipped" : ""));
+
+			if (i % 10 == 5) {
+				inputFile.mkdir();
+			}
+			else if (i % 10 == 6) {
+				TestFileUtil.writeByteArrayToFile(duplicateContents, inputFile);
+			}
+			else {
+				TestFileUtil.writeByteArrayToFile(TestFileUtil.createArray((i % 10 == 0) ? 0 : random.nextInt(300 * 1024), random), inputFile);
+			}
+
+			inputFiles.add(inputFile);
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		TestFileUtil.deleteDirectory(tempDir);
+	}
+
+	@Test
+	public void testSameResultWithAndWithoutPipeline() throws Exception {
+		List<String> expectedEvents = deduplicate(1, new RecordingDeduperListener(new File(tempDir, "multichunks-1")));
+
+		assertTrue(expectedEvents.size() > inputFiles.size());
+		assertEquals(expectedEvents, deduplicate(4, new RecordingDeduperListener(new File(tempDir, "multichunks-4"))));
+		assertEquals(expectedEvents, deduplicate(16, new RecordingDeduperListener(new File(tempDir, "multichunks-16"))));
+	}
+
+	@Test
+	public void testSameMultiChunksWithAndWithoutSealer() throws Exception {
+		File sequentialMultiChunkDir = new File(tempDir, "multichunks-1");
+		File pipelineMultiChunkDir = new File(tempDir, "multichunks-4");
+
+		deduplicate(1, new GzipTransformer(), new RecordingDeduperListener(sequentialMultiChunkDir));
+		deduplicate(4, new GzipTransformer(), new RecordingDeduperListener(pipelineMultiChunkDir));
+
+		String[] multiChunkFileNames = sequentialMultiChunkDir.list();
+		String[] pipelineMultiChunkFileNames = pipelineMultiChunkDir.list();
+
+		Arrays.sort(multiChunkFileNames);
+		Arrays.sort(pipelineMultiChunkFileNames);
+
+		assertTrue("More multichunks than sealing permits expected", multiChunkFileNames.length > 4);
+		assertArrayEquals(multiChunkFileNames, pipelineMultiChunkFileNames);
+
+		// Zip entries have timestamps, so compare the contained chunks
+		for (String multiChunkFileName : multiChunkFileNames) {
+			assertEquals("Multichunk " + multiChunkFileName + " differs", readMultiChunk(new File(sequentialMultiChunkDir, multiChunkFileName)),
+					readMultiChunk(new File(pipelineMultiChunkDir, multiChunkFileName)));
+		}
+	}
+
+	@Test
+	public void testFileModifiedAfterChunkingAheadOfTime() throws Exception {
+		final File modifiedFile = inputFiles.get(2);
+
+		List<String> events = deduplicate(4, new RecordingDeduperListener(new File(tempDir, "multichunks")) {
+			@Override
+			public boolean onFileFilter(File file) {
+				if (file.equals(inputFiles.get(1))) {
+					try {
+						Thread.sleep(500); // Let the chunker threads read ahead
+
+						FileOutputStream modifiedFileOutputStream = new FileOutputStream(modifiedFile, true);
+						modifiedFileOutputStream.write(TestFileUtil.createRandomArray(1234));
+						modifiedFileOutputStream.close();
+					}
+					catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+
+				return super.onFileFilter(file);
+			}
+		});
+
+		String expectedFileEndEvent = "end " + modifiedFile.getName() + " " + StringUtil.toHex(FileUtil.createChecksum(modifiedFile, "SHA1"));
+		assertTrue("Expected event " + expectedFileEndEvent, events.contains(expectedFileEndEvent));
+	}
+
+	private List<String> deduplicate(int chunkerThreads, RecordingDeduperListener listener) throws IOException {
+		return deduplicate(chunkerThreads, new NoTransformer(), listener);
+	}
+
+	private List<String> deduplicate(int chunkerThreads, Transformer transformer, RecordingDeduperListener listener) throws IOException {
+		Deduper deduper = new Deduper(new FastCdcChunker(8 * 1024), new ZipMultiChunker(256), transformer, chunkerThreads);
+		deduper.deduplicate(inputFiles, listener);
+
+		return listener.events;
+	}
+
+	private List<String> readMultiChunk(File multiChunkFile) throws Exception {
+		List<String> chunkChecksums = new ArrayList<String>();
+		MultiChunk multiChunk = new ZipMultiChunker().createMultiChunk(new GzipTransformer().createInputStream(new FileInputStream(multiChunkFile)));
+		Chunk chunk = null;
+
+		while (null != (chunk = multiChunk.read())) {
+			MessageDigest chunkDigest = MessageDigest.getInstance("SHA1");
+			chunkDigest.update(chunk.getContent(), 0, chunk.getSize());
+
+			assertArrayEquals("Chunk content does not match checksum", chunk.getChecksum(), chunkDigest.digest());
+			chunkChecksums.add(StringUtil.toHex(chunk.getChecksum()));
+		}
+
+		multiChunk.close();
+		return chunkChecksums;
+	}
+
+	/**
+	 * Records all callbacks (and checks that they are called by a single thread),
+	 * and implements a simple in-memory chunk index.
+	 */
+	private static class RecordingDeduperListener implements DeduperListener {
+		private File multiChunkDir;
+		private List<String> events = new ArrayList<String>();
+		private Set<String> chunkChecksums = new HashSet<String>();
+		private Thread callbackThread = Thread.currentThread();
+
+		public RecordingDeduperListener(File multiChunkDir) {
+			this.multiChunkDir = multiChunkDir;
+			this.multiChunkDir.mkdir();
+		}
+
+		@Override
+		public boolean onFileFilter(File file) {
+			record("filter " + file.getName());
+			return !file.getName().endsWith("-skipped");
+		}
+
+		@Override
+		public boolean onFileStart(File file, int fileNumber) {
+			record("start " + file.getName() + " " + fileNumber);
+			return file.isFile();
+		}
+
+		@Override
+		public void onFileAddChunk(File file, Chunk chunk) {
+			record("add " + file.getName() + " " + StringUtil.toHex(chunk.getChecksum()) + " " + chunk.getSize());
+		}
+
+		@Override
+		public void onFileEnd(File file, byte[] checksum) {
+			record("end " + file.getName() + " " + ((checksum != null) ? StringUtil.toHex(checksum) : null));
+		}
+
+		@Override
+		public boolean onChunk(Chunk chunk) {
+			return chunkChecksums.add(StringUtil.toHex(chunk.getChecksum()));
+		}
+
+		@Override
+		public void onMultiChunkOpen(MultiChunk multiChunk) {
+			record("open " + multiChunk.getId());
+		}
+
+		@Override
+		public MultiChunkId createNewMultiChunkId(Chunk firstChunk) {
+			return new MultiChunkId(firstChunk.getChecksum());
+		}
+
+		@Override
+		public File getMultiChunkFile(MultiChunkId multiChunkId) {
+			return new File(multiChunkDir, "multichunk-" + multiChunkId);
+		}
+
+		@Override
+		public void onMultiChunkWrite(MultiChunk multiChunk, Chunk chunk) {
+			record("write " + multiChunk.getId() + " " + StringUtil.toHex(chunk.getChecksum()));
+		}
+
+		@Override
+		public void onMultiChunkClose(MultiChunk multiChunk) {
+			record("close " + multiChunk.getId());
+		}
+
+		@Override
+		public void onStart(int size) {
+			record("onStart " + size);
+		}
+
+		@Override
+		public void onFinish() {
+			record("onFinish");
+		}
+
+		private void record(String event) {
+			assertEquals("Callback from unexpected thread", callbackThread, Thread.currentThread());
+			events.add(event);
+		}
+	}
+}
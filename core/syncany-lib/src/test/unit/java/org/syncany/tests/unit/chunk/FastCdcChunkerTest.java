@@ -0,0 +1,250 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com> 
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.unit.chunk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.syncany.chunk.Chunk;
+import org.syncany.chunk.Chunker;
+import org.syncany.chunk.FastCdcChunker;
+import org.syncany.tests.unit.util.TestFileUtil;
+import org.syncany.util.FileUtil;
+import org.syncany.util.StringUtil;
+
+public class FastCdcChunkerTest {
+	private File tempDir;
+
+	@Before
+	public void setUp() throws Exception {
+		tempDir = TestFileUtil.createTempDirectoryInSystemTemp();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		TestFileUtil.deleteDirectory(tempDir);
+	}
+
+	@Test
+	public void testStringSerialization() {
+		Chunker chunker = new FastCdcChunker(512 * 1024);
+		assertEquals("Other toString() result expected.", "FastCDC-" + (512 * 1024) + "-" + FastCdcChunker.DEFAULT_DIGEST_ALG, chunker.toString());
+	}
+
+	@Test
+	public void testGetInstanceAndInit() {
+		Map<String, String> settings = new HashMap<String, String>();
+		settings.put(Chunker.PROPERTY_SIZE, "65536");
+
+		Chunker chunker = Chunker.getInstance(FastCdcChunker.TYPE);
+		chunker.init(settings);
+
+		assertTrue(chunker instanceof FastCdcChunker);
+		assertEquals("FastCDC-65536-SHA1", chunker.toString());
+		assertEquals("SHA1", chunker.getChecksumAlgorithm());
+
+		assertNull(Chunker.getInstance("does-not-exist"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInitWithoutSizeFails() {
+		Chunker.getInstance(FastCdcChunker.TYPE).init(new HashMap<String, String>());
+	}
+
+	@Test
+	public void testCreateChunksFrom5MBFileAndTestChunkSize() throws Exception {
+		// Test Constants
+		final int TOTAL_FILE_SIZE = 5 * 1024 * 1024;
+		final int AVG_CHUNK_SIZE = 64 * 1024;
+
+		// Setup
+		File inputFile = TestFileUtil.createRandomFileInDirectory(tempDir, TOTAL_FILE_SIZE);
+		File outputFile = TestFileUtil.getRandomFilenameInDirectory(tempDir);
+		FileOutputStream outputFileOutputStream = new FileOutputStream(outputFile);
+
+		Chunker chunker = new FastCdcChunker(AVG_CHUNK_SIZE);
+
+		// Create chunks
+		Enumeration<Chunk> chunkEnumeration = chunker.createChunks(inputFile);
+		Chunk lastChunk = null;
+		int chunkCount = 0;
+
+		while (chunkEnumeration.hasMoreElements()) {
+			if (lastChunk != null) {
+				assertNull("Only the last chunk should have a file checksum.", lastChunk.getFileChecksum());
+				assertTrue("Chunk smaller than min. chunk size: " + lastChunk.getSize(), lastChunk.getSize() >= AVG_CHUNK_SIZE / 4);
+			}
+
+			lastChunk = chunkEnumeration.nextElement();
+			chunkCount++;
+
+			assertNotNull("Chunk checksum should not be null.", lastChunk.getChecksum());
+			assertEquals(lastChunk.getSize(), lastChunk.getContent().length);
+			assertTrue("Chunk larger than max. chunk size: " + lastChunk.getSize(), lastChunk.getSize() <= AVG_CHUNK_SIZE * 8);
+
+			outputFileOutputStream.write(lastChunk.getContent(), 0, lastChunk.getSize());
+		}
+
+		outputFileOutputStream.close();
+
+		// Number of chunks: Normalized chunking keeps the chunk sizes close to the average
+		int expectedChunkCount = TOTAL_FILE_SIZE / AVG_CHUNK_SIZE;
+		assertTrue("Unexpected number of chunks: " + chunkCount, chunkCount > expectedChunkCount / 2 && chunkCount < expectedChunkCount * 2);
+
+		// Checksums
+		byte[] inputFileChecksum = FileUtil.createChecksum(inputFile, FastCdcChunker.DEFAULT_DIGEST_ALG);
+		byte[] outputFileChecksum = FileUtil.createChecksum(outputFile, FastCdcChunker.DEFAULT_DIGEST_ALG);
+
+		assertArrayEquals("Checksums of input and output file do not match.", inputFileChecksum, outputFileChecksum);
+		assertArrayEquals("Last chunk's getFileChecksum() should be the file checksum.", inputFileChecksum, lastChunk.getFileChecksum());
+	}
+
+	@Test
+	public void testChunkBoundariesUnchanged() throws Exception {
+		// Random data with a zero-filled gap (no natural breakpoints, i.e. cut at max. chunk size)
+		byte[] fileContents = new byte[3 * 1024 * 1024];
+		new Random(4711).nextBytes(fileContents);
+		Arrays.fill(fileContents, 1024 * 1024, 1024 * 1024 + 200 * 1024, (byte) 0);
+
+		File inputFile = new File(tempDir, "input");
+		TestFileUtil.writeByteArrayToFile(fileContents, inputFile);
+
+		// Boundaries are part of the chunk format, see FastCdcChunker
+		assertEquals("655-10a363a0e96c102a2ceab9a906b5021046d1ad0f", getChunkBoundaries(new FastCdcChunker(4 * 1024), inputFile));
+		assertEquals("160-708ff49cf14c30c27c64f7309626dcf5102b078c", getChunkBoundaries(new FastCdcChunker(16 * 1024), inputFile));
+		assertEquals("7-f5a3758ea746b66f998aefed779cdad6b132b7dc", getChunkBoundaries(new FastCdcChunker(512 * 1024), inputFile));
+
+		// Streams that return fewer bytes than requested (e.g. cipher streams) must not change the boundaries
+		FastCdcChunker chunker = new FastCdcChunker(4 * 1024);
+		InputStream shortReadsInputStream = new FilterInputStream(new FileInputStream(inputFile)) {
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				return super.read(buffer, offset, Math.min(length, 1000));
+			}
+		};
+
+		assertEquals("655-10a363a0e96c102a2ceab9a906b5021046d1ad0f", getChunkBoundaries(chunker.new FastCdcEnumeration(shortReadsInputStream)));
+	}
+
+	@Test
+	public void testChunkBoundariesResynchronizeAfterInsert() throws Exception {
+		byte[] originalContents = new byte[4 * 1024 * 1024];
+		new Random(4712).nextBytes(originalContents);
+
+		// Insert 100 bytes at 1 MB
+		byte[] modifiedContents = new byte[originalContents.length + 100];
+		System.arraycopy(originalContents, 0, modifiedContents, 0, 1024 * 1024);
+		System.arraycopy(originalContents, 1024 * 1024, modifiedContents, 1024 * 1024 + 100, originalContents.length - 1024 * 1024);
+
+		File originalFile = new File(tempDir, "original");
+		File modifiedFile = new File(tempDir, "modified");
+
+		TestFileUtil.writeByteArrayToFile(originalContents, originalFile);
+		TestFileUtil.writeByteArrayToFile(modifiedContents, modifiedFile);
+
+		Chunker chunker = new FastCdcChunker(16 * 1024);
+		Set<String> originalChunkChecksums = getChunkChecksums(chunker, originalFile);
+		Set<String> modifiedChunkChecksums = getChunkChecksums(chunker, modifiedFile);
+
+		modifiedChunkChecksums.removeAll(originalChunkChecksums);
+		assertTrue("Only the chunks around the insertion should change, but " + modifiedChunkChecksums.size() + " did.",
+				modifiedChunkChecksums.size() <= 2);
+	}
+
+	@Test
+	public void testEmptyFileHasNoChunks() throws IOException {
+		File emptyFile = new File(tempDir, "empty");
+		TestFileUtil.writeByteArrayToFile(new byte[0], emptyFile);
+
+		Enumeration<Chunk> chunkEnumeration = new FastCdcChunker(4 * 1024).createChunks(emptyFile);
+
+		assertFalse("hasElements() should return 'false' for an empty file.", chunkEnumeration.hasMoreElements());
+		assertNull("No chunk expected, but data received.", chunkEnumeration.nextElement());
+	}
+
+	@Test
+	public void testNextChunkEvenIfThereAreNone() throws IOException {
+		File inputFile = TestFileUtil.createRandomFileInDirectory(tempDir, 5 * 1024);
+		Enumeration<Chunk> chunkEnumeration = new FastCdcChunker(512 * 1024).createChunks(inputFile);
+
+		while (chunkEnumeration.hasMoreElements()) {
+			chunkEnumeration.nextElement();
+		}
+
+		assertNull("No chunk expected, but data received.", chunkEnumeration.nextElement());
+		assertFalse("hasElements() should return 'false' if no chunk available.", chunkEnumeration.hasMoreElements());
+	}
+
+	private Set<String> getChunkChecksums(Chunker chunker, File file) throws IOException {
+		Set<String> chunkChecksums = new HashSet<String>();
+		Enumeration<Chunk> chunkEnumeration = chunker.createChunks(file);
+
+		while (chunkEnumeration.hasMoreElements()) {
+			chunkChecksums.add(StringUtil.toHex(chunkEnumeration.nextElement().getChecksum()));
+		}
+
+		return chunkChecksums;
+	}
+
+	/**
+	 * Returns the number of chunks and a checksum over all chunk sizes and checksums,
+	 * as well as the file checksum of the last chunk.
+	 */
+	private String getChunkBoundaries(Chunker chunker, File file) throws Exception {
+		return getChunkBoundaries(chunker.createChunks(file));
+	}
+
+	private String getChunkBoundaries(Enumeration<Chunk> chunkEnumeration) throws Exception {
+		MessageDigest boundariesDigest = MessageDigest.getInstance("SHA1");
+		Chunk lastChunk = null;
+		int chunkCount = 0;
+
+		while (chunkEnumeration.hasMoreElements()) {
+			lastChunk = chunkEnumeration.nextElement();
+			chunkCount++;
+
+			boundariesDigest.update(Integer.toString(lastChunk.getSize()).getBytes());
+			boundariesDigest.update(lastChunk.getChecksum());
+		}
+
+		boundariesDigest.update(lastChunk.getFileChecksum());
+		return chunkCount + "-" + StringUtil.toHex(boundariesDigest.digest());
+	}
+}
@@ -25,9 +25,15 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.Random;
 
 import org.junit.After;
 import org.junit.Before;
@@ -38,6 +44,7 @@ import org.syncany.chunk.Chunker;
 import org.syncany.chunk.TttdChunker;
 import org.syncany.tests.unit.util.TestFileUtil;
 import org.syncany.util.FileUtil;
+import org.syncany.util.StringUtil;
 
 public class TTTDChunkerTest {
 	private File tempDir;
@@ -100,6 +107,38 @@ public class TTTDChunkerTest {
 		assertArrayEquals("Last chunk's getFileChecksum() should be the file checksum.", inputFileChecksum, lastChunk.getFileChecksum());
 	}
 	
+	@Test
+	public void testChunkBoundariesUnchanged() throws Exception {
+		// Random data with a zero-filled gap (no natural breakpoints, i.e. cut at Tmax)
+		byte[] fileContents = new byte[3 * 1024 * 1024];
+		new Random(4711).nextBytes(fileContents);
+		Arrays.fill(fileContents, 1024 * 1024, 1024 * 1024 + 200 * 1024, (byte) 0);
+
+		File inputFile = new File(tempDir, "input");
+		TestFileUtil.writeByteArrayToFile(fileContents, inputFile);
+
+		File emptyFile = new File(tempDir, "empty");
+		TestFileUtil.writeByteArrayToFile(new byte[0], emptyFile);
+
+		// Expected values were recorded with the original (byte-by-byte) implementation
+		assertEquals("517-ab28a3978438308ce86aad1772eec2a47f35df6f", getChunkBoundaries(new TttdChunker(4 * 1024), inputFile));
+		assertEquals("131-c98c031f98da387295eeef67b7ac594ee0b5aac3", getChunkBoundaries(new TttdChunker(16 * 1024), inputFile));
+		assertEquals("7-e6d1166eef44dfd89a440aecad14ffffc358ca70", getChunkBoundaries(new TttdChunker(512 * 1024), inputFile));
+		assertEquals("2026-9ca64536ee44596f9dd55a0470791f7629aa10ae", getChunkBoundaries(new TttdChunker(1024, 2048, 300, 150, 48), inputFile));
+		assertEquals("1-63cdadb4d90dd71e0bb2ce5c13617a4aa349f435", getChunkBoundaries(new TttdChunker(4 * 1024), emptyFile));
+
+		// Streams that return fewer bytes than requested (e.g. cipher streams) must not change the boundaries
+		TttdChunker chunker = new TttdChunker(4 * 1024);
+		InputStream shortReadsInputStream = new FilterInputStream(new FileInputStream(inputFile)) {
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				return super.read(buffer, offset, Math.min(length, 1000));
+			}
+		};
+
+		assertEquals("517-ab28a3978438308ce86aad1772eec2a47f35df6f", getChunkBoundaries(chunker.new TTTDEnumeration(shortReadsInputStream)));
+	}
+
 	@Test
 	@Ignore
 	public void testNumberAndSizeOfCreatedChunks() {
@@ -127,4 +166,29 @@ public class TTTDChunkerTest {
 		assertNull("No chunk expected, but data received.", chunkEnumeration.nextElement());
 		assertFalse("hasElements() should return 'false' if no chunk available.", chunkEnumeration.hasMoreElements());
 	}
+
+	/**
+	 * Returns the number of chunks and a checksum over all chunk sizes and checksums,
+	 * as well as the file checksum of the last chunk.
+	 */
+	private String getChunkBoundaries(Chunker chunker, File file) throws Exception {
+		return getChunkBoundaries(chunker.createChunks(file));
+	}
+
+	private String getChunkBoundaries(Enumeration<Chunk> chunkEnumeration) throws Exception {
+		MessageDigest boundariesDigest = MessageDigest.getInstance("SHA1");
+		Chunk lastChunk = null;
+		int chunkCount = 0;
+
+		while (chunkEnumeration.hasMoreElements()) {
+			lastChunk = chunkEnumeration.nextElement();
+			chunkCount++;
+
+			boundariesDigest.update(Integer.toString(lastChunk.getSize()).getBytes());
+			boundariesDigest.update(lastChunk.getChecksum());
+		}
+
+		boundariesDigest.update(lastChunk.getFileChecksum());
+		return chunkCount + "-" + StringUtil.toHex(boundariesDigest.digest());
+	}
 }
@@ -34,6 +34,7 @@ import org.syncany.config.Config;
 import org.syncany.config.ConfigException;
 import org.syncany.config.to.ConfigTO;
 import org.syncany.config.to.RepoTO;
+import org.syncany.config.to.RepoTO.ChunkerTO;
 import org.syncany.config.to.RepoTO.TransformerTO;
 import org.syncany.crypto.SaltedSecretKey;
 import org.syncany.tests.util.TestAssertUtil;
@@ -192,6 +193,63 @@ public class ConfigTest {
 		}
 	}
 
+	@Test
+	public void testConfigChunkerFastCdc() throws Exception {
+		// Setup
+		File localDir = new File("/some/folder");
+		ConfigTO configTO = new ConfigTO();
+		RepoTO repoTO = new RepoTO();
+
+		ChunkerTO fastCdcChunkerTO = new ChunkerTO();
+		fastCdcChunkerTO.setType("fast-cdc");
+		fastCdcChunkerTO.setSettings(new HashMap<String, String>());
+		fastCdcChunkerTO.getSettings().put("size", "65536");
+
+		configTO.setMachineName("somevalidmachinename"); // <<< valid
+
+		repoTO.setChunkerTO(fastCdcChunkerTO); // <<< valid
+		repoTO.setMultiChunker(TestConfigUtil.createZipMultiChunkerTO()); // <<< valid
+		repoTO.setRepoId(new byte[] { 0x01, 0x02 }); // <<< valid
+		repoTO.setTransformers(null); // <<< valid
+
+		// Run!
+		Config config = new Config(localDir, configTO, repoTO);
+
+		// Test
+		assertNotNull(config.getChunker());
+		assertEquals("FastCdcChunker", config.getChunker().getClass().getSimpleName());
+		assertEquals("FastCDC-65536-SHA1", config.getChunker().toString());
+	}
+
+	@Test
+	public void testConfigChunkerInvalidType() throws Exception {
+		// Setup
+		File localDir = new File("/some/folder");
+		ConfigTO configTO = new ConfigTO();
+		RepoTO repoTO = new RepoTO();
+
+		ChunkerTO invalidChunkerTO = new ChunkerTO();
+		invalidChunkerTO.setType("invalid-typeXXX");
+		invalidChunkerTO.setSettings(new HashMap<String, String>());
+
+		configTO.setMachineName("somevalidmachinename"); // <<< valid
+
+		repoTO.setMultiChunker(TestConfigUtil.createZipMultiChunkerTO()); // <<< valid
+		repoTO.setRepoId(new byte[] { 0x01, 0x02 }); // <<< valid
+		repoTO.setTransformers(null); // <<< valid
+
+		repoTO.setChunkerTO(invalidChunkerTO); // <<< INVALID !!
+
+		// Run!
+		try {
+			new Config(localDir, configTO, repoTO);
+			fail("Config should not been have initialized.");
+		}
+		catch (ConfigException e) {
+			TestAssertUtil.assertErrorStackTraceContains("invalid-typeXXX", e);
+		}
+	}
+
 	@Test
 	public void testConfigCipherTransformersInvalidType() throws Exception {
 		// Setup
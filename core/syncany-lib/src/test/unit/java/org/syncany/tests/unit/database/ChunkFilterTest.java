@@ -0,0 +1,152 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.unit.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.syncany.database.dao.ChunkFilter;
+import org.syncany.tests.unit.util.TestFileUtil;
+
+public class ChunkFilterTest {
+	private File tempDir;
+	private File filterFile;
+
+	@Before
+	public void setUp() throws Exception {
+		tempDir = TestFileUtil.createTempDirectoryInSystemTemp();
+		filterFile = new File(tempDir, "chunks.bloom");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		TestFileUtil.deleteDirectory(tempDir);
+	}
+
+	@Test
+	public void testAddAndMightContain() throws Exception {
+		ChunkFilter chunkFilter = ChunkFilter.create(filterFile, 1000);
+
+		for (int i = 0; i < 1000; i++) {
+			chunkFilter.add(createChecksum(i));
+		}
+
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(chunkFilter.mightContain(createChecksum(i)));
+		}
+
+		int falsePositives = 0;
+
+		for (int i = 1000; i < 101000; i++) {
+			if (chunkFilter.mightContain(createChecksum(i))) {
+				falsePositives++;
+			}
+		}
+
+		assertTrue("Too many false positives: " + falsePositives, falsePositives < 3000);
+	}
+
+	@Test
+	public void testFalsePositivesWhenFull() throws Exception {
+		ChunkFilter chunkFilter = ChunkFilter.create(filterFile, 0);
+		int chunkCount = 1024 * 1024; // Minimum capacity
+
+		for (int i = 0; i < chunkCount; i++) {
+			chunkFilter.add(createChecksum(i));
+		}
+
+		int falsePositives = 0;
+
+		for (int i = chunkCount; i < chunkCount + 100000; i++) {
+			if (chunkFilter.mightContain(createChecksum(i))) {
+				falsePositives++;
+			}
+		}
+
+		assertTrue("Too many false positives: " + falsePositives, falsePositives < 3000);
+	}
+
+	@Test
+	public void testOpenPersistedFilter() throws Exception {
+		ChunkFilter chunkFilter = ChunkFilter.create(filterFile, 100);
+
+		for (int i = 0; i < 100; i++) {
+			chunkFilter.add(createChecksum(i));
+		}
+
+		chunkFilter.setChunkCount(100);
+
+		ChunkFilter reopenedChunkFilter = ChunkFilter.open(filterFile, 100);
+		assertNotNull(reopenedChunkFilter);
+		assertEquals(100, reopenedChunkFilter.getChunkCount());
+
+		for (int i = 0; i < 100; i++) {
+			assertTrue(reopenedChunkFilter.mightContain(createChecksum(i)));
+		}
+	}
+
+	@Test
+	public void testOpenOutdatedOrInvalidFilter() throws Exception {
+		assertNull(ChunkFilter.open(filterFile, 0)); // Does not exist
+
+		ChunkFilter chunkFilter = ChunkFilter.create(filterFile, 100);
+		assertNull(ChunkFilter.open(filterFile, 0)); // Chunk count not set yet
+
+		chunkFilter.add(createChecksum(1));
+		chunkFilter.setChunkCount(1);
+
+		assertNotNull(ChunkFilter.open(filterFile, 1));
+		assertNull(ChunkFilter.open(filterFile, 2)); // Database has more chunks
+
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(filterFile, "rw")) {
+			randomAccessFile.writeInt(0xdeadbeef);
+		}
+
+		assertNull(ChunkFilter.open(filterFile, 1)); // Invalid magic
+	}
+
+	@Test
+	public void testRecreateFilter() throws Exception {
+		ChunkFilter chunkFilter = ChunkFilter.create(filterFile, 100);
+
+		chunkFilter.add(createChecksum(1));
+		chunkFilter.setChunkCount(1);
+
+		ChunkFilter recreatedChunkFilter = ChunkFilter.create(filterFile, 100);
+		recreatedChunkFilter.setChunkCount(0);
+
+		assertFalse(recreatedChunkFilter.mightContain(createChecksum(1)));
+		assertTrue(chunkFilter.mightContain(createChecksum(1))); // Old mapping is not modified
+		assertNotNull(ChunkFilter.open(filterFile, 0));
+	}
+
+	private static byte[] createChecksum(int i) throws Exception {
+		return MessageDigest.getInstance("SHA1").digest(ByteBuffer.allocate(4).putInt(i).array());
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.unit.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.syncany.database.dao.ChunkIndex;
+
+public class ChunkIndexTest {
+	@Test
+	public void testPutAndGet() throws Exception {
+		ChunkIndex chunkIndex = new ChunkIndex();
+
+		chunkIndex.put(createChecksum(1), 1234);
+		chunkIndex.put(createChecksum(2), 0);
+
+		assertEquals(1234, chunkIndex.get(createChecksum(1)));
+		assertEquals(0, chunkIndex.get(createChecksum(2)));
+		assertEquals(-1, chunkIndex.get(createChecksum(3)));
+		assertEquals(2, chunkIndex.size());
+
+		// Update existing chunk
+		chunkIndex.put(createChecksum(1), 4321);
+
+		assertEquals(4321, chunkIndex.get(createChecksum(1)));
+		assertEquals(2, chunkIndex.size());
+	}
+
+	@Test
+	public void testGrowBeyondInitialCapacity() throws Exception {
+		ChunkIndex chunkIndex = new ChunkIndex();
+		long initialAllocatedBytes = chunkIndex.getAllocatedBytes();
+
+		for (int i = 0; i < 100000; i++) {
+			chunkIndex.put(createChecksum(i), i);
+		}
+
+		assertEquals(100000, chunkIndex.size());
+		assertTrue(chunkIndex.getAllocatedBytes() > initialAllocatedBytes);
+
+		for (int i = 0; i < 100000; i++) {
+			assertEquals(i, chunkIndex.get(createChecksum(i)));
+		}
+
+		for (int i = 100000; i < 110000; i++) {
+			assertEquals(-1, chunkIndex.get(createChecksum(i)));
+		}
+	}
+
+	@Test
+	public void testPresizedIndexDoesNotGrow() throws Exception {
+		ChunkIndex chunkIndex = new ChunkIndex(ChunkIndex.DEFAULT_CHECKSUM_LENGTH, 50000);
+		long allocatedBytes = chunkIndex.getAllocatedBytes();
+
+		for (int i = 0; i < 50000; i++) {
+			chunkIndex.put(createChecksum(i), i);
+		}
+
+		assertEquals(allocatedBytes, chunkIndex.getAllocatedBytes());
+		assertTrue(allocatedBytes <= 50000 * 24 * 3); // Load factor >= 1/3
+	}
+
+	@Test
+	public void testChecksumsWithOtherLength() throws Exception {
+		ChunkIndex chunkIndex = new ChunkIndex();
+
+		byte[] md5Checksum = MessageDigest.getInstance("MD5").digest(new byte[] { 1 });
+		byte[] sha1Checksum = createChecksum(1);
+
+		chunkIndex.put(md5Checksum, 99);
+		chunkIndex.put(sha1Checksum, 100);
+
+		assertEquals(99, chunkIndex.get(md5Checksum));
+		assertEquals(100, chunkIndex.get(sha1Checksum));
+		assertEquals(-1, chunkIndex.get(MessageDigest.getInstance("MD5").digest(new byte[] { 2 })));
+		assertEquals(2, chunkIndex.size());
+	}
+
+	@Test
+	public void testConcurrentReadsDuringUpdates() throws Exception {
+		final ChunkIndex chunkIndex = new ChunkIndex();
+		final AtomicBoolean writerDone = new AtomicBoolean(false);
+		final AtomicReference<String> readerError = new AtomicReference<String>();
+
+		for (int i = 0; i < 1000; i++) {
+			chunkIndex.put(createChecksum(i), i);
+		}
+
+		// Readers look up existing chunks while the writer adds (and resizes)
+		Thread[] readerThreads = new Thread[4];
+
+		for (int t = 0; t < readerThreads.length; t++) {
+			readerThreads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (!writerDone.get()) {
+							for (int i = 0; i < 1000; i++) {
+								int size = chunkIndex.get(createChecksum(i));
+
+								if (size != i) {
+									readerError.set("Chunk " + i + " has size " + size);
+									return;
+								}
+							}
+						}
+					}
+					catch (Exception e) {
+						readerError.set(e.toString());
+					}
+				}
+			});
+
+			readerThreads[t].start();
+		}
+
+		for (int i = 1000; i < 200000; i++) {
+			chunkIndex.put(createChecksum(i), i);
+		}
+
+		writerDone.set(true);
+
+		for (Thread readerThread : readerThreads) {
+			readerThread.join();
+		}
+
+		assertEquals(null, readerError.get());
+		assertEquals(200000, chunkIndex.size());
+	}
+
+	private static byte[] createChecksum(int i) throws Exception {
+		return MessageDigest.getInstance("SHA1").digest(ByteBuffer.allocate(4).putInt(i).array());
+	}
+}
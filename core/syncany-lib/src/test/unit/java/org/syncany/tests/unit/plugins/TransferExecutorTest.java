@@ -0,0 +1,200 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2015 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.unit.plugins;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.syncany.plugins.transfer.StorageException;
+import org.syncany.plugins.transfer.TransferExecutor;
+import org.syncany.plugins.transfer.TransferExecutor.TransferTask;
+
+public class TransferExecutorTest {
+	@Test
+	public void testSequentialExecutorRunsInCallingThread() throws Exception {
+		final Thread callingThread = Thread.currentThread();
+		final AtomicInteger executedTasks = new AtomicInteger(0);
+
+		TransferExecutor transferExecutor = new TransferExecutor(1, "Test");
+
+		for (int i = 0; i < 5; i++) {
+			transferExecutor.submit(new TransferTask() {
+				@Override
+				public void execute() {
+					assertEquals(callingThread, Thread.currentThread());
+					executedTasks.incrementAndGet();
+				}
+			});
+
+			assertEquals(i + 1, executedTasks.get());
+		}
+
+		transferExecutor.awaitAll();
+	}
+
+	@Test(expected = StorageException.class)
+	public void testSequentialExecutorThrowsOnSubmit() throws Exception {
+		TransferExecutor transferExecutor = new TransferExecutor(1, "Test");
+
+		transferExecutor.submit(new TransferTask() {
+			@Override
+			public void execute() throws StorageException {
+				throw new StorageException("Failed.");
+			}
+		});
+	}
+
+	@Test
+	public void testBackgroundExecutorRunsInOtherThread() throws Exception {
+		final Thread callingThread = Thread.currentThread();
+		final CountDownLatch taskMayFinish = new CountDownLatch(1);
+		final AtomicInteger executedTasks = new AtomicInteger(0);
+
+		TransferExecutor transferExecutor = new TransferExecutor(1, "Test", true);
+
+		transferExecutor.submit(new TransferTask() {
+			@Override
+			public void execute() throws StorageException {
+				assertTrue(callingThread != Thread.currentThread());
+
+				try {
+					taskMayFinish.await();
+				}
+				catch (InterruptedException e) {
+					throw new StorageException(e);
+				}
+
+				executedTasks.incrementAndGet();
+			}
+		});
+
+		// Submit returns while the task is still running
+		assertEquals(0, executedTasks.get());
+		taskMayFinish.countDown();
+
+		transferExecutor.awaitAll();
+		assertEquals(1, executedTasks.get());
+	}
+
+	@Test
+	public void testBackgroundExecutorCancelAll() throws Exception {
+		final CountDownLatch taskStarted = new CountDownLatch(1);
+		final CountDownLatch taskInterrupted = new CountDownLatch(1);
+		final AtomicInteger executedTasks = new AtomicInteger(0);
+
+		TransferExecutor transferExecutor = new TransferExecutor(1, "Test", true);
+
+		transferExecutor.submit(new TransferTask() {
+			@Override
+			public void execute() {
+				taskStarted.countDown();
+
+				try {
+					Thread.sleep(60 * 1000);
+				}
+				catch (InterruptedException e) {
+					taskInterrupted.countDown();
+				}
+			}
+		});
+
+		for (int i = 0; i < 10; i++) {
+			transferExecutor.submit(new TransferTask() {
+				@Override
+				public void execute() {
+					executedTasks.incrementAndGet();
+				}
+			});
+		}
+
+		assertTrue(taskStarted.await(10, TimeUnit.SECONDS));
+		transferExecutor.cancelAll();
+
+		assertTrue(taskInterrupted.await(10, TimeUnit.SECONDS));
+		assertEquals(0, executedTasks.get());
+	}
+
+	@Test
+	public void testConcurrentExecutorRunsTasksInParallel() throws Exception {
+		final CountDownLatch allTasksStarted = new CountDownLatch(3);
+		final AtomicInteger executedTasks = new AtomicInteger(0);
+
+		TransferExecutor transferExecutor = new TransferExecutor(3, "Test");
+
+		for (int i = 0; i < 3; i++) {
+			transferExecutor.submit(new TransferTask() {
+				@Override
+				public void execute() throws StorageException {
+					allTasksStarted.countDown();
+
+					try {
+						// Only succeeds if all three tasks run at the same time
+						if (!allTasksStarted.await(10, TimeUnit.SECONDS)) {
+							throw new StorageException("Tasks not executed in parallel.");
+						}
+					}
+					catch (InterruptedException e) {
+						throw new StorageException(e);
+					}
+
+					executedTasks.incrementAndGet();
+				}
+			});
+		}
+
+		transferExecutor.awaitAll();
+		assertEquals(3, executedTasks.get());
+	}
+
+	@Test
+	public void testConcurrentExecutorWaitsForAllTasksBeforeThrowing() throws Exception {
+		final AtomicInteger executedTasks = new AtomicInteger(0);
+
+		TransferExecutor transferExecutor = new TransferExecutor(2, "Test");
+
+		transferExecutor.submit(new TransferTask() {
+			@Override
+			public void execute() throws StorageException {
+				throw new StorageException("Failed.");
+			}
+		});
+
+		for (int i = 0; i < 10; i++) {
+			transferExecutor.submit(new TransferTask() {
+				@Override
+				public void execute() {
+					executedTasks.incrementAndGet();
+				}
+			});
+		}
+
+		try {
+			transferExecutor.awaitAll();
+			fail("StorageException expected.");
+		}
+		catch (StorageException e) {
+			assertEquals("Failed.", e.getMessage());
+		}
+
+		assertEquals(10, executedTasks.get());
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2014 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.plugins.flickr;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares encode/decode throughput and output size of the {@link PngEncoder.Profile}s.
+ * The payload is random, i.e. it behaves like the encrypted multichunks that are
+ * uploaded by the {@link FlickrTransferManager}.
+ *
+ * <p>Throughput is reported by JMH, in operations per second and -- via the
+ * <tt>payloadBytes</tt> counter -- in payload bytes per second. The image size of each
+ * profile/payload combination is printed at the end of each trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PngEncoderBenchmark {
+	@Param({ "default", "stored", "stored-rgba" })
+	public String profileName;
+
+	@Param({ "0", "256" })
+	public int maxImageWidth;
+
+	@Param({ "0", "262144" })
+	public int syncInterval;
+
+	@Param({ "4096", "65536", "524288", "4194304" })
+	public int payloadLength;
+
+	private PngEncoder.Profile profile;
+	private byte[] payload;
+	private byte[] encodedPayload;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		profile = PngEncoder.Profile.forName(profileName).withMaxImageWidth(maxImageWidth).withSyncInterval(syncInterval);
+
+		payload = new byte[payloadLength];
+		new Random(payloadLength).nextBytes(payload);
+
+		encodedPayload = encodePayload();
+
+		if (!Arrays.equals(payload, decodePayload())) {
+			throw new IOException("Round trip failed for profile " + profile);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		double overhead = 100.0 * (encodedPayload.length - payloadLength) / payloadLength;
+		System.out.println(String.format("%n%s, payload %d bytes: image %d bytes (%+.2f%%)", profile, payloadLength, encodedPayload.length, overhead));
+	}
+
+	@Benchmark
+	public byte[] encode(PayloadCounter payloadCounter) throws IOException {
+		payloadCounter.payloadBytes += payloadLength;
+		return encodePayload();
+	}
+
+	@Benchmark
+	public byte[] decode(PayloadCounter payloadCounter) throws IOException {
+		payloadCounter.payloadBytes += payloadLength;
+		return decodePayload();
+	}
+
+	private byte[] encodePayload() throws IOException {
+		ByteArrayOutputStream pngOutputStream = new ByteArrayOutputStream(payloadLength + payloadLength / 8);
+		PngEncoder.encodeToPng(new ByteArrayInputStream(payload), payloadLength, pngOutputStream, profile);
+
+		return pngOutputStream.toByteArray();
+	}
+
+	private byte[] decodePayload() throws IOException {
+		ByteArrayOutputStream payloadOutputStream = new ByteArrayOutputStream(payloadLength);
+		PngEncoder.decodeFromPng(new ByteArrayInputStream(encodedPayload), payloadOutputStream);
+
+		return payloadOutputStream.toByteArray();
+	}
+
+	/**
+	 * Counts the encoded/decoded payload bytes; JMH reports the counter as a rate, i.e.
+	 * as bytes per second.
+	 */
+	@AuxCounters
+	@State(Scope.Thread)
+	public static class PayloadCounter {
+		public long payloadBytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			payloadBytes = 0;
+		}
+	}
+}
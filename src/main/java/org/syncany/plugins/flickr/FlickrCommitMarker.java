@@ -0,0 +1,179 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2014 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.plugins.flickr;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.syncany.plugins.transfer.StorageException;
+import org.syncany.plugins.transfer.files.RemoteFile;
+import org.syncany.plugins.transfer.files.TempRemoteFile;
+
+/**
+ * A commit marker publishes temporary files under their final names, without renaming the
+ * photos one by one. Moving a transaction's temp. files to their final location then only
+ * requires a single update of the marker photo's description, and other clients see all
+ * of the files under their final names at once, or none of them.
+ *
+ * <p>Each client writes only its own marker photos, so markers are never written concurrently.
+ * A commit is always written to a single marker: either the client's current marker, or a new
+ * marker photo that supersedes it. Superseded markers are compacted by the client that wrote
+ * them, i.e. the photos they publish are renamed to their final names and the marker photo is
+ * deleted. Marker photos are part of all albums, so that every album's {@link FlickrPhotoIndex}
+ * can resolve the names of the photos they publish.
+ *
+ * <p>The marker is a space-separated list of <tt>photoId:tempName</tt> entries. A photo is
+ * published under the target name of its temp. name only as long as its title still is that
+ * temp. name. Once the photo is renamed (e.g. moved to another temp. file to be deleted, or
+ * to its final name by the compaction), its entry has no effect anymore. Remote file names
+ * never contain spaces or colons.
+ *
+ * <p>The list is stored in the description of the marker photo. If it is too long for a
+ * description, it is stored in the image payload instead, and the description is only a
+ * placeholder (see {@link #isPayloadDescription(String)}).
+ */
+public class FlickrCommitMarker {
+	private static final String MARKER_TITLE_PREFIX = "commit-";
+	private static final int MARKER_TITLE_RANDOM_BYTES = 16;
+	private static final String ENTRY_SEPARATOR = " ";
+	private static final String FIELD_SEPARATOR = ":";
+	private static final String PAYLOAD_DESCRIPTION = "payload";
+
+	private Map<String, String> tempNames; // Photo ID -> temp. name
+
+	public FlickrCommitMarker() {
+		this.tempNames = new LinkedHashMap<String, String>();
+	}
+
+	/**
+	 * Returns whether the given photo title is the title of a commit marker (and not
+	 * the name of a remote file).
+	 */
+	public static boolean isMarkerTitle(String title) {
+		return title != null && title.startsWith(MARKER_TITLE_PREFIX);
+	}
+
+	/**
+	 * Creates a new random marker title.
+	 */
+	public static String createTitle() {
+		byte[] randomBytes = new byte[MARKER_TITLE_RANDOM_BYTES];
+		new SecureRandom().nextBytes(randomBytes);
+
+		return MARKER_TITLE_PREFIX + PngEncoder.toHex(randomBytes);
+	}
+
+	/**
+	 * Parses the given marker description. Invalid entries are ignored; a <tt>null</tt>
+	 * description results in an empty marker.
+	 */
+	public static FlickrCommitMarker fromDescription(String description) {
+		FlickrCommitMarker marker = new FlickrCommitMarker();
+
+		if (description != null) {
+			for (String entry : description.trim().split(ENTRY_SEPARATOR)) {
+				String[] entryFields = entry.split(FIELD_SEPARATOR);
+
+				if (entryFields.length == 2 && getTargetName(entryFields[1]) != null) {
+					marker.tempNames.put(entryFields[0], entryFields[1]);
+				}
+			}
+		}
+
+		return marker;
+	}
+
+	/**
+	 * Parses the given image payload of a marker photo, see {@link #toPayload()}.
+	 */
+	public static FlickrCommitMarker fromPayload(byte[] payload) {
+		return fromDescription(new String(payload, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Returns whether the given marker description is the placeholder of a marker that
+	 * is stored in the image payload. As a description, the placeholder is an empty marker.
+	 */
+	public static boolean isPayloadDescription(String description) {
+		return PAYLOAD_DESCRIPTION.equals(description);
+	}
+
+	public static String getPayloadDescription() {
+		return PAYLOAD_DESCRIPTION;
+	}
+
+	/**
+	 * Returns the name of the final file of the given temp. file name, or <tt>null</tt>
+	 * if the name is not a valid temp. file name.
+	 */
+	public static String getTargetName(String tempName) {
+		try {
+			RemoteFile remoteFile = RemoteFile.createRemoteFile(tempName);
+			return (remoteFile instanceof TempRemoteFile) ? ((TempRemoteFile) remoteFile).getTargetRemoteFile().getName() : null;
+		}
+		catch (StorageException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Publishes the photo with the given ID (and the given temp. name as title) under
+	 * the target name of the temp. file.
+	 */
+	public void add(String photoId, String tempName) {
+		tempNames.put(photoId, tempName);
+	}
+
+	public void addAll(Map<String, String> photoTempNames) {
+		tempNames.putAll(photoTempNames);
+	}
+
+	public String getTempName(String photoId) {
+		return tempNames.get(photoId);
+	}
+
+	public List<String> getPhotoIds() {
+		return new ArrayList<String>(tempNames.keySet());
+	}
+
+	public int size() {
+		return tempNames.size();
+	}
+
+	public String toDescription() {
+		StringBuilder description = new StringBuilder();
+
+		for (Map.Entry<String, String> tempName : tempNames.entrySet()) {
+			if (description.length() > 0) {
+				description.append(ENTRY_SEPARATOR);
+			}
+
+			description.append(tempName.getKey()).append(FIELD_SEPARATOR).append(tempName.getValue());
+		}
+
+		return description.toString();
+	}
+
+	public byte[] toPayload() {
+		return toDescription().getBytes(StandardCharsets.UTF_8);
+	}
+}
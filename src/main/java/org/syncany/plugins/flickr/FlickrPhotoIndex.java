@@ -0,0 +1,411 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2014 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.plugins.flickr;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.flickr4java.flickr.photos.Photo;
+
+/**
+ * Local index of all photos in the repository's album, mapping photo titles (= remote
+ * file names) to photos. The index is persisted to a file in the local state directory
+ * (typically <tt>.syncany/state</tt>), so that it survives restarts and only the changes
+ * since the last update have to be fetched from Flickr (see {@link FlickrTransferManager}).
+ * Unlike the cache directory, the state directory is never cleaned up automatically.
+ *
+ * <p>Besides the ID and the title, the index stores the fields needed to construct the
+ * URL of the original image (farm, server, original secret and format), so that a
+ * photo can be downloaded without any further API calls.
+ *
+ * <p>The index also stores the photo description, if it fits on a single line. For
+ * {@link PngContainer} photos, this is the container's table of contents, and the names
+ * of all files in the container are mapped to the container photo, see {@link #get(String)}.
+ * For {@link FlickrCommitMarker} photos, it is the list of published photos, which are
+ * listed and found under their final names instead of their temp. names. For all other
+ * photos, it is the checksum of the payload (if any), which is used to skip duplicate uploads.
+ *
+ * <p>The index file is a simple tab-separated text file. If it is missing, unreadable
+ * or belongs to another album, the index is empty and must be rebuilt.
+ */
+public class FlickrPhotoIndex {
+	private static final Logger logger = Logger.getLogger(FlickrPhotoIndex.class.getSimpleName());
+
+	private static final String INDEX_FILE_HEADER = "# Syncany Flickr photo index, version 2";
+	private static final String INDEX_FILE_PHOTOSET = "photoset";
+	private static final String INDEX_FILE_LAST_UPDATE = "lastupdate";
+	private static final String INDEX_FILE_SEPARATOR = "\t";
+	private static final String INDEX_FILE_NULL = "-";
+
+	private File indexFile;
+	private String photosetId;
+	private long lastUpdate;
+	private boolean complete;
+
+	private Map<String, Photo> photosById;
+	private Map<String, Photo> photosByTitle;
+	private Map<String, Photo> containersByFileName;
+	private Map<String, Photo> markersById;
+	private Map<String, Photo> publishedPhotosByName; // Resolved lazily, null if outdated
+	private Set<String> publishedPhotoIds;
+
+	/**
+	 * Creates a new (empty) photo index. If <tt>indexFile</tt> is <tt>null</tt>,
+	 * the index is only held in memory.
+	 */
+	public FlickrPhotoIndex(File indexFile, String photosetId) {
+		this.indexFile = indexFile;
+		this.photosetId = photosetId;
+		this.lastUpdate = 0;
+		this.complete = false;
+
+		this.photosById = new HashMap<String, Photo>();
+		this.photosByTitle = new HashMap<String, Photo>();
+		this.containersByFileName = new HashMap<String, Photo>();
+		this.markersById = new HashMap<String, Photo>();
+		this.publishedPhotosByName = null;
+		this.publishedPhotoIds = null;
+	}
+
+	/**
+	 * Returns whether the index reflects the entire album as of {@link #getLastUpdate()},
+	 * i.e. whether it has been fully built (or loaded) at least once.
+	 */
+	public synchronized boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Returns the most recent Flickr <tt>lastupdate</tt> timestamp (in seconds) of
+	 * all photos seen while building or updating the index, or 0 if the index is empty.
+	 */
+	public synchronized long getLastUpdate() {
+		return lastUpdate;
+	}
+
+	/**
+	 * Returns the photo with the given title, or, if the file with the given name is
+	 * published by a commit marker, the temp. photo, or, if it is stored in a container,
+	 * the container photo. Published temp. photos are not found under their temp. name.
+	 */
+	public synchronized Photo get(String title) {
+		Photo photo = photosByTitle.get(title);
+
+		if (photo != null && !getPublishedPhotoIds().contains(photo.getId())) {
+			return photo;
+		}
+
+		photo = getPublishedPhotos().get(title);
+		return (photo != null) ? photo : containersByFileName.get(title);
+	}
+
+	public synchronized boolean contains(String photoId) {
+		return photosById.containsKey(photoId);
+	}
+
+	/**
+	 * Returns the titles of all photos (except containers and commit markers), with the
+	 * final names of published temp. photos, and the names of all files stored in containers.
+	 */
+	public synchronized List<String> getFileNames() {
+		List<String> fileNames = new ArrayList<String>(containersByFileName.keySet());
+		fileNames.addAll(getPublishedPhotos().keySet());
+
+		for (Photo photo : photosById.values()) {
+			boolean isFilePhoto = !PngContainer.isContainerTitle(photo.getTitle()) && !FlickrCommitMarker.isMarkerTitle(photo.getTitle());
+
+			if (isFilePhoto && !getPublishedPhotoIds().contains(photo.getId())) {
+				fileNames.add(photo.getTitle());
+			}
+		}
+
+		return fileNames;
+	}
+
+	/**
+	 * Returns all photos in the index, including containers and commit markers.
+	 */
+	public synchronized List<Photo> getPhotos() {
+		return new ArrayList<Photo>(photosById.values());
+	}
+
+	public synchronized int size() {
+		return photosById.size();
+	}
+
+	/**
+	 * Adds or replaces the given photo. If the photo carries a <tt>lastupdate</tt>
+	 * timestamp, the last update timestamp of the index is advanced accordingly.
+	 */
+	public synchronized void put(Photo photo) {
+		Photo previousPhoto = photosById.put(photo.getId(), photo);
+
+		if (previousPhoto != null) {
+			removeTitles(previousPhoto);
+		}
+
+		photosByTitle.put(photo.getTitle(), photo);
+
+		if (PngContainer.isContainerTitle(photo.getTitle())) {
+			for (String fileName : PngContainer.fromToc(photo.getDescription()).getNames()) {
+				containersByFileName.put(fileName, photo);
+			}
+		}
+		else if (FlickrCommitMarker.isMarkerTitle(photo.getTitle())) {
+			markersById.put(photo.getId(), photo);
+		}
+
+		publishedPhotosByName = null;
+
+		if (photo.getLastUpdate() != null) {
+			lastUpdate = Math.max(lastUpdate, photo.getLastUpdate().getTime() / 1000);
+		}
+	}
+
+	/**
+	 * Changes the title of the photo with the given ID, e.g. after a move.
+	 */
+	public synchronized void setTitle(String photoId, String title) {
+		Photo photo = photosById.get(photoId);
+
+		if (photo != null) {
+			if (photosByTitle.get(photo.getTitle()) == photo) {
+				photosByTitle.remove(photo.getTitle());
+			}
+
+			photo.setTitle(title);
+			photosByTitle.put(title, photo);
+
+			publishedPhotosByName = null;
+		}
+	}
+
+	public synchronized void remove(String photoId) {
+		Photo photo = photosById.remove(photoId);
+
+		if (photo != null) {
+			removeTitles(photo);
+		}
+	}
+
+	private void removeTitles(Photo photo) {
+		if (photosByTitle.get(photo.getTitle()) == photo) {
+			photosByTitle.remove(photo.getTitle());
+		}
+
+		if (PngContainer.isContainerTitle(photo.getTitle())) {
+			for (String fileName : PngContainer.fromToc(photo.getDescription()).getNames()) {
+				if (containersByFileName.get(fileName) == photo) {
+					containersByFileName.remove(fileName);
+				}
+			}
+		}
+
+		markersById.remove(photo.getId());
+		publishedPhotosByName = null;
+	}
+
+	/**
+	 * Returns the temp. photos published by the commit markers in this index, by their
+	 * final names (see {@link FlickrCommitMarker}). Photos whose title is not the published
+	 * temp. name anymore are not included.
+	 */
+	private Map<String, Photo> getPublishedPhotos() {
+		if (publishedPhotosByName == null) {
+			publishedPhotosByName = new HashMap<String, Photo>();
+			publishedPhotoIds = new HashSet<String>();
+
+			for (Photo markerPhoto : markersById.values()) {
+				FlickrCommitMarker marker = FlickrCommitMarker.fromDescription(markerPhoto.getDescription());
+
+				for (String photoId : marker.getPhotoIds()) {
+					Photo photo = photosById.get(photoId);
+					String tempName = marker.getTempName(photoId);
+
+					if (photo != null && tempName.equals(photo.getTitle())) {
+						publishedPhotosByName.put(FlickrCommitMarker.getTargetName(tempName), photo);
+						publishedPhotoIds.add(photoId);
+					}
+				}
+			}
+		}
+
+		return publishedPhotosByName;
+	}
+
+	private Set<String> getPublishedPhotoIds() {
+		getPublishedPhotos();
+		return publishedPhotoIds;
+	}
+
+	/**
+	 * Clears the index and marks it as complete, so that it can be refilled via
+	 * {@link #put(Photo)} with the entire album contents.
+	 */
+	public synchronized void reset() {
+		photosById.clear();
+		photosByTitle.clear();
+		containersByFileName.clear();
+		markersById.clear();
+		publishedPhotosByName = null;
+
+		lastUpdate = 0;
+		complete = true;
+	}
+
+	/**
+	 * Loads the index from the index file, if it exists and belongs to the current album.
+	 * If the file cannot be read, the index remains empty (and incomplete).
+	 */
+	public synchronized void load() {
+		if (indexFile == null || !indexFile.exists()) {
+			return;
+		}
+
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+			if (!INDEX_FILE_HEADER.equals(reader.readLine())) {
+				throw new IOException("Invalid index file header.");
+			}
+
+			String indexPhotosetId = readHeaderValue(reader.readLine(), INDEX_FILE_PHOTOSET);
+			long indexLastUpdate = Long.parseLong(readHeaderValue(reader.readLine(), INDEX_FILE_LAST_UPDATE));
+
+			if (!indexPhotosetId.equals(photosetId)) {
+				logger.log(Level.INFO, "Photo index file " + indexFile + " belongs to album " + indexPhotosetId + ", not " + photosetId + ". Ignoring.");
+				return;
+			}
+
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+				put(parsePhoto(line));
+			}
+
+			lastUpdate = indexLastUpdate;
+			complete = true;
+
+			logger.log(Level.INFO, "Loaded photo index from " + indexFile + " with " + photosById.size() + " photo(s).");
+		}
+		catch (Exception e) {
+			logger.log(Level.WARNING, "Cannot load photo index from " + indexFile + ". Index needs to be rebuilt.", e);
+
+			photosById.clear();
+			photosByTitle.clear();
+			containersByFileName.clear();
+			markersById.clear();
+			publishedPhotosByName = null;
+
+			lastUpdate = 0;
+			complete = false;
+		}
+	}
+
+	/**
+	 * Writes the index to the index file (if the index is complete). The file is written
+	 * to a temporary file first and then renamed, so that a crash never leaves a partial
+	 * index behind.
+	 */
+	public synchronized void save() throws IOException {
+		if (indexFile == null || !complete) {
+			return;
+		}
+
+		File tempIndexFile = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempIndexFile), StandardCharsets.UTF_8))) {
+			writer.write(INDEX_FILE_HEADER + "\n");
+			writer.write(INDEX_FILE_PHOTOSET + INDEX_FILE_SEPARATOR + photosetId + "\n");
+			writer.write(INDEX_FILE_LAST_UPDATE + INDEX_FILE_SEPARATOR + lastUpdate + "\n");
+
+			for (Photo photo : photosById.values()) {
+				writer.write(formatPhoto(photo) + "\n");
+			}
+		}
+
+		Files.move(tempIndexFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		logger.log(Level.FINE, "Saved photo index to " + indexFile + " with " + photosById.size() + " photo(s).");
+	}
+
+	private String readHeaderValue(String line, String expectedKey) throws IOException {
+		if (line == null || !line.startsWith(expectedKey + INDEX_FILE_SEPARATOR)) {
+			throw new IOException("Invalid index file; expected '" + expectedKey + "', but got: " + line);
+		}
+
+		return line.substring(expectedKey.length() + INDEX_FILE_SEPARATOR.length());
+	}
+
+	private String formatPhoto(Photo photo) {
+		return photo.getId() + INDEX_FILE_SEPARATOR
+				+ formatValue(photo.getFarm()) + INDEX_FILE_SEPARATOR
+				+ formatValue(photo.getServer()) + INDEX_FILE_SEPARATOR
+				+ formatValue(photo.getOriginalSecret()) + INDEX_FILE_SEPARATOR
+				+ formatValue(photo.getOriginalFormat()) + INDEX_FILE_SEPARATOR
+				+ formatValue(isSingleLine(photo.getDescription()) ? photo.getDescription() : null) + INDEX_FILE_SEPARATOR
+				+ photo.getTitle();
+	}
+
+	private Photo parsePhoto(String line) throws IOException {
+		String[] values = line.split(INDEX_FILE_SEPARATOR, 7);
+
+		if (values.length != 7) {
+			throw new IOException("Invalid index file entry: " + line);
+		}
+
+		Photo photo = new Photo();
+
+		photo.setId(values[0]);
+		photo.setFarm(parseValue(values[1]));
+		photo.setServer(parseValue(values[2]));
+		photo.setOriginalSecret(parseValue(values[3]));
+		photo.setOriginalFormat(parseValue(values[4]));
+		photo.setDescription(parseValue(values[5]));
+		photo.setTitle(values[6]);
+
+		return photo;
+	}
+
+	private boolean isSingleLine(String value) {
+		return value != null && !value.contains(INDEX_FILE_SEPARATOR) && !value.contains("\n") && !value.contains("\r");
+	}
+
+	private String formatValue(String value) {
+		return (value == null || value.isEmpty()) ? INDEX_FILE_NULL : value;
+	}
+
+	private String parseValue(String value) {
+		return INDEX_FILE_NULL.equals(value) ? null : value;
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2014 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.plugins.flickr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.syncany.plugins.transfer.StorageException;
+import org.syncany.plugins.transfer.TransferExecutor;
+import org.syncany.plugins.transfer.TransferExecutor.TransferTask;
+
+import com.flickr4java.flickr.Flickr;
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.RequestContext;
+import com.flickr4java.flickr.auth.Auth;
+
+/**
+ * Collects the IDs of newly uploaded photos and adds them to the repository's
+ * photosets (albums) in one batch, instead of making one <tt>photosets.addPhoto</tt>
+ * round-trip right after each upload.
+ *
+ * <p>Flickr does not offer an append-only bulk call: <tt>photosets.editPhotos</tt>
+ * replaces the entire membership of an album, and would silently drop photos added
+ * by other clients in the meantime. The queue therefore still adds each photo
+ * individually, but off the upload path and with up to
+ * {@link FlickrTransferSettings#getMaxConcurrentTransfers()} calls in parallel.
+ *
+ * <p>The {@link FlickrTransferManager} must {@link #flush()} the queue before the
+ * album contents become relevant, i.e. before listing, deleting, or moving a file
+ * to its final location.
+ */
+public class FlickrPhotosetQueue {
+	private static final Logger logger = Logger.getLogger(FlickrPhotosetQueue.class.getSimpleName());
+	private static final String FLICKR_ERROR_PHOTO_ALREADY_IN_SET = "3";
+
+	private Flickr flickr;
+	private Auth auth;
+	private int maxConcurrentRequests;
+	private Map<String, Set<String>> pendingPhotoIds;
+
+	public FlickrPhotosetQueue(Flickr flickr, Auth auth, int maxConcurrentRequests) {
+		this.flickr = flickr;
+		this.auth = auth;
+		this.maxConcurrentRequests = maxConcurrentRequests;
+		this.pendingPhotoIds = new LinkedHashMap<String, Set<String>>();
+	}
+
+	/**
+	 * Queues the given photo to be added to the given album with the next {@link #flush()}.
+	 */
+	public synchronized void add(String photosetId, String photoId) {
+		Set<String> photosetPendingPhotoIds = pendingPhotoIds.get(photosetId);
+
+		if (photosetPendingPhotoIds == null) {
+			photosetPendingPhotoIds = new LinkedHashSet<String>();
+			pendingPhotoIds.put(photosetId, photosetPendingPhotoIds);
+		}
+
+		photosetPendingPhotoIds.add(photoId);
+	}
+
+	/**
+	 * Removes the given photo from the queue (for all albums), e.g. because it is deleted
+	 * before it was ever added to an album.
+	 *
+	 * @return Returns true if the photo was queued, false otherwise
+	 */
+	public synchronized boolean remove(String photoId) {
+		boolean removed = false;
+
+		for (Set<String> photosetPendingPhotoIds : pendingPhotoIds.values()) {
+			removed |= photosetPendingPhotoIds.remove(photoId);
+		}
+
+		return removed;
+	}
+
+	public synchronized boolean isEmpty() {
+		for (Set<String> photosetPendingPhotoIds : pendingPhotoIds.values()) {
+			if (!photosetPendingPhotoIds.isEmpty()) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Adds all queued photos to the album. If adding one or more photos fails,
+	 * these photos remain in the queue and an exception is thrown.
+	 */
+	public void flush() throws StorageException {
+		final List<String[]> flushPhotoIds = new ArrayList<String[]>(); // (photoset ID, photo ID)
+
+		synchronized (this) {
+			for (Map.Entry<String, Set<String>> photosetPendingPhotoIds : pendingPhotoIds.entrySet()) {
+				for (String photoId : photosetPendingPhotoIds.getValue()) {
+					flushPhotoIds.add(new String[] { photosetPendingPhotoIds.getKey(), photoId });
+				}
+			}
+
+			pendingPhotoIds.clear();
+		}
+
+		if (flushPhotoIds.isEmpty()) {
+			return;
+		}
+
+		logger.log(Level.INFO, "Adding " + flushPhotoIds.size() + " photo(s) to album(s) ...");
+
+		final AtomicReference<StorageException> firstException = new AtomicReference<StorageException>();
+		TransferExecutor executor = new TransferExecutor(Math.min(maxConcurrentRequests, flushPhotoIds.size()), "FlickrAlbum");
+
+		try {
+			for (final String[] photosetAndPhotoId : flushPhotoIds) {
+				executor.submit(new TransferTask() {
+					@Override
+					public void execute() {
+						String photosetId = photosetAndPhotoId[0];
+						String photoId = photosetAndPhotoId[1];
+
+						try {
+							addPhoto(photosetId, photoId);
+						}
+						catch (StorageException e) {
+							add(photosetId, photoId); // Retry with next flush
+							firstException.compareAndSet(null, e);
+						}
+					}
+				});
+			}
+
+			executor.awaitAll();
+		}
+		catch (IOException e) {
+			throw new StorageException(e);
+		}
+
+		if (firstException.get() != null) {
+			throw firstException.get();
+		}
+	}
+
+	private void addPhoto(String photosetId, String photoId) throws StorageException {
+		try {
+			RequestContext.getRequestContext().setAuth(auth);
+			flickr.getPhotosetsInterface().addPhoto(photosetId, photoId);
+		}
+		catch (FlickrException e) {
+			if (FLICKR_ERROR_PHOTO_ALREADY_IN_SET.equals(e.getErrorCode())) {
+				logger.log(Level.FINE, "Photo " + photoId + " already in album " + photosetId + ". Ignoring.");
+			}
+			else {
+				throw new StorageException("Cannot add photo " + photoId + " to album " + photosetId, e);
+			}
+		}
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2014 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.plugins.flickr;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Paces the requests to the Flickr API, so that the per-key quota (3,600 requests per hour)
+ * is not exceeded. Every request must {@link #acquire(Priority) acquire} a permit first, and
+ * report its outcome afterwards ({@link #onSuccess()} or {@link #onThrottled()}).
+ *
+ * <p>Permits are handed out by a token bucket: Tokens are added at the current rate, and up
+ * to one minute's worth of tokens can be saved up for bursts. If requests of different
+ * {@link Priority priorities} are waiting, the higher priority is served first, so that
+ * metadata calls (list, get info, ..) are not stuck behind a queue of bulk uploads.
+ *
+ * <p>The rate adapts to the observed throttling: If Flickr throttles a request, the rate is
+ * halved, and the rate at which throttling occurred is remembered as the (learned) ceiling.
+ * Successful requests then quickly restore the rate up to that ceiling, and only slowly
+ * probe beyond it (up to the configured maximum). That way, the throughput stays close to
+ * the actual quota instead of oscillating around it.
+ *
+ * <p>This class is thread-safe. Queue depth, wait times and throttling are tracked, see
+ * {@link #getMetrics()}.
+ */
+public class FlickrRequestScheduler {
+	private static final Logger logger = Logger.getLogger(FlickrRequestScheduler.class.getSimpleName());
+
+	private static final double BURST_SECONDS = 60;
+	private static final double MIN_RATE_FACTOR = 0.01; // of max. rate
+	private static final double THROTTLED_CEILING_FACTOR = 0.9; // of rate at which throttling occurred
+	private static final double RECOVERY_STEP_FACTOR = 0.05; // of ceiling, per success below ceiling
+	private static final double PROBE_STEP_FACTOR = 0.001; // of max. rate, per success above ceiling
+	private static final long MAX_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1); // Re-check interval for lower priorities
+	private static final long THROTTLED_HOLD_OFF_NANOS = TimeUnit.SECONDS.toNanos(1); // Min. time between two rate reductions
+
+	public enum Priority {
+		METADATA, BULK
+	}
+
+	private final double maxRate; // Permits per second
+	private final double minRate;
+	private double rate;
+	private double ceiling;
+	private double tokens;
+	private long lastRefillTime;
+	private long lastThrottledTime;
+
+	private final int[] waitingRequests;
+	private long requestCount;
+	private long throttledCount;
+	private long totalWaitTime;
+	private long maxWaitTime;
+
+	/**
+	 * Creates a scheduler that allows at most <tt>maxRequestsPerHour</tt> requests
+	 * per hour, which must be positive.
+	 */
+	public FlickrRequestScheduler(int maxRequestsPerHour) {
+		if (maxRequestsPerHour <= 0) {
+			throw new IllegalArgumentException("Max. requests per hour must be positive, but was " + maxRequestsPerHour);
+		}
+
+		this.maxRate = maxRequestsPerHour / 3600.0;
+		this.minRate = maxRate * MIN_RATE_FACTOR;
+		this.rate = maxRate;
+		this.ceiling = maxRate;
+		this.tokens = getCapacity();
+		this.lastRefillTime = System.nanoTime();
+		this.lastThrottledTime = 0;
+
+		this.waitingRequests = new int[Priority.values().length];
+	}
+
+	/**
+	 * Blocks until a request with the given priority may be sent.
+	 *
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public synchronized void acquire(Priority priority) throws InterruptedException {
+		long startTime = System.nanoTime();
+		waitingRequests[priority.ordinal()]++;
+
+		try {
+			while (true) {
+				refill();
+
+				boolean higherPriorityWaiting = isHigherPriorityWaiting(priority);
+
+				if (tokens >= 1 && !higherPriorityWaiting) {
+					tokens -= 1;
+					break;
+				}
+
+				long waitNanos = (higherPriorityWaiting) ? MAX_WAIT_NANOS : Math.min(MAX_WAIT_NANOS, (long) ((1 - tokens) / rate * 1e9));
+				TimeUnit.NANOSECONDS.timedWait(this, Math.max(1, waitNanos));
+			}
+		}
+		finally {
+			waitingRequests[priority.ordinal()]--;
+			notifyAll(); // Lower priorities might be waiting for this one
+		}
+
+		long waitTime = System.nanoTime() - startTime;
+
+		requestCount++;
+		totalWaitTime += waitTime;
+		maxWaitTime = Math.max(maxWaitTime, waitTime);
+	}
+
+	/**
+	 * Reports that a request was accepted by Flickr. Restores the rate after throttling.
+	 */
+	public synchronized void onSuccess() {
+		if (rate < ceiling) {
+			rate = Math.min(ceiling, rate + ceiling * RECOVERY_STEP_FACTOR);
+		}
+		else if (rate < maxRate) {
+			rate = Math.min(maxRate, rate + maxRate * PROBE_STEP_FACTOR);
+			ceiling = rate;
+		}
+	}
+
+	/**
+	 * Reports that a request was throttled by Flickr (or failed in a way that indicates
+	 * overload). Halves the rate and drops all saved-up tokens. Requests that were already
+	 * in flight when the rate was reduced do not reduce it any further.
+	 */
+	public synchronized void onThrottled() {
+		throttledCount++;
+
+		long now = System.nanoTime();
+		long holdOffNanos = Math.max(THROTTLED_HOLD_OFF_NANOS, (long) (1e9 / rate));
+		boolean inFlightBeforeLastThrottle = lastThrottledTime != 0 && (now - lastThrottledTime) < holdOffNanos;
+
+		if (!inFlightBeforeLastThrottle) {
+			refill();
+
+			ceiling = Math.max(minRate, rate * THROTTLED_CEILING_FACTOR);
+			rate = Math.max(minRate, rate / 2);
+			tokens = Math.min(tokens, 0);
+			lastThrottledTime = now;
+
+			logger.log(Level.INFO, String.format("Flickr throttled request; reducing rate to %.0f requests/hour (ceiling %.0f requests/hour).", rate * 3600,
+					ceiling * 3600));
+		}
+	}
+
+	/**
+	 * Returns the current rate, in requests per hour.
+	 */
+	public synchronized double getRequestsPerHour() {
+		return rate * 3600;
+	}
+
+	public synchronized Metrics getMetrics() {
+		Metrics metrics = new Metrics();
+
+		metrics.metadataQueueDepth = waitingRequests[Priority.METADATA.ordinal()];
+		metrics.bulkQueueDepth = waitingRequests[Priority.BULK.ordinal()];
+		metrics.requestCount = requestCount;
+		metrics.throttledCount = throttledCount;
+		metrics.averageWaitTime = (requestCount > 0) ? TimeUnit.NANOSECONDS.toMillis(totalWaitTime / requestCount) : 0;
+		metrics.maxWaitTime = TimeUnit.NANOSECONDS.toMillis(maxWaitTime);
+		metrics.requestsPerHour = rate * 3600;
+
+		return metrics;
+	}
+
+	private double getCapacity() {
+		return Math.max(1, rate * BURST_SECONDS);
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+
+		tokens = Math.min(getCapacity(), tokens + (now - lastRefillTime) / 1e9 * rate);
+		lastRefillTime = now;
+	}
+
+	private boolean isHigherPriorityWaiting(Priority priority) {
+		for (int i = 0; i < priority.ordinal(); i++) {
+			if (waitingRequests[i] > 0) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Snapshot of the scheduler's state and statistics. Wait times are in milliseconds.
+	 */
+	public static class Metrics {
+		private int metadataQueueDepth;
+		private int bulkQueueDepth;
+		private long requestCount;
+		private long throttledCount;
+		private long averageWaitTime;
+		private long maxWaitTime;
+		private double requestsPerHour;
+
+		public int getQueueDepth() {
+			return metadataQueueDepth + bulkQueueDepth;
+		}
+
+		public int getQueueDepth(Priority priority) {
+			return (priority == Priority.METADATA) ? metadataQueueDepth : bulkQueueDepth;
+		}
+
+		public long getRequestCount() {
+			return requestCount;
+		}
+
+		public long getThrottledCount() {
+			return throttledCount;
+		}
+
+		public long getAverageWaitTime() {
+			return averageWaitTime;
+		}
+
+		public long getMaxWaitTime() {
+			return maxWaitTime;
+		}
+
+		public double getRequestsPerHour() {
+			return requestsPerHour;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("requests=%d, throttled=%d, queue=%d (metadata %d, bulk %d), wait avg/max=%d/%d ms, rate=%.0f/hour", requestCount,
+					throttledCount, getQueueDepth(), metadataQueueDepth, bulkQueueDepth, averageWaitTime, maxWaitTime, requestsPerHour);
+		}
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2014 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.plugins.flickr;
+
+import java.util.Map;
+
+import org.syncany.plugins.flickr.FlickrRequestScheduler.Priority;
+
+import com.flickr4java.flickr.FlickrRuntimeException;
+import com.flickr4java.flickr.REST;
+import com.flickr4java.flickr.Response;
+
+/**
+ * REST transport that sends all API calls through a {@link FlickrRequestScheduler}
+ * (with {@link Priority#METADATA metadata} priority), and reports throttling back to it.
+ *
+ * <p>Flickr4Java does not expose the HTTP status code, so a request is considered throttled
+ * if Flickr answers with error 105 (service unavailable), or if the response cannot be parsed
+ * at all, which is what the non-XML error pages for HTTP 429 and 503 look like.
+ */
+public class FlickrScheduledTransport extends REST {
+	private static final String ERROR_SERVICE_UNAVAILABLE = "105";
+
+	private FlickrRequestScheduler requestScheduler;
+
+	public FlickrScheduledTransport(FlickrRequestScheduler requestScheduler) {
+		this.requestScheduler = requestScheduler;
+	}
+
+	@Override
+	public Response get(String path, Map<String, Object> parameters, String apiKey, String sharedSecret) {
+		acquire();
+
+		try {
+			return onResponse(super.get(path, parameters, apiKey, sharedSecret));
+		}
+		catch (FlickrRuntimeException e) {
+			requestScheduler.onThrottled();
+			throw e;
+		}
+	}
+
+	@Override
+	public Response post(String path, Map<String, Object> parameters, String apiKey, String sharedSecret, boolean multipart) {
+		acquire();
+
+		try {
+			return onResponse(super.post(path, parameters, apiKey, sharedSecret, multipart));
+		}
+		catch (FlickrRuntimeException e) {
+			requestScheduler.onThrottled();
+			throw e;
+		}
+	}
+
+	@Override
+	public Response getNonOAuth(String path, Map<String, String> parameters) {
+		acquire();
+
+		try {
+			return onResponse(super.getNonOAuth(path, parameters));
+		}
+		catch (FlickrRuntimeException e) {
+			requestScheduler.onThrottled();
+			throw e;
+		}
+	}
+
+	private void acquire() {
+		try {
+			requestScheduler.acquire(Priority.METADATA);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FlickrRuntimeException("Interrupted while waiting for request permit.", e);
+		}
+	}
+
+	private Response onResponse(Response response) {
+		if (response.isError() && ERROR_SERVICE_UNAVAILABLE.equals(response.getErrorCode())) {
+			requestScheduler.onThrottled();
+		}
+		else {
+			requestScheduler.onSuccess();
+		}
+
+		return response;
+	}
+}
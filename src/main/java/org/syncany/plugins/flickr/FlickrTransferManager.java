@@ -17,60 +17,196 @@
  */
 package org.syncany.plugins.flickr;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
 
-import org.apache.commons.io.FileUtils;
 import org.syncany.config.Config;
+import org.syncany.database.ChunkEntry.ChunkChecksum;
 import org.syncany.database.MultiChunkEntry.MultiChunkId;
 import org.syncany.plugins.transfer.AbstractTransferManager;
+import org.syncany.plugins.transfer.BulkDeleteTransferManager;
+import org.syncany.plugins.transfer.PartialDownloadTransferManager;
+import org.syncany.plugins.transfer.RemoteTransaction;
 import org.syncany.plugins.transfer.StorageException;
+import org.syncany.plugins.transfer.TransferExecutor;
+import org.syncany.plugins.transfer.TransferExecutor.TransferTask;
 import org.syncany.plugins.transfer.files.MultichunkRemoteFile;
 import org.syncany.plugins.transfer.files.RemoteFile;
 import org.syncany.plugins.transfer.files.SyncanyRemoteFile;
 import org.syncany.plugins.transfer.files.TempRemoteFile;
+import org.syncany.util.FileUtil;
+import org.syncany.util.StringUtil;
 
 import com.flickr4java.flickr.Flickr;
 import com.flickr4java.flickr.FlickrException;
 import com.flickr4java.flickr.REST;
 import com.flickr4java.flickr.RequestContext;
 import com.flickr4java.flickr.auth.Auth;
+import com.flickr4java.flickr.photos.Extras;
 import com.flickr4java.flickr.photos.Photo;
 import com.flickr4java.flickr.photos.PhotoList;
+import com.flickr4java.flickr.photos.PhotoSet;
 import com.flickr4java.flickr.photos.Size;
 import com.flickr4java.flickr.photosets.Photoset;
-import com.flickr4java.flickr.uploader.UploadMetaData;
-import com.flickr4java.flickr.uploader.Uploader;
 
-public class FlickrTransferManager extends AbstractTransferManager {
+/**
+ * Transfer manager that stores all remote files as PNG-encoded photos in a 
+ * Flickr album (photoset). The photo title is used as the remote file name.
+ * 
+ * <p>Remote files are partitioned by type: The main album holds all files, and a second
+ * <i>metadata album</i> additionally holds all files except multichunks (i.e. database,
+ * action, transaction files, etc.). Listing these file types only touches the (small)
+ * metadata album instead of the entire repository. The metadata album is linked from the
+ * main album's description, so that all clients can find it; repositories created before
+ * the metadata album existed are migrated on first use (see {@link #migrateToMetadataAlbum()}).
+ *
+ * <p>Optionally, multichunks are distributed across several <i>multichunk albums</i> (see
+ * {@link FlickrTransferSettings#getAlbumShards()}), selected by the hash of the multichunk name.
+ * This keeps each album well below Flickr's photoset size limits, and allows listing the albums
+ * in parallel. In this case, the main album only holds the metadata files.
+ *
+ * <p>If enabled (see {@link FlickrTransferSettings#isPackSmallFiles()}), small metadata files
+ * uploaded to temporary locations are staged locally instead. When the first of them is moved
+ * to its final location, all staged files are packed into one {@link PngContainer} photo under
+ * their final names, so that a transaction with many small files needs a single upload.
+ *
+ * <p>Each photo's description holds the checksum of its payload. Uploading a file whose
+ * identical payload already exists under the same name (e.g. a database file that is
+ * re-uploaded after a crash) is skipped, see {@link #findIdenticalPhoto(RemoteFile, String)}.
+ *
+ * <p>Multichunks are uploaded with a table of their chunks and sync points in the image trailer
+ * (see {@link ZipEntryTable} and {@link PngEncoder.Trailer}). If only some chunks of a multichunk are
+ * needed, e.g. to restore a single file, only the image bytes around these chunks are downloaded
+ * via HTTP range requests, see {@link #downloadChunks(MultichunkRemoteFile, Set, File)}. This only
+ * works for unencrypted and uncompressed multichunks, because only these are plain ZIP files.
+ *
+ * <p>This transfer manager is thread-safe: Flickr4Java stores the authentication in 
+ * a thread-local {@link RequestContext}, so the auth is (re-)set for the calling thread
+ * at the beginning of every remote operation. This allows the application to perform
+ * multiple transfers concurrently (see {@link FlickrTransferSettings#getMaxConcurrentTransfers()}).
+ */
+public class FlickrTransferManager extends AbstractTransferManager implements PartialDownloadTransferManager, BulkDeleteTransferManager {
 	private static final Logger logger = Logger.getLogger(FlickrTransferManager.class.getSimpleName());
-	private static final int FLICKR_MIN_IMAGE_BYTES = 17*17*3; // < 16x16 PNGs are rejected sometimes!
+	private static final int FLICKR_MIN_IMAGE_SIZE = 17; // < 16x16 PNGs are rejected sometimes!
+	private static final int FLICKR_MIN_IMAGE_BYTES = FLICKR_MIN_IMAGE_SIZE*FLICKR_MIN_IMAGE_SIZE*3;
+	private static final int FLICKR_MAX_PHOTOS_PER_PAGE = 500;
+	private static final long INDEX_UPDATE_OVERLAP_SECONDS = 10*60; // Tolerates delayed 'lastupdate' propagation
+	private static final String INDEX_FILE_FORMAT = "flickr-index-%s";
+	private static final String PNG_CACHE_FILE_FORMAT = "flickr-png-%s";
+	private static final String UPLOAD_JOURNAL_FILE = "flickr-upload-journal";
+	private static final String COMMIT_MARKER_FILE = "flickr-commit-marker";
+	private static final int COMMIT_MARKER_MAX_ENTRIES = 100; // Bounds the description length; larger markers are stored in the image, see uploadCommitMarker()
+	private static final String PHOTO_EXTRA_DESCRIPTION = "description"; // Not defined in Extras
+	private static final Set<String> PHOTO_EXTRAS = new HashSet<String>(Arrays.asList(Extras.ORIGINAL_FORMAT, Extras.LAST_UPDATE, PHOTO_EXTRA_DESCRIPTION));
+	private static final int PACK_MAX_FILE_SIZE = 256*1024;
+	private static final int PACK_MAX_FILES = 100; // Bounds the TOC/description length
+
+	private static final String ALBUM_DESCRIPTION = "Flickr-based Syncany repository. Details at www.syncany.org!";
+	private static final String METADATA_ALBUM_DESCRIPTION = "Flickr-based Syncany repository (metadata). Details at www.syncany.org!";
+	private static final String METADATA_ALBUM_LINK_FORMAT = "[syncany-metadata-album:%s]";
+	private static final Pattern METADATA_ALBUM_LINK_PATTERN = Pattern.compile("\\[syncany-metadata-album:(\\w+)\\]");
+	private static final String MULTICHUNK_ALBUMS_LINK_FORMAT = "[syncany-multichunk-albums:%s]";
+	private static final Pattern MULTICHUNK_ALBUMS_LINK_PATTERN = Pattern.compile("\\[syncany-multichunk-albums:([\\w,]+)\\]");
+	private static final String CHECKSUM_ALGORITHM = "SHA-256";
+	private static final String CHECKSUM_DESCRIPTION_FORMAT = "[syncany-sha256:%s]";
+	private static final String DEFAULT_API_ENDPOINT = "flickr";
+	private static final int MULTICHUNK_SYNC_INTERVAL = 64*1024; // Max. overhead when downloading a single chunk
+	private static final int IMAGE_TRAILER_FETCH_SIZE = 32*1024; // Fits the trailer of a typical multichunk
+	private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("^bytes (\\d+)-\\d+/\\d+$");
+
+	private static final Map<String, FlickrRequestScheduler> requestSchedulers = new HashMap<String, FlickrRequestScheduler>();
 
 	private Flickr flickr;
 	private Auth auth;
+	private URL apiEndpoint;
+	private FlickrRequestScheduler requestScheduler;
 	private String photosetId;	
-	private Map<RemoteFile, Photo> remoteFilePhotoIdCache;
+	private volatile String metadataPhotosetId; // Null if the repository has no metadata album (yet)
+	private List<String> multichunkPhotosetIds;
+	private volatile boolean metadataAlbumVerified; // See verifyAlbums()
+	private FlickrUploader uploader;
+	private PngEncoder.Profile pngProfile;
+	private FlickrPhotosetQueue photosetQueue;
+	private FlickrUploadJournal uploadJournal;
+	private Map<String, FlickrPhotoIndex> photoIndexes;
+	private Map<String, File> stagedFiles; // Temp. remote file name -> local copy, see stageUpload()
+	private Map<String, String> packedTempFiles; // Temp. remote file name -> final name, see packStagedFiles()
+	private Map<String, String> pendingCommits; // Photo ID -> temp. remote file name, see move()
+	private String commitMarkerTitle; // Current marker, see publishCommits()
+	private List<String> supersededMarkerTitles; // See compactCommitMarkers()
+	private Map<String, String> markerPayloads; // Photo ID -> entries of payload markers, see resolveCommitMarkerPayloads()
+
+	private final Object albumLock = new Object();
+	private final Object photoIndexUpdateLock = new Object();
+	private final Object containerLock = new Object();
+	private final Object commitLock = new Object();
 
 	public FlickrTransferManager(FlickrTransferSettings settings, Config config) throws Exception {
 		super(settings, config);
 
-		this.flickr = new Flickr(FlickrTransferPlugin.APP_KEY, FlickrTransferPlugin.APP_SECRET, new REST());
+		this.apiEndpoint = (settings.getApiEndpoint() != null) ? new URL(settings.getApiEndpoint()) : null;
+		this.requestScheduler = getRequestScheduler(settings);
+		this.flickr = new Flickr(FlickrTransferPlugin.APP_KEY, FlickrTransferPlugin.APP_SECRET, createTransport());
 		this.auth = settings.getAuth().toAuth();
 		this.photosetId = settings.getAlbum();
-		this.remoteFilePhotoIdCache = new HashMap<RemoteFile, Photo>();
+		this.metadataPhotosetId = settings.getMetadataAlbum(); // Resolved lazily if null, see resolveAlbums(boolean)
+		this.multichunkPhotosetIds = (metadataPhotosetId != null) ? settings.getMultichunkAlbums() : null;
+		this.uploader = createUploader();
+		this.pngProfile = settings.getPngProfile().withMinImageSize(FLICKR_MIN_IMAGE_SIZE);
+		this.photosetQueue = new FlickrPhotosetQueue(flickr, auth, settings.getMaxConcurrentTransfers());
+		this.uploadJournal = new FlickrUploadJournal(getStateFile(UPLOAD_JOURNAL_FILE));
+		this.photoIndexes = new HashMap<String, FlickrPhotoIndex>(); // Loaded lazily, album IDs might not be known yet
+		this.stagedFiles = new LinkedHashMap<String, File>();
+		this.packedTempFiles = new HashMap<String, String>();
+		this.pendingCommits = new LinkedHashMap<String, String>();
+		this.supersededMarkerTitles = new ArrayList<String>();
+		this.markerPayloads = Collections.synchronizedMap(new HashMap<String, String>());
+		
+		loadCommitMarkerTitles();
 		
 		// Init Flickr object
+		uploadJournal.load();
 		flickr.setAuth(auth);
-		RequestContext.getRequestContext().setAuth(auth);
+		initRequestContext();
 		
 		Flickr.debugRequest = false;
 		Flickr.debugStream = false;
@@ -79,6 +215,60 @@ public class FlickrTransferManager extends AbstractTransferManager {
 	public FlickrTransferSettings getSettings() {
 		return (FlickrTransferSettings) settings;
 	}
+
+	/**
+	 * Returns the request scheduler for the configured API endpoint, or <tt>null</tt> if
+	 * requests are not paced. The scheduler is shared by all transfer managers, because
+	 * the quota applies to the API key, not to a single transfer manager.
+	 */
+	private static FlickrRequestScheduler getRequestScheduler(FlickrTransferSettings settings) {
+		if (settings.getMaxRequestsPerHour() <= 0) {
+			return null;
+		}
+
+		String apiEndpoint = (settings.getApiEndpoint() != null) ? settings.getApiEndpoint() : DEFAULT_API_ENDPOINT;
+		String schedulerKey = apiEndpoint + "/" + settings.getMaxRequestsPerHour();
+
+		synchronized (requestSchedulers) {
+			FlickrRequestScheduler requestScheduler = requestSchedulers.get(schedulerKey);
+
+			if (requestScheduler == null) {
+				requestScheduler = new FlickrRequestScheduler(settings.getMaxRequestsPerHour());
+				requestSchedulers.put(schedulerKey, requestScheduler);
+			}
+
+			return requestScheduler;
+		}
+	}
+
+	/**
+	 * Creates the REST transport for the Flickr API, or for the configured API
+	 * endpoint (see {@link FlickrTransferSettings#getApiEndpoint()}). If requests
+	 * are paced, the transport passes every request through the scheduler.
+	 */
+	private REST createTransport() {
+		REST transport = (requestScheduler != null) ? new FlickrScheduledTransport(requestScheduler) : new REST();
+
+		if (apiEndpoint != null) {
+			transport.setScheme(apiEndpoint.getProtocol());
+			transport.setHost(apiEndpoint.getAuthority()); // Flickr4Java ignores the port, but appends the path to the host
+		}
+
+		return transport;
+	}
+
+	private FlickrUploader createUploader() throws IOException {
+		String uploadUrl = (apiEndpoint != null) ? new URL(apiEndpoint, FlickrUploader.UPLOAD_PATH).toString() : FlickrUploader.DEFAULT_UPLOAD_URL;
+		return new FlickrUploader(FlickrTransferPlugin.APP_KEY, FlickrTransferPlugin.APP_SECRET, auth, uploadUrl, requestScheduler);
+	}
+
+	/**
+	 * Returns the metrics (queue depth, wait times, throttling) of the request scheduler
+	 * used by this transfer manager, or <tt>null</tt> if requests are not paced.
+	 */
+	public FlickrRequestScheduler.Metrics getRequestMetrics() {
+		return (requestScheduler != null) ? requestScheduler.getMetrics() : null;
+	}
 	
 	@Override
 	public void connect() throws StorageException {
@@ -86,8 +276,21 @@ public class FlickrTransferManager extends AbstractTransferManager {
 	}
 
 	@Override
-	public void disconnect() {
-		// Nothing
+	public void disconnect() throws StorageException {
+		uploadStagedFiles();
+		publishCommits();
+		photosetQueue.flush();
+		compactCommitMarkers();
+
+		if (multichunkPhotosetIds != null) {
+			verifyAlbums(); // Files uploaded in this session must be in the linked metadata album
+		}
+
+		savePhotoIndexes();
+
+		if (requestScheduler != null) {
+			logger.log(Level.INFO, "Flickr request metrics: " + requestScheduler.getMetrics());
+		}
 	}
 
 	@Override
@@ -95,9 +298,7 @@ public class FlickrTransferManager extends AbstractTransferManager {
 		if (createIfRequired) {
 			if (photosetId == null) {
 				logger.log(Level.INFO, "Flickr Init: Create target enabled, and NO album ID given. Creating album ...");				
-				
-				photosetId = createNewAlbum();					
-				getSettings().setAlbum(photosetId);
+				createNewAlbums();
 			}
 			else {
 				logger.log(Level.INFO, "Flickr Init: Create target enabled, but album ID given (" + photosetId + "). Using this album. Nothing to do.");				
@@ -114,7 +315,7 @@ public class FlickrTransferManager extends AbstractTransferManager {
 		}
 	}
 
-	private String createNewAlbum() throws StorageException {
+	private void createNewAlbums() throws StorageException {
 		try {
 			// Create and upload dummy file (album needs at least one photo)
 		    Path dummyFileTempPath = Files.createTempFile("syncany-temp", ".tmp");
@@ -124,12 +325,33 @@ public class FlickrTransferManager extends AbstractTransferManager {
 	        
 			Files.delete(dummyFileTempPath);
 
-			// Create album		        
+			// Create albums (metadata and multichunk albums first, so they can be linked)
 			String title = "Syncany " + (1000 + Math.abs(new Random().nextInt(8999)));
-			String description = "Flickr-based Syncany repository. Details at www.syncany.org!";
+			int albumShards = getSettings().getAlbumShards();
+
+			Photoset metadataPhotoset = flickr.getPhotosetsInterface().create(title + " (metadata)", METADATA_ALBUM_DESCRIPTION, dummyPhotoId);
+			String description = ALBUM_DESCRIPTION + "\n" + String.format(METADATA_ALBUM_LINK_FORMAT, metadataPhotoset.getId());
+
+			List<String> newMultichunkPhotosetIds = new ArrayList<String>();
+
+			if (albumShards > 1) {
+				for (int i = 1; i <= albumShards; i++) {
+					String multichunkTitle = title + " (multichunks " + i + "/" + albumShards + ")";
+					newMultichunkPhotosetIds.add(flickr.getPhotosetsInterface().create(multichunkTitle, ALBUM_DESCRIPTION, dummyPhotoId).getId());
+				}
+
+				description += "\n" + String.format(MULTICHUNK_ALBUMS_LINK_FORMAT, StringUtil.join(newMultichunkPhotosetIds, ","));
+			}
 			
 			Photoset photoset = flickr.getPhotosetsInterface().create(title, description, dummyPhotoId);
-			return photoset.getId();			
+
+			photosetId = photoset.getId();
+			metadataPhotosetId = metadataPhotoset.getId();
+			multichunkPhotosetIds = newMultichunkPhotosetIds;
+
+			getSettings().setAlbum(photosetId);
+			getSettings().setMetadataAlbum(metadataPhotosetId);
+			getSettings().setMultichunkAlbums(multichunkPhotosetIds);
 		}
 		catch (Exception e) {
 			throw new StorageException("Cannot initialize repository. Creating Flickr album failed.", e);
@@ -138,80 +360,464 @@ public class FlickrTransferManager extends AbstractTransferManager {
 
 	@Override
 	public void download(RemoteFile remoteFile, File localFile) throws StorageException {
-		Photo photo = getPhoto(remoteFile);
+		initRequestContext();
+		publishCommits();
+
+		if (downloadStagedFile(remoteFile, localFile)) {
+			return;
+		}
+
+		RemoteFile lookupFile = getPackedFile(remoteFile, false);
+		Photo photo = getPhoto(lookupFile);
 		
 		try {
-			// Copy PNG file to local cache; This indirection is necessary, because there are some 
-			// ZIP/stream issues when the input stream is directly handed to the PNG decoder.
-			
-			InputStream rawImageStream = flickr.getPhotosInterface().getImageAsStream(photo, Size.ORIGINAL);
-			File tmpFile = createTempFile(remoteFile.getName());
-			
-			FileUtils.copyInputStreamToFile(rawImageStream, tmpFile);	
-			rawImageStream.close();
-			
-			// Decode PNG from file to byte array and write to final file (removes Flickr-bug padding)
-			byte[] paddedPngData = PngEncoder.decodeFromPng(tmpFile);
-			FileOutputStream localFileOutputStream = new FileOutputStream(localFile);
+			// Photos from our own uploads lack the original URL fields
+			if (photo.getOriginalFormat() == null) {
+				photo = getPhotoWithOriginalUrl(photo);
+			}
+
+			// Decode PNG directly from the HTTP stream to the local file (skips Flickr-bug padding)
+			InputStream rawImageStream = new BufferedInputStream(getOriginalImageStream(photo));
+			OutputStream localFileOutputStream = new BufferedOutputStream(new FileOutputStream(localFile));
 			
-			localFileOutputStream.write(paddedPngData, FLICKR_MIN_IMAGE_BYTES, paddedPngData.length-FLICKR_MIN_IMAGE_BYTES);
-			localFileOutputStream.close();
+			if (PngContainer.isContainerTitle(photo.getTitle())) {
+				// Decode only the file's range; the rest of the container is not transferred
+				PngContainer.fromToc(photo.getDescription()).extract(rawImageStream, lookupFile.getName(), localFileOutputStream); // Closes both streams
+			}
+			else {
+				PngEncoder.decodeFromPng(rawImageStream, localFileOutputStream, FLICKR_MIN_IMAGE_BYTES); // Closes both streams
+			}
 		}
 		catch (Exception e) {
+			localFile.delete(); // Never leave a partial file behind
 			throw new StorageException("Cannot download image " + remoteFile + ", Flickr photo ID " + photo.getId(), e);
 		}		
 	}
 
+	/**
+	 * Opens the original image of the given photo. If an API endpoint is configured, the
+	 * image is fetched from the same path on the endpoint instead of the Flickr image host.
+	 */
+	private InputStream getOriginalImageStream(Photo photo) throws FlickrException, IOException {
+		if (apiEndpoint != null) {
+			return new URL(apiEndpoint, new URL(photo.getOriginalUrl()).getFile()).openStream();
+		}
+		else {
+			return flickr.getPhotosInterface().getImageAsStream(photo, Size.ORIGINAL);
+		}
+	}
+
+	/**
+	 * Returns the URL of the original image of the given photo, on the configured API
+	 * endpoint if there is one (see {@link #getOriginalImageStream(Photo)}).
+	 */
+	private URL getOriginalImageUrl(Photo photo) throws FlickrException, IOException {
+		if (apiEndpoint != null) {
+			return new URL(apiEndpoint, new URL(photo.getOriginalUrl()).getFile());
+		}
+		else {
+			return new URL(photo.getOriginalUrl());
+		}
+	}
+
+	/**
+	 * Downloads only the given chunks of a multichunk: The image trailer (table of the ZIP 
+	 * entries, sync points) is read from the end of the image, and the image bytes between
+	 * the sync points around the chunks are fetched via HTTP range requests. Chunks in the same
+	 * or adjacent sync intervals are fetched with a single request. The chunks are written to a 
+	 * new ZIP file in the format of the {@link org.syncany.chunk.ZipMultiChunk ZipMultiChunk}.
+	 *
+	 * <p>Returns <tt>false</tt> if the multichunk was uploaded without a trailer (e.g. because
+	 * it is encrypted or compressed), or if the image host does not support range requests.
+	 */
+	@Override
+	public boolean downloadChunks(MultichunkRemoteFile remoteFile, Set<ChunkChecksum> chunkChecksums, File localFile) throws StorageException {
+		initRequestContext();
+		publishCommits();
+
+		Photo photo = getPhoto(remoteFile);
+
+		try {
+			// Photos from our own uploads lack the original URL fields
+			if (photo.getOriginalFormat() == null) {
+				photo = getPhotoWithOriginalUrl(photo);
+			}
+
+			URL imageUrl = getOriginalImageUrl(photo);
+			PngEncoder.Trailer trailer = readImageTrailer(imageUrl);
+
+			if (trailer == null || trailer.getSyncPointCount() == 0) {
+				logger.log(Level.INFO, "Image of " + remoteFile + " has no sync points, or the image host does not support range requests.");
+				return false;
+			}
+
+			ZipEntryTable entryTable = ZipEntryTable.fromTable(trailer.getTextEntries().get(ZipEntryTable.TABLE_KEYWORD));
+			List<ZipEntryTable.Entry> entries = new ArrayList<ZipEntryTable.Entry>();
+
+			for (ChunkChecksum chunkChecksum : chunkChecksums) {
+				ZipEntryTable.Entry entry = entryTable.get(chunkChecksum.toString());
+
+				if (entry == null) {
+					logger.log(Level.INFO, "Chunk " + chunkChecksum + " not found in entry table of " + remoteFile + ".");
+					return false;
+				}
+
+				entries.add(entry);
+			}
+
+			Collections.sort(entries, new Comparator<ZipEntryTable.Entry>() {
+				@Override
+				public int compare(ZipEntryTable.Entry entry1, ZipEntryTable.Entry entry2) {
+					return Integer.compare(entry1.getOffset(), entry2.getOffset());
+				}
+			});
+
+			long downloadedBytes = 0;
+
+			try (ZipOutputStream zipOutputStream = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(localFile)))) {
+				zipOutputStream.setLevel(ZipOutputStream.STORED); // Like ZipMultiChunk
+
+				for (int i = 0; i < entries.size();) {
+					// Group entries whose image ranges overlap or touch
+					int rangeStart = FLICKR_MIN_IMAGE_BYTES + entries.get(i).getOffset();
+					int rangeEnd = rangeStart + entries.get(i).getLength();
+					int startSyncPoint = trailer.getSyncPointBefore(rangeStart);
+					int endSyncPoint = trailer.getSyncPointAfter(rangeEnd);
+					int groupEnd = i + 1;
+
+					while (groupEnd < entries.size() && trailer.getSyncPointBefore(FLICKR_MIN_IMAGE_BYTES + entries.get(groupEnd).getOffset()) <= endSyncPoint) {
+						rangeEnd = Math.max(rangeEnd, FLICKR_MIN_IMAGE_BYTES + entries.get(groupEnd).getOffset() + entries.get(groupEnd).getLength());
+						endSyncPoint = trailer.getSyncPointAfter(rangeEnd);
+						groupEnd++;
+					}
+
+					// Fetch and decode image range, then extract ZIP entries 
+					byte[] imageRange = readImageRange(imageUrl, trailer.getSyncPointImageOffset(startSyncPoint), trailer.getSyncPointImageOffset(endSyncPoint));
+					ByteArrayOutputStream payloadRangeStream = new ByteArrayOutputStream(rangeEnd - rangeStart);
+
+					PngEncoder.decodeFromSyncPoint(new ByteArrayInputStream(imageRange), payloadRangeStream, trailer, startSyncPoint, rangeStart, rangeEnd - rangeStart);
+
+					byte[] payloadRange = payloadRangeStream.toByteArray();
+					downloadedBytes += imageRange.length;
+
+					for (; i < groupEnd; i++) {
+						ZipEntryTable.Entry entry = entries.get(i);
+						int entryOffset = FLICKR_MIN_IMAGE_BYTES + entry.getOffset() - rangeStart;
+
+						InputStream entryInputStream = new ByteArrayInputStream(payloadRange, entryOffset, entry.getLength());
+
+						if (entry.getMethod() == ZipEntryTable.METHOD_DEFLATED) { // Raw deflate data; inflater needs an extra byte
+							entryInputStream = new InflaterInputStream(new SequenceInputStream(entryInputStream, new ByteArrayInputStream(new byte[1])), new Inflater(true));
+						}
+
+						zipOutputStream.putNextEntry(new ZipEntry(entry.getName()));
+						IOUtils.copy(entryInputStream, zipOutputStream);
+						zipOutputStream.closeEntry();
+					}
+				}
+			}
+
+			logger.log(Level.INFO, "Downloaded " + chunkChecksums.size() + " chunk(s) of " + remoteFile + " (" + downloadedBytes + " image bytes) to " + localFile);
+			return true;
+		}
+		catch (Exception e) {
+			localFile.delete(); // Never leave a partial file behind
+			throw new StorageException("Cannot download chunks of image " + remoteFile + ", Flickr photo ID " + photo.getId(), e);
+		}
+	}
+
+	/**
+	 * Reads the trailer of the given image: The end of the image is fetched first, and if
+	 * the trailer does not fit in it, the rest of the trailer. Returns <tt>null</tt> if the image
+	 * has no trailer, or if the image host does not support range requests.
+	 */
+	private PngEncoder.Trailer readImageTrailer(URL imageUrl) throws IOException {
+		long[] imageSuffixOffset = new long[1];
+		byte[] imageSuffix = readImageSuffix(imageUrl, IMAGE_TRAILER_FETCH_SIZE, imageSuffixOffset);
+
+		if (imageSuffix == null) {
+			return null;
+		}
+
+		long trailerOffset = PngEncoder.readTrailerOffset(imageSuffix);
+		byte[] trailerBytes;
+
+		if (trailerOffset < 0) {
+			return null;
+		}
+		else if (trailerOffset >= imageSuffixOffset[0]) {
+			trailerBytes = Arrays.copyOfRange(imageSuffix, (int) (trailerOffset - imageSuffixOffset[0]), imageSuffix.length);
+		}
+		else {
+			trailerBytes = readImageRange(imageUrl, trailerOffset, imageSuffixOffset[0] + imageSuffix.length);
+		}
+
+		return PngEncoder.readTrailer(trailerBytes, trailerOffset);
+	}
+
+	/**
+	 * Fetches the last <tt>length</tt> bytes of the given image via an HTTP range request, and 
+	 * stores their image offset in <tt>suffixOffset[0]</tt>. Returns <tt>null</tt> if the image
+	 * host does not support range requests.
+	 */
+	private byte[] readImageSuffix(URL imageUrl, int length, long[] suffixOffset) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) imageUrl.openConnection();
+		connection.setRequestProperty("Range", "bytes=-" + length);
+
+		try (InputStream imageSuffixStream = connection.getInputStream()) {
+			String contentRange = connection.getHeaderField("Content-Range");
+			Matcher contentRangeMatcher = (contentRange != null) ? CONTENT_RANGE_PATTERN.matcher(contentRange) : null;
+
+			if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL || contentRangeMatcher == null || !contentRangeMatcher.matches()) {
+				return null;
+			}
+
+			suffixOffset[0] = Long.parseLong(contentRangeMatcher.group(1));
+			return IOUtils.toByteArray(imageSuffixStream);
+		}
+		finally {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Fetches the bytes from <tt>startOffset</tt> (inclusive) to <tt>endOffset</tt> (exclusive)
+	 * of the given image via an HTTP range request. 
+	 */
+	private byte[] readImageRange(URL imageUrl, long startOffset, long endOffset) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) imageUrl.openConnection();
+		connection.setRequestProperty("Range", "bytes=" + startOffset + "-" + (endOffset - 1));
+
+		try (InputStream imageRangeStream = connection.getInputStream()) {
+			if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+				throw new IOException("Image host does not support range requests; HTTP " + connection.getResponseCode() + " for " + imageUrl);
+			}
+
+			byte[] imageRange = IOUtils.toByteArray(imageRangeStream);
+
+			if (imageRange.length != endOffset - startOffset) {
+				throw new IOException("Invalid image range; expected " + (endOffset - startOffset) + " bytes, but got " + imageRange.length);
+			}
+
+			return imageRange;
+		}
+		finally {
+			connection.disconnect();
+		}
+	}
+
 	@Override
 	public void upload(File localFile, RemoteFile remoteFile) throws StorageException {
-		upload(localFile, remoteFile, true);
+		if (isPackable(localFile, remoteFile)) {
+			stageUpload(localFile, remoteFile);
+		}
+		else {
+			upload(localFile, remoteFile, true);
+		}
 	}	
 
+	/**
+	 * Encodes the given local file to a PNG image and uploads it as a photo titled with the
+	 * remote file name. 
+	 * 
+	 * <p>Retries of failed uploads (by the {@link org.syncany.plugins.transfer.RetriableTransferManager 
+	 * RetriableTransferManager}, or after a restart) are made cheaper in two ways: The encoded
+	 * image is kept in the cache until the upload succeeds (see {@link #getPngFile(File, RemoteFile)}),
+	 * and if the {@link FlickrUploadJournal} shows that a previous upload of the same remote file
+	 * did not complete, the photo is first searched on Flickr -- the previous upload might have
+	 * succeeded even though the response was lost. 
+	 */
 	private String upload(File localFile, RemoteFile remoteFile, boolean addToPhotoset) throws StorageException {
+		initRequestContext();
+		File pngFile = null;
+
 		try {
-			UploadMetaData metaData = new UploadMetaData();
+			// Identical file already uploaded: Nothing to do (no quota or time wasted)
+			String checksumDescription = String.format(CHECKSUM_DESCRIPTION_FORMAT, StringUtil.toHex(FileUtil.createChecksum(localFile, CHECKSUM_ALGORITHM)));
+			Photo identicalPhoto = (addToPhotoset) ? findIdenticalPhoto(remoteFile, checksumDescription) : null; // No album yet otherwise
 			
-			metaData.setFilename(remoteFile.getName() + ".png");
-			metaData.setTitle(remoteFile.getName());
-			metaData.setFilemimetype("image/png");	
+			if (identicalPhoto != null) {
+				logger.log(Level.INFO, "Remote file " + remoteFile + " with identical content exists as photo ID " + identicalPhoto.getId() + ". Skipping upload.");
+				return identicalPhoto.getId();
+			}
+
+			String photoId = null;
+
+			// Previous upload did not complete: Use photo if it reached Flickr anyway (no duplicates)
+			if (uploadJournal.isPending(remoteFile.getName())) {
+				Photo uploadedPhoto = searchPhotoNotInAlbum(remoteFile.getName());
 				
-			// Some weird Flickr bug: Images with dimensions < 17x17 are sometimes rejected.			
-			ByteArrayOutputStream paddedContentsOutputStream = new ByteArrayOutputStream();			
-			paddedContentsOutputStream.write(new byte[FLICKR_MIN_IMAGE_BYTES]);
-			paddedContentsOutputStream.write(FileUtils.readFileToByteArray(localFile));
-			
-			byte[] fileContents = paddedContentsOutputStream.toByteArray();
-			
-			// Encode local file to PNG image
-			ByteArrayOutputStream encodedPngOutputStream = new ByteArrayOutputStream();
+				if (uploadedPhoto != null) {
+					logger.log(Level.INFO, "Previous upload of " + remoteFile + " succeeded as photo ID " + uploadedPhoto.getId() + ". Not uploading again.");
+					photoId = uploadedPhoto.getId();
+				}
+			}
 
-			PngEncoder.encodeToPng(fileContents, encodedPngOutputStream);
-			encodedPngOutputStream.close();
-			
-			byte[] pngEncodedFileContents = encodedPngOutputStream.toByteArray();			
-			
-			// Upload PNG image to Flickr 
-			Uploader uploader = flickr.getUploader();
-			String photoId = uploader.upload(pngEncodedFileContents, metaData);
+			if (photoId == null) {
+				// Encode local file to PNG image (streamed to a file, no in-memory copies)
+				pngFile = getPngFile(localFile, remoteFile);
+
+				// Upload PNG image to Flickr (streamed from the file)
+				uploadJournal.begin(remoteFile.getName());
+				photoId = uploader.upload(pngFile, remoteFile.getName() + ".png", remoteFile.getName(), checksumDescription);
+
+				logger.log(Level.INFO, "Uploaded file " + localFile + " to " + remoteFile + ", as photo ID " + photoId);
+				
+				pngFile.delete();
+				pngFile = null;
+			}
 
-			// Add image to photoset (album)
+			uploadJournal.complete(remoteFile.getName());
+
+			// Add image to photoset(s); deferred for temp. files, see flushPhotosetQueueIfFinal()
 			if (addToPhotoset) {
-				flickr.getPhotosetsInterface().addPhoto(photosetId, photoId);
+				Photo indexPhoto = createPhoto(photoId, remoteFile.getName());
+				indexPhoto.setDescription(checksumDescription);
+
+				for (String targetPhotosetId : getUploadPhotosetIds(remoteFile.getName())) {
+					getPhotoIndex(targetPhotosetId).put(indexPhoto);
+					photosetQueue.add(targetPhotosetId, photoId);
+				}
+				
+				flushPhotosetQueueIfFinal(remoteFile);
 			}
 			
-			logger.log(Level.INFO, "Uploaded file " + localFile + " to " + remoteFile + ", as photo ID " + photoId);
 			return photoId;
 		}
 		catch (Exception e) {
+			// Cached PNG images are kept for the retry, temp. files are not
+			if (pngFile != null && config == null) {
+				pngFile.delete();
+			}
+			
 			throw new StorageException("Cannot upload file " + localFile + " to remote file ", e);
 		}
 	}	
 
+	/**
+	 * Looks up the photo for the given remote file in the local photo index of its (most
+	 * specific) album, and returns it if its description matches the given checksum
+	 * description, i.e. if it has the same payload. Returns <tt>null</tt> otherwise.
+	 * 
+	 * <p>Only the index is consulted (no API calls), because it is updated by every
+	 * {@link #list(Class) list} operation, and by all uploads of this transfer manager. 
+	 * Photos uploaded before checksums were stored never match.
+	 */
+	private Photo findIdenticalPhoto(RemoteFile remoteFile, String checksumDescription) throws StorageException {
+		List<String> targetPhotosetIds = getPhotosetIds(remoteFile.getName());
+		String lookupPhotosetId = targetPhotosetIds.get(targetPhotosetIds.size() - 1); // Most specific album
+		Photo photo = getPhotoIndex(lookupPhotosetId).get(remoteFile.getName());
+		
+		boolean identicalPhoto = photo != null && remoteFile.getName().equals(photo.getTitle()) // Not a container
+				&& checksumDescription.equals(photo.getDescription());
+		
+		return (identicalPhoto) ? photo : null;
+	}
+
+	/**
+	 * Returns the PNG image for the given local file. If a cache is available, the image is
+	 * stored in the cache directory (keyed by the remote file name, i.e. the multichunk ID or
+	 * the transaction's temp. file name), and reused if it is not older than the local file.
+	 * This way, a retried upload does not have to encode the file again. Without a cache,
+	 * the image is encoded to a temp. file.
+	 */
+	private File getPngFile(File localFile, RemoteFile remoteFile) throws IOException {
+		if (config == null) {
+			File pngFile = createTempFile(remoteFile.getName() + "-png");
+			encodeToPng(localFile, remoteFile, pngFile);
+
+			return pngFile;
+		}
+
+		File cachedPngFile = new File(config.getCacheDir(), String.format(PNG_CACHE_FILE_FORMAT, remoteFile.getName()));
+
+		if (cachedPngFile.exists() && cachedPngFile.lastModified() >= localFile.lastModified()) {
+			logger.log(Level.INFO, "Using cached PNG image " + cachedPngFile + " for " + remoteFile + ".");
+			return cachedPngFile;
+		}
+
+		// Encode to temp. file first, so that a partial image is never mistaken for a cached one
+		File tempPngFile = createTempFile(remoteFile.getName() + "-png");
+
+		try {
+			encodeToPng(localFile, remoteFile, tempPngFile);
+			Files.move(tempPngFile.toPath(), cachedPngFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+			return cachedPngFile;
+		}
+		finally {
+			tempPngFile.delete();
+		}
+	}
+
+	/**
+	 * Encodes the given local file to a PNG file. The payload is prepended with
+	 * {@link #FLICKR_MIN_IMAGE_BYTES} padding bytes, because of a weird Flickr bug: 
+	 * Images with dimensions < 17x17 are sometimes rejected.
+	 *
+	 * <p>The padding is kept for all {@link PngEncoder.Profile profiles}, so that the payload
+	 * offsets do not depend on the profile. The profile's minimum image size additionally
+	 * ensures the minimum dimensions if pixels are larger than three bytes.
+	 *
+	 * <p>Multichunks that are plain ZIP files get a table of their entries and sync points in
+	 * the image trailer, so that single chunks can be downloaded, see {@link #downloadChunks(MultichunkRemoteFile, Set, File)}.
+	 */
+	private void encodeToPng(File localFile, RemoteFile remoteFile, File pngFile) throws IOException {
+		long paddedLength = FLICKR_MIN_IMAGE_BYTES + localFile.length();
+
+		if (paddedLength > Integer.MAX_VALUE) {
+			throw new IOException("File too big; max. " + (Integer.MAX_VALUE - FLICKR_MIN_IMAGE_BYTES) + " bytes supported.");
+		}
+
+		InputStream paddedInputStream = new SequenceInputStream(new ByteArrayInputStream(new byte[FLICKR_MIN_IMAGE_BYTES]), new BufferedInputStream(new FileInputStream(localFile)));
+		OutputStream pngOutputStream = new BufferedOutputStream(new FileOutputStream(pngFile));
+
+		ZipEntryTable entryTable = (remoteFile instanceof MultichunkRemoteFile) ? ZipEntryTable.fromZipFile(localFile) : null;
+
+		if (entryTable != null && !entryTable.isEmpty()) {
+			Map<String, String> trailingTextEntries = Collections.singletonMap(ZipEntryTable.TABLE_KEYWORD, entryTable.toTable());
+			PngEncoder.Profile syncProfile = pngProfile.withSyncInterval(MULTICHUNK_SYNC_INTERVAL);
+
+			PngEncoder.encodeToPng(paddedInputStream, (int) paddedLength, pngOutputStream, Collections.<String, String> emptyMap(), trailingTextEntries, syncProfile); // Closes both streams
+		}
+		else {
+			PngEncoder.encodeToPng(paddedInputStream, (int) paddedLength, pngOutputStream, pngProfile); // Closes both streams
+		}
+	}
+
+	/**
+	 * Deletes the photo of the given file (or removes the file from its container). Deferred
+	 * moves are published first; this makes the deletion of a transaction file, which completes
+	 * a {@link RemoteTransaction}, the point at which the transaction's files become visible.
+	 */
 	@Override
 	public boolean delete(RemoteFile remoteFile) throws StorageException {		
+		publishCommits(); // Must not be ignored like the errors below
+
 		try {
-			Photo photo = getPhoto(remoteFile);					
+			initRequestContext();
+
+			if (deleteStagedFile(remoteFile)) {
+				return true;
+			}
+
+			RemoteFile lookupFile = getPackedFile(remoteFile, true);
+			Photo photo = getPhoto(lookupFile);
+
+			if (PngContainer.isContainerTitle(photo.getTitle())) {
+				deleteFromContainer(lookupFile);
+				return true;
+			}
+
+			// Never add a photo to the album that is about to be deleted
+			photosetQueue.remove(photo.getId());
+			photosetQueue.flush();
+
 			flickr.getPhotosInterface().delete(photo.getId());
+
+			for (FlickrPhotoIndex photoIndex : getPhotoIndexes()) {
+				photoIndex.remove(photo.getId());
+			}
 			
 			return true;
 		}
@@ -221,73 +827,656 @@ public class FlickrTransferManager extends AbstractTransferManager {
 		}		
 	}
 
+	/**
+	 * Renames the photo of the given source file to the target file name (or renames the
+	 * file in its container). 
+	 * 
+	 * <p>If commit markers are enabled (see {@link FlickrTransferSettings#isCommitMarkers()}),
+	 * moving a temp. file to its final location (as in {@link RemoteTransaction}) does not rename
+	 * the photo. The move is deferred until the next operation other than an upload or another
+	 * such move, and all deferred moves are then published at once, see {@link #publishCommits()}.
+	 */
 	@Override
 	public void move(RemoteFile sourceFile, RemoteFile targetFile) throws StorageException {		
 		try {
-			Photo photo = getPhoto(sourceFile);			
-			flickr.getPhotosInterface().setMeta(photo.getId(), targetFile.getName(), null);
+			initRequestContext();
+
+			if (moveStagedFile(sourceFile, targetFile)) {
+				return;
+			}
+
+			RemoteFile lookupFile = getPackedFile(sourceFile, true);
+
+			if (lookupFile.getName().equals(targetFile.getName())) {
+				return; // Already packed under its final name, see packStagedFiles()
+			}
+
+			boolean deferrableMove = isDeferrableMove(sourceFile, targetFile);
+
+			if (!deferrableMove) {
+				publishCommits(); // Source might be a deferred target
+			}
+
+			Photo photo = getPhoto(lookupFile);
+
+			if (deferrableMove && sourceFile.getName().equals(photo.getTitle())) {
+				synchronized (commitLock) {
+					pendingCommits.put(photo.getId(), photo.getTitle());
+				}
+			}
+			else if (PngContainer.isContainerTitle(photo.getTitle())) {
+				renameInContainer(lookupFile, targetFile);
+			}
+			else {
+				flickr.getPhotosInterface().setMeta(photo.getId(), targetFile.getName(), photo.getDescription()); // Keep checksum
+
+				for (FlickrPhotoIndex photoIndex : getPhotoIndexes()) {
+					photoIndex.setTitle(photo.getId(), targetFile.getName());
+				}
+			}
+			
+			flushPhotosetQueueIfFinal(targetFile);
 		}
 		catch (Exception e) {
 			throw new StorageException(e);
 		}		
 	}
-	
+
+	/**
+	 * Moves the given files, with up to {@link FlickrTransferSettings#getMaxConcurrentTransfers()}
+	 * requests in parallel. All files are looked up beforehand (see {@link #resolveExistingFiles(Collection)}),
+	 * so that each move is a single API call. Files that cannot be found are ignored.
+	 */
 	@Override
-	public <T extends RemoteFile> Map<String, T> list(Class<T> remoteFileClass) throws StorageException {
+	public void moveAll(final Map<RemoteFile, RemoteFile> sourceToTargetFiles) throws StorageException {
+		publishCommits();
+		List<RemoteFile> existingSourceFiles = resolveExistingFiles(sourceToTargetFiles.keySet());
+		logger.log(Level.INFO, "Moving " + existingSourceFiles.size() + " of " + sourceToTargetFiles.size() + " file(s) ...");
+
+		executeForEachFile(existingSourceFiles, new RemoteFileTask() {
+			@Override
+			public void execute(RemoteFile sourceFile) throws StorageException {
+				move(sourceFile, sourceToTargetFiles.get(sourceFile));
+			}
+		});
+	}
+
+	/**
+	 * Deletes the given files, with up to {@link FlickrTransferSettings#getMaxConcurrentTransfers()}
+	 * requests in parallel. Like {@link #moveAll(Map)}, all files are looked up beforehand, and files
+	 * that cannot be found are ignored.
+	 * 
+	 * <p>API errors never escape this method: If the files cannot be looked up, all of them are returned
+	 * as failed; otherwise, each file that cannot be deleted is returned.
+	 */
+	@Override
+	public Set<RemoteFile> deleteAll(Collection<RemoteFile> remoteFiles) throws StorageException {
+		List<RemoteFile> existingRemoteFiles;
+
 		try {
-			Map<String, T> fileList = new HashMap<String, T>();
-					
-			boolean morePhotos = true;
-			int maxPhotos = 1000;
-			int currentPage = 1;
-			
-			while (morePhotos) {
-				PhotoList<Photo> partialPhotoList = flickr.getPhotosetsInterface().getPhotos(photosetId, maxPhotos, currentPage);
-				
-				for (Photo photo : partialPhotoList) {
+			publishCommits();
+			existingRemoteFiles = resolveExistingFiles(remoteFiles);
+		}
+		catch (StorageException e) {
+			logger.log(Level.WARNING, "Cannot look up " + remoteFiles.size() + " file(s) to delete.", e);
+			return new HashSet<RemoteFile>(remoteFiles);
+		}
+
+		final Set<RemoteFile> failedRemoteFiles = Collections.synchronizedSet(new HashSet<RemoteFile>());
+		logger.log(Level.INFO, "Deleting " + existingRemoteFiles.size() + " of " + remoteFiles.size() + " file(s) ...");
+
+		try {
+			executeForEachFile(existingRemoteFiles, new RemoteFileTask() {
+				@Override
+				public void execute(RemoteFile remoteFile) {
 					try {
-						RemoteFile remoteFile = RemoteFile.createRemoteFile(photo.getTitle());
-						
-						if (remoteFile.getClass().equals(remoteFileClass)) {					
-							T concreteRemoteFile = remoteFileClass.cast(remoteFile);					
-							fileList.put(remoteFile.getName(), concreteRemoteFile);
+						if (!delete(remoteFile)) {
+							failedRemoteFiles.add(remoteFile);
 						}
-						
-						remoteFilePhotoIdCache.put(remoteFile, photo);
 					}
-					catch (Exception e) {
-						// Ignore invalid filenames
-					}					
-				}
-				
-				if (partialPhotoList.size() < 1000) {
-					morePhotos = false;
-				}
-				else {
-					currentPage++;
-					morePhotos = true;
+					catch (StorageException e) {
+						logger.log(Level.WARNING, "Cannot delete " + remoteFile + ".", e);
+						failedRemoteFiles.add(remoteFile);
+					}
 				}
-			}
-			
-			return fileList;
+			});
 		}
-		catch (FlickrException e) {
-			throw new StorageException(e);
+		catch (StorageException e) {
+			logger.log(Level.WARNING, "Cannot delete " + existingRemoteFiles.size() + " file(s).", e);
+			failedRemoteFiles.addAll(existingRemoteFiles); // Some might have been deleted, deleting them again is harmless
 		}
+
+		savePhotoIndexes();
+		return new HashSet<RemoteFile>(failedRemoteFiles);
 	}
 	
 	@Override
-	public boolean testTargetCanWrite() {
-		return true;
-	}
+	public <T extends RemoteFile> Map<String, T> list(Class<T> remoteFileClass) throws StorageException {
+		initRequestContext();
+		publishCommits();
+		verifyAlbums();
 
-	@Override
-	public boolean testTargetExists() {
-		try {
-			if (photosetId == null) {
+		List<String> listPhotosetIds = getListPhotosetIds(remoteFileClass);
+		updatePhotoIndexes(listPhotosetIds);
+		
+		Map<String, T> fileList = new HashMap<String, T>();
+		
+		for (String listPhotosetId : listPhotosetIds) {
+			for (String fileName : getPhotoIndex(listPhotosetId).getFileNames()) {
+				try {
+					RemoteFile remoteFile = RemoteFile.createRemoteFile(fileName);
+				
+					if (remoteFile.getClass().equals(remoteFileClass)) {
+						T concreteRemoteFile = remoteFileClass.cast(remoteFile);
+						fileList.put(remoteFile.getName(), concreteRemoteFile);
+					}
+				}
+				catch (Exception e) {
+					// Ignore invalid filenames
+				}
+			}					
+		}
+		
+		return fileList;
+	}
+	
+	/**
+	 * Brings the local photo indexes of the given albums up to date. Albums are updated in
+	 * parallel, with up to {@link FlickrTransferSettings#getMaxConcurrentTransfers()} requests.
+	 * 
+	 * <p>If an index is complete (loaded from the cache, or built before), only the photos
+	 * changed since the last update are fetched (using <tt>flickr.photos.recentlyUpdated</tt>,
+	 * once for all albums), so that the cost depends on the number of changes rather than on the
+	 * album size. Photos deleted by other clients do not show up as changes; they are detected by
+	 * comparing the index size to the album's photo count, in which case the index is rebuilt.
+	 */
+	private void updatePhotoIndexes(List<String> updatePhotosetIds) throws StorageException {
+		resolveAlbums(false);
+		photosetQueue.flush(); // Albums must contain our own uploads
+		
+		synchronized (photoIndexUpdateLock) {
+			try {
+				List<String> completePhotosetIds = new ArrayList<String>();
+				List<String> rebuildPhotosetIds = new ArrayList<String>();
+		
+				for (String updatePhotosetId : updatePhotosetIds) {
+					if (getPhotoIndex(updatePhotosetId).isComplete()) {
+						completePhotosetIds.add(updatePhotosetId);
+					}
+					else {
+						rebuildPhotosetIds.add(updatePhotosetId);
+					}
+				}
+
+				if (!completePhotosetIds.isEmpty()) {
+					final Map<String, Integer> albumPhotoCounts = Collections.synchronizedMap(new HashMap<String, Integer>());
+
+					executeForEachPhotoset(completePhotosetIds, new PhotosetTask() {
+						@Override
+						public void execute(String photosetId) throws FlickrException {
+							albumPhotoCounts.put(photosetId, flickr.getPhotosetsInterface().getInfo(photosetId).getPhotoCount());
+						}
+					});
+
+					rebuildPhotosetIds.addAll(updatePhotoIndexesIncrementally(completePhotosetIds, albumPhotoCounts));
+				}
+
+				executeForEachPhotoset(rebuildPhotosetIds, new PhotosetTask() {
+					@Override
+					public void execute(String photosetId) throws FlickrException {
+						rebuildPhotoIndex(photosetId);
+					}
+				});
+
+				resolveCommitMarkerPayloads(updatePhotosetIds);
+			}
+			catch (FlickrException e) {
+				throw new StorageException("Cannot update photo indexes for albums " + updatePhotosetIds, e);
+			}
+		}
+
+		savePhotoIndexes();
+	}
+	
+	private void rebuildPhotoIndex(String rebuildPhotosetId) throws FlickrException {
+		FlickrPhotoIndex photoIndex = getPhotoIndex(rebuildPhotosetId);
+		photoIndex.reset();
+		
+		boolean morePhotos = true;
+		int currentPage = 1;
+		
+		while (morePhotos) {
+			PhotoList<Photo> partialPhotoList = flickr.getPhotosetsInterface().getPhotos(rebuildPhotosetId, PHOTO_EXTRAS, Flickr.PRIVACY_LEVEL_NO_FILTER, FLICKR_MAX_PHOTOS_PER_PAGE, currentPage);
+			
+			for (Photo photo : partialPhotoList) {
+				photoIndex.put(photo);
+			}
+			
+			morePhotos = partialPhotoList.size() == FLICKR_MAX_PHOTOS_PER_PAGE;
+			currentPage++;
+		}
+		
+		logger.log(Level.INFO, "Photo index for album " + rebuildPhotosetId + " rebuilt with " + photoIndex.size() + " photo(s).");
+	}
+	
+	/**
+	 * Fetches all of the user's photos changed since the oldest of the given indexes was last
+	 * updated, and adds them to the indexes of the albums they are part of. Photos already in
+	 * an index are updated (e.g. renamed by another client).
+	 *
+	 * <p>For unknown photos that belong in one of the albums (by their name), the album membership
+	 * has to be checked individually, because the user may have other photos or albums. If there
+	 * are more such photos than pages in the album, rebuilding the index is cheaper.
+	 *
+	 * <p>If a metadata file is found in the main album, but not in the metadata album (e.g.
+	 * uploaded by an older client), it is added to the metadata album.
+	 *
+	 * @return Returns the IDs of all albums whose index must be rebuilt
+	 */
+	private List<String> updatePhotoIndexesIncrementally(List<String> updatePhotosetIds, Map<String, Integer> albumPhotoCounts) throws FlickrException, StorageException {
+		long minLastUpdate = Long.MAX_VALUE;
+		
+		for (String updatePhotosetId : updatePhotosetIds) {
+			minLastUpdate = Math.min(minLastUpdate, getPhotoIndex(updatePhotosetId).getLastUpdate());
+		}
+
+		Date minLastUpdateDate = new Date(Math.max(0, minLastUpdate - INDEX_UPDATE_OVERLAP_SECONDS) * 1000);
+		Map<String, List<Photo>> unknownPhotos = new HashMap<String, List<Photo>>();
+
+		for (String updatePhotosetId : updatePhotosetIds) {
+			unknownPhotos.put(updatePhotosetId, new ArrayList<Photo>());
+		}
+
+		boolean morePhotos = true;
+		int currentPage = 1;
+		
+		while (morePhotos) {
+			PhotoList<Photo> partialPhotoList = flickr.getPhotosInterface().recentlyUpdated(minLastUpdateDate, PHOTO_EXTRAS, FLICKR_MAX_PHOTOS_PER_PAGE, currentPage);
+			
+			for (Photo photo : partialPhotoList) {
+				List<String> targetPhotosetIds = getPhotosetIds(photo.getTitle());
+
+				for (String updatePhotosetId : updatePhotosetIds) {
+					FlickrPhotoIndex photoIndex = getPhotoIndex(updatePhotosetId);
+
+					if (photoIndex.contains(photo.getId())) {
+						photoIndex.put(photo);
+					}
+					else if (targetPhotosetIds.contains(updatePhotosetId)) {
+						unknownPhotos.get(updatePhotosetId).add(photo);
+					}
+				}
+			}
+			
+			morePhotos = partialPhotoList.size() == FLICKR_MAX_PHOTOS_PER_PAGE;
+			currentPage++;
+		}
+		
+		List<String> rebuildPhotosetIds = new ArrayList<String>();
+	
+		for (String updatePhotosetId : updatePhotosetIds) {
+			FlickrPhotoIndex photoIndex = getPhotoIndex(updatePhotosetId);
+			int albumPhotoCount = albumPhotoCounts.get(updatePhotosetId);
+
+			if (unknownPhotos.get(updatePhotosetId).size() > albumPhotoCount / FLICKR_MAX_PHOTOS_PER_PAGE + 1) {
+				rebuildPhotosetIds.add(updatePhotosetId);
+				continue;
+			}
+
+			for (Photo photo : unknownPhotos.get(updatePhotosetId)) {
+				Set<String> photoPhotosetIds = getPhotosetIdsOfPhoto(photo);
+
+				if (photoPhotosetIds.contains(updatePhotosetId)) {
+					photoIndex.put(photo);
+				}
+				else if (updatePhotosetId.equals(metadataPhotosetId) && photoPhotosetIds.contains(photosetId)) {
+					logger.log(Level.INFO, "Metadata file " + photo.getTitle() + " not in metadata album. Adding it.");
+
+					photoIndex.put(photo);
+					photosetQueue.add(metadataPhotosetId, photo.getId());
+				}
+			}
+
+			if (photoIndex.size() != albumPhotoCount) {
+				logger.log(Level.INFO, "Photo index has " + photoIndex.size() + " photo(s), album " + updatePhotosetId + " has " + albumPhotoCount + ". Rebuilding index ...");
+				rebuildPhotosetIds.add(updatePhotosetId);
+			}
+			else {
+				logger.log(Level.INFO, "Photo index updated; " + albumPhotoCount + " photo(s) in album " + updatePhotosetId + ".");
+			}
+		}
+		
+		photosetQueue.flush();
+		return rebuildPhotosetIds;
+	}
+
+	/**
+	 * Runs the given task for each of the given albums, with up to
+	 * {@link FlickrTransferSettings#getMaxConcurrentTransfers()} tasks in parallel.
+	 */
+	private void executeForEachPhotoset(List<String> photosetIds, final PhotosetTask photosetTask) throws StorageException {
+		if (photosetIds.isEmpty()) {
+			return;
+		}
+
+		TransferExecutor executor = new TransferExecutor(Math.min(getSettings().getMaxConcurrentTransfers(), photosetIds.size()), "FlickrIndex");
+
+		try {
+			for (final String photosetId : photosetIds) {
+				executor.submit(new TransferTask() {
+					@Override
+					public void execute() throws StorageException {
+						try {
+							initRequestContext();
+							photosetTask.execute(photosetId);
+						}
+						catch (FlickrException e) {
+							throw new StorageException("Cannot update photo index for album " + photosetId, e);
+						}
+					}
+				});
+			}
+
+			executor.awaitAll();
+		}
+		catch (IOException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * Runs the given task for each of the given files, with up to
+	 * {@link FlickrTransferSettings#getMaxConcurrentTransfers()} tasks in parallel.
+	 */
+	private void executeForEachFile(List<RemoteFile> remoteFiles, final RemoteFileTask remoteFileTask) throws StorageException {
+		if (remoteFiles.isEmpty()) {
+			return;
+		}
+
+		TransferExecutor executor = new TransferExecutor(Math.min(getSettings().getMaxConcurrentTransfers(), remoteFiles.size()), "FlickrBulk");
+
+		try {
+			for (final RemoteFile remoteFile : remoteFiles) {
+				executor.submit(new TransferTask() {
+					@Override
+					public void execute() throws StorageException {
+						initRequestContext();
+						remoteFileTask.execute(remoteFile);
+					}
+				});
+			}
+
+			executor.awaitAll();
+		}
+		catch (IOException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	/**
+	 * Returns the given files that exist, i.e. that are staged or in their photo index. If
+	 * some files are not in their photo index, the indexes of all affected albums are updated
+	 * at once, so that a batch of files is looked up with one listing instead of one per file.
+	 */
+	private List<RemoteFile> resolveExistingFiles(Collection<RemoteFile> remoteFiles) throws StorageException {
+		initRequestContext();
+
+		Set<String> updatePhotosetIds = new LinkedHashSet<String>();
+
+		for (RemoteFile remoteFile : remoteFiles) {
+			if (!isStagedOrIndexed(remoteFile)) {
+				updatePhotosetIds.add(getLookupPhotosetId(getPackedFile(remoteFile, false)));
+			}
+		}
+
+		if (!updatePhotosetIds.isEmpty()) {
+			updatePhotoIndexes(new ArrayList<String>(updatePhotosetIds));
+		}
+
+		List<RemoteFile> existingRemoteFiles = new ArrayList<RemoteFile>();
+
+		for (RemoteFile remoteFile : remoteFiles) {
+			if (isStagedOrIndexed(remoteFile)) {
+				existingRemoteFiles.add(remoteFile);
+			}
+			else {
+				logger.log(Level.INFO, "Remote file " + remoteFile + " not found. Ignoring.");
+			}
+		}
+
+		return existingRemoteFiles;
+	}
+
+	private boolean isStagedOrIndexed(RemoteFile remoteFile) throws StorageException {
+		synchronized (stagedFiles) {
+			if (stagedFiles.containsKey(remoteFile.getName())) {
+				return true;
+			}
+		}
+
+		RemoteFile lookupFile = getPackedFile(remoteFile, false);
+		return getPhotoIndex(getLookupPhotosetId(lookupFile)).get(lookupFile.getName()) != null;
+	}
+
+	private Set<String> getPhotosetIdsOfPhoto(Photo photo) throws FlickrException {
+		Set<String> photoPhotosetIds = new HashSet<String>();
+
+		for (PhotoSet photoSet : flickr.getPhotosInterface().getAllContexts(photo.getId()).getPhotoSetList()) {
+			photoPhotosetIds.add(photoSet.getId());
+		}
+
+		return photoPhotosetIds;
+	}
+
+	/**
+	 * Determines the IDs of the metadata album and the multichunk albums. If they are not
+	 * configured, they are looked up via the links in the main album's description.
+	 * 
+	 * <p>If there is no metadata album link, the repository was created before metadata albums
+	 * existed. Its metadata files are then looked up and listed in the main album. The repository
+	 * is only migrated (see {@link #migrateToMetadataAlbum(Photoset)}) if <tt>migrate</tt> is set,
+	 * i.e. when a metadata file is written -- never when files are only listed or read.
+	 */
+	private void resolveAlbums(boolean migrate) throws StorageException {
+		synchronized (albumLock) {
+			if (multichunkPhotosetIds != null && (metadataPhotosetId != null || !migrate)) {
+				return;
+			}
+
+			try {
+				initRequestContext();
+
+				Photoset photoset = flickr.getPhotosetsInterface().getInfo(photosetId);
+				String linkedMetadataPhotosetId = parseMetadataPhotosetId(photoset.getDescription());
+
+				if (linkedMetadataPhotosetId == null && migrate) {
+					linkedMetadataPhotosetId = migrateToMetadataAlbum(photoset);
+					metadataAlbumVerified = true; // Nothing to repair, all metadata files were just added
+				}
+
+				multichunkPhotosetIds = parseMultichunkPhotosetIds(photoset.getDescription());
+				metadataPhotosetId = linkedMetadataPhotosetId;
+			}
+			catch (FlickrException e) {
+				throw new StorageException("Cannot determine metadata album for album " + photosetId, e);
+			}
+		}
+	}
+
+	/**
+	 * Checks the metadata album used by this transfer manager against the link in the main
+	 * album's description, and switches to the linked album if they differ. This happens if
+	 * another client migrated the repository concurrently (see {@link #migrateToMetadataAlbum(Photoset)}),
+	 * and overwrote the link that this client read. Files uploaded in the meantime went to an
+	 * album that nobody else lists, so the metadata album is repaired afterwards (see
+	 * {@link #repairMetadataAlbum()}). 
+	 * 
+	 * <p>The metadata album is also repaired the first time it is verified by this transfer manager,
+	 * because a client that used an unlinked album might not have noticed before it stopped.
+	 * Configured albums (see {@link FlickrTransferSettings#getMetadataAlbum()}) are created along
+	 * with the main album and are never re-linked, so they are not checked.
+	 */
+	private void verifyAlbums() throws StorageException {
+		if (getSettings().getMetadataAlbum() != null) {
+			return;
+		}
+
+		resolveAlbums(false);
+		photosetQueue.flush(); // Main album must contain our own uploads before it is compared
+
+		synchronized (albumLock) {
+			try {
+				initRequestContext();
+
+				String linkedMetadataPhotosetId = parseMetadataPhotosetId(flickr.getPhotosetsInterface().getInfo(photosetId).getDescription());
+				
+				if (linkedMetadataPhotosetId == null || (linkedMetadataPhotosetId.equals(metadataPhotosetId) && metadataAlbumVerified)) {
+					return;
+				}
+				else if (metadataPhotosetId != null && !linkedMetadataPhotosetId.equals(metadataPhotosetId)) {
+					logger.log(Level.WARNING, "Album " + metadataPhotosetId + " is not the linked metadata album anymore (concurrent migration). Using album "
+							+ linkedMetadataPhotosetId + " instead; album " + metadataPhotosetId + " can be deleted.");
+				}
+
+				metadataPhotosetId = linkedMetadataPhotosetId;
+			}
+			catch (FlickrException e) {
+				throw new StorageException("Cannot verify metadata album of album " + photosetId, e);
+			}
+		}
+
+		repairMetadataAlbum(); // Not holding the album lock, updating the indexes resolves albums
+		metadataAlbumVerified = true;
+	}
+
+	/**
+	 * Adds all metadata files (and commit markers) of the main album that are missing in the
+	 * metadata album to it. The main album always holds all files, so this restores files that
+	 * were added to the wrong metadata album, or never added to one. Both albums are compared
+	 * via their photo indexes, i.e. after the first time, this only fetches recent changes.
+	 * 
+	 * <p>Photos that cannot be added (e.g. because they were deleted in the meantime) are skipped.
+	 */
+	private void repairMetadataAlbum() throws StorageException {
+		updatePhotoIndexes(Arrays.asList(photosetId, metadataPhotosetId));
+
+		FlickrPhotoIndex metadataPhotoIndex = getPhotoIndex(metadataPhotosetId);
+		List<Photo> missingPhotos = new ArrayList<Photo>();
+
+		for (Photo photo : getPhotoIndex(photosetId).getPhotos()) {
+			if (isMetadataAlbumPhoto(photo.getTitle()) && !metadataPhotoIndex.contains(photo.getId())) {
+				missingPhotos.add(photo);
+			}
+		}
+
+		if (missingPhotos.isEmpty()) {
+			return;
+		}
+
+		logger.log(Level.INFO, "Repairing metadata album " + metadataPhotosetId + ": Adding " + missingPhotos.size() + " missing photo(s) of album " + photosetId + " ...");
+
+		for (Photo photo : missingPhotos) {
+			try {
+				flickr.getPhotosetsInterface().addPhoto(metadataPhotosetId, photo.getId());
+				metadataPhotoIndex.put(photo);
+			}
+			catch (FlickrException e) {
+				logger.log(Level.WARNING, "Cannot add photo " + photo.getId() + " (" + photo.getTitle() + ") to metadata album " + metadataPhotosetId + ". Skipping.", e);
+			}
+		}
+	}
+
+	/**
+	 * Creates a metadata album for a repository that only has a main album, links it in the
+	 * main album's description, and adds all metadata files (and commit markers) to it. The
+	 * files stay in the main album, so clients without metadata album support still work.
+	 *
+	 * <p>If another client migrates at the same time, the first link wins: The description is
+	 * read again right before the link is written, and if it already links a metadata album, that
+	 * album is adopted and the new one is deleted. If both clients write their link anyway (i.e. the
+	 * writes overlap), the client whose link is overwritten notices this when it verifies the link
+	 * again (see {@link #verifyAlbums()}).
+	 */
+	private String migrateToMetadataAlbum(Photoset photoset) throws StorageException, FlickrException {
+		logger.log(Level.INFO, "No metadata album found for album " + photosetId + ". Migrating repository ...");
+
+		// Page through the main album directly; the photo index depends on the albums being resolved
+		List<Photo> metadataPhotos = new ArrayList<Photo>();
+
+		boolean morePhotos = true;
+		int currentPage = 1;
+
+		while (morePhotos) {
+			PhotoList<Photo> partialPhotoList = flickr.getPhotosetsInterface().getPhotos(photosetId, PHOTO_EXTRAS, Flickr.PRIVACY_LEVEL_NO_FILTER, FLICKR_MAX_PHOTOS_PER_PAGE, currentPage);
+
+			for (Photo photo : partialPhotoList) {
+				if (isMetadataAlbumPhoto(photo.getTitle())) {
+					metadataPhotos.add(photo);
+				}
+			}
+
+			morePhotos = partialPhotoList.size() == FLICKR_MAX_PHOTOS_PER_PAGE;
+			currentPage++;
+		}
+
+		if (metadataPhotos.isEmpty()) {
+			throw new StorageException("Cannot create metadata album. No metadata files found in album " + photosetId);
+		}
+
+		// Create metadata album, and link it -- unless another client linked one in the meantime
+		Photoset newMetadataPhotoset = flickr.getPhotosetsInterface().create(photoset.getTitle() + " (metadata)", METADATA_ALBUM_DESCRIPTION, metadataPhotos.get(0).getId());
+
+		Photoset currentPhotoset = flickr.getPhotosetsInterface().getInfo(photosetId);
+		String linkedMetadataPhotosetId = parseMetadataPhotosetId(currentPhotoset.getDescription());
+
+		if (linkedMetadataPhotosetId == null) {
+			String currentDescription = (currentPhotoset.getDescription() != null) ? currentPhotoset.getDescription() : "";
+			String linkedDescription = currentDescription + "\n" + String.format(METADATA_ALBUM_LINK_FORMAT, newMetadataPhotoset.getId());
+
+			flickr.getPhotosetsInterface().editMeta(photosetId, currentPhotoset.getTitle(), linkedDescription);
+			linkedMetadataPhotosetId = parseMetadataPhotosetId(flickr.getPhotosetsInterface().getInfo(photosetId).getDescription());
+		}
+
+		if (!newMetadataPhotoset.getId().equals(linkedMetadataPhotosetId)) {
+			logger.log(Level.INFO, "Another client migrated concurrently; using album " + linkedMetadataPhotosetId + ", deleting album " + newMetadataPhotoset.getId());
+			flickr.getPhotosetsInterface().delete(newMetadataPhotoset.getId());
+		}
+
+		// Add metadata files
+		for (Photo photo : metadataPhotos) {
+			photosetQueue.add(linkedMetadataPhotosetId, photo.getId());
+		}
+
+		photosetQueue.flush();
+
+		logger.log(Level.INFO, "Migration complete. Added " + metadataPhotos.size() + " metadata file(s) to album " + linkedMetadataPhotosetId);
+		return linkedMetadataPhotosetId;
+	}
+
+	private List<String> parseMultichunkPhotosetIds(String description) {
+		Matcher multichunkLinkMatcher = MULTICHUNK_ALBUMS_LINK_PATTERN.matcher((description != null) ? description : "");
+		return (multichunkLinkMatcher.find()) ? Arrays.asList(multichunkLinkMatcher.group(1).split(",")) : new ArrayList<String>();
+	}
+
+	private String parseMetadataPhotosetId(String description) {
+		Matcher metadataLinkMatcher = METADATA_ALBUM_LINK_PATTERN.matcher((description != null) ? description : "");
+		return (metadataLinkMatcher.find()) ? metadataLinkMatcher.group(1) : null;
+	}
+	
+	@Override
+	public boolean testTargetCanWrite() {
+		return true;
+	}
+
+	@Override
+	public boolean testTargetExists() {
+		try {
+			if (photosetId == null) {
 				return false;
 			}
 			else {
+				initRequestContext();
+
 				Photoset photoset = flickr.getPhotosetsInterface().getInfo(photosetId);
 				return photoset != null;
 			}
@@ -314,23 +1503,887 @@ public class FlickrTransferManager extends AbstractTransferManager {
 		}		
 	}	
 
-	private Photo getPhoto(RemoteFile remoteFile) throws StorageException {
-		Photo photo = remoteFilePhotoIdCache.get(remoteFile);
-		
-		if (photo != null) {
-			return photo;
+	/**
+	 * Sets the Flickr authentication for the current thread. Flickr4Java reads
+	 * the auth from a thread-local request context, so this must be called by every
+	 * thread before it performs a Flickr API call.
+	 */
+	private void initRequestContext() {
+		RequestContext.getRequestContext().setAuth(auth);
+	}
+
+	/**
+	 * Returns whether the given remote file name belongs in the metadata album, i.e.
+	 * whether it is a valid remote file name (or a container), and not a (temporary) multichunk.
+	 */
+	private boolean isMetadataFile(String remoteFileName) {
+		if (PngContainer.isContainerTitle(remoteFileName)) {
+			return true; // Containers only hold metadata files, see isPackable()
 		}
-		else {
-			list(remoteFile.getClass()); // Update cache!
-			
-			photo = remoteFilePhotoIdCache.get(remoteFile);
-			
-			if (photo != null) {
-				return photo;
+
+		try {
+			RemoteFile remoteFile = RemoteFile.createRemoteFile(remoteFileName);
+
+			if (remoteFile instanceof TempRemoteFile) {
+				remoteFile = ((TempRemoteFile) remoteFile).getTargetRemoteFile();
 			}
-			else {
-				throw new StorageException("Cannot find remote file " + remoteFile);
+
+			return !(remoteFile instanceof MultichunkRemoteFile);
+		}
+		catch (StorageException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the name of the multichunk the given remote file name refers to, i.e. the name
+	 * itself or the target of a temporary file, or <tt>null</tt> if it is not a multichunk.
+	 */
+	private String getMultichunkName(String remoteFileName) {
+		try {
+			RemoteFile remoteFile = RemoteFile.createRemoteFile(remoteFileName);
+
+			if (remoteFile instanceof TempRemoteFile) {
+				remoteFile = ((TempRemoteFile) remoteFile).getTargetRemoteFile();
+			}
+
+			return (remoteFile instanceof MultichunkRemoteFile) ? remoteFile.getName() : null;
+		}
+		catch (StorageException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns whether a photo with the given title belongs in the metadata album, i.e.
+	 * whether it is a metadata file (see {@link #isMetadataFile(String)}) or a commit marker.
+	 */
+	private boolean isMetadataAlbumPhoto(String title) {
+		return isMetadataFile(title) || FlickrCommitMarker.isMarkerTitle(title);
+	}
+
+	/**
+	 * Returns the IDs of all albums the given remote file belongs in: Metadata files belong in
+	 * the main album and the metadata album. Commit markers belong in all albums. Multichunks belong in the main album, or, if the
+	 * repository has multichunk albums, in the one selected by the hash of the multichunk name.
+	 * Temporary files are placed like their target, so that moving them never changes albums.
+	 * If the repository has no metadata album (yet), metadata files are only in the main album.
+	 *
+	 * <p>The last album in the list is the most specific one, i.e. the one to look the file up in.
+	 */
+	private List<String> getPhotosetIds(String remoteFileName) throws StorageException {
+		resolveAlbums(false);
+		String currentMetadataPhotosetId = metadataPhotosetId;
+
+		if (FlickrCommitMarker.isMarkerTitle(remoteFileName)) {
+			List<String> markerPhotosetIds = new ArrayList<String>(multichunkPhotosetIds);
+
+			if (currentMetadataPhotosetId != null) {
+				markerPhotosetIds.add(currentMetadataPhotosetId);
 			}
+
+			markerPhotosetIds.add(photosetId);
+			return markerPhotosetIds;
+		}
+		else if (isMetadataFile(remoteFileName)) {
+			return (currentMetadataPhotosetId != null) ? Arrays.asList(photosetId, currentMetadataPhotosetId) : Arrays.asList(photosetId);
+		}
+
+		String multichunkName = getMultichunkName(remoteFileName);
+
+		if (multichunkName == null || multichunkPhotosetIds.isEmpty()) {
+			return Arrays.asList(photosetId);
+		}
+		else {
+			int multichunkAlbumIndex = (multichunkName.hashCode() & 0x7fffffff) % multichunkPhotosetIds.size();
+			return Arrays.asList(multichunkPhotosetIds.get(multichunkAlbumIndex));
+		}
+	}
+
+	/**
+	 * Returns the IDs of all albums a new photo with the given title is added to. Unlike
+	 * {@link #getPhotosetIds(String)}, this migrates the repository to a metadata album if
+	 * it does not have one yet, and the photo belongs in it.
+	 */
+	private List<String> getUploadPhotosetIds(String title) throws StorageException {
+		if (isMetadataAlbumPhoto(title)) {
+			resolveAlbums(true);
+		}
+
+		return getPhotosetIds(title);
+	}
+
+	/**
+	 * Returns the IDs of the albums to list files of the given type in, i.e. the metadata album
+	 * (or the main album, if there is none yet) for metadata files, the multichunk albums (or the
+	 * main album) for multichunks, and all of them but the metadata album for temporary files.
+	 */
+	private List<String> getListPhotosetIds(Class<? extends RemoteFile> remoteFileClass) throws StorageException {
+		resolveAlbums(false);
+
+		if (MultichunkRemoteFile.class.equals(remoteFileClass)) {
+			return (multichunkPhotosetIds.isEmpty()) ? Arrays.asList(photosetId) : multichunkPhotosetIds;
+		}
+		else if (TempRemoteFile.class.equals(remoteFileClass)) {
+			List<String> listPhotosetIds = new ArrayList<String>();
+
+			listPhotosetIds.add(photosetId);
+			listPhotosetIds.addAll(multichunkPhotosetIds);
+
+			return listPhotosetIds;
+		}
+		else {
+			String currentMetadataPhotosetId = metadataPhotosetId;
+			return Arrays.asList((currentMetadataPhotosetId != null) ? currentMetadataPhotosetId : photosetId);
 		}
 	}
+
+	/**
+	 * Returns whether the given file is staged and packed instead of being uploaded directly,
+	 * i.e. whether packing is enabled, and the file is a small metadata file uploaded to a
+	 * temporary location (as part of a {@link RemoteTransaction}).
+	 */
+	private boolean isPackable(File localFile, RemoteFile remoteFile) {
+		return getSettings().isPackSmallFiles() && remoteFile instanceof TempRemoteFile && isMetadataFile(remoteFile.getName())
+				&& localFile.length() <= PACK_MAX_FILE_SIZE;
+	}
+
+	private void stageUpload(File localFile, RemoteFile remoteFile) throws StorageException {
+		try {
+			File stagedFile = createTempFile(remoteFile.getName() + "-staged");
+			Files.copy(localFile.toPath(), stagedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+			synchronized (stagedFiles) {
+				stagedFiles.put(remoteFile.getName(), stagedFile);
+			}
+
+			logger.log(Level.INFO, "Staged file " + localFile + " as " + remoteFile + "; uploaded when moved to its final location.");
+		}
+		catch (IOException e) {
+			throw new StorageException("Cannot stage file " + localFile + " for remote file " + remoteFile, e);
+		}
+	}
+
+	/**
+	 * Completes the move of a staged file, if the given source file is staged. If the target is
+	 * the final location of the temp. file (as in {@link RemoteTransaction}), all staged files are
+	 * packed and uploaded under their final names. Otherwise, the staged file is uploaded on its
+	 * own, and the move has to be performed as usual.
+	 *
+	 * @return Returns true if the move is complete, false otherwise
+	 */
+	private boolean moveStagedFile(RemoteFile sourceFile, RemoteFile targetFile) throws StorageException {
+		synchronized (stagedFiles) {
+			if (!stagedFiles.containsKey(sourceFile.getName())) {
+				return false;
+			}
+			else if (targetFile.getName().equals(getTargetName(sourceFile.getName()))) {
+				packStagedFiles(sourceFile.getName());
+				packedTempFiles.remove(sourceFile.getName());
+
+				return true;
+			}
+			else {
+				uploadStagedFile(sourceFile.getName());
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Packs the given staged file, and up to {@link #PACK_MAX_FILES} other staged files, into
+	 * one container photo, using the final names of the files. The temp. files that are packed
+	 * ahead of their move are remembered, so that their move completes without any API call.
+	 *
+	 * <p>If only one file is staged, it is uploaded under its final name without a container.
+	 */
+	private void packStagedFiles(String firstTempName) throws StorageException {
+		List<String> packTempNames = new ArrayList<String>();
+		packTempNames.add(firstTempName);
+
+		for (String tempName : stagedFiles.keySet()) {
+			if (packTempNames.size() < PACK_MAX_FILES && !tempName.equals(firstTempName)) {
+				packTempNames.add(tempName);
+			}
+		}
+
+		Map<String, File> packFiles = new LinkedHashMap<String, File>(); // Final name -> local file
+
+		for (String tempName : packTempNames) {
+			packFiles.put(getTargetName(tempName), stagedFiles.get(tempName));
+		}
+
+		if (packFiles.size() == 1) {
+			String finalName = packFiles.keySet().iterator().next();
+			upload(packFiles.get(finalName), RemoteFile.createRemoteFile(finalName), true);
+		}
+		else {
+			uploadContainer(packFiles);
+		}
+
+		for (String tempName : packTempNames) {
+			stagedFiles.remove(tempName).delete();
+			packedTempFiles.put(tempName, getTargetName(tempName));
+		}
+	}
+
+	private void uploadContainer(Map<String, File> packFiles) throws StorageException {
+		initRequestContext();
+
+		String title = PngContainer.createTitle();
+		File pngFile = null;
+
+		try {
+			pngFile = createTempFile(title + "-png");
+			PngContainer container = PngContainer.encodeToPng(packFiles, FLICKR_MIN_IMAGE_BYTES, new BufferedOutputStream(new FileOutputStream(pngFile)), pngProfile);
+
+			String photoId = uploader.upload(pngFile, title + ".png", title, container.toToc());
+			logger.log(Level.INFO, "Uploaded container " + title + " with " + packFiles.size() + " file(s) " + packFiles.keySet() + ", as photo ID " + photoId);
+
+			for (String targetPhotosetId : getUploadPhotosetIds(title)) {
+				Photo containerPhoto = createPhoto(photoId, title);
+				containerPhoto.setDescription(container.toToc());
+
+				getPhotoIndex(targetPhotosetId).put(containerPhoto);
+				photosetQueue.add(targetPhotosetId, photoId);
+			}
+
+			photosetQueue.flush();
+		}
+		catch (Exception e) {
+			throw new StorageException("Cannot upload container " + title + " with files " + packFiles.keySet(), e);
+		}
+		finally {
+			if (pngFile != null) {
+				pngFile.delete();
+			}
+		}
+	}
+
+	private void uploadStagedFile(String tempName) throws StorageException {
+		upload(stagedFiles.get(tempName), RemoteFile.createRemoteFile(tempName), true);
+		stagedFiles.remove(tempName).delete();
+	}
+
+	/**
+	 * Uploads all staged files that were never moved to their final location, e.g. because
+	 * the transaction failed, so that they exist under their temp. names as expected.
+	 */
+	private void uploadStagedFiles() throws StorageException {
+		synchronized (stagedFiles) {
+			for (String tempName : new ArrayList<String>(stagedFiles.keySet())) {
+				uploadStagedFile(tempName);
+			}
+
+			packedTempFiles.clear();
+		}
+	}
+
+	private boolean downloadStagedFile(RemoteFile remoteFile, File localFile) throws StorageException {
+		synchronized (stagedFiles) {
+			File stagedFile = stagedFiles.get(remoteFile.getName());
+
+			if (stagedFile == null) {
+				return false;
+			}
+
+			try {
+				Files.copy(stagedFile.toPath(), localFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				return true;
+			}
+			catch (IOException e) {
+				throw new StorageException("Cannot copy staged file " + remoteFile + " to " + localFile, e);
+			}
+		}
+	}
+
+	private boolean deleteStagedFile(RemoteFile remoteFile) {
+		synchronized (stagedFiles) {
+			File stagedFile = stagedFiles.remove(remoteFile.getName());
+
+			if (stagedFile != null) {
+				stagedFile.delete();
+				return true;
+			}
+
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the final file of the given temp. file if it was packed ahead of its move
+	 * (see {@link #packStagedFiles(String)}), or the given file itself otherwise.
+	 */
+	private RemoteFile getPackedFile(RemoteFile remoteFile, boolean remove) throws StorageException {
+		synchronized (stagedFiles) {
+			String finalName = (remove) ? packedTempFiles.remove(remoteFile.getName()) : packedTempFiles.get(remoteFile.getName());
+			return (finalName != null) ? RemoteFile.createRemoteFile(finalName) : remoteFile;
+		}
+	}
+
+	private String getTargetName(String tempName) throws StorageException {
+		return ((TempRemoteFile) RemoteFile.createRemoteFile(tempName)).getTargetRemoteFile().getName();
+	}
+
+	/**
+	 * Removes the given file from the TOC of its container. The container photo is deleted
+	 * once it does not hold any files anymore.
+	 */
+	private void deleteFromContainer(RemoteFile remoteFile) throws FlickrException, StorageException {
+		synchronized (containerLock) {
+			Photo containerPhoto = getPhoto(remoteFile);
+			PngContainer container = PngContainer.fromToc(containerPhoto.getDescription());
+
+			container.remove(remoteFile.getName());
+
+			if (container.isEmpty()) {
+				photosetQueue.remove(containerPhoto.getId());
+				photosetQueue.flush();
+
+				flickr.getPhotosInterface().delete(containerPhoto.getId());
+
+				for (FlickrPhotoIndex photoIndex : getPhotoIndexes()) {
+					photoIndex.remove(containerPhoto.getId());
+				}
+			}
+			else {
+				updateContainer(containerPhoto, container);
+			}
+		}
+	}
+
+	private void renameInContainer(RemoteFile sourceFile, RemoteFile targetFile) throws FlickrException, StorageException {
+		synchronized (containerLock) {
+			Photo containerPhoto = getPhoto(sourceFile);
+			PngContainer container = PngContainer.fromToc(containerPhoto.getDescription());
+
+			container.rename(sourceFile.getName(), targetFile.getName());
+			updateContainer(containerPhoto, container);
+		}
+	}
+
+	/**
+	 * Writes the TOC of the given container to the description of the container photo,
+	 * and updates the photo indexes accordingly.
+	 */
+	private void updateContainer(Photo containerPhoto, PngContainer container) throws FlickrException {
+		updateDescription(containerPhoto, container.toToc());
+	}
+
+	/**
+	 * Writes the given description to the given photo (keeping its title), and updates the
+	 * photo indexes accordingly.
+	 */
+	private void updateDescription(Photo photo, String description) throws FlickrException {
+		flickr.getPhotosInterface().setMeta(photo.getId(), photo.getTitle(), description);
+
+		for (FlickrPhotoIndex photoIndex : getPhotoIndexes()) {
+			if (photoIndex.contains(photo.getId())) {
+				Photo indexPhoto = createPhoto(photo.getId(), photo.getTitle());
+
+				indexPhoto.setFarm(photo.getFarm());
+				indexPhoto.setServer(photo.getServer());
+				indexPhoto.setOriginalSecret(photo.getOriginalSecret());
+				indexPhoto.setOriginalFormat(photo.getOriginalFormat());
+				indexPhoto.setDescription(description);
+
+				photoIndex.put(indexPhoto);
+			}
+		}
+	}
+
+	/**
+	 * Returns whether the given move can be deferred and published via the commit marker,
+	 * i.e. whether commit markers are enabled, and the source is a temp. file that is moved to
+	 * its final location.
+	 */
+	private boolean isDeferrableMove(RemoteFile sourceFile, RemoteFile targetFile) {
+		return getSettings().isCommitMarkers() && sourceFile instanceof TempRemoteFile
+				&& ((TempRemoteFile) sourceFile).getTargetRemoteFile().getName().equals(targetFile.getName());
+	}
+
+	/**
+	 * Publishes all moves deferred by {@link #move(RemoteFile, RemoteFile) move()} by writing
+	 * them to a single {@link FlickrCommitMarker}, so that other clients see all of the files at
+	 * once, or none of them. If the moves fit into this client's current marker, its description
+	 * is updated -- with a single API call, regardless of the number of files. Otherwise (and for
+	 * the first commit), a new marker photo with all of the moves is uploaded, which supersedes
+	 * the current one.
+	 * 
+	 * <p>The entries of a superseded marker remain valid until the marker is compacted, see
+	 * {@link #compactCommitMarkers()}. Until then, the photos are not renamed.
+	 */
+	private void publishCommits() throws StorageException {
+		synchronized (commitLock) {
+			if (pendingCommits.isEmpty()) {
+				return;
+			}
+
+			initRequestContext();
+
+			int publishCount = pendingCommits.size();
+			Photo markerPhoto = getCommitMarkerPhoto(commitMarkerTitle);
+			FlickrCommitMarker marker = (markerPhoto != null) ? FlickrCommitMarker.fromDescription(markerPhoto.getDescription()) : new FlickrCommitMarker();
+
+			// Never overwrite a payload marker, even if its payload is unknown
+			boolean updateMarker = markerPhoto != null && !FlickrCommitMarker.isPayloadDescription(markerPhoto.getDescription())
+					&& marker.size() + pendingCommits.size() <= COMMIT_MARKER_MAX_ENTRIES;
+
+			try {
+				if (updateMarker) {
+					marker.addAll(pendingCommits);
+					updateDescription(markerPhoto, marker.toDescription());
+				}
+				else {
+					FlickrCommitMarker newMarker = new FlickrCommitMarker();
+					newMarker.addAll(pendingCommits);
+
+					uploadCommitMarker(newMarker);
+				}
+			}
+			catch (FlickrException e) {
+				throw new StorageException("Cannot publish " + publishCount + " moved file(s) via commit marker", e);
+			}
+
+			pendingCommits.clear();
+			logger.log(Level.INFO, "Published " + publishCount + " moved file(s) via commit marker " + commitMarkerTitle + ".");
+		}
+	}
+
+	/**
+	 * Returns the photo of the commit marker with the given title, or <tt>null</tt> if it does
+	 * not exist (yet). The marker is looked up in the main album's index, which is updated if
+	 * the marker is not found.
+	 */
+	private Photo getCommitMarkerPhoto(String markerTitle) throws StorageException {
+		if (markerTitle == null) {
+			return null;
+		}
+
+		resolveAlbums(false);
+		Photo markerPhoto = getPhotoIndex(photosetId).get(markerTitle);
+
+		if (markerPhoto == null) {
+			updatePhotoIndexes(Arrays.asList(photosetId));
+			markerPhoto = getPhotoIndex(photosetId).get(markerTitle);
+		}
+
+		return markerPhoto;
+	}
+
+	/**
+	 * Uploads a new marker photo with a new title and the given marker, adds it to all albums,
+	 * and makes it this client's current marker; the previous one is superseded. A marker with
+	 * more than {@link #COMMIT_MARKER_MAX_ENTRIES} entries is stored in the image payload instead
+	 * of the description. The titles are remembered in the state directory, so that the current
+	 * marker is reused and superseded markers are compacted after a restart.
+	 */
+	private Photo uploadCommitMarker(FlickrCommitMarker marker) throws StorageException, FlickrException {
+		String title = FlickrCommitMarker.createTitle();
+		boolean payloadMarker = marker.size() > COMMIT_MARKER_MAX_ENTRIES;
+		String description = (payloadMarker) ? FlickrCommitMarker.getPayloadDescription() : marker.toDescription();
+		File pngFile = null;
+
+		try {
+			byte[] payload = (payloadMarker) ? marker.toPayload() : new byte[0];
+			byte[] paddedPayload = Arrays.copyOf(new byte[FLICKR_MIN_IMAGE_BYTES], FLICKR_MIN_IMAGE_BYTES + payload.length);
+			System.arraycopy(payload, 0, paddedPayload, FLICKR_MIN_IMAGE_BYTES, payload.length);
+
+			pngFile = createTempFile(title + "-png");
+			PngEncoder.encodeToPng(new ByteArrayInputStream(paddedPayload), paddedPayload.length, new BufferedOutputStream(new FileOutputStream(pngFile)), pngProfile);
+
+			String photoId = uploader.upload(pngFile, title + ".png", title, description);
+			logger.log(Level.INFO, "Uploaded commit marker " + title + " with " + marker.size() + " entries, as photo ID " + photoId);
+
+			Photo markerPhoto = createPhoto(photoId, title);
+			markerPhoto.setDescription(marker.toDescription()); // Index always holds the entries, see resolveCommitMarkerPayloads()
+
+			if (payloadMarker) {
+				markerPayloads.put(photoId, marker.toDescription());
+			}
+
+			for (String targetPhotosetId : getUploadPhotosetIds(title)) {
+				getPhotoIndex(targetPhotosetId).put(markerPhoto);
+				photosetQueue.add(targetPhotosetId, photoId);
+			}
+
+			photosetQueue.flush();
+
+			if (commitMarkerTitle != null) {
+				supersededMarkerTitles.add(commitMarkerTitle);
+			}
+
+			commitMarkerTitle = title;
+			saveCommitMarkerTitles();
+
+			return markerPhoto;
+		}
+		catch (IOException e) {
+			throw new StorageException("Cannot upload commit marker " + title, e);
+		}
+		finally {
+			if (pngFile != null) {
+				pngFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Replaces the placeholder description of all markers in the given indexes that are stored
+	 * in the image payload (see {@link FlickrCommitMarker}) with their entries. Each marker is
+	 * downloaded only once, the entries are stored in the index.
+	 */
+	private void resolveCommitMarkerPayloads(List<String> resolvePhotosetIds) throws StorageException {
+		for (String resolvePhotosetId : resolvePhotosetIds) {
+			FlickrPhotoIndex photoIndex = getPhotoIndex(resolvePhotosetId);
+
+			for (Photo photo : photoIndex.getPhotos()) {
+				if (FlickrCommitMarker.isMarkerTitle(photo.getTitle()) && FlickrCommitMarker.isPayloadDescription(photo.getDescription())) {
+					photo.setDescription(getCommitMarkerPayload(photo));
+					photoIndex.put(photo);
+				}
+			}
+		}
+	}
+
+	private String getCommitMarkerPayload(Photo markerPhoto) throws StorageException {
+		String markerDescription = markerPayloads.get(markerPhoto.getId());
+
+		if (markerDescription == null) {
+			try {
+				Photo imagePhoto = (markerPhoto.getOriginalFormat() != null) ? markerPhoto : flickr.getPhotosInterface().getInfo(markerPhoto.getId(), null);
+				ByteArrayOutputStream payloadOutputStream = new ByteArrayOutputStream();
+
+				PngEncoder.decodeFromPng(new BufferedInputStream(getOriginalImageStream(imagePhoto)), payloadOutputStream, FLICKR_MIN_IMAGE_BYTES); // Closes both streams
+				markerDescription = FlickrCommitMarker.fromPayload(payloadOutputStream.toByteArray()).toDescription();
+
+				markerPayloads.put(markerPhoto.getId(), markerDescription);
+			}
+			catch (Exception e) {
+				throw new StorageException("Cannot read commit marker " + markerPhoto.getTitle() + ", Flickr photo ID " + markerPhoto.getId(), e);
+			}
+		}
+
+		return markerDescription;
+	}
+
+	/**
+	 * Compacts this client's superseded commit markers: The photos published by a marker are
+	 * renamed to their final names, and the marker photo is deleted afterwards. Other clients
+	 * see the same files under the same names before, during and after the compaction. A marker
+	 * whose photos cannot all be renamed is kept and compacted again on the next disconnect.
+	 */
+	private void compactCommitMarkers() throws StorageException {
+		synchronized (commitLock) {
+			if (supersededMarkerTitles.isEmpty()) {
+				return;
+			}
+
+			initRequestContext();
+
+			for (String markerTitle : new ArrayList<String>(supersededMarkerTitles)) {
+				try {
+					Photo markerPhoto = getCommitMarkerPhoto(markerTitle);
+
+					if (markerPhoto != null) {
+						if (FlickrCommitMarker.isPayloadDescription(markerPhoto.getDescription())) {
+							throw new StorageException("Entries of commit marker " + markerTitle + " unknown"); // Never delete a marker unread
+						}
+
+						renamePublishedPhotos(FlickrCommitMarker.fromDescription(markerPhoto.getDescription()));
+
+						photosetQueue.remove(markerPhoto.getId());
+						flickr.getPhotosInterface().delete(markerPhoto.getId());
+
+						for (FlickrPhotoIndex photoIndex : getPhotoIndexes()) {
+							photoIndex.remove(markerPhoto.getId());
+						}
+					}
+
+					supersededMarkerTitles.remove(markerTitle);
+					saveCommitMarkerTitles();
+
+					logger.log(Level.INFO, "Compacted superseded commit marker " + markerTitle + ".");
+				}
+				catch (Exception e) {
+					logger.log(Level.WARNING, "Cannot compact commit marker " + markerTitle + ". IGNORING.", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Renames the photos published by the given marker to their final names, unless they have
+	 * been renamed since (e.g. moved to a temp. file to be deleted).
+	 */
+	private void renamePublishedPhotos(final FlickrCommitMarker marker) throws StorageException {
+		List<RemoteFile> publishedFiles = new ArrayList<RemoteFile>();
+
+		for (String photoId : marker.getPhotoIds()) {
+			publishedFiles.add(RemoteFile.createRemoteFile(FlickrCommitMarker.getTargetName(marker.getTempName(photoId))));
+		}
+
+		executeForEachFile(publishedFiles, new RemoteFileTask() {
+			@Override
+			public void execute(RemoteFile publishedFile) throws StorageException {
+				Photo photo = getPhotoIndex(getLookupPhotosetId(publishedFile)).get(publishedFile.getName());
+
+				if (photo != null && photo.getTitle().equals(marker.getTempName(photo.getId()))) {
+					try {
+						flickr.getPhotosInterface().setMeta(photo.getId(), publishedFile.getName(), photo.getDescription()); // Keep checksum
+					}
+					catch (FlickrException e) {
+						throw new StorageException("Cannot rename published photo " + photo.getId() + " to " + publishedFile, e);
+					}
+
+					for (FlickrPhotoIndex photoIndex : getPhotoIndexes()) {
+						photoIndex.setTitle(photo.getId(), publishedFile.getName());
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Loads the titles of this client's commit markers from the state directory, one per line:
+	 * the superseded markers first, the current marker last.
+	 */
+	private void loadCommitMarkerTitles() {
+		File markerFile = getStateFile(COMMIT_MARKER_FILE);
+
+		if (markerFile == null || !markerFile.exists()) {
+			return;
+		}
+
+		try {
+			for (String title : Files.readAllLines(markerFile.toPath(), StandardCharsets.UTF_8)) {
+				if (FlickrCommitMarker.isMarkerTitle(title.trim())) {
+					if (commitMarkerTitle != null) {
+						supersededMarkerTitles.add(commitMarkerTitle);
+					}
+
+					commitMarkerTitle = title.trim();
+				}
+			}
+		}
+		catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot read commit marker titles from " + markerFile + ". Creating new marker.", e);
+		}
+	}
+
+	private void saveCommitMarkerTitles() {
+		File markerFile = getStateFile(COMMIT_MARKER_FILE);
+
+		if (markerFile == null) {
+			return;
+		}
+
+		List<String> titles = new ArrayList<String>(supersededMarkerTitles);
+		titles.add(commitMarkerTitle);
+
+		try {
+			Files.write(markerFile.toPath(), titles, StandardCharsets.UTF_8);
+		}
+		catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot write commit marker titles to " + markerFile + ". IGNORING.", e);
+		}
+	}
+
+	/**
+	 * Adds all pending photos to the album if the given file is not a temporary file.
+	 * 
+	 * <p>Adding photos to the album is deferred while the {@link RemoteTransaction} uploads
+	 * its temp. files; it only becomes relevant once a file is visible under its final name. At
+	 * this point, all queued photos are added in one concurrent batch (see {@link FlickrPhotosetQueue}).
+	 */
+	private void flushPhotosetQueueIfFinal(RemoteFile remoteFile) throws StorageException {
+		if (!(remoteFile instanceof TempRemoteFile)) {
+			photosetQueue.flush();
+		}
+	}
+
+	private Photo createPhoto(String photoId, String title) {
+		Photo photo = new Photo();
+		
+		photo.setId(photoId);
+		photo.setTitle(title);
+		
+		return photo;
+	}
+
+	/**
+	 * Searches the user's photos that are not in any album for a photo with the given
+	 * remote file name. If it is found, it is queued to be added to the album(s) and returned.
+	 * 
+	 * <p>This is only necessary to resume a transaction whose temp. files were uploaded, but
+	 * never added to the album (see {@link FlickrPhotosetQueue}). 
+	 */
+	private Photo findPhotoNotInAlbum(RemoteFile remoteFile) throws StorageException {
+		Photo photo = searchPhotoNotInAlbum(remoteFile.getName());
+		
+		if (photo != null) {
+			logger.log(Level.INFO, "Found remote file " + remoteFile + " outside of album, photo ID " + photo.getId() + ". Adding to album.");
+
+			for (String targetPhotosetId : getPhotosetIds(remoteFile.getName())) {
+				getPhotoIndex(targetPhotosetId).put(photo);
+				photosetQueue.add(targetPhotosetId, photo.getId());
+			}
+		}
+		
+		return photo;
+	}
+
+	/**
+	 * Searches the user's photos that are not in any album for a photo with the given title,
+	 * and returns it (or <tt>null</tt> if there is none). 
+	 */
+	private Photo searchPhotoNotInAlbum(String title) throws StorageException {
+		try {
+			boolean morePhotos = true;
+			int currentPage = 1;
+			
+			while (morePhotos) {
+				PhotoList<Photo> partialPhotoList = flickr.getPhotosInterface().getNotInSet(FLICKR_MAX_PHOTOS_PER_PAGE, currentPage);
+				
+				for (Photo photo : partialPhotoList) {
+					if (title.equals(photo.getTitle())) {
+						return photo;
+					}
+				}
+				
+				morePhotos = partialPhotoList.size() == FLICKR_MAX_PHOTOS_PER_PAGE;
+				currentPage++;
+			}
+			
+			return null;
+		}
+		catch (FlickrException e) {
+			throw new StorageException(e);
+		}
+	}
+
+	private Photo getPhoto(RemoteFile remoteFile) throws StorageException {
+		String lookupPhotosetId = getLookupPhotosetId(remoteFile);
+		Photo photo = getPhotoIndex(lookupPhotosetId).get(remoteFile.getName());
+		
+		if (photo != null) {
+			return photo;
+		}
+		else {
+			updatePhotoIndexes(Arrays.asList(lookupPhotosetId));
+			
+			photo = getPhotoIndex(lookupPhotosetId).get(remoteFile.getName());
+			
+			if (photo != null) {
+				return photo;
+			}
+			
+			// Photo might have been uploaded, but not added to the album (e.g. crash before flush)
+			photo = findPhotoNotInAlbum(remoteFile);
+			
+			if (photo != null) {
+				return photo;
+			}
+			else {
+				throw new StorageException("Cannot find remote file " + remoteFile);
+			}
+		}
+	}
+
+	private String getLookupPhotosetId(RemoteFile remoteFile) throws StorageException {
+		List<String> targetPhotosetIds = getPhotosetIds(remoteFile.getName());
+		return targetPhotosetIds.get(targetPhotosetIds.size() - 1); // Most specific album
+	}
+
+	/**
+	 * Fetches the photo info (including the fields required for the original image URL) 
+	 * and updates the photo indexes accordingly.
+	 */
+	private Photo getPhotoWithOriginalUrl(Photo photo) throws FlickrException {
+		Photo photoInfo = flickr.getPhotosInterface().getInfo(photo.getId(), null);
+		Photo indexPhoto = null;
+
+		for (FlickrPhotoIndex photoIndex : getPhotoIndexes()) {
+			if (photoIndex.contains(photo.getId())) {
+				indexPhoto = createPhoto(photo.getId(), photo.getTitle()); // Keep title, might have been moved
+		
+				indexPhoto.setFarm(photoInfo.getFarm());
+				indexPhoto.setServer(photoInfo.getServer());
+				indexPhoto.setOriginalSecret(photoInfo.getOriginalSecret());
+				indexPhoto.setOriginalFormat(photoInfo.getOriginalFormat());
+				indexPhoto.setDescription(photo.getDescription()); // Keep TOC of containers, checksum of other photos
+
+				photoIndex.put(indexPhoto);
+			}
+		}
+
+		return (indexPhoto != null) ? indexPhoto : photoInfo;
+	}
+
+	private FlickrPhotoIndex getPhotoIndex(String indexPhotosetId) {
+		synchronized (photoIndexes) {
+			FlickrPhotoIndex photoIndex = photoIndexes.get(indexPhotosetId);
+
+			if (photoIndex == null) {
+				File indexFile = (config != null) ? new File(config.getStateDir(), String.format(INDEX_FILE_FORMAT, indexPhotosetId)) : null;
+
+				photoIndex = new FlickrPhotoIndex(indexFile, indexPhotosetId);
+				photoIndex.load();
+
+				photoIndexes.put(indexPhotosetId, photoIndex);
+			}
+
+			return photoIndex;
+		}
+	}
+
+	private List<FlickrPhotoIndex> getPhotoIndexes() {
+		synchronized (photoIndexes) {
+			return new ArrayList<FlickrPhotoIndex>(photoIndexes.values());
+		}
+	}
+
+	private void savePhotoIndexes() {
+		for (FlickrPhotoIndex photoIndex : getPhotoIndexes()) {
+			try {
+				photoIndex.save();
+			}
+			catch (IOException e) {
+				logger.log(Level.WARNING, "Cannot save photo index. IGNORING.", e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the file with the given name in the local state directory, or <tt>null</tt> if
+	 * there is no config. Older versions kept the file in the cache directory; if it is still
+	 * there, it is moved to the state directory.
+	 */
+	private File getStateFile(String fileName) {
+		if (config == null) {
+			return null;
+		}
+
+		File stateFile = new File(config.getStateDir(), fileName);
+		File cachedStateFile = new File(config.getCacheDir(), fileName);
+
+		if (!stateFile.exists() && cachedStateFile.exists()) {
+			try {
+				Files.move(cachedStateFile.toPath(), stateFile.toPath());
+			}
+			catch (IOException e) {
+				logger.log(Level.WARNING, "Cannot move " + cachedStateFile + " to " + stateFile + ". IGNORING.", e);
+			}
+		}
+
+		return stateFile;
+	}
+
+	private interface PhotosetTask {
+		public void execute(String photosetId) throws FlickrException;
+	}
+
+	private interface RemoteFileTask {
+		public void execute(RemoteFile remoteFile) throws StorageException;
+	}
 }
@@ -19,6 +19,9 @@ package org.syncany.plugins.flickr;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,6 +34,7 @@ import org.syncany.plugins.transfer.OAuthGenerator;
 import org.syncany.plugins.transfer.Setup;
 import org.syncany.plugins.transfer.StorageException;
 import org.syncany.plugins.transfer.TransferSettings;
+import org.syncany.util.StringUtil;
 
 import com.flickr4java.flickr.Flickr;
 import com.flickr4java.flickr.REST;
@@ -43,6 +47,10 @@ import com.flickr4java.flickr.people.User;
 @OAuth(FlickrOAuthGenerator.class)
 public class FlickrTransferSettings extends TransferSettings {
 	private static final Logger logger = Logger.getLogger(FlickrTransferSettings.class.getSimpleName());
+	private static final int DEFAULT_PARALLELISM = 4;
+	private static final int DEFAULT_ALBUM_SHARDS = 1;
+	private static final int DEFAULT_MAX_REQUESTS_PER_HOUR = 3600; // Flickr's per-key quota
+	private static final String DEFAULT_PNG_PROFILE = PngEncoder.Profile.STORED.getName(); // Payload is encrypted: same image size, ~20x faster encoding (see PngEncoderBenchmark)
 
 	private Flickr flickr;
 	private AuthInterface authInterface;
@@ -52,9 +60,49 @@ public class FlickrTransferSettings extends TransferSettings {
 	@Setup(order = 1, description = "Album ID")
 	public String album;
 
+	@Element(name = "metadataAlbum", required = false)
+	@Setup(visible = false)
+	public String metadataAlbum;
+
+	@Element(name = "multichunkAlbums", required = false)
+	@Setup(visible = false)
+	public String multichunkAlbums;
+
+	@Element(name = "albumShards", required = false)
+	@Setup(visible = false, description = "Number of albums to distribute multichunks across (only at init)")
+	public int albumShards = DEFAULT_ALBUM_SHARDS;
+
 	@Element(name = "auth", required = true)
 	@Setup(visible = false)
 	public FlickrAuth auth;
+
+	@Element(name = "parallelism", required = false)
+	@Setup(visible = false, description = "Number of parallel uploads/downloads")
+	public int parallelism = DEFAULT_PARALLELISM;
+
+	@Element(name = "packSmallFiles", required = false)
+	@Setup(visible = false, description = "Pack small metadata files into shared images")
+	public boolean packSmallFiles = false;
+
+	@Element(name = "commitMarkers", required = false)
+	@Setup(visible = false, description = "Publish moved files via a commit marker instead of renaming them")
+	public boolean commitMarkers = false;
+
+	@Element(name = "pngProfile", required = false)
+	@Setup(visible = false, description = "PNG encoding profile (default, stored, stored-rgba)")
+	public String pngProfile = DEFAULT_PNG_PROFILE;
+
+	@Element(name = "maxImageWidth", required = false)
+	@Setup(visible = false, description = "Max. width of uploaded images in pixels (0 = unlimited)")
+	public int maxImageWidth = 0;
+
+	@Element(name = "maxRequestsPerHour", required = false)
+	@Setup(visible = false, description = "Max. number of Flickr API requests per hour (0 = unlimited)")
+	public int maxRequestsPerHour = DEFAULT_MAX_REQUESTS_PER_HOUR;
+
+	@Element(name = "apiEndpoint", required = false)
+	@Setup(visible = false, description = "Base URL of the Flickr API, upload and image hosts (for testing)")
+	public String apiEndpoint;
 	
 	public String getAlbum() {
 		return album;
@@ -64,9 +112,134 @@ public class FlickrTransferSettings extends TransferSettings {
 		this.album = album;
 	}
 	
+	/**
+	 * Returns the ID of the album that holds all non-multichunk files (database files,
+	 * action files, etc.), or <tt>null</tt> if it has not been created yet. The main
+	 * album (see {@link #getAlbum()}) holds all files, including these.
+	 */
+	public String getMetadataAlbum() {
+		return metadataAlbum;
+	}
+
+	public void setMetadataAlbum(String metadataAlbum) {
+		this.metadataAlbum = metadataAlbum;
+	}
+	
+	/**
+	 * Returns the IDs of the albums that multichunks are distributed across (by name hash),
+	 * or an empty list if multichunks are stored in the main album (see {@link #getAlbum()}).
+	 */
+	public List<String> getMultichunkAlbums() {
+		if (multichunkAlbums == null || multichunkAlbums.isEmpty()) {
+			return new ArrayList<String>();
+		}
+		else {
+			return new ArrayList<String>(Arrays.asList(multichunkAlbums.split(",")));
+		}
+	}
+
+	public void setMultichunkAlbums(List<String> multichunkAlbums) {
+		this.multichunkAlbums = (multichunkAlbums.isEmpty()) ? null : StringUtil.join(multichunkAlbums, ",");
+	}
+
+	public int getAlbumShards() {
+		return albumShards;
+	}
+
+	public void setAlbumShards(int albumShards) {
+		this.albumShards = albumShards;
+	}
+	
 	public FlickrAuth getAuth() {
 		return auth;
 	}	
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Returns whether small metadata files uploaded in the same transaction are packed
+	 * into one {@link PngContainer} photo. Containers can be read by all clients with
+	 * container support, regardless of this setting.
+	 */
+	public boolean isPackSmallFiles() {
+		return packSmallFiles;
+	}
+
+	public void setPackSmallFiles(boolean packSmallFiles) {
+		this.packSmallFiles = packSmallFiles;
+	}
+
+	/**
+	 * Returns whether temp. files moved to their final location are published via a
+	 * {@link FlickrCommitMarker} instead of being renamed one by one during the commit; they
+	 * are renamed later, when the marker is compacted. Published files can only be read by
+	 * clients with commit marker support, regardless of this setting.
+	 */
+	public boolean isCommitMarkers() {
+		return commitMarkers;
+	}
+
+	public void setCommitMarkers(boolean commitMarkers) {
+		this.commitMarkers = commitMarkers;
+	}
+
+	/**
+	 * Returns the encoding profile for uploaded images, i.e. the configured predefined
+	 * profile (see {@link PngEncoder.Profile#forName(String)}), limited to the configured
+	 * max. image width. Images of all profiles can be downloaded regardless of this setting.
+	 */
+	public PngEncoder.Profile getPngProfile() {
+		return PngEncoder.Profile.forName(pngProfile).withMaxImageWidth(maxImageWidth);
+	}
+
+	public void setPngProfile(String pngProfile) {
+		this.pngProfile = pngProfile;
+	}
+
+	public int getMaxImageWidth() {
+		return maxImageWidth;
+	}
+
+	public void setMaxImageWidth(int maxImageWidth) {
+		this.maxImageWidth = maxImageWidth;
+	}
+
+	/**
+	 * Returns the max. number of requests per hour (API calls and uploads) sent to Flickr,
+	 * or 0 if requests are not paced. Requests are paced below this rate if Flickr throttles
+	 * them, see {@link FlickrRequestScheduler}.
+	 */
+	public int getMaxRequestsPerHour() {
+		return maxRequestsPerHour;
+	}
+
+	public void setMaxRequestsPerHour(int maxRequestsPerHour) {
+		this.maxRequestsPerHour = maxRequestsPerHour;
+	}
+
+	/**
+	 * Returns the base URL (e.g. <tt>http://127.0.0.1:8080</tt>) of a server that replaces
+	 * the Flickr REST API, upload API and image hosts, or <tt>null</tt> to use Flickr.
+	 * This is only meant for testing and benchmarking against a local stand-in server.
+	 */
+	public String getApiEndpoint() {
+		return apiEndpoint;
+	}
+
+	public void setApiEndpoint(String apiEndpoint) {
+		this.apiEndpoint = apiEndpoint;
+	}
+
+	@Override
+	public int getMaxConcurrentTransfers() {
+		return Math.max(1, parallelism);
+	}
 	
 	public class FlickrOAuthGenerator implements OAuthGenerator {	
 		@Override
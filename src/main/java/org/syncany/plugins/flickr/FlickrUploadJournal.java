@@ -0,0 +1,155 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2014 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.plugins.flickr;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Journal of the uploads that have been started, but not (known to be) completed. An
+ * entry is added right before a photo is uploaded, and removed once Flickr has returned
+ * the photo ID.
+ *
+ * <p>If an upload fails after Flickr has already stored the photo (e.g. the connection
+ * drops while waiting for the response, or the application is killed), the entry remains.
+ * Before uploading the same remote file again, the {@link FlickrTransferManager} looks
+ * up the photo by its title, and uses the existing photo instead of uploading a duplicate.
+ * Uploads without a journal entry never need this lookup.
+ *
+ * <p>The journal is persisted to a file in the local state directory, so that it survives
+ * restarts. It must not be kept in the cache directory, which is cleaned up after every
+ * operation. The file is a simple tab-separated text file (title and start time).
+ */
+public class FlickrUploadJournal {
+	private static final Logger logger = Logger.getLogger(FlickrUploadJournal.class.getSimpleName());
+
+	private static final String JOURNAL_FILE_HEADER = "# Syncany Flickr upload journal, version 1";
+	private static final String JOURNAL_FILE_SEPARATOR = "\t";
+
+	private File journalFile;
+	private Map<String, Long> pendingUploads; // Photo title -> start time (in seconds)
+
+	/**
+	 * Creates a new (empty) upload journal. If <tt>journalFile</tt> is <tt>null</tt>,
+	 * the journal is only held in memory.
+	 */
+	public FlickrUploadJournal(File journalFile) {
+		this.journalFile = journalFile;
+		this.pendingUploads = new LinkedHashMap<String, Long>();
+	}
+
+	/**
+	 * Returns whether an upload of a photo with the given title has been started
+	 * before, but has not been completed.
+	 */
+	public synchronized boolean isPending(String title) {
+		return pendingUploads.containsKey(title);
+	}
+
+	/**
+	 * Records that the upload of a photo with the given title is about to start.
+	 */
+	public synchronized void begin(String title) throws IOException {
+		pendingUploads.put(title, System.currentTimeMillis() / 1000);
+		save();
+	}
+
+	/**
+	 * Records that the photo with the given title has been uploaded (or that a previous
+	 * upload has been found on Flickr).
+	 */
+	public synchronized void complete(String title) throws IOException {
+		if (pendingUploads.remove(title) != null) {
+			save();
+		}
+	}
+
+	/**
+	 * Loads the journal from the journal file. If the file does not exist or cannot be
+	 * read, the journal is empty.
+	 */
+	public synchronized void load() {
+		if (journalFile == null || !journalFile.exists()) {
+			return;
+		}
+
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), StandardCharsets.UTF_8))) {
+			if (!JOURNAL_FILE_HEADER.equals(reader.readLine())) {
+				throw new IOException("Invalid journal file header.");
+			}
+
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+				String[] values = line.split(JOURNAL_FILE_SEPARATOR, 2);
+
+				if (values.length != 2) {
+					throw new IOException("Invalid journal file entry: " + line);
+				}
+
+				pendingUploads.put(values[1], Long.parseLong(values[0]));
+			}
+
+			logger.log(Level.INFO, "Loaded upload journal from " + journalFile + " with " + pendingUploads.size() + " pending upload(s).");
+		}
+		catch (Exception e) {
+			logger.log(Level.WARNING, "Cannot load upload journal from " + journalFile + ". Ignoring.", e);
+			pendingUploads.clear();
+		}
+	}
+
+	/**
+	 * Writes the journal to a temporary file and renames it to the journal file, so that a
+	 * crash never leaves a partial journal behind. An empty journal deletes the file.
+	 */
+	private void save() throws IOException {
+		if (journalFile == null) {
+			return;
+		}
+		else if (pendingUploads.isEmpty()) {
+			Files.deleteIfExists(journalFile.toPath());
+			return;
+		}
+
+		File tempJournalFile = new File(journalFile.getParentFile(), journalFile.getName() + ".tmp");
+
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempJournalFile), StandardCharsets.UTF_8))) {
+			writer.write(JOURNAL_FILE_HEADER + "\n");
+
+			for (Map.Entry<String, Long> pendingUpload : pendingUploads.entrySet()) {
+				writer.write(pendingUpload.getValue() + JOURNAL_FILE_SEPARATOR + pendingUpload.getKey() + "\n");
+			}
+		}
+
+		Files.move(tempJournalFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+}
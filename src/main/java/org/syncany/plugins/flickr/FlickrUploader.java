@@ -0,0 +1,280 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2014 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.plugins.flickr;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.commons.io.IOUtils;
+import org.scribe.builder.ServiceBuilder;
+import org.scribe.builder.api.FlickrApi;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Token;
+import org.scribe.model.Verb;
+import org.scribe.oauth.OAuthService;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import com.flickr4java.flickr.FlickrException;
+import com.flickr4java.flickr.auth.Auth;
+import com.flickr4java.flickr.uploader.Uploader;
+
+/**
+ * Uploads a photo file to Flickr by streaming it directly from disk into
+ * the HTTP request body.
+ *
+ * <p>This class replaces the {@link Uploader} of the Flickr4Java library for
+ * the upload path of the {@link FlickrTransferManager}: The library assembles
+ * the entire multipart body (including the photo) in a byte array before sending it,
+ * which holds several copies of each multichunk on the heap. This class instead
+ * signs the request parameters (using OAuth, exactly like the library does) and
+ * then streams the photo with a fixed content length, so that the memory used per
+ * upload only depends on the buffer size.
+ *
+ * @author Philipp C. Heckel <philipp.heckel@gmail.com>
+ */
+public class FlickrUploader {
+	private static final Logger logger = Logger.getLogger(FlickrUploader.class.getSimpleName());
+
+	public static final String UPLOAD_PATH = "/services/upload/";
+	public static final String DEFAULT_UPLOAD_URL = "https://up.flickr.com" + UPLOAD_PATH;
+
+	private static final String LINE_FEED = "\r\n";
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+	private String apiKey;
+	private String sharedSecret;
+	private Auth auth;
+	private String uploadUrl;
+	private FlickrRequestScheduler requestScheduler;
+
+	public FlickrUploader(String apiKey, String sharedSecret, Auth auth) {
+		this(apiKey, sharedSecret, auth, DEFAULT_UPLOAD_URL);
+	}
+
+	/**
+	 * Creates an uploader that sends photos to the given upload URL instead of the
+	 * Flickr upload API, e.g. to a local stand-in server for testing.
+	 */
+	public FlickrUploader(String apiKey, String sharedSecret, Auth auth, String uploadUrl) {
+		this(apiKey, sharedSecret, auth, uploadUrl, null);
+	}
+
+	/**
+	 * Creates an uploader that paces its uploads using the given scheduler (with
+	 * {@link FlickrRequestScheduler.Priority#BULK bulk} priority). If the scheduler
+	 * is <tt>null</tt>, uploads are not paced.
+	 */
+	public FlickrUploader(String apiKey, String sharedSecret, Auth auth, String uploadUrl, FlickrRequestScheduler requestScheduler) {
+		this.apiKey = apiKey;
+		this.sharedSecret = sharedSecret;
+		this.auth = auth;
+		this.uploadUrl = uploadUrl;
+		this.requestScheduler = requestScheduler;
+	}
+
+	/**
+	 * Uploads the given (PNG) file to Flickr and returns the ID of the newly
+	 * created photo. The photo is always private.
+	 *
+	 * @param photoFile Local PNG file to upload; read as a stream
+	 * @param fileName File name to send in the multipart body
+	 * @param title Title of the photo; used as the remote file name by the plugin
+	 * @return Returns the photo ID of the uploaded photo
+	 * @throws FlickrException If Flickr rejects the upload
+	 * @throws IOException If the file cannot be read, or the connection fails
+	 */
+	public String upload(File photoFile, String fileName, String title) throws FlickrException, IOException {
+		return upload(photoFile, fileName, title, null);
+	}
+
+	/**
+	 * Uploads the given (PNG) file to Flickr with the given description (if not
+	 * <tt>null</tt>), and returns the ID of the newly created photo.
+	 *
+	 * @see #upload(File, String, String)
+	 */
+	public String upload(File photoFile, String fileName, String title, String description) throws FlickrException, IOException {
+		Map<String, String> parameters = new TreeMap<String, String>();
+
+		parameters.put("title", title);
+
+		if (description != null) {
+			parameters.put("description", description);
+		}
+
+		parameters.put("is_public", "0");
+		parameters.put("is_friend", "0");
+		parameters.put("is_family", "0");
+		parameters.put("async", "0");
+
+		parameters.putAll(createOAuthParameters(parameters));
+
+		// Build multipart body around the photo
+		String boundary = "---------------------------" + UUID.randomUUID().toString().replace("-", "");
+
+		byte[] multipartHead = createMultipartHead(parameters, boundary, fileName);
+		byte[] multipartTail = (LINE_FEED + "--" + boundary + "--" + LINE_FEED).getBytes(StandardCharsets.UTF_8);
+
+		long contentLength = multipartHead.length + photoFile.length() + multipartTail.length;
+
+		// Wait for permit (metadata requests go first)
+		if (requestScheduler != null) {
+			try {
+				requestScheduler.acquire(FlickrRequestScheduler.Priority.BULK);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for upload permit.");
+			}
+		}
+
+		// Stream request
+		HttpURLConnection connection = (HttpURLConnection) new URL(uploadUrl).openConnection();
+
+		try {
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setFixedLengthStreamingMode(contentLength);
+			connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+
+			logger.log(Level.FINE, "Uploading " + photoFile + " (" + contentLength + " bytes body) to " + uploadUrl + " ...");
+
+			try (OutputStream requestStream = new BufferedOutputStream(connection.getOutputStream(), BUFFER_SIZE);
+					InputStream photoInputStream = new FileInputStream(photoFile)) {
+
+				requestStream.write(multipartHead);
+				IOUtils.copyLarge(photoInputStream, requestStream, new byte[BUFFER_SIZE]);
+				requestStream.write(multipartTail);
+			}
+
+			// Parse response
+			int responseCode = connection.getResponseCode();
+			boolean success = responseCode < HttpURLConnection.HTTP_BAD_REQUEST;
+
+			if (requestScheduler != null) {
+				if (responseCode == HTTP_TOO_MANY_REQUESTS || responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+					requestScheduler.onThrottled();
+				}
+				else {
+					requestScheduler.onSuccess();
+				}
+			}
+
+			try (InputStream responseStream = (success) ? connection.getInputStream() : connection.getErrorStream()) {
+				if (responseStream == null) {
+					throw new IOException("Upload failed with HTTP " + connection.getResponseCode() + " and no response body.");
+				}
+
+				return parsePhotoId(responseStream);
+			}
+		}
+		finally {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Signs the given parameters (without the photo) and returns the OAuth
+	 * parameters to be included in the multipart body.
+	 */
+	private Map<String, String> createOAuthParameters(Map<String, String> parameters) {
+		OAuthRequest request = new OAuthRequest(Verb.POST, uploadUrl);
+
+		for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+			request.addQuerystringParameter(parameter.getKey(), parameter.getValue());
+		}
+
+		OAuthService service = new ServiceBuilder().provider(FlickrApi.class).apiKey(apiKey).apiSecret(sharedSecret).build();
+		service.signRequest(new Token(auth.getToken(), auth.getTokenSecret()), request);
+
+		return request.getOauthParameters();
+	}
+
+	private byte[] createMultipartHead(Map<String, String> parameters, String boundary, String fileName) {
+		StringBuilder multipartHead = new StringBuilder();
+
+		for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+			multipartHead.append("--").append(boundary).append(LINE_FEED);
+			multipartHead.append("Content-Disposition: form-data; name=\"").append(parameter.getKey()).append("\"").append(LINE_FEED);
+			multipartHead.append(LINE_FEED);
+			multipartHead.append(parameter.getValue()).append(LINE_FEED);
+		}
+
+		multipartHead.append("--").append(boundary).append(LINE_FEED);
+		multipartHead.append("Content-Disposition: form-data; name=\"photo\"; filename=\"").append(fileName).append("\"").append(LINE_FEED);
+		multipartHead.append("Content-Type: image/png").append(LINE_FEED);
+		multipartHead.append(LINE_FEED);
+
+		return multipartHead.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Parses the upload API response, i.e. <tt>&lt;rsp stat="ok"&gt;&lt;photoid&gt;..&lt;/photoid&gt;&lt;/rsp&gt;</tt>
+	 * or <tt>&lt;rsp stat="fail"&gt;&lt;err code=".." msg=".."/&gt;&lt;/rsp&gt;</tt>.
+	 */
+	private String parsePhotoId(InputStream responseStream) throws FlickrException, IOException {
+		try {
+			Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(responseStream);
+			Element responseElement = document.getDocumentElement();
+
+			if ("ok".equals(responseElement.getAttribute("stat"))) {
+				NodeList photoIdElements = responseElement.getElementsByTagName("photoid");
+
+				if (photoIdElements.getLength() == 0) {
+					throw new IOException("Invalid upload response: No photo ID found.");
+				}
+
+				return photoIdElements.item(0).getTextContent().trim();
+			}
+			else {
+				NodeList errorElements = responseElement.getElementsByTagName("err");
+
+				if (errorElements.getLength() == 0) {
+					throw new IOException("Invalid upload response: Upload failed, but no error element found.");
+				}
+
+				Element errorElement = (Element) errorElements.item(0);
+				throw new FlickrException(errorElement.getAttribute("code"), errorElement.getAttribute("msg"));
+			}
+		}
+		catch (FlickrException | IOException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new IOException("Cannot parse upload response.", e);
+		}
+	}
+}
@@ -0,0 +1,235 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2014 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.plugins.flickr;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * A PNG container stores several (small) files in one PNG image, so that they can be
+ * uploaded as a single Flickr photo. The files are concatenated to one payload, and a
+ * table of contents (TOC) maps each file name to its offset and length in the payload.
+ *
+ * <p>The TOC is written to the image as a tEXt chunk (keyword {@link #TOC_KEYWORD}), so
+ * that the image is self-describing, and it is additionally stored as the photo's description,
+ * so that the files can be listed without downloading the image. A single file is
+ * extracted by decoding only its range of the payload (see {@link #extract(InputStream, String, OutputStream)}).
+ *
+ * <p>The TOC format is a space-separated list of <tt>name:offset:length</tt> entries. Remote
+ * file names never contain spaces or colons.
+ */
+public class PngContainer {
+	public static final String TOC_KEYWORD = "Syncany-TOC";
+
+	private static final String CONTAINER_TITLE_PREFIX = "container-";
+	private static final int CONTAINER_TITLE_RANDOM_BYTES = 16;
+	private static final String TOC_ENTRY_SEPARATOR = " ";
+	private static final String TOC_FIELD_SEPARATOR = ":";
+
+	private Map<String, Entry> entries;
+
+	public PngContainer() {
+		this.entries = new LinkedHashMap<String, Entry>();
+	}
+
+	/**
+	 * Returns whether the given photo title is the title of a container (and not
+	 * the name of a single remote file).
+	 */
+	public static boolean isContainerTitle(String title) {
+		return title != null && title.startsWith(CONTAINER_TITLE_PREFIX);
+	}
+
+	/**
+	 * Creates a new random container title.
+	 */
+	public static String createTitle() {
+		byte[] randomBytes = new byte[CONTAINER_TITLE_RANDOM_BYTES];
+		new SecureRandom().nextBytes(randomBytes);
+
+		return CONTAINER_TITLE_PREFIX + PngEncoder.toHex(randomBytes);
+	}
+
+	/**
+	 * Parses the given TOC string. Invalid entries are ignored; a <tt>null</tt>
+	 * TOC results in an empty container.
+	 */
+	public static PngContainer fromToc(String toc) {
+		PngContainer container = new PngContainer();
+
+		if (toc != null) {
+			for (String tocEntry : toc.trim().split(TOC_ENTRY_SEPARATOR)) {
+				String[] tocEntryFields = tocEntry.split(TOC_FIELD_SEPARATOR);
+
+				if (tocEntryFields.length == 3) {
+					try {
+						container.entries.put(tocEntryFields[0], new Entry(tocEntryFields[0], Integer.parseInt(tocEntryFields[1]), Integer.parseInt(tocEntryFields[2])));
+					}
+					catch (NumberFormatException e) {
+						// Ignore invalid entries
+					}
+				}
+			}
+		}
+
+		return container;
+	}
+
+	/**
+	 * Encodes the given files into a PNG image, and returns the container describing it.
+	 * The payload starts with <tt>paddingLength</tt> zero bytes, followed by the files in
+	 * the iteration order of the given map.
+	 *
+	 * @param files Map of file names to local files to be stored in the container
+	 * @param paddingLength Number of zero bytes to prepend to the payload
+	 * @param destStream Stream to write the PNG image to; closed by this method
+	 * @param profile Pixel format, geometry and compression of the image
+	 */
+	public static PngContainer encodeToPng(Map<String, File> files, int paddingLength, OutputStream destStream, PngEncoder.Profile profile) throws IOException {
+		PngContainer container = new PngContainer();
+		Vector<InputStream> payloadStreams = new Vector<InputStream>();
+
+		long payloadLength = paddingLength;
+		payloadStreams.add(new ByteArrayInputStream(new byte[paddingLength]));
+
+		for (Map.Entry<String, File> file : files.entrySet()) {
+			long fileLength = file.getValue().length();
+
+			if (payloadLength + fileLength > Integer.MAX_VALUE) {
+				throw new IOException("Container too big; max. " + Integer.MAX_VALUE + " bytes supported.");
+			}
+
+			container.entries.put(file.getKey(), new Entry(file.getKey(), (int) payloadLength, (int) fileLength));
+			payloadStreams.add(new BufferedInputStream(new FileInputStream(file.getValue())));
+
+			payloadLength += fileLength;
+		}
+
+		Map<String, String> textEntries = Collections.singletonMap(TOC_KEYWORD, container.toToc());
+		PngEncoder.encodeToPng(new SequenceInputStream(payloadStreams.elements()), (int) payloadLength, destStream, textEntries, profile); // Closes both streams
+
+		return container;
+	}
+
+	/**
+	 * Decodes the file with the given name from the given PNG image stream. Only the
+	 * payload up to the end of the file is read (see {@link PngEncoder#decodeFromPng(InputStream, OutputStream, int, int)}).
+	 *
+	 * @throws IOException If the file is not in the container, or if the image cannot be decoded
+	 */
+	public void extract(InputStream srcStream, String name, OutputStream destStream) throws IOException {
+		Entry entry = entries.get(name);
+
+		if (entry == null) {
+			srcStream.close();
+			destStream.close();
+
+			throw new IOException("File " + name + " not found in container.");
+		}
+
+		PngEncoder.decodeFromPng(srcStream, destStream, entry.getOffset(), entry.getLength()); // Closes both streams
+	}
+
+	public Entry get(String name) {
+		return entries.get(name);
+	}
+
+	public List<String> getNames() {
+		return new ArrayList<String>(entries.keySet());
+	}
+
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	/**
+	 * Removes the file with the given name from the TOC. The data stays in the image.
+	 */
+	public boolean remove(String name) {
+		return entries.remove(name) != null;
+	}
+
+	/**
+	 * Changes the name of a file in the TOC, e.g. after a move.
+	 */
+	public boolean rename(String name, String newName) {
+		Entry entry = entries.remove(name);
+
+		if (entry != null) {
+			entries.put(newName, new Entry(newName, entry.getOffset(), entry.getLength()));
+			return true;
+		}
+
+		return false;
+	}
+
+	public String toToc() {
+		StringBuilder toc = new StringBuilder();
+
+		for (Entry entry : entries.values()) {
+			if (toc.length() > 0) {
+				toc.append(TOC_ENTRY_SEPARATOR);
+			}
+
+			toc.append(entry.getName()).append(TOC_FIELD_SEPARATOR).append(entry.getOffset()).append(TOC_FIELD_SEPARATOR).append(entry.getLength());
+		}
+
+		return toc.toString();
+	}
+
+	/**
+	 * A single file in the container, i.e. its name, and its offset and length in
+	 * the payload of the image.
+	 */
+	public static class Entry {
+		private String name;
+		private int offset;
+		private int length;
+
+		public Entry(String name, int offset, int length) {
+			this.name = name;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+	}
+}
@@ -19,6 +19,8 @@ package org.syncany.plugins.flickr;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -26,11 +28,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.InflaterOutputStream;
+import java.util.zip.Inflater;
 
 /**
  * Encodes any byte array, stream or file into a PNG image.
@@ -56,6 +62,25 @@ import java.util.zip.InflaterOutputStream;
  * byte[] threebytes = PngEncoder.decodeFromPng(new File("/tmp/3-bytes.png"));
  * </pre>
  * 
+ * <p>Additional (standard) tEXt chunks can be written along with the payload, and read
+ * back without decoding the payload (see {@link #readTextEntries(InputStream)}). Together
+ * with range decoding (see {@link #decodeFromPng(InputStream, OutputStream, int, int)}),
+ * this allows storing several files in one image, see {@link PngContainer}.
+ *
+ * <p>The pixel format, image geometry and compression can be selected with a {@link Profile}.
+ * The decoder reads all of this from the image itself, so it can read images of any profile.
+ *
+ * <p>If the profile defines a sync interval (see {@link Profile#withSyncInterval(int)}), the
+ * deflate stream is fully flushed at regular intervals, and each of these <i>sync points</i> starts
+ * a new IDAT chunk. The image offsets of the sync points are written to a {@link Trailer} behind
+ * the image data, along with optional trailing tEXt chunks. A client that reads the trailer (e.g.
+ * via an HTTP range request for the end of the image) can then decode any payload range from the
+ * image bytes between two sync points, see {@link #decodeFromSyncPoint(InputStream, OutputStream, Trailer, int, int, int)}.
+ *
+ * <p>Encoding and decoding does not allocate memory in proportion to the payload: Rows are
+ * packed into blocks and (de)compressed block by block, and all buffers, checksums and
+ * (de)compressors are reused by subsequent images of the same thread, see {@link CodecBuffers}.
+ *
  * @author Philipp C. Heckel <philipp.heckel@gmail.com>
  * @see http://www.w3.org/TR/PNG/
  */
@@ -65,16 +90,12 @@ public class PngEncoder {
 
 	private static final int PNG_CHUNK_IHDR_OFFSET_IMAGE_WIDTH = 8;
 	private static final int PNG_CHUNK_IHDR_OFFSET_IMAGE_HEIGHT = 12;
+	private static final int PNG_CHUNK_IHDR_OFFSET_COLOR_TYPE = 17;
+	private static final int PNG_CHUNK_IHDR_DATA_OFFSET_COLOR_TYPE = 9;
 	private static final int PNG_CHUNK_IHDR_OFFSET_CRC_CHECKSUM = 21;
 
-	private static final int PNG_CHUNK_IHDR_SIZE_IMAGE_WIDTH = 4;
-	private static final int PNG_CHUNK_IHDR_SIZE_IMAGE_HEIGHT = 4;
-	private static final int PNG_CHUNK_IHDR_SIZE_BIT_DEPTH = 1;
-	private static final int PNG_CHUNK_IHDR_SIZE_COLOR_TYPE = 1;
-	private static final int PNG_CHUNK_IHDR_SIZE_COMPRESSION_METHOD = 1;
-	private static final int PNG_CHUNK_IHDR_SIZE_FILTER_METHOD = 1;
-	private static final int PNG_CHUNK_IHDR_SIZE_INTERLACE_METHOD = 1;
-	private static final int PNG_CHUNK_IHDR_SIZE_CRC_CHECKSUM = 4;
+	private static final byte PNG_COLOR_TYPE_RGB = 0x02;
+	private static final byte PNG_COLOR_TYPE_RGBA = 0x06;
 
 	private static final int PNG_CHUNK_TEXT_OFFSET_DATA_TYPE = 4;
 	private static final int PNG_CHUNK_TEXT_OFFSET_MAGIC_IDENTIFIER = 8;
@@ -84,13 +105,32 @@ public class PngEncoder {
 
 	private static final int PNG_CHUNK_TEXT_OFFSET_PAYLOAD_LENGTH = 12;
 	private static final int PNG_CHUNK_TEXT_OFFSET_CRC_CHECKSUM = 16;
-	private static final int PNG_CHUNK_TEXT_SIZE_CRC_CHECKSUM = 4;
+	private static final byte PNG_CHUNK_TEXT_KEYWORD_SEPARATOR = 0x00;
+
+	private static final int PNG_CHUNK_TYPE_SIZE = 4;
+	private static final int PNG_CHUNK_IEND_SIZE = 12;
+	private static final byte[] PNG_CHUNK_IHDR_TYPE = new byte[] { 0x49, 0x48, 0x44, 0x52 };
+	private static final byte[] PNG_CHUNK_TEXT_TYPE = new byte[] { 0x74, 0x45, 0x58, 0x74 };
+	private static final byte[] PNG_CHUNK_IEND_TYPE = new byte[] { 0x49, 0x45, 0x4e, 0x44 };
 
 	private static final byte[] PNG_CHUNK_IDAT_TYPE = new byte[] { 0x49, 0x44, 0x41, 0x54 };
 	private static final byte PNG_CHUNK_IDAT_BEGIN_FILTER_METHOD = 0x00;
 	private static final int PNG_CHUNK_IDAT_BEGIN_OFFSET_DATA_SIZE = 0;
 	private static final int PNG_CHUNK_IDAT_END_OFFSET_CRC_CHECKSUM = 0;
 	private static final int PNG_CHUNK_IDAT_BEGIN_SIZE_FILTER_METHOD = 1;
+	private static final int PNG_CHUNK_IDAT_MAX_DATA_SIZE = 64 * 1024; // Max. IDAT chunk size; bounds the memory used while encoding
+
+	private static final String TRAILER_SYNC_POINTS_KEYWORD = "Syncany-Sync-Points";
+	private static final String TRAILER_OFFSET_KEYWORD = "Syncany-Trailer-Offset";
+	private static final String TRAILER_OFFSET_FORMAT = "%012d"; // Fixed length, see TRAILER_LOCATOR_SIZE
+	private static final int TRAILER_LOCATOR_DATA_SIZE = TRAILER_OFFSET_KEYWORD.length() + 1 + 12; // Keyword, separator, offset
+
+	/**
+	 * Size of the (fixed-size) tEXt chunk at the end of an image that locates the
+	 * {@link Trailer}, plus the IEND chunk, i.e. the minimum number of bytes to read
+	 * from the end of an image to find the trailer (see {@link #readTrailerOffset(byte[])}).
+	 */
+	public static final int TRAILER_LOCATOR_SIZE = 4 + 4 + TRAILER_LOCATOR_DATA_SIZE + 4 + PNG_CHUNK_IEND_SIZE;
 
 	private static final byte UDEF = 0x00; // undefined value in PNG header, to be overwritten by methods                              
 
@@ -105,7 +145,7 @@ public class PngEncoder {
 			/* 08 */ UDEF, UDEF, UDEF, UDEF, // Image width
 			/* 12 */ UDEF, UDEF, UDEF, UDEF, // Image height
 			/* 16 */ 0x08,                   // Bit depth (here: 8 bits, for color type true color)
-			/* 17 */ 0x02,                   // Color type (here: 2 / true color)
+			/* 17 */ 0x02,                   // Color type (here: 2 / true color, or 6 / true color with alpha, see Profile)
 			/* 18 */ 0x00,                   // Compression method (here: 0, deflate/inflate)
 			/* 19 */ 0x00,                   // Filter method (here: adaptive filtering with five basic filter type)
 			/* 20 */ 0x00,                   // Interlace method (here: 0, no interlace)
@@ -208,101 +248,202 @@ public class PngEncoder {
 	 * @throws IOException Thrown if the input/output stream cannot be read/written
 	 */
 	public static void encodeToPng(InputStream srcStream, int srcStreamLength, OutputStream destStream) throws IOException {
+		encodeToPng(srcStream, srcStreamLength, destStream, Profile.DEFAULT);
+	}
+
+	/**
+	 * Encodes an <code>InputStream</code> into a PNG using the given encoding
+	 * profile, and outputs the image to an <code>OutputStream</code>.
+	 *
+	 * @param srcStream Stream of input data (payload)
+	 * @param srcStreamLength Length of the input data stream (in bytes)
+	 * @param destStream Stream to write the PNG file to
+	 * @param profile Pixel format, geometry and compression of the image
+	 * @throws IOException Thrown if the input/output stream cannot be read/written
+	 */
+	public static void encodeToPng(InputStream srcStream, int srcStreamLength, OutputStream destStream, Profile profile) throws IOException {
+		encodeToPng(srcStream, srcStreamLength, destStream, Collections.<String, String> emptyMap(), profile);
+	}
+
+	/**
+	 * Encodes an <code>InputStream</code> into a PNG and outputs the image
+	 * as byte array. The given text entries are written as additional tEXt
+	 * chunks (keyword and text, ISO-8859-1), in front of the image data.
+	 *
+	 * @param srcStream Stream of input data (payload)
+	 * @param srcStreamLength Length of the input data stream (in bytes)
+	 * @param destStream Stream to write the PNG file to
+	 * @param textEntries Keywords and texts to write as tEXt chunks; can be read via {@link #readTextEntries(InputStream)}
+	 * @param profile Pixel format, geometry and compression of the image
+	 * @throws IOException Thrown if the input/output stream cannot be read/written
+	 */
+	public static void encodeToPng(InputStream srcStream, int srcStreamLength, OutputStream destStream, Map<String, String> textEntries, Profile profile) throws IOException {
+		encodeToPng(srcStream, srcStreamLength, destStream, textEntries, Collections.<String, String> emptyMap(), profile);
+	}
+
+	/**
+	 * Encodes an <code>InputStream</code> into a PNG and outputs the image
+	 * as byte array. The given text entries are written as additional tEXt
+	 * chunks in front of the image data, the trailing text entries are written
+	 * as tEXt chunks behind the image data (in the {@link Trailer}).
+	 *
+	 * <p>A trailer is written if there are trailing text entries, or if the profile
+	 * defines a sync interval; otherwise the image ends with the image data.
+	 *
+	 * @param srcStream Stream of input data (payload)
+	 * @param srcStreamLength Length of the input data stream (in bytes)
+	 * @param destStream Stream to write the PNG file to
+	 * @param textEntries Keywords and texts to write as tEXt chunks; can be read via {@link #readTextEntries(InputStream)}
+	 * @param trailingTextEntries Keywords and texts to write as tEXt chunks; can be read via {@link #readTrailer(byte[], long)}
+	 * @param profile Pixel format, geometry and compression of the image
+	 * @throws IOException Thrown if the input/output stream cannot be read/written
+	 */
+	public static void encodeToPng(InputStream srcStream, int srcStreamLength, OutputStream destStream, Map<String, String> textEntries,
+			Map<String, String> trailingTextEntries, Profile profile) throws IOException {
+
 		if (srcStreamLength > Integer.MAX_VALUE) {
 			throw new IOException("File too big; max. " + Integer.MAX_VALUE + " bytes supported.");
 		}
 
+		CodecBuffers buffers = CodecBuffers.acquire();
+
+		try {
+			encodeToPng(srcStream, srcStreamLength, destStream, textEntries, trailingTextEntries, profile, buffers);
+		}
+		finally {
+			buffers.release();
+		}
+	}
+
+	private static void encodeToPng(InputStream srcStream, int srcStreamLength, OutputStream destStream, Map<String, String> textEntries,
+			Map<String, String> trailingTextEntries, Profile profile, CodecBuffers buffers) throws IOException {
+
+		CountingOutputStream pngOutputStream = new CountingOutputStream(destStream);
+
 		// Write PNG signature
-		destStream.write(PNG_SIGNATURE, 0, PNG_SIGNATURE.length);
+		pngOutputStream.write(PNG_SIGNATURE, 0, PNG_SIGNATURE.length);
 
 		// Write IHDR chunk
-		int ihdrImageWidth = (int) Math.ceil(Math.sqrt((double) srcStreamLength / 3)); // Image width, sqrt(payload/3), divided by 3 because of RGB
-		int ihdrImageHeight = (int) Math.ceil((double) srcStreamLength // Image height, payload / image width / 3
-				/ (double) ihdrImageWidth / 3);
+		int bytesPerPixel = profile.getBytesPerPixel();
+		int ihdrImageWidth = (int) Math.ceil(Math.sqrt((double) srcStreamLength / bytesPerPixel)); // Image width, sqrt(payload/bytes per pixel)
 
-		byte[] ihdrChunk = PNG_CHUNK_IHDR.clone(); // Clone PNG header template, and overwrite with fields
+		if (profile.getMaxImageWidth() > 0) {
+			ihdrImageWidth = Math.min(ihdrImageWidth, profile.getMaxImageWidth());
+		}
+
+		ihdrImageWidth = Math.max(ihdrImageWidth, Math.max(1, profile.getMinImageSize()));
+
+		int ihdrImageHeight = (int) Math.ceil((double) srcStreamLength // Image height, payload / image width / bytes per pixel
+				/ (double) ihdrImageWidth / bytesPerPixel);
+
+		ihdrImageHeight = Math.max(ihdrImageHeight, Math.max(1, profile.getMinImageSize()));
+
+		byte[] ihdrChunk = buffers.ihdrChunk; // Copy of PNG header template, overwrite with fields
 
 		writeIntBE(ihdrChunk, PNG_CHUNK_IHDR_OFFSET_IMAGE_WIDTH, ihdrImageWidth);
 		writeIntBE(ihdrChunk, PNG_CHUNK_IHDR_OFFSET_IMAGE_HEIGHT, ihdrImageHeight);
+		ihdrChunk[PNG_CHUNK_IHDR_OFFSET_COLOR_TYPE] = profile.getColorType();
 
-		int ihdrChecksum = calculateChunkChecksum(ihdrChunk, PNG_CHUNK_IHDR_OFFSET_DATA_TYPE, PNG_CHUNK_IHDR_SIZE_DATA_AND_TYPE);
+		int ihdrChecksum = calculateChunkChecksum(ihdrChunk, PNG_CHUNK_IHDR_OFFSET_DATA_TYPE, PNG_CHUNK_IHDR_SIZE_DATA_AND_TYPE, buffers.checksum);
 		writeIntBE(ihdrChunk, PNG_CHUNK_IHDR_OFFSET_CRC_CHECKSUM, ihdrChecksum);
 
-		destStream.write(ihdrChunk, 0, ihdrChunk.length);
+		pngOutputStream.write(ihdrChunk, 0, ihdrChunk.length);
 
 		// Write sRGB chunk
-		destStream.write(PNG_CHUNK_SRGB);
+		pngOutputStream.write(PNG_CHUNK_SRGB);
 
 		// Write tEXt chunk (with magic ID and hidden data size)
-		byte[] textChunk = PNG_CHUNK_TEXT.clone();
+		byte[] textChunk = buffers.textChunk;
 
 		System.arraycopy(PNG_CHUNK_TEXT_MAGIC_IDENTIFIER, 0, textChunk, PNG_CHUNK_TEXT_OFFSET_MAGIC_IDENTIFIER, PNG_CHUNK_TEXT_SIZE_MAGIC_IDENTIFIER);
 		writeIntBE(textChunk, PNG_CHUNK_TEXT_OFFSET_PAYLOAD_LENGTH, srcStreamLength);
 
-		int textChecksum = calculateChunkChecksum(textChunk, PNG_CHUNK_TEXT_OFFSET_DATA_TYPE, PNG_CHUNK_TEXT_SIZE_DATA_AND_TYPE);
+		int textChecksum = calculateChunkChecksum(textChunk, PNG_CHUNK_TEXT_OFFSET_DATA_TYPE, PNG_CHUNK_TEXT_SIZE_DATA_AND_TYPE, buffers.checksum);
 		writeIntBE(textChunk, PNG_CHUNK_TEXT_OFFSET_CRC_CHECKSUM, textChecksum);
 
-		destStream.write(textChunk, 0, textChunk.length);
+		pngOutputStream.write(textChunk, 0, textChunk.length);
+
+		// Write additional tEXt chunks (keyword, null separator, text)
+		for (Map.Entry<String, String> textEntry : textEntries.entrySet()) {
+			writeTextChunk(pngOutputStream, textEntry.getKey(), textEntry.getValue(), buffers);
+		}
+
+		// Create IDAT chunks (streamed, each at most PNG_CHUNK_IDAT_MAX_DATA_SIZE bytes)
+		Deflater deflater = buffers.getDeflater();
+		deflater.setStrategy(profile.getCompressionStrategy());
+		deflater.setLevel(profile.getCompressionLevel());
 
-		// Create IDAT chunk
+		IdatChunkOutputStream idatOutputStream = new IdatChunkOutputStream(pngOutputStream, buffers);
 
-		// 1. Compress data
-		Deflater deflater = new Deflater();
-		deflater.setStrategy(Deflater.FILTERED);
-		deflater.setLevel(1);
+		// Rows (filter byte and payload) are packed into blocks, and each block is deflated at once
+		int rowSize = PNG_CHUNK_IDAT_BEGIN_SIZE_FILTER_METHOD + ihdrImageWidth * bytesPerPixel;
+		int maxRowLength = rowSize - PNG_CHUNK_IDAT_BEGIN_SIZE_FILTER_METHOD;
+		int rowBlockCapacity = Math.max(1, PNG_CHUNK_IDAT_MAX_DATA_SIZE / rowSize) * rowSize;
+		byte[] rowBlock = buffers.getRowBlock(rowBlockCapacity);
+		int rowBlockSize = 0;
+		int payloadRemaining = srcStreamLength;
 
-		ByteArrayOutputStream compressedIdatOutputStream = new ByteArrayOutputStream();
-		DeflaterOutputStream deflaterDestStream = new DeflaterOutputStream(compressedIdatOutputStream, deflater);
+		// Sync points (row, image offset of IDAT chunk) every 'syncRows' rows, see Trailer
+		int syncRows = (profile.getSyncInterval() > 0) ? Math.max(1, profile.getSyncInterval() / maxRowLength) : 0;
+		StringBuilder syncPoints = new StringBuilder();
 
-		byte[] row = new byte[ihdrImageWidth * 3];
-		int numberOfLines = ihdrImageHeight;
-		int numberOfBytesRead = -1;
+		for (int i = 0; i < ihdrImageHeight; i++) {
+			if (syncRows > 0 && i % syncRows == 0) {
+				if (i > 0) {
+					deflate(deflater, rowBlock, rowBlockSize, idatOutputStream, buffers);
+					deflateFullFlush(deflater, idatOutputStream, buffers);
+					idatOutputStream.finish(); // Next IDAT chunk starts at sync point
 
-		for (int i = 0; i < numberOfLines; i++) {
-			numberOfBytesRead = srcStream.read(row);
+					rowBlockSize = 0;
+				}
 
-			if (numberOfBytesRead == -1) {
-				throw new IOException("Unable to read input stream data.");
+				syncPoints.append(' ').append(i).append(':').append(pngOutputStream.getCount());
 			}
 
-			deflaterDestStream.write(PNG_CHUNK_IDAT_BEGIN_FILTER_METHOD);
-			deflaterDestStream.write(row, 0, numberOfBytesRead);
-		}
+			int rowLength = Math.min(maxRowLength, payloadRemaining);
+			int rowPayloadOffset = rowBlockSize + PNG_CHUNK_IDAT_BEGIN_SIZE_FILTER_METHOD;
 
-		int numberOfPaddingBytesForLastRow = row.length - numberOfBytesRead;
-		deflaterDestStream.write(new byte[numberOfPaddingBytesForLastRow]);
+			rowBlock[rowBlockSize] = PNG_CHUNK_IDAT_BEGIN_FILTER_METHOD;
+			readFully(srcStream, rowBlock, rowPayloadOffset, rowLength);
 
-		deflaterDestStream.finish();
-		deflaterDestStream.flush();
+			if (rowLength < maxRowLength) {
+				Arrays.fill(rowBlock, rowPayloadOffset + rowLength, rowBlockSize + rowSize, (byte) 0x00); // Pad last row
+			}
 
-		byte[] compressedIdatOutput = compressedIdatOutputStream.toByteArray();
+			rowBlockSize += rowSize;
+			payloadRemaining -= rowLength;
 
-		// 2. Write chunk size        
-		byte[] idatChunkBegin = PNG_CHUNK_IDAT_BEGIN.clone(); // Clone PNG header template, and overwrite with fields
-		int idatDataSize = compressedIdatOutput.length;//(ihdrImageWidth+1)*ihdrImageWidth*3;
+			if (rowBlockSize == rowBlockCapacity) {
+				deflate(deflater, rowBlock, rowBlockSize, idatOutputStream, buffers);
+				rowBlockSize = 0;
+			}
+		}
+
+		deflate(deflater, rowBlock, rowBlockSize, idatOutputStream, buffers);
+		deflateFinish(deflater, idatOutputStream, buffers);
 
-		writeIntBE(idatChunkBegin, PNG_CHUNK_IDAT_BEGIN_OFFSET_DATA_SIZE, idatDataSize);
-		destStream.write(idatChunkBegin);
+		idatOutputStream.finish();
 
-		// 3. Write chunk data
-		destStream.write(compressedIdatOutput);
+		// Write trailer (tEXt chunks behind image data, and fixed-size locator)
+		if (syncRows > 0 || !trailingTextEntries.isEmpty()) {
+			long trailerOffset = pngOutputStream.getCount();
 
-		// 4. Write chunk checksum
-		CRC32 idatCRC32 = new CRC32();
-		idatCRC32.update(new byte[] { 0x49, 0x44, 0x41, 0x54 }); // TODO "IDAT"
-		idatCRC32.update(compressedIdatOutput);
+			for (Map.Entry<String, String> textEntry : trailingTextEntries.entrySet()) {
+				writeTextChunk(pngOutputStream, textEntry.getKey(), textEntry.getValue(), buffers);
+			}
 
-		byte[] idatChunkEnd = PNG_CHUNK_IDAT_END.clone();
-		int idatChecksum = (int) idatCRC32.getValue();
+			if (syncRows > 0) {
+				writeTextChunk(pngOutputStream, TRAILER_SYNC_POINTS_KEYWORD, maxRowLength + " " + srcStreamLength + syncPoints, buffers);
+			}
 
-		writeIntBE(idatChunkEnd, PNG_CHUNK_IDAT_END_OFFSET_CRC_CHECKSUM, idatChecksum);
-		destStream.write(idatChunkEnd);
+			writeTextChunk(pngOutputStream, TRAILER_OFFSET_KEYWORD, String.format(TRAILER_OFFSET_FORMAT, trailerOffset), buffers);
+		}
 
 		// Create IEND chunk
-		destStream.write(PNG_CHUNK_IEND);
+		pngOutputStream.write(PNG_CHUNK_IEND);
 
 		srcStream.close();
-		destStream.close();
+		pngOutputStream.close();
 	}
 
 	public static String toHex(byte[] bytes) {
@@ -310,8 +451,76 @@ public class PngEncoder {
 		return String.format("%0" + (bytes.length << 1) + "x", bi);
 	}
 
-	private static int calculateChunkChecksum(byte[] chunk, int offset, int length) {
-		CRC32 crc32 = new CRC32();
+	private static void writeTextChunk(OutputStream destStream, String keyword, String text, CodecBuffers buffers) throws IOException {
+		byte[] keywordBytes = keyword.getBytes(StandardCharsets.ISO_8859_1);
+		byte[] textBytes = text.getBytes(StandardCharsets.ISO_8859_1);
+
+		byte[] chunkBegin = buffers.textChunkBegin; // Chunk size and type
+		byte[] chunkEnd = buffers.chunkEnd; // Checksum
+
+		CRC32 crc32 = buffers.checksum;
+		crc32.reset();
+		crc32.update(PNG_CHUNK_TEXT_TYPE);
+		crc32.update(keywordBytes);
+		crc32.update(PNG_CHUNK_TEXT_KEYWORD_SEPARATOR);
+		crc32.update(textBytes);
+
+		writeIntBE(chunkBegin, 0, keywordBytes.length + 1 + textBytes.length);
+		writeIntBE(chunkEnd, 0, (int) crc32.getValue());
+
+		destStream.write(chunkBegin);
+		destStream.write(keywordBytes);
+		destStream.write(PNG_CHUNK_TEXT_KEYWORD_SEPARATOR);
+		destStream.write(textBytes);
+		destStream.write(chunkEnd);
+	}
+
+	/**
+	 * Passes the given (packed) rows to the deflater, and writes the compressed data
+	 * to the given stream as soon as the deflater's output buffer is full.
+	 */
+	private static void deflate(Deflater deflater, byte[] input, int inputLength, OutputStream destStream, CodecBuffers buffers) throws IOException {
+		byte[] buffer = buffers.deflateBuffer;
+		deflater.setInput(input, 0, inputLength);
+
+		while (!deflater.needsInput()) {
+			int bufferLength = deflater.deflate(buffer, 0, buffer.length);
+			destStream.write(buffer, 0, bufferLength);
+		}
+	}
+
+	/**
+	 * Writes all pending input of the deflater to the given stream, and ends the deflate
+	 * stream. The deflater can only be used again after it has been reset.
+	 */
+	private static void deflateFinish(Deflater deflater, OutputStream destStream, CodecBuffers buffers) throws IOException {
+		byte[] buffer = buffers.deflateBuffer;
+		deflater.finish();
+
+		while (!deflater.finished()) {
+			int bufferLength = deflater.deflate(buffer, 0, buffer.length);
+			destStream.write(buffer, 0, bufferLength);
+		}
+	}
+
+	/**
+	 * Writes all pending input of the deflater to the given stream, and resets the
+	 * compression state (full flush), so that the data written after this call can be
+	 * inflated without the data written before it.
+	 */
+	private static void deflateFullFlush(Deflater deflater, OutputStream destStream, CodecBuffers buffers) throws IOException {
+		byte[] buffer = buffers.deflateBuffer;
+		int bufferLength;
+
+		do {
+			bufferLength = deflater.deflate(buffer, 0, buffer.length, Deflater.FULL_FLUSH);
+			destStream.write(buffer, 0, bufferLength);
+		}
+		while (bufferLength == buffer.length);
+	}
+
+	private static int calculateChunkChecksum(byte[] chunk, int offset, int length, CRC32 crc32) {
+		crc32.reset();
 		crc32.update(chunk, offset, length);
 
 		return (int) crc32.getValue();
@@ -383,121 +592,1088 @@ public class PngEncoder {
 	 * @param destStream Stream to be written the original data to (payload)  
 	 * @throws IOException Thrown if the input/output stream cannot be read/written
 	 */
-	@SuppressWarnings("unused")
 	public static void decodeFromPng(InputStream srcStream, OutputStream destStream) throws IOException {
-		// READ HEADER		
-		long bytesRead = 0;
-
-		// Skip over PNG signature
-		bytesRead += srcStream.skip(PNG_SIGNATURE.length);
-
-		// Read/skip IHDR ('image width' field)
-		bytesRead += srcStream.skip(PNG_CHUNK_IHDR_OFFSET_IMAGE_WIDTH);
-
-		byte[] imageWidthBytes = new byte[PNG_CHUNK_IHDR_SIZE_IMAGE_WIDTH];
-		bytesRead += srcStream.read(imageWidthBytes);
-		int imageWidth = toIntBE(imageWidthBytes);
-
-		bytesRead += srcStream.skip(
-				PNG_CHUNK_IHDR_SIZE_IMAGE_HEIGHT
-						+ PNG_CHUNK_IHDR_SIZE_BIT_DEPTH
-						+ PNG_CHUNK_IHDR_SIZE_COLOR_TYPE
-						+ PNG_CHUNK_IHDR_SIZE_COMPRESSION_METHOD
-						+ PNG_CHUNK_IHDR_SIZE_FILTER_METHOD
-						+ PNG_CHUNK_IHDR_SIZE_INTERLACE_METHOD
-						+ PNG_CHUNK_IHDR_SIZE_CRC_CHECKSUM);
-
-		// Read/skip sRGB
-		bytesRead += srcStream.skip(PNG_CHUNK_SRGB.length);
-
-		// Read/skip tEXt ('payload length' field) 
-		bytesRead += srcStream.skip(PNG_CHUNK_TEXT_OFFSET_MAGIC_IDENTIFIER);
-		byte[] magicIdentifierBytes = new byte[PNG_CHUNK_TEXT_SIZE_MAGIC_IDENTIFIER];
-		bytesRead += srcStream.read(magicIdentifierBytes);
-		//System.out.println("magic id = "+toHex(magicIdentifierBytes));
-
-		if (!Arrays.equals(magicIdentifierBytes, PNG_CHUNK_TEXT_MAGIC_IDENTIFIER)) {
-			throw new IOException("Magic identifier in tEXt chunk not valid. Maybe PNG file is not encoded with this class.");
+		decodeFromPng(srcStream, destStream, 0);
+	}
+
+	/**
+	 * Decodes a PNG previously encoded by this class from an <code>InputStream</code> 
+	 * to an <code>OutputStream</code>, skipping the first <tt>payloadOffset</tt> bytes
+	 * of the payload.
+	 * 
+	 * <p>The PNG is decoded while it is read, i.e. the image is never held in memory 
+	 * as a whole. The checksums of all chunks are verified on the fly; if a checksum 
+	 * does not match, an exception is thrown. Note that in this case, parts of the 
+	 * payload might already have been written to the destination stream.
+	 * 
+	 * <p>The method can only read PNGs that were encoded using one of the 
+	 * <code>encodeToPng()</code> methods. It will throw an exception if
+	 * any other PNGs are read.
+	 * 
+	 * @param srcStream Stream to be read pointing to the input data (24-bit PNG)
+	 * @param destStream Stream to be written the original data to (payload)
+	 * @param payloadOffset Number of payload bytes to skip before writing to the destination stream
+	 * @throws IOException Thrown if the input/output stream cannot be read/written, or if a checksum does not match
+	 */
+	public static void decodeFromPng(InputStream srcStream, OutputStream destStream, int payloadOffset) throws IOException {
+		decodeFromPng(srcStream, destStream, payloadOffset, -1);
+	}
+
+	/**
+	 * Decodes a range of the payload of a PNG previously encoded by this class from an
+	 * <code>InputStream</code> to an <code>OutputStream</code>, i.e. <tt>rangeLength</tt>
+	 * bytes starting at <tt>payloadOffset</tt>.
+	 *
+	 * <p>Decoding stops as soon as the end of the range is reached: The rest of the image is
+	 * not read, and its checksums are not verified. This allows extracting a single file from
+	 * a {@link PngContainer} without transferring (or inflating) the data behind it.
+	 *
+	 * @param srcStream Stream to be read pointing to the input data (24-bit PNG)
+	 * @param destStream Stream to be written the original data to (payload)
+	 * @param payloadOffset Number of payload bytes to skip before writing to the destination stream
+	 * @param rangeLength Number of payload bytes to write, or -1 to write the entire remaining payload
+	 * @throws IOException Thrown if the input/output stream cannot be read/written, or if a checksum does not match
+	 */
+	public static void decodeFromPng(InputStream srcStream, OutputStream destStream, int payloadOffset, int rangeLength) throws IOException {
+		CodecBuffers buffers = CodecBuffers.acquire();
+
+		try {
+			decodeFromPng(srcStream, destStream, payloadOffset, rangeLength, buffers);
 		}
+		finally {
+			buffers.release();
+		}
+	}
 
-		byte[] payloadLengthBytes = new byte[PNG_CHUNK_TEXT_SIZE_PAYLOAD];
-		bytesRead += srcStream.read(payloadLengthBytes);
-		int payloadLength = toIntBE(payloadLengthBytes);
+	private static void decodeFromPng(InputStream srcStream, OutputStream destStream, int payloadOffset, int rangeLength, CodecBuffers buffers)
+			throws IOException {
 
-		//System.out.println("payload = "+payloadLength);
-		bytesRead += srcStream.skip(PNG_CHUNK_TEXT_SIZE_CRC_CHECKSUM);
+		DataInputStream pngInputStream = new DataInputStream(srcStream);
+		PngHeader pngHeader = readHeader(pngInputStream, buffers);
 
-		ByteArrayOutputStream compressedPayloadStream = new ByteArrayOutputStream();
+		int payloadLength = pngHeader.payloadLength;
+		long rangeEnd = (rangeLength < 0) ? payloadLength : (long) payloadOffset + rangeLength;
 
-		Chunk nextChunk = readChunk(srcStream);
+		if (payloadOffset < 0 || payloadOffset > payloadLength) {
+			throw new IOException("Invalid payload offset " + payloadOffset + "; payload length is " + payloadLength + " bytes.");
+		}
+		else if (rangeEnd > payloadLength) {
+			throw new IOException("Invalid payload range " + payloadOffset + "+" + rangeLength + "; payload length is " + payloadLength + " bytes.");
+		}
 
-		while (Arrays.equals(PNG_CHUNK_IDAT_TYPE, nextChunk.type)) {
-			compressedPayloadStream.write(nextChunk.data, 0, nextChunk.size);
-			nextChunk = readChunk(srcStream);
+		// Inflate IDAT chunks row by row, and write payload range (without filter bytes and padding)
+		IdatChunkInputStream idatInputStream = new IdatChunkInputStream(pngInputStream, pngHeader.firstIdatChunkSize, buffers);
+		Inflater inflater = buffers.getInflater(false);
+
+		inflateRows(inflater, idatInputStream, destStream, pngHeader.imageWidth * pngHeader.bytesPerPixel, payloadLength, 0, payloadOffset, rangeEnd, buffers);
+
+		// Read remaining IDAT chunks to verify their checksums (unless only a part was requested)
+		if (rangeEnd == payloadLength) {
+			idatInputStream.skipToEnd();
 		}
 
-		compressedPayloadStream.close();
+		idatInputStream.close();
+		destStream.close();
+	}
 
-		ByteArrayOutputStream filteredPayloadStream = new ByteArrayOutputStream();
-		InflaterOutputStream inflaterStream = new InflaterOutputStream(filteredPayloadStream);
+	/**
+	 * Decodes a range of the payload from the image data behind a sync point, i.e. from the
+	 * image bytes starting at the sync point's image offset (see {@link Trailer#getSyncPointImageOffset(int)}).
+	 * The range must start behind the sync point, and the source stream must contain at least
+	 * the image data up to the end of the range; typically, it contains the image bytes up to
+	 * the next sync point (or the trailer) that follows the end of the range.
+	 *
+	 * <p>Like {@link #decodeFromPng(InputStream, OutputStream, int, int)}, decoding stops as soon
+	 * as the end of the range is reached. Both streams are closed afterwards.
+	 *
+	 * @param srcStream Stream to be read pointing to the image data at the sync point
+	 * @param destStream Stream to be written the payload range to
+	 * @param trailer Trailer of the image, see {@link #readTrailer(byte[], long)}
+	 * @param syncPointIndex Index of the sync point at which the source stream starts
+	 * @param payloadOffset Payload offset of the range
+	 * @param rangeLength Number of payload bytes to write
+	 * @throws IOException Thrown if the input/output stream cannot be read/written, or if a checksum does not match
+	 */
+	public static void decodeFromSyncPoint(InputStream srcStream, OutputStream destStream, Trailer trailer, int syncPointIndex, int payloadOffset,
+			int rangeLength) throws IOException {
 
-		inflaterStream.write(compressedPayloadStream.toByteArray());
+		CodecBuffers buffers = CodecBuffers.acquire();
 
-		inflaterStream.close();
-		filteredPayloadStream.close();
+		try {
+			decodeFromSyncPoint(srcStream, destStream, trailer, syncPointIndex, payloadOffset, rangeLength, buffers);
+		}
+		finally {
+			buffers.release();
+		}
+	}
+
+	private static void decodeFromSyncPoint(InputStream srcStream, OutputStream destStream, Trailer trailer, int syncPointIndex, int payloadOffset,
+			int rangeLength, CodecBuffers buffers) throws IOException {
 
-		byte[] filteredPayload = filteredPayloadStream.toByteArray();
-		int maxRowLength = imageWidth * 3;
+		int syncPointPayloadOffset = trailer.getSyncPointPayloadOffset(syncPointIndex);
+		long rangeEnd = (long) payloadOffset + rangeLength;
 
-		for (int filteredPayloadOffset = 0, payloadRead = 0; payloadRead < payloadLength;) {
-			filteredPayloadOffset += PNG_CHUNK_IDAT_BEGIN_SIZE_FILTER_METHOD;
+		if (payloadOffset < syncPointPayloadOffset || rangeLength < 0 || rangeEnd > trailer.payloadLength) {
+			throw new IOException("Invalid payload range " + payloadOffset + "+" + rangeLength + " for sync point at payload offset " + syncPointPayloadOffset
+					+ "; payload length is " + trailer.payloadLength + " bytes.");
+		}
 
-			int rowLength = (payloadRead + maxRowLength < payloadLength) ? maxRowLength : payloadLength - payloadRead;
-			destStream.write(filteredPayload, filteredPayloadOffset, rowLength);
+		DataInputStream pngInputStream = new DataInputStream(srcStream);
+		byte[] chunkType = buffers.chunkType;
+		int chunkSize = pngInputStream.readInt();
+		pngInputStream.readFully(chunkType);
 
-			payloadRead += rowLength;
-			filteredPayloadOffset += rowLength;
+		if (!Arrays.equals(PNG_CHUNK_IDAT_TYPE, chunkType)) {
+			throw new IOException("No IDAT chunk at sync point " + syncPointIndex + ". PNG image is corrupt.");
 		}
 
-		srcStream.close();
+		// Deflate stream is fully flushed at sync points, only the first one has a zlib header
+		Inflater inflater = buffers.getInflater(syncPointPayloadOffset != 0);
+		IdatChunkInputStream idatInputStream = new IdatChunkInputStream(pngInputStream, chunkSize, buffers);
+
+		inflateRows(inflater, idatInputStream, destStream, trailer.rowLength, trailer.payloadLength, syncPointPayloadOffset, payloadOffset, rangeEnd, buffers);
+
+		idatInputStream.close();
 		destStream.close();
 	}
 
-	private static Chunk readChunk(InputStream srcStream) throws IOException {
-		byte[] chunkSizeBytes = new byte[4];
-		srcStream.read(chunkSizeBytes);
-		int chunkSize = toIntBE(chunkSizeBytes);
+	/**
+	 * Inflates rows (filter byte and <tt>maxRowLength</tt> payload bytes) from the given IDAT stream,
+	 * starting with the row at payload offset <tt>payloadRead</tt>, and writes the payload bytes
+	 * between <tt>payloadOffset</tt> and <tt>rangeEnd</tt> to the destination stream.
+	 *
+	 * <p>Rows are inflated in blocks of several rows, but never beyond the row that contains
+	 * the end of the range, so that the image data behind it does not need to be read.
+	 */
+	private static void inflateRows(Inflater inflater, InputStream idatInputStream, OutputStream destStream, int maxRowLength, int payloadLength,
+			int payloadRead, int payloadOffset, long rangeEnd, CodecBuffers buffers) throws IOException {
+
+		int rowSize = PNG_CHUNK_IDAT_BEGIN_SIZE_FILTER_METHOD + maxRowLength;
+		int rowsPerBlock = Math.max(1, PNG_CHUNK_IDAT_MAX_DATA_SIZE / rowSize);
+		byte[] rowBlock = buffers.getRowBlock(rowsPerBlock * rowSize);
+
+		while (payloadRead < rangeEnd) {
+			long rowsRemaining = (rangeEnd - payloadRead + maxRowLength - 1) / maxRowLength;
+			int rowBlockSize = (int) Math.min(rowsPerBlock, rowsRemaining) * rowSize;
+
+			inflateFully(inflater, idatInputStream, rowBlock, rowBlockSize, buffers);
+
+			for (int rowOffset = 0; rowOffset < rowBlockSize; rowOffset += rowSize) {
+				if (rowBlock[rowOffset] != PNG_CHUNK_IDAT_BEGIN_FILTER_METHOD) {
+					throw new IOException("Unsupported filter type " + rowBlock[rowOffset] + ". Maybe PNG file is not encoded with this class.");
+				}
+
+				int rowLength = Math.min(maxRowLength, payloadLength - payloadRead);
+				int rowRangeStart = Math.max(0, Math.min(rowLength, payloadOffset - payloadRead));
+				int rowRangeEnd = (int) Math.max(0, Math.min(rowLength, rangeEnd - payloadRead));
+
+				if (rowRangeStart < rowRangeEnd) {
+					destStream.write(rowBlock, rowOffset + PNG_CHUNK_IDAT_BEGIN_SIZE_FILTER_METHOD + rowRangeStart, rowRangeEnd - rowRangeStart);
+				}
+
+				payloadRead += rowLength;
+			}
+		}
+	}
+
+	/**
+	 * Inflates exactly <tt>length</tt> bytes into the given buffer, reading compressed data
+	 * from the given stream whenever the inflater needs more input. Throws an exception if
+	 * the stream (or the deflate stream) ends prematurely.
+	 */
+	private static void inflateFully(Inflater inflater, InputStream srcStream, byte[] buffer, int length, CodecBuffers buffers) throws IOException {
+		byte[] inputBuffer = buffers.inflateBuffer;
+		int offset = 0;
+
+		try {
+			while (offset < length) {
+				int bytesInflated = inflater.inflate(buffer, offset, length - offset);
+
+				if (bytesInflated == 0) {
+					if (inflater.finished() || inflater.needsDictionary()) {
+						throw new EOFException("Unexpected end of image data; " + (length - offset) + " byte(s) missing.");
+					}
+					else if (inflater.needsInput()) {
+						int inputLength = srcStream.read(inputBuffer, 0, inputBuffer.length);
+
+						if (inputLength == -1) {
+							throw new EOFException("Unexpected end of stream; " + (length - offset) + " byte(s) missing.");
+						}
+
+						inflater.setInput(inputBuffer, 0, inputLength);
+					}
+				}
+
+				offset += bytesInflated;
+			}
+		}
+		catch (DataFormatException e) {
+			throw new IOException("Invalid image data. PNG image is corrupt.", e);
+		}
+	}
+
+	/**
+	 * Reads the additional tEXt chunks of a PNG image previously encoded by this class
+	 * (see {@link #encodeToPng(InputStream, int, OutputStream, Map)}), without decoding the
+	 * payload. Only the chunks in front of the image data are read; the stream is closed afterwards.
+	 *
+	 * @param srcStream Stream to be read pointing to the input data (24-bit PNG)
+	 * @return Returns the keywords and texts of all tEXt chunks, in the order they appear
+	 * @throws IOException Thrown if the input stream cannot be read, or if a checksum does not match
+	 */
+	public static Map<String, String> readTextEntries(InputStream srcStream) throws IOException {
+		CodecBuffers buffers = CodecBuffers.acquire();
+
+		try (DataInputStream pngInputStream = new DataInputStream(srcStream)) {
+			return readHeader(pngInputStream, buffers).textEntries;
+		}
+		finally {
+			buffers.release();
+		}
+	}
+
+	/**
+	 * Reads the image offset of the {@link Trailer} from the end of a PNG image previously
+	 * encoded by this class, i.e. from the locator chunk in front of the IEND chunk. 
+	 *
+	 * @param imageSuffix The last bytes of the image, at least {@link #TRAILER_LOCATOR_SIZE} bytes
+	 * @return Returns the image offset of the trailer, or -1 if the image has no trailer
+	 * @throws IOException Thrown if the image suffix is too short, or does not end with an IEND chunk
+	 */
+	public static long readTrailerOffset(byte[] imageSuffix) throws IOException {
+		if (imageSuffix.length < TRAILER_LOCATOR_SIZE) {
+			throw new IOException("Image suffix too short; at least " + TRAILER_LOCATOR_SIZE + " bytes required, but " + imageSuffix.length + " given.");
+		}
+		else if (!Arrays.equals(PNG_CHUNK_IEND, Arrays.copyOfRange(imageSuffix, imageSuffix.length - PNG_CHUNK_IEND.length, imageSuffix.length))) {
+			throw new IOException("Image does not end with IEND chunk. PNG image is corrupt.");
+		}
+
+		DataInputStream locatorInputStream = new DataInputStream(new ByteArrayInputStream(imageSuffix, imageSuffix.length - TRAILER_LOCATOR_SIZE,
+				TRAILER_LOCATOR_SIZE));
 
-		byte[] chunkType = new byte[4];
-		srcStream.read(chunkType);
+		int chunkSize = locatorInputStream.readInt(); // Arbitrary payload bytes if the image has no trailer
+
+		if (chunkSize != TRAILER_LOCATOR_DATA_SIZE) {
+			return -1; // No locator chunk
+		}
 
+		byte[] chunkType = new byte[PNG_CHUNK_TYPE_SIZE];
 		byte[] chunkData = new byte[chunkSize];
-		srcStream.read(chunkData);
 
-		byte[] chunkChecksumBytes = new byte[4];
-		srcStream.read(chunkChecksumBytes);
-		int chunkChecksum = toIntBE(chunkChecksumBytes);
+		locatorInputStream.readFully(chunkType);
+		locatorInputStream.readFully(chunkData);
+
+		if (!Arrays.equals(PNG_CHUNK_TEXT_TYPE, chunkType)) {
+			return -1;
+		}
+
+		verifyChunkChecksum(chunkType, chunkData, chunkData.length, locatorInputStream.readInt(), new CRC32());
+
+		Map<String, String> locatorEntry = new LinkedHashMap<String, String>();
+		readTextEntry(chunkData, chunkData.length, locatorEntry);
+
+		String trailerOffset = locatorEntry.get(TRAILER_OFFSET_KEYWORD);
+		return (trailerOffset != null) ? Long.parseLong(trailerOffset) : -1;
+	}
+
+	/**
+	 * Parses the {@link Trailer} of a PNG image previously encoded by this class, i.e. all 
+	 * chunks from the trailer offset (see {@link #readTrailerOffset(byte[])}) to the end of the image.
+	 *
+	 * @param trailerBytes The image bytes from the trailer offset to the end of the image
+	 * @param trailerOffset The image offset of the trailer
+	 * @return Returns the trailer, with the trailing text entries and sync points of the image
+	 * @throws IOException Thrown if the trailer is incomplete, or if a checksum does not match
+	 */
+	public static Trailer readTrailer(byte[] trailerBytes, long trailerOffset) throws IOException {
+		DataInputStream trailerInputStream = new DataInputStream(new ByteArrayInputStream(trailerBytes));
+		Trailer trailer = new Trailer(trailerOffset);
+
+		byte[] chunkType = new byte[PNG_CHUNK_TYPE_SIZE];
+		CRC32 chunkChecksum = new CRC32();
+
+		int chunkSize = trailerInputStream.readInt();
+		trailerInputStream.readFully(chunkType);
+
+		while (!Arrays.equals(PNG_CHUNK_IEND_TYPE, chunkType)) {
+			if (chunkSize < 0 || chunkSize > trailerBytes.length) {
+				throw new IOException("Invalid chunk size " + chunkSize + " in trailer. PNG image is corrupt.");
+			}
+
+			byte[] chunkData = new byte[chunkSize];
+			trailerInputStream.readFully(chunkData);
+
+			verifyChunkChecksum(chunkType, chunkData, chunkSize, trailerInputStream.readInt(), chunkChecksum);
+
+			if (Arrays.equals(PNG_CHUNK_TEXT_TYPE, chunkType)) {
+				readTextEntry(chunkData, chunkSize, trailer.textEntries);
+			}
+
+			chunkSize = trailerInputStream.readInt();
+			trailerInputStream.readFully(chunkType);
+		}
+
+		trailer.textEntries.remove(TRAILER_OFFSET_KEYWORD);
+		String syncPoints = trailer.textEntries.remove(TRAILER_SYNC_POINTS_KEYWORD);
+
+		if (syncPoints != null) {
+			trailer.parseSyncPoints(syncPoints);
+		}
 
-		return new Chunk(chunkSize, chunkType, chunkData, chunkChecksum);
+		return trailer;
 	}
 
-	@SuppressWarnings("unused")
-	private static class Chunk {
-		private int size;
-		private byte[] type;
-		private byte[] data;
-		private int checksum;
+	/**
+	 * Reads and verifies the PNG signature and all chunks in front of the first IDAT chunk,
+	 * including the size and type of the first IDAT chunk (but not its data).
+	 */
+	private static PngHeader readHeader(DataInputStream pngInputStream, CodecBuffers buffers) throws IOException {
+		// Read and verify PNG signature
+		byte[] signatureBytes = buffers.signature;
+		pngInputStream.readFully(signatureBytes);
+
+		if (!Arrays.equals(signatureBytes, PNG_SIGNATURE)) {
+			throw new IOException("Invalid PNG signature. File is not a PNG image.");
+		}
+
+		// Read header chunks (IHDR, sRGB, tEXt, ...) until the first IDAT chunk
+		PngHeader pngHeader = new PngHeader();
+
+		byte[] chunkType = buffers.chunkType;
+		int chunkSize = pngInputStream.readInt();
+		pngInputStream.readFully(chunkType);
+
+		while (!Arrays.equals(PNG_CHUNK_IDAT_TYPE, chunkType)) {
+			if (Arrays.equals(PNG_CHUNK_IEND_TYPE, chunkType)) {
+				throw new IOException("Unexpected IEND chunk. No IDAT chunk found in PNG image.");
+			}
+			else if (chunkSize < 0) {
+				throw new IOException("Invalid chunk size " + chunkSize + ". PNG image is corrupt.");
+			}
+
+			byte[] chunkData = buffers.getChunkData(chunkSize);
+			pngInputStream.readFully(chunkData, 0, chunkSize);
+
+			verifyChunkChecksum(chunkType, chunkData, chunkSize, pngInputStream.readInt(), buffers.checksum);
+
+			if (Arrays.equals(PNG_CHUNK_IHDR_TYPE, chunkType)) {
+				pngHeader.imageWidth = toIntBE(chunkData, 0);
+				pngHeader.bytesPerPixel = Profile.getBytesPerPixel(chunkData[PNG_CHUNK_IHDR_DATA_OFFSET_COLOR_TYPE]);
+			}
+			else if (Arrays.equals(PNG_CHUNK_TEXT_TYPE, chunkType)) {
+				int payloadLength = readPayloadLength(chunkData, chunkSize);
+
+				if (pngHeader.payloadLength < 0 && payloadLength >= 0) {
+					pngHeader.payloadLength = payloadLength;
+				}
+				else {
+					readTextEntry(chunkData, chunkSize, pngHeader.textEntries);
+				}
+			}
 
-		public Chunk(int size, byte[] type, byte[] data, int checksum) {
-			this.size = size;
-			this.type = type;
-			this.data = data;
-			this.checksum = checksum;
+			chunkSize = pngInputStream.readInt();
+			pngInputStream.readFully(chunkType);
+		}
+
+		if (pngHeader.imageWidth < 0 || (pngHeader.imageWidth == 0 && pngHeader.payloadLength != 0)) { // Older versions encode empty payloads with width 0
+			throw new IOException("IHDR chunk missing or image width invalid. Maybe PNG file is not encoded with this class.");
+		}
+		else if (pngHeader.bytesPerPixel <= 0) {
+			throw new IOException("Unsupported color type in IHDR chunk. Maybe PNG file is not encoded with this class.");
+		}
+		else if (pngHeader.payloadLength < 0) {
+			throw new IOException("Magic identifier in tEXt chunk not valid. Maybe PNG file is not encoded with this class.");
+		}
+
+		pngHeader.firstIdatChunkSize = chunkSize;
+		return pngHeader;
+	}
+
+	/**
+	 * Parses a standard tEXt chunk (keyword, null separator, text) and adds it to the
+	 * given map. Chunks without separator are ignored.
+	 */
+	private static void readTextEntry(byte[] textChunkData, int textChunkSize, Map<String, String> textEntries) {
+		for (int i = 0; i < textChunkSize; i++) {
+			if (textChunkData[i] == PNG_CHUNK_TEXT_KEYWORD_SEPARATOR) {
+				String keyword = new String(textChunkData, 0, i, StandardCharsets.ISO_8859_1);
+				String text = new String(textChunkData, i + 1, textChunkSize - i - 1, StandardCharsets.ISO_8859_1);
+
+				textEntries.put(keyword, text);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Calculates the checksum of the given chunk type and data, and compares it to
+	 * the checksum read from the chunk. Throws an exception if they do not match.
+	 */
+	private static void verifyChunkChecksum(byte[] chunkType, byte[] chunkData, int chunkSize, int expectedChecksum, CRC32 chunkChecksum) throws IOException {
+		chunkChecksum.reset();
+		chunkChecksum.update(chunkType);
+		chunkChecksum.update(chunkData, 0, chunkSize);
+
+		if ((int) chunkChecksum.getValue() != expectedChecksum) {
+			throw new IOException("Invalid checksum in " + new String(chunkType, StandardCharsets.US_ASCII) + " chunk. PNG image is corrupt.");
+		}
+	}
+
+	/**
+	 * Reads the payload length from the data of a tEXt chunk, or returns -1 if the
+	 * chunk data does not start with the magic identifier.
+	 */
+	private static int readPayloadLength(byte[] textChunkData, int textChunkSize) {
+		if (textChunkSize < PNG_CHUNK_TEXT_SIZE_MAGIC_IDENTIFIER + PNG_CHUNK_TEXT_SIZE_PAYLOAD) {
+			return -1;
+		}
+
+		for (int i = 0; i < PNG_CHUNK_TEXT_SIZE_MAGIC_IDENTIFIER; i++) {
+			if (textChunkData[i] != PNG_CHUNK_TEXT_MAGIC_IDENTIFIER[i]) {
+				return -1;
+			}
+		}
+
+		return toIntBE(textChunkData, PNG_CHUNK_TEXT_SIZE_MAGIC_IDENTIFIER);
+	}
+
+	/**
+	 * Reads exactly <tt>length</tt> bytes from the given stream, or throws an
+	 * exception if the stream ends prematurely. Unlike {@link InputStream#read(byte[])},
+	 * this method never returns with a partially filled buffer.
+	 */
+	private static void readFully(InputStream srcStream, byte[] buffer, int offset, int length) throws IOException {
+		while (length > 0) {
+			int bytesRead = srcStream.read(buffer, offset, length);
+
+			if (bytesRead == -1) {
+				throw new EOFException("Unexpected end of stream; " + length + " byte(s) missing.");
+			}
+
+			offset += bytesRead;
+			length -= bytesRead;
+		}
+	}
+
+	/**
+	 * Fields read from the chunks in front of the image data, see {@link PngEncoder#readHeader(DataInputStream)}.
+	 */
+	private static class PngHeader {
+		private int imageWidth = -1;
+		private int bytesPerPixel = -1;
+		private int payloadLength = -1;
+		private int firstIdatChunkSize = -1;
+		private Map<String, String> textEntries = new LinkedHashMap<String, String>();
+	}
+
+	/**
+	 * Chunks behind the image data of an image encoded by this class, i.e. the trailing
+	 * text entries and the sync points (see {@link PngEncoder}). The trailer can be read
+	 * without reading the image data, see {@link PngEncoder#readTrailer(byte[], long)}.
+	 *
+	 * <p>Sync points are identified by their index (ascending by payload and image offset).
+	 * For convenience, the index behind the last sync point refers to the end of the payload
+	 * and the start of the trailer.
+	 */
+	public static class Trailer {
+		private long offset;
+		private int rowLength;
+		private int payloadLength;
+		private int[] syncPointRows;
+		private long[] syncPointImageOffsets;
+		private Map<String, String> textEntries;
+
+		private Trailer(long offset) {
+			this.offset = offset;
+			this.syncPointRows = new int[0];
+			this.syncPointImageOffsets = new long[0];
+			this.textEntries = new LinkedHashMap<String, String>();
+		}
+
+		/**
+		 * Returns the image offset of the trailer.
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * Returns the trailing text entries (without the sync points).
+		 */
+		public Map<String, String> getTextEntries() {
+			return textEntries;
+		}
+
+		public int getSyncPointCount() {
+			return syncPointRows.length;
+		}
+
+		/**
+		 * Returns the index of the last sync point at or before the given payload offset,
+		 * or -1 if the image has no sync points.
+		 */
+		public int getSyncPointBefore(int payloadOffset) {
+			int syncPointIndex = -1;
+
+			while (syncPointIndex + 1 < syncPointRows.length && getSyncPointPayloadOffset(syncPointIndex + 1) <= payloadOffset) {
+				syncPointIndex++;
+			}
+
+			return syncPointIndex;
+		}
+
+		/**
+		 * Returns the index of the first sync point at or behind the given payload offset, or
+		 * {@link #getSyncPointCount()} if there is none (i.e. the end of the payload).
+		 */
+		public int getSyncPointAfter(int payloadOffset) {
+			int syncPointIndex = syncPointRows.length;
+
+			while (syncPointIndex > 0 && getSyncPointPayloadOffset(syncPointIndex - 1) >= payloadOffset) {
+				syncPointIndex--;
+			}
+
+			return syncPointIndex;
+		}
+
+		/**
+		 * Returns the payload offset of the given sync point, or the payload length
+		 * if the index is {@link #getSyncPointCount()}.
+		 */
+		public int getSyncPointPayloadOffset(int syncPointIndex) {
+			return (syncPointIndex < syncPointRows.length) ? syncPointRows[syncPointIndex] * rowLength : payloadLength;
+		}
+
+		/**
+		 * Returns the image offset of the given sync point, i.e. of the IDAT chunk that starts
+		 * at the sync point, or the trailer offset if the index is {@link #getSyncPointCount()}.
+		 */
+		public long getSyncPointImageOffset(int syncPointIndex) {
+			return (syncPointIndex < syncPointRows.length) ? syncPointImageOffsets[syncPointIndex] : offset;
+		}
+
+		/**
+		 * Parses the sync points text, i.e. the row length and payload length, followed
+		 * by the row and image offset of each sync point (<tt>row:offset</tt>).
+		 */
+		private void parseSyncPoints(String syncPoints) throws IOException {
+			try {
+				String[] values = syncPoints.split(" ");
+
+				rowLength = Integer.parseInt(values[0]);
+				payloadLength = Integer.parseInt(values[1]);
+				syncPointRows = new int[values.length - 2];
+				syncPointImageOffsets = new long[values.length - 2];
+
+				for (int i = 2; i < values.length; i++) {
+					String[] syncPoint = values[i].split(":");
+
+					syncPointRows[i - 2] = Integer.parseInt(syncPoint[0]);
+					syncPointImageOffsets[i - 2] = Long.parseLong(syncPoint[1]);
+				}
+			}
+			catch (RuntimeException e) {
+				throw new IOException("Invalid sync points in trailer: " + syncPoints, e);
+			}
+		}
+	}
+
+	/**
+	 * Encoding profile of an image, i.e. its pixel format (RGB or RGBA, 8 bits per channel),
+	 * geometry and the deflate compression of its image data. Profiles are immutable.
+	 *
+	 * <p>Since the payload is written to the pixels as is, the pixel format only determines
+	 * how many bytes fit in a row. Compression is only worthwhile for compressible payloads;
+	 * for encrypted data, the {@link #STORED} profiles avoid spending CPU time on deflate.
+	 */
+	public static class Profile {
+		/**
+		 * RGB, near-square image, fast (level 1) filtered deflate. This is the
+		 * format of all images written before profiles existed.
+		 */
+		public static final Profile DEFAULT = new Profile("default", PNG_COLOR_TYPE_RGB, 1, Deflater.FILTERED, 0, 0, 0);
+
+		/**
+		 * RGB, near-square image, stored (uncompressed) deflate blocks.
+		 */
+		public static final Profile STORED = new Profile("stored", PNG_COLOR_TYPE_RGB, Deflater.NO_COMPRESSION, Deflater.DEFAULT_STRATEGY, 0, 0, 0);
+
+		/**
+		 * RGBA (4 bytes per pixel), near-square image, stored (uncompressed) deflate blocks.
+		 * Images of this profile cannot be read by decoders that only support RGB.
+		 */
+		public static final Profile STORED_RGBA = new Profile("stored-rgba", PNG_COLOR_TYPE_RGBA, Deflater.NO_COMPRESSION, Deflater.DEFAULT_STRATEGY, 0, 0, 0);
+
+		private final String name;
+		private final byte colorType;
+		private final int compressionLevel;
+		private final int compressionStrategy;
+		private final int maxImageWidth;
+		private final int minImageSize;
+		private final int syncInterval;
+
+		private Profile(String name, byte colorType, int compressionLevel, int compressionStrategy, int maxImageWidth, int minImageSize, int syncInterval) {
+			this.name = name;
+			this.colorType = colorType;
+			this.compressionLevel = compressionLevel;
+			this.compressionStrategy = compressionStrategy;
+			this.maxImageWidth = maxImageWidth;
+			this.minImageSize = minImageSize;
+			this.syncInterval = syncInterval;
+		}
+
+		/**
+		 * Returns the predefined profile with the given name, i.e. <tt>default</tt>,
+		 * <tt>stored</tt> or <tt>stored-rgba</tt>.
+		 *
+		 * @throws IllegalArgumentException If there is no profile with the given name
+		 */
+		public static Profile forName(String name) {
+			for (Profile profile : new Profile[] { DEFAULT, STORED, STORED_RGBA }) {
+				if (profile.name.equalsIgnoreCase(name)) {
+					return profile;
+				}
+			}
+
+			throw new IllegalArgumentException("Unknown PNG profile: " + name);
+		}
+
+		/**
+		 * Returns a copy of this profile that limits the image width to the given number of
+		 * pixels (0 = no limit). Images of large payloads then grow in height instead.
+		 */
+		public Profile withMaxImageWidth(int maxImageWidth) {
+			return new Profile(name, colorType, compressionLevel, compressionStrategy, maxImageWidth, minImageSize, syncInterval);
+		}
+
+		/**
+		 * Returns a copy of this profile whose images are at least the given number of
+		 * pixels wide and high (0 = no minimum); missing pixels are padded.
+		 */
+		public Profile withMinImageSize(int minImageSize) {
+			return new Profile(name, colorType, compressionLevel, compressionStrategy, maxImageWidth, minImageSize, syncInterval);
+		}
+
+		/**
+		 * Returns a copy of this profile whose images have a sync point about every
+		 * <tt>syncInterval</tt> payload bytes (rounded to full rows; 0 = no sync points).
+		 * Each sync point costs a few bytes, and slightly worse compression.
+		 */
+		public Profile withSyncInterval(int syncInterval) {
+			return new Profile(name, colorType, compressionLevel, compressionStrategy, maxImageWidth, minImageSize, syncInterval);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public byte getColorType() {
+			return colorType;
+		}
+
+		public int getBytesPerPixel() {
+			return getBytesPerPixel(colorType);
+		}
+
+		public int getCompressionLevel() {
+			return compressionLevel;
+		}
+
+		public int getCompressionStrategy() {
+			return compressionStrategy;
+		}
+
+		public int getMaxImageWidth() {
+			return maxImageWidth;
+		}
+
+		public int getMinImageSize() {
+			return minImageSize;
+		}
+
+		public int getSyncInterval() {
+			return syncInterval;
+		}
+
+		@Override
+		public String toString() {
+			return name + "[maxImageWidth=" + maxImageWidth + ", minImageSize=" + minImageSize + ", syncInterval=" + syncInterval + "]";
+		}
+
+		private static int getBytesPerPixel(byte colorType) {
+			switch (colorType) {
+			case PNG_COLOR_TYPE_RGB:
+				return 3;
+
+			case PNG_COLOR_TYPE_RGBA:
+				return 4;
+
+			default:
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Output stream that wraps all data written to it into PNG IDAT chunks of at most
+	 * {@link PngEncoder#PNG_CHUNK_IDAT_MAX_DATA_SIZE} bytes. Only the data of the current
+	 * chunk is held in memory; each chunk is written as soon as it is full.
+	 *
+	 * <p>Calling {@link #finish()} writes the last (partial) chunk, but does not close
+	 * the underlying stream.
+	 */
+	private static class IdatChunkOutputStream extends OutputStream {
+		private OutputStream destStream;
+		private byte[] chunkBuffer;
+		private int chunkBufferSize;
+		private CRC32 chunkChecksum;
+		private byte[] chunkBegin;
+		private byte[] chunkEnd;
+
+		public IdatChunkOutputStream(OutputStream destStream, CodecBuffers buffers) {
+			this.destStream = destStream;
+			this.chunkBuffer = buffers.idatBuffer;
+			this.chunkBufferSize = 0;
+			this.chunkChecksum = buffers.checksum;
+			this.chunkBegin = buffers.idatChunkBegin;
+			this.chunkEnd = buffers.chunkEnd;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			chunkBuffer[chunkBufferSize++] = (byte) b;
+
+			if (chunkBufferSize == chunkBuffer.length) {
+				writeChunk();
+			}
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			while (length > 0) {
+				int copyLength = Math.min(length, chunkBuffer.length - chunkBufferSize);
+
+				System.arraycopy(buffer, offset, chunkBuffer, chunkBufferSize, copyLength);
+				chunkBufferSize += copyLength;
+
+				offset += copyLength;
+				length -= copyLength;
+
+				if (chunkBufferSize == chunkBuffer.length) {
+					writeChunk();
+				}
+			}
+		}
+
+		public void finish() throws IOException {
+			if (chunkBufferSize > 0) {
+				writeChunk();
+			}
+		}
+
+		private void writeChunk() throws IOException {
+			writeIntBE(chunkBegin, PNG_CHUNK_IDAT_BEGIN_OFFSET_DATA_SIZE, chunkBufferSize);
+
+			chunkChecksum.reset();
+			chunkChecksum.update(PNG_CHUNK_IDAT_TYPE);
+			chunkChecksum.update(chunkBuffer, 0, chunkBufferSize);
+
+			writeIntBE(chunkEnd, PNG_CHUNK_IDAT_END_OFFSET_CRC_CHECKSUM, (int) chunkChecksum.getValue());
+
+			destStream.write(chunkBegin);
+			destStream.write(chunkBuffer, 0, chunkBufferSize);
+			destStream.write(chunkEnd);
+
+			chunkBufferSize = 0;
+		}
+	}
+
+	/**
+	 * Output stream that counts the bytes written to the underlying stream, i.e. the
+	 * current image offset while encoding.
+	 */
+	private static class CountingOutputStream extends OutputStream {
+		private OutputStream destStream;
+		private long count;
+
+		public CountingOutputStream(OutputStream destStream) {
+			this.destStream = destStream;
+			this.count = 0;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			destStream.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			destStream.write(buffer, offset, length);
+			count += length;
+		}
+
+		@Override
+		public void flush() throws IOException {
+			destStream.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			destStream.close();
+		}
+
+		public long getCount() {
+			return count;
+		}
+	}
+
+	/**
+	 * Input stream that reads the concatenated data of consecutive PNG IDAT chunks,
+	 * starting with the data of an IDAT chunk whose size and type have already been
+	 * read. The stream ends at the first non-IDAT chunk (typically IEND).
+	 * 
+	 * <p>The checksum of each IDAT chunk is calculated while its data is read, and
+	 * verified as soon as the end of the chunk is reached.
+	 */
+	private static class IdatChunkInputStream extends InputStream {
+		private DataInputStream srcStream;
+		private int chunkRemaining;
+		private CRC32 chunkChecksum;
+		private byte[] chunkType;
+		private byte[] skipBuffer;
+		private byte[] singleByte;
+		private boolean endOfIdatChunks;
+
+		public IdatChunkInputStream(DataInputStream srcStream, int firstChunkSize, CodecBuffers buffers) {
+			this.srcStream = srcStream;
+			this.chunkRemaining = firstChunkSize;
+			this.chunkChecksum = buffers.checksum;
+			this.chunkType = buffers.chunkType;
+			this.skipBuffer = buffers.idatBuffer; // Unused while decoding
+			this.singleByte = buffers.singleByte;
+			this.endOfIdatChunks = false;
+
+			chunkChecksum.reset();
+			chunkChecksum.update(PNG_CHUNK_IDAT_TYPE);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int bytesRead = read(singleByte, 0, 1);
+
+			return (bytesRead == -1) ? -1 : singleByte[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (length == 0) {
+				return 0;
+			}
+
+			while (chunkRemaining == 0 && !endOfIdatChunks) {
+				readNextChunkHeader();
+			}
+
+			if (endOfIdatChunks) {
+				return -1;
+			}
+
+			int bytesRead = srcStream.read(buffer, offset, Math.min(length, chunkRemaining));
+
+			if (bytesRead == -1) {
+				throw new EOFException("Unexpected end of stream in IDAT chunk; " + chunkRemaining + " byte(s) missing.");
+			}
+
+			chunkChecksum.update(buffer, offset, bytesRead);
+			chunkRemaining -= bytesRead;
+
+			return bytesRead;
+		}
+
+		/**
+		 * Reads (and verifies) all remaining IDAT chunks, e.g. if the payload
+		 * has been read completely, but the deflate stream has not.
+		 */
+		public void skipToEnd() throws IOException {
+			while (read(skipBuffer, 0, skipBuffer.length) != -1) {
+				// Nothing; read() verifies the checksums
+			}
+		}
+
+		private void readNextChunkHeader() throws IOException {
+			if ((int) chunkChecksum.getValue() != srcStream.readInt()) {
+				throw new IOException("Invalid checksum in IDAT chunk. PNG image is corrupt.");
+			}
+
+			int chunkSize = srcStream.readInt();
+			srcStream.readFully(chunkType);
+
+			if (Arrays.equals(PNG_CHUNK_IDAT_TYPE, chunkType)) {
+				chunkRemaining = chunkSize;
+
+				chunkChecksum.reset();
+				chunkChecksum.update(PNG_CHUNK_IDAT_TYPE);
+			}
+			else {
+				endOfIdatChunks = true;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			srcStream.close();
+		}
+	}
+
+	/**
+	 * Buffers, checksums and (de)compressors used while encoding or decoding an image. Each
+	 * thread keeps one set (see {@link #acquire()}), and reuses it for all images it encodes or
+	 * decodes, so that neither the buffers nor the native zlib state of the deflater/inflater
+	 * are allocated per image. The buffers are bounded by {@link PngEncoder#PNG_CHUNK_IDAT_MAX_DATA_SIZE}
+	 * (or a single row, if larger).
+	 *
+	 * <p>Checksums are always calculated over complete byte ranges (chunk type, then chunk
+	 * data), never byte by byte, so that the intrinsic CRC32 implementation of the JVM is used.
+	 */
+	private static class CodecBuffers {
+		private static final ThreadLocal<CodecBuffers> threadBuffers = new ThreadLocal<CodecBuffers>() {
+			@Override
+			protected CodecBuffers initialValue() {
+				return new CodecBuffers(true);
+			}
+		};
+
+		private final boolean threadLocal;
+		private boolean inUse;
+
+		private final CRC32 checksum = new CRC32();
+		private final byte[] ihdrChunk = PNG_CHUNK_IHDR.clone();
+		private final byte[] textChunk = PNG_CHUNK_TEXT.clone();
+		private final byte[] textChunkBegin = new byte[] { UDEF, UDEF, UDEF, UDEF, 0x74, 0x45, 0x58, 0x74 }; // Chunk size, type "tEXt"
+		private final byte[] idatChunkBegin = PNG_CHUNK_IDAT_BEGIN.clone();
+		private final byte[] chunkEnd = PNG_CHUNK_IDAT_END.clone(); // CRC of any chunk
+		private final byte[] chunkType = new byte[PNG_CHUNK_TYPE_SIZE];
+		private final byte[] signature = new byte[PNG_SIGNATURE.length];
+		private final byte[] singleByte = new byte[1];
+
+		private final byte[] idatBuffer = new byte[PNG_CHUNK_IDAT_MAX_DATA_SIZE];
+		private final byte[] deflateBuffer = new byte[PNG_CHUNK_IDAT_MAX_DATA_SIZE];
+		private final byte[] inflateBuffer = new byte[PNG_CHUNK_IDAT_MAX_DATA_SIZE];
+		private byte[] rowBlock = new byte[0];
+		private byte[] chunkData = new byte[PNG_CHUNK_TYPE_SIZE + PNG_CHUNK_IHDR_SIZE_DATA_AND_TYPE];
+
+		private Deflater deflater;
+		private Inflater inflater;
+		private Inflater rawInflater;
+
+		private CodecBuffers(boolean threadLocal) {
+			this.threadLocal = threadLocal;
+			this.inUse = false;
+		}
+
+		/**
+		 * Returns the buffers of the current thread. If they are already in use (i.e. if
+		 * an image is encoded or decoded while another one is, e.g. from within one of the
+		 * streams), a new set is returned, which is discarded when it is released.
+		 */
+		public static CodecBuffers acquire() {
+			CodecBuffers buffers = threadBuffers.get();
+
+			if (buffers.inUse) {
+				buffers = new CodecBuffers(false);
+			}
+
+			buffers.inUse = true;
+			return buffers;
+		}
+
+		public void release() {
+			inUse = false;
+
+			if (!threadLocal) {
+				end();
+			}
+		}
+
+		public Deflater getDeflater() {
+			if (deflater == null) {
+				deflater = new Deflater();
+			}
+			else {
+				deflater.reset();
+			}
+
+			return deflater;
+		}
+
+		/**
+		 * Returns a reset inflater, either for a zlib stream, or for a raw deflate
+		 * stream (<tt>nowrap</tt>, i.e. without zlib header and checksum).
+		 */
+		public Inflater getInflater(boolean nowrap) {
+			if (nowrap) {
+				rawInflater = reset(rawInflater, true);
+				return rawInflater;
+			}
+			else {
+				inflater = reset(inflater, false);
+				return inflater;
+			}
+		}
+
+		/**
+		 * Returns a buffer of at least <tt>size</tt> bytes for a block of rows.
+		 */
+		public byte[] getRowBlock(int size) {
+			if (rowBlock.length < size) {
+				rowBlock = new byte[size];
+			}
+
+			return rowBlock;
+		}
+
+		/**
+		 * Returns a buffer of at least <tt>size</tt> bytes for the data of a (non-IDAT) chunk.
+		 * Unusually large chunks get a buffer of their own, so it is not kept by the thread.
+		 */
+		public byte[] getChunkData(int size) {
+			if (size > PNG_CHUNK_IDAT_MAX_DATA_SIZE) {
+				return new byte[size];
+			}
+			else if (chunkData.length < size) {
+				chunkData = new byte[size];
+			}
+
+			return chunkData;
+		}
+
+		private Inflater reset(Inflater inflater, boolean nowrap) {
+			if (inflater == null) {
+				return new Inflater(nowrap);
+			}
+
+			inflater.reset();
+			return inflater;
+		}
+
+		private void end() {
+			if (deflater != null) {
+				deflater.end();
+			}
+
+			if (inflater != null) {
+				inflater.end();
+			}
+
+			if (rawInflater != null) {
+				rawInflater.end();
+			}
 		}
 	}
 
 	/**
-	 *  Write an integer to a byte array (as little endian) at a
+	 *  Write an integer to a byte array (as big endian) at a
 	 *  specific offset. 
 	 */
 	private static void writeIntBE(byte[] bytes, int startoffset, int value) {
@@ -508,13 +1684,13 @@ public class PngEncoder {
 	}
 
 	/**
-	 * Read an integer value from a 4-byte array (as little endian).
+	 * Read an integer value from a 4-byte array (as big endian), starting at an offset.
 	 */
-	private static int toIntBE(byte[] value) {
-		return ((value[0] & 0xff) << 24) |
-				((value[1] & 0xff) << 16) |
-				((value[2] & 0xff) << 8) |
-				(value[3] & 0xff);
+	private static int toIntBE(byte[] value, int offset) {
+		return ((value[offset] & 0xff) << 24) |
+				((value[offset + 1] & 0xff) << 16) |
+				((value[offset + 2] & 0xff) << 8) |
+				(value[offset + 3] & 0xff);
 	}
 
 	/**
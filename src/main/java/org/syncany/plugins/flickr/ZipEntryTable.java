@@ -0,0 +1,248 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2014 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.plugins.flickr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Table of the entries of a ZIP file, i.e. the offset and length of each entry's
+ * (compressed) data within the file. It is used to download single chunks of a multichunk
+ * (a ZIP file with one entry per chunk, see {@link org.syncany.chunk.ZipMultiChunk ZipMultiChunk}),
+ * without downloading the entire multichunk.
+ *
+ * <p>The table is built from the ZIP file's central directory when the multichunk is uploaded, 
+ * and stored in the trailer of the image (see {@link PngEncoder.Trailer}). Only plain ZIP files are
+ * supported: Encrypted or compressed multichunks are not ZIP files, and ZIP64 files are ignored.
+ *
+ * <p>The table format is a space-separated list of <tt>name:offset:length:method</tt> entries,
+ * like the TOC of a {@link PngContainer}. Chunk names never contain spaces or colons.
+ */
+public class ZipEntryTable {
+	public static final String TABLE_KEYWORD = "Syncany-Zip-Entries";
+
+	public static final int METHOD_STORED = 0;
+	public static final int METHOD_DEFLATED = 8;
+
+	private static final int ZIP_LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int ZIP_LOCAL_HEADER_SIZE = 30;
+	private static final int ZIP_CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int ZIP_CENTRAL_HEADER_SIZE = 46;
+	private static final int ZIP_END_HEADER_SIGNATURE = 0x06054b50;
+	private static final int ZIP_END_HEADER_SIZE = 22;
+	private static final int ZIP_MAX_COMMENT_SIZE = 0xffff;
+	private static final long ZIP64_MAGIC_VALUE = 0xffffffffL;
+
+	private static final String TABLE_ENTRY_SEPARATOR = " ";
+	private static final String TABLE_FIELD_SEPARATOR = ":";
+
+	private Map<String, Entry> entries;
+
+	public ZipEntryTable() {
+		this.entries = new LinkedHashMap<String, Entry>();
+	}
+
+	/**
+	 * Reads the entry table from the central directory of the given ZIP file. Returns
+	 * <tt>null</tt> if the file is not a (supported) ZIP file.
+	 */
+	public static ZipEntryTable fromZipFile(File zipFile) throws IOException {
+		try (RandomAccessFile zipRandomAccessFile = new RandomAccessFile(zipFile, "r")) {
+			if (zipRandomAccessFile.length() < ZIP_END_HEADER_SIZE || readIntLE(zipRandomAccessFile, 0) != ZIP_LOCAL_HEADER_SIGNATURE) {
+				return null;
+			}
+
+			long endHeaderOffset = findEndHeader(zipRandomAccessFile);
+
+			if (endHeaderOffset < 0) {
+				return null;
+			}
+
+			int entryCount = readShortLE(zipRandomAccessFile, endHeaderOffset + 10);
+			long centralHeaderOffset = readIntLE(zipRandomAccessFile, endHeaderOffset + 16) & ZIP64_MAGIC_VALUE;
+
+			if (centralHeaderOffset == ZIP64_MAGIC_VALUE || entryCount == 0xffff) {
+				return null;
+			}
+
+			ZipEntryTable table = new ZipEntryTable();
+
+			for (int i = 0; i < entryCount; i++) {
+				if (readIntLE(zipRandomAccessFile, centralHeaderOffset) != ZIP_CENTRAL_HEADER_SIGNATURE) {
+					throw new IOException("Invalid central directory header in ZIP file " + zipFile + " at offset " + centralHeaderOffset);
+				}
+
+				int method = readShortLE(zipRandomAccessFile, centralHeaderOffset + 10);
+				long compressedSize = readIntLE(zipRandomAccessFile, centralHeaderOffset + 20) & ZIP64_MAGIC_VALUE;
+				int nameLength = readShortLE(zipRandomAccessFile, centralHeaderOffset + 28);
+				int extraLength = readShortLE(zipRandomAccessFile, centralHeaderOffset + 30);
+				int commentLength = readShortLE(zipRandomAccessFile, centralHeaderOffset + 32);
+				long localHeaderOffset = readIntLE(zipRandomAccessFile, centralHeaderOffset + 42) & ZIP64_MAGIC_VALUE;
+
+				if (compressedSize == ZIP64_MAGIC_VALUE || localHeaderOffset == ZIP64_MAGIC_VALUE) {
+					return null;
+				}
+				else if (method != METHOD_STORED && method != METHOD_DEFLATED) {
+					return null;
+				}
+
+				byte[] nameBytes = new byte[nameLength];
+				zipRandomAccessFile.seek(centralHeaderOffset + ZIP_CENTRAL_HEADER_SIZE);
+				zipRandomAccessFile.readFully(nameBytes);
+
+				String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+				if (name.contains(TABLE_ENTRY_SEPARATOR) || name.contains(TABLE_FIELD_SEPARATOR)) {
+					return null;
+				}
+
+				// Data starts behind local header, whose extra field might differ from the central one
+				if (readIntLE(zipRandomAccessFile, localHeaderOffset) != ZIP_LOCAL_HEADER_SIGNATURE) {
+					throw new IOException("Invalid local header in ZIP file " + zipFile + " at offset " + localHeaderOffset);
+				}
+
+				long dataOffset = localHeaderOffset + ZIP_LOCAL_HEADER_SIZE + readShortLE(zipRandomAccessFile, localHeaderOffset + 26)
+						+ readShortLE(zipRandomAccessFile, localHeaderOffset + 28);
+
+				table.entries.put(name, new Entry(name, (int) dataOffset, (int) compressedSize, method));
+				centralHeaderOffset += ZIP_CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+			}
+
+			return table;
+		}
+	}
+
+	/**
+	 * Parses the given table string. Invalid entries are ignored; a <tt>null</tt>
+	 * table results in an empty table.
+	 */
+	public static ZipEntryTable fromTable(String table) {
+		ZipEntryTable entryTable = new ZipEntryTable();
+
+		if (table != null) {
+			for (String tableEntry : table.trim().split(TABLE_ENTRY_SEPARATOR)) {
+				String[] tableEntryFields = tableEntry.split(TABLE_FIELD_SEPARATOR);
+
+				if (tableEntryFields.length == 4) {
+					try {
+						entryTable.entries.put(tableEntryFields[0], new Entry(tableEntryFields[0], Integer.parseInt(tableEntryFields[1]),
+								Integer.parseInt(tableEntryFields[2]), Integer.parseInt(tableEntryFields[3])));
+					}
+					catch (NumberFormatException e) {
+						// Ignore invalid entries
+					}
+				}
+			}
+		}
+
+		return entryTable;
+	}
+
+	public Entry get(String name) {
+		return entries.get(name);
+	}
+
+	public List<String> getNames() {
+		return new ArrayList<String>(entries.keySet());
+	}
+
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
+	public String toTable() {
+		StringBuilder table = new StringBuilder();
+
+		for (Entry entry : entries.values()) {
+			if (table.length() > 0) {
+				table.append(TABLE_ENTRY_SEPARATOR);
+			}
+
+			table.append(entry.getName()).append(TABLE_FIELD_SEPARATOR).append(entry.getOffset()).append(TABLE_FIELD_SEPARATOR)
+					.append(entry.getLength()).append(TABLE_FIELD_SEPARATOR).append(entry.getMethod());
+		}
+
+		return table.toString();
+	}
+
+	/**
+	 * Finds the end of central directory record, searching backwards from the end of
+	 * the file (it is followed by a comment of variable length). Returns -1 if not found.
+	 */
+	private static long findEndHeader(RandomAccessFile zipRandomAccessFile) throws IOException {
+		long minEndHeaderOffset = Math.max(0, zipRandomAccessFile.length() - ZIP_END_HEADER_SIZE - ZIP_MAX_COMMENT_SIZE);
+
+		for (long offset = zipRandomAccessFile.length() - ZIP_END_HEADER_SIZE; offset >= minEndHeaderOffset; offset--) {
+			if (readIntLE(zipRandomAccessFile, offset) == ZIP_END_HEADER_SIGNATURE) {
+				return offset;
+			}
+		}
+
+		return -1;
+	}
+
+	private static int readIntLE(RandomAccessFile randomAccessFile, long offset) throws IOException {
+		randomAccessFile.seek(offset);
+		return Integer.reverseBytes(randomAccessFile.readInt());
+	}
+
+	private static int readShortLE(RandomAccessFile randomAccessFile, long offset) throws IOException {
+		randomAccessFile.seek(offset);
+		return Short.reverseBytes(randomAccessFile.readShort()) & 0xffff;
+	}
+
+	/**
+	 * A single entry of the ZIP file, i.e. its name, the offset and length of its
+	 * (compressed) data in the file, and its compression method.
+	 */
+	public static class Entry {
+		private String name;
+		private int offset;
+		private int length;
+		private int method;
+
+		public Entry(String name, int offset, int length, int method) {
+			this.name = name;
+			this.offset = offset;
+			this.length = length;
+			this.method = method;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		public int getMethod() {
+			return method;
+		}
+	}
+}
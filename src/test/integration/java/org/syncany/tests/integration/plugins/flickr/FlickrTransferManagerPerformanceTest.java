@@ -0,0 +1,204 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2014 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.integration.plugins.flickr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
+import org.syncany.plugins.flickr.FlickrTransferManager;
+import org.syncany.plugins.flickr.FlickrTransferSettings;
+import org.syncany.plugins.transfer.StorageException;
+import org.syncany.plugins.transfer.TransferExecutor;
+import org.syncany.plugins.transfer.TransferExecutor.TransferTask;
+import org.syncany.plugins.transfer.files.MultichunkRemoteFile;
+import org.syncany.tests.unit.plugins.flickr.FlickrStandInServer;
+import org.syncany.tests.unit.plugins.flickr.FlickrTransferManagerTest;
+import org.syncany.tests.unit.util.TestFileUtil;
+
+/**
+ * Measures upload, download and list throughput of the {@link FlickrTransferManager}
+ * against the {@link FlickrStandInServer}, for various multichunk sizes and numbers of
+ * concurrent transfers. The server simulates request latency and a per-request bandwidth
+ * limit, so that the results reflect the round-trips and the parallelism of the plugin.
+ *
+ * <p>The results are logged; the test only fails if the plugin stops transferring in
+ * parallel, i.e. if concurrent transfers are not significantly faster than sequential ones.
+ */
+public class FlickrTransferManagerPerformanceTest {
+	private static final Logger logger = Logger.getLogger(FlickrTransferManagerPerformanceTest.class.getSimpleName());
+
+	private static final int LATENCY = 50; // ms per request
+	private static final long BANDWIDTH = 20 * 1024 * 1024; // bytes per second and request
+
+	private static final int[] MULTICHUNK_SIZES = new int[] { 64 * 1024, 1024 * 1024, 4 * 1024 * 1024 };
+	private static final int[] CONCURRENCY_LEVELS = new int[] { 1, 4, 8 };
+	private static final int MULTICHUNK_COUNT = 16;
+
+	private static final double MIN_PARALLEL_SPEEDUP = 2.0; // for 4 concurrent vs. 1 sequential transfer(s)
+
+	private FlickrStandInServer server;
+	private File tempDir;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FlickrStandInServer();
+		server.setLatency(LATENCY);
+		server.setBandwidth(BANDWIDTH);
+		server.start();
+
+		tempDir = TestFileUtil.createTempDirectoryInSystemTemp();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+		TestFileUtil.deleteDirectory(tempDir);
+	}
+
+	@Test
+	public void testTransferPerformance() throws Exception {
+		logger.log(Level.INFO, String.format("%-12s %-12s %-14s %-14s %-10s", "Size", "Concurrency", "Upload MB/s", "Download MB/s", "List ms"));
+
+		for (int multichunkSize : MULTICHUNK_SIZES) {
+			double sequentialUploadThroughput = 0;
+			double sequentialDownloadThroughput = 0;
+
+			for (int concurrency : CONCURRENCY_LEVELS) {
+				BenchmarkResult result = runBenchmark(multichunkSize, concurrency);
+
+				logger.log(Level.INFO, String.format("%-12d %-12d %-14.2f %-14.2f %-10d", multichunkSize, concurrency, result.uploadThroughput,
+						result.downloadThroughput, result.listDuration));
+
+				if (concurrency == 1) {
+					sequentialUploadThroughput = result.uploadThroughput;
+					sequentialDownloadThroughput = result.downloadThroughput;
+				}
+				else if (concurrency == 4) {
+					assertTrue("Parallel uploads too slow for size " + multichunkSize + ": " + result.uploadThroughput + " MB/s (sequential: "
+							+ sequentialUploadThroughput + " MB/s)", result.uploadThroughput >= MIN_PARALLEL_SPEEDUP * sequentialUploadThroughput);
+
+					assertTrue("Parallel downloads too slow for size " + multichunkSize + ": " + result.downloadThroughput + " MB/s (sequential: "
+							+ sequentialDownloadThroughput + " MB/s)", result.downloadThroughput >= MIN_PARALLEL_SPEEDUP * sequentialDownloadThroughput);
+				}
+			}
+		}
+	}
+
+	private BenchmarkResult runBenchmark(int multichunkSize, int concurrency) throws Exception {
+		FlickrTransferSettings settings = FlickrTransferManagerTest.createSettings(server.getEndpoint());
+		settings.setParallelism(concurrency);
+
+		final FlickrTransferManager transferManager = FlickrTransferManagerTest.createTransferManager(settings, true);
+
+		final List<File> localFiles = new ArrayList<File>();
+		final List<MultichunkRemoteFile> remoteFiles = new ArrayList<MultichunkRemoteFile>();
+
+		for (int i = 0; i < MULTICHUNK_COUNT; i++) {
+			File localFile = new File(tempDir, "multichunk-" + multichunkSize + "-" + concurrency + "-" + i);
+			TestFileUtil.createRandomFile(localFile, multichunkSize);
+
+			localFiles.add(localFile);
+			remoteFiles.add(new MultichunkRemoteFile(MultiChunkId.secureRandomMultiChunkId()));
+		}
+
+		BenchmarkResult result = new BenchmarkResult();
+		long totalBytes = (long) multichunkSize * MULTICHUNK_COUNT;
+
+		// Upload
+		long uploadStartTime = System.currentTimeMillis();
+
+		executeConcurrently(concurrency, new IndexedTask() {
+			@Override
+			public void execute(int index) throws StorageException {
+				transferManager.upload(localFiles.get(index), remoteFiles.get(index));
+			}
+		});
+
+		transferManager.disconnect(); // Flushes the album queue
+		result.uploadThroughput = toMegabytesPerSecond(totalBytes, System.currentTimeMillis() - uploadStartTime);
+
+		// List (with a fresh transfer manager, i.e. without a photo index)
+		final FlickrTransferManager otherTransferManager = FlickrTransferManagerTest.createTransferManager(settings, false);
+		long listStartTime = System.currentTimeMillis();
+
+		assertEquals(MULTICHUNK_COUNT, otherTransferManager.list(MultichunkRemoteFile.class).size());
+		result.listDuration = System.currentTimeMillis() - listStartTime;
+
+		// Download
+		long downloadStartTime = System.currentTimeMillis();
+
+		executeConcurrently(concurrency, new IndexedTask() {
+			@Override
+			public void execute(int index) throws StorageException {
+				otherTransferManager.download(remoteFiles.get(index), new File(localFiles.get(index) + "-downloaded"));
+			}
+		});
+
+		result.downloadThroughput = toMegabytesPerSecond(totalBytes, System.currentTimeMillis() - downloadStartTime);
+
+		for (File localFile : localFiles) {
+			assertArrayEquals(TestFileUtil.createChecksum(localFile), TestFileUtil.createChecksum(new File(localFile + "-downloaded")));
+		}
+
+		otherTransferManager.disconnect();
+		return result;
+	}
+
+	private void executeConcurrently(int concurrency, final IndexedTask task) throws StorageException, IOException {
+		TransferExecutor executor = new TransferExecutor(concurrency, "FlickrBenchmark");
+
+		for (int i = 0; i < MULTICHUNK_COUNT; i++) {
+			final int index = i;
+
+			executor.submit(new TransferTask() {
+				@Override
+				public void execute() throws StorageException {
+					task.execute(index);
+				}
+			});
+		}
+
+		executor.awaitAll();
+	}
+
+	private double toMegabytesPerSecond(long bytes, long durationMillis) {
+		return (bytes / 1024.0 / 1024.0) / (Math.max(1, durationMillis) / 1000.0);
+	}
+
+	private interface IndexedTask {
+		public void execute(int index) throws StorageException;
+	}
+
+	private static class BenchmarkResult {
+		private double uploadThroughput;
+		private double downloadThroughput;
+		private long listDuration;
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2014 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.unit.plugins.flickr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.syncany.plugins.flickr.FlickrRequestScheduler;
+import org.syncany.plugins.flickr.FlickrRequestScheduler.Metrics;
+import org.syncany.plugins.flickr.FlickrRequestScheduler.Priority;
+
+public class FlickrRequestSchedulerTest {
+	@Test
+	public void testRateLimitAfterBurst() throws Exception {
+		FlickrRequestScheduler requestScheduler = new FlickrRequestScheduler(10 * 3600); // 10/s, burst of 600
+
+		long burstStartTime = System.currentTimeMillis();
+
+		for (int i = 0; i < 600; i++) {
+			requestScheduler.acquire(Priority.METADATA);
+		}
+
+		long burstDuration = System.currentTimeMillis() - burstStartTime;
+		long pacedStartTime = System.currentTimeMillis();
+
+		for (int i = 0; i < 5; i++) {
+			requestScheduler.acquire(Priority.METADATA);
+		}
+
+		long pacedDuration = System.currentTimeMillis() - pacedStartTime;
+
+		assertTrue("Burst should not be paced, but took " + burstDuration + " ms", burstDuration < 200);
+		assertTrue("Requests after burst should be paced, but took " + pacedDuration + " ms", pacedDuration >= 400);
+
+		Metrics metrics = requestScheduler.getMetrics();
+
+		assertEquals(605, metrics.getRequestCount());
+		assertEquals(0, metrics.getQueueDepth());
+		assertTrue(metrics.getMaxWaitTime() >= 50);
+	}
+
+	@Test
+	public void testMetadataBeforeBulk() throws Exception {
+		final FlickrRequestScheduler requestScheduler = new FlickrRequestScheduler(10 * 3600);
+		final List<Priority> acquiredPriorities = Collections.synchronizedList(new ArrayList<Priority>());
+
+		for (int i = 0; i < 600; i++) {
+			requestScheduler.acquire(Priority.METADATA);
+		}
+
+		// Bulk request waits first, metadata request arrives before the next token
+		Thread bulkThread = startAcquireThread(requestScheduler, Priority.BULK, acquiredPriorities);
+		Thread.sleep(30);
+
+		assertEquals(1, requestScheduler.getMetrics().getQueueDepth(Priority.BULK));
+
+		Thread metadataThread = startAcquireThread(requestScheduler, Priority.METADATA, acquiredPriorities);
+
+		bulkThread.join();
+		metadataThread.join();
+
+		assertEquals(Arrays.asList(Priority.METADATA, Priority.BULK), acquiredPriorities);
+	}
+
+	@Test
+	public void testThrottlingReducesAndRestoresRate() {
+		FlickrRequestScheduler requestScheduler = new FlickrRequestScheduler(3600);
+
+		requestScheduler.onThrottled();
+		requestScheduler.onThrottled(); // In flight before the first one, ignored
+
+		assertEquals(1800, requestScheduler.getRequestsPerHour(), 0.1);
+		assertEquals(2, requestScheduler.getMetrics().getThrottledCount());
+
+		// Quick recovery up to the learned ceiling (90% of 3600) ...
+		for (int i = 0; i < 9; i++) {
+			requestScheduler.onSuccess();
+		}
+
+		assertEquals(3240, requestScheduler.getRequestsPerHour(), 0.1);
+
+		// ... and slow probing beyond it
+		requestScheduler.onSuccess();
+		assertEquals(3243.6, requestScheduler.getRequestsPerHour(), 0.1);
+
+		for (int i = 0; i < 1000; i++) {
+			requestScheduler.onSuccess();
+		}
+
+		assertEquals(3600, requestScheduler.getRequestsPerHour(), 0.1);
+	}
+
+	private Thread startAcquireThread(final FlickrRequestScheduler requestScheduler, final Priority priority, final List<Priority> acquiredPriorities) {
+		Thread acquireThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					requestScheduler.acquire(priority);
+					acquiredPriorities.add(priority);
+				}
+				catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+
+		acquireThread.start();
+		return acquireThread;
+	}
+}
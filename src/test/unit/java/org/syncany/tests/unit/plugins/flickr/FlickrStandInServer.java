@@ -0,0 +1,784 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2014 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.unit.plugins.flickr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.IOUtils;
+import org.syncany.plugins.flickr.FlickrTransferSettings;
+import org.syncany.plugins.flickr.FlickrUploader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded, in-process HTTP server that emulates the subset of the Flickr REST API,
+ * upload API and image hosts that is used by the Flickr plugin. Photos and albums
+ * are kept in memory.
+ *
+ * <p>To use the server, start it and set its endpoint as API endpoint of the plugin
+ * (see {@link FlickrTransferSettings#setApiEndpoint(String)}). Request latency and
+ * bandwidth can be configured to make the server behave more like the real service;
+ * the bandwidth is limited per request, i.e. concurrent requests do not share it.
+ *
+ * <p>Authentication is not checked; OAuth parameters are ignored.
+ */
+public class FlickrStandInServer {
+	private static final Logger logger = Logger.getLogger(FlickrStandInServer.class.getSimpleName());
+
+	private static final String REST_PATH = "/services/rest/";
+	private static final Pattern IMAGE_PATH_PATTERN = Pattern.compile("^/(\\w+)/(\\w+)_(\\w+)_o\\.(\\w+)$");
+	private static final Pattern RANGE_PATTERN = Pattern.compile("^bytes=(\\d*)-(\\d*)$");
+	private static final Pattern MULTIPART_BOUNDARY_PATTERN = Pattern.compile("boundary=(.+)$");
+	private static final Pattern MULTIPART_NAME_PATTERN = Pattern.compile("name=\"([^\"]+)\"");
+
+	private static final String ERROR_NOT_FOUND = "1";
+	private static final String ERROR_PHOTO_ALREADY_IN_SET = "3";
+	private static final String ERROR_UNKNOWN_METHOD = "112";
+	private static final String ERROR_SIMULATED_FAILURE = "999"; // See setFailedRequests()
+
+	private static final String SERVER = "1234";
+	private static final String FARM = "1";
+
+	private HttpServer server;
+	private ExecutorService executor;
+
+	private int latency;
+	private long bandwidth;
+	private AtomicInteger lostUploadResponses;
+	private boolean rangeRequests;
+	private AtomicLong imageBytes;
+
+	private AtomicInteger nextId;
+	private Random random;
+	private Map<String, StandInPhoto> photos;
+	private Map<String, StandInPhotoset> photosets;
+	private ConcurrentMap<String, AtomicInteger> requestCounts;
+	private ConcurrentMap<String, AtomicInteger> failedRequests;
+
+	public FlickrStandInServer() {
+		this.latency = 0;
+		this.bandwidth = 0;
+		this.lostUploadResponses = new AtomicInteger(0);
+		this.rangeRequests = true;
+		this.imageBytes = new AtomicLong(0);
+
+		this.nextId = new AtomicInteger(1000);
+		this.random = new Random();
+		this.photos = new LinkedHashMap<String, StandInPhoto>();
+		this.photosets = new LinkedHashMap<String, StandInPhotoset>();
+		this.requestCounts = new ConcurrentHashMap<String, AtomicInteger>();
+		this.failedRequests = new ConcurrentHashMap<String, AtomicInteger>();
+	}
+
+	/**
+	 * Starts the server on a free port on the loopback interface.
+	 */
+	public void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		executor = Executors.newCachedThreadPool();
+
+		server.createContext("/", new StandInHandler());
+		server.setExecutor(executor);
+		server.start();
+
+		logger.log(Level.INFO, "Flickr stand-in server started at " + getEndpoint());
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			executor.shutdownNow();
+
+			server = null;
+		}
+	}
+
+	/**
+	 * Returns the base URL of the server, to be used as API endpoint of the plugin.
+	 */
+	public String getEndpoint() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	/**
+	 * Sets the time (in milliseconds) that each request is delayed before it is processed.
+	 */
+	public void setLatency(int latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * Sets the max. transfer rate (in bytes per second) for request and response bodies
+	 * of each request; 0 means unlimited.
+	 */
+	public void setBandwidth(long bandwidth) {
+		this.bandwidth = bandwidth;
+	}
+
+	/**
+	 * Makes the next <tt>count</tt> uploads fail after the photo has been stored, i.e. the
+	 * photo exists, but the client receives an error instead of the photo ID.
+	 */
+	public void setLostUploadResponses(int count) {
+		lostUploadResponses.set(count);
+	}
+
+	/**
+	 * Makes the next <tt>count</tt> requests for the given API method (e.g. <tt>flickr.photos.delete</tt>)
+	 * fail with an error response, without processing them.
+	 */
+	public void setFailedRequests(String method, int count) {
+		failedRequests.put(method, new AtomicInteger(count));
+	}
+
+	/**
+	 * Enables or disables support for HTTP range requests on images (enabled by default,
+	 * like on the Flickr image hosts). If disabled, the entire image is always returned.
+	 */
+	public void setRangeRequests(boolean rangeRequests) {
+		this.rangeRequests = rangeRequests;
+	}
+
+	/**
+	 * Returns the total number of image bytes sent, i.e. the size of all
+	 * images and image ranges downloaded.
+	 */
+	public long getImageBytes() {
+		return imageBytes.get();
+	}
+
+	/**
+	 * Returns the number of requests made for the given API method (e.g.
+	 * <tt>flickr.photos.delete</tt>), or for <tt>upload</tt> and <tt>image</tt>.
+	 */
+	public int getRequestCount(String method) {
+		AtomicInteger requestCount = requestCounts.get(method);
+		return (requestCount != null) ? requestCount.get() : 0;
+	}
+
+	public synchronized int getPhotoCount() {
+		return photos.size();
+	}
+
+	public synchronized List<String> getPhotoTitles() {
+		List<String> photoTitles = new ArrayList<String>();
+
+		for (StandInPhoto photo : photos.values()) {
+			photoTitles.add(photo.title);
+		}
+
+		return photoTitles;
+	}
+
+	public synchronized int getPhotosetCount() {
+		return photosets.size();
+	}
+
+	public synchronized String getPhotosetDescription(String photosetId) {
+		return photosets.get(photosetId).description;
+	}
+
+	/**
+	 * Changes the description of the given album, e.g. to simulate changes by another client.
+	 */
+	public synchronized void setPhotosetDescription(String photosetId, String description) {
+		photosets.get(photosetId).description = description;
+	}
+
+	/**
+	 * Creates an album (without the API), and returns its ID. Unlike Flickr, the server
+	 * allows empty albums.
+	 */
+	public synchronized String createPhotoset(String title, String description) {
+		StandInPhotoset photoset = new StandInPhotoset(createId(), title, description);
+		photosets.put(photoset.id, photoset);
+
+		return photoset.id;
+	}
+
+	public synchronized List<String> getPhotosetPhotoTitles(String photosetId) {
+		List<String> photoTitles = new ArrayList<String>();
+
+		for (StandInPhoto photo : getPhotos(photosets.get(photosetId).photoIds)) {
+			photoTitles.add(photo.title);
+		}
+
+		return photoTitles;
+	}
+
+	private class StandInHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				sleep(latency);
+
+				String path = exchange.getRequestURI().getPath();
+				Matcher imagePathMatcher = IMAGE_PATH_PATTERN.matcher(path);
+
+				if (REST_PATH.equals(path)) {
+					handleRest(exchange);
+				}
+				else if (FlickrUploader.UPLOAD_PATH.equals(path)) {
+					handleUpload(exchange);
+				}
+				else if (imagePathMatcher.matches()) {
+					handleImage(exchange, imagePathMatcher.group(2), imagePathMatcher.group(3));
+				}
+				else {
+					sendResponse(exchange, 404, "text/plain", "Not found".getBytes(StandardCharsets.UTF_8));
+				}
+			}
+			catch (Exception e) {
+				logger.log(Level.WARNING, "Stand-in server failed to handle request " + exchange.getRequestURI(), e);
+				sendResponse(exchange, 500, "text/plain", String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+			}
+			finally {
+				exchange.close();
+			}
+		}
+	}
+
+	private void handleRest(HttpExchange exchange) throws IOException {
+		Map<String, String> parameters = parseParameters(exchange.getRequestURI().getRawQuery());
+
+		if ("POST".equals(exchange.getRequestMethod())) {
+			parameters.putAll(parseParameters(new String(readRequestBody(exchange), StandardCharsets.UTF_8)));
+		}
+
+		String method = parameters.get("method");
+		countRequest(method);
+
+		String responseXml;
+
+		synchronized (this) {
+			AtomicInteger failedRequestCount = failedRequests.get(String.valueOf(method));
+
+			if (failedRequestCount != null && failedRequestCount.getAndDecrement() > 0) {
+				responseXml = createErrorResponse(ERROR_SIMULATED_FAILURE, "Simulated failure of " + method);
+			}
+			else {
+				responseXml = handleRestMethod(method, parameters);
+			}
+		}
+
+		sendResponse(exchange, 200, "text/xml", responseXml.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private String handleRestMethod(String method, Map<String, String> parameters) {
+		String photoId = parameters.get("photo_id");
+		String photosetId = parameters.get("photoset_id");
+		String extras = parameters.get("extras");
+
+		if ("flickr.photosets.create".equals(method)) {
+			StandInPhoto primaryPhoto = photos.get(parameters.get("primary_photo_id"));
+
+			if (primaryPhoto == null) {
+				return createErrorResponse(ERROR_NOT_FOUND, "Primary photo not found");
+			}
+
+			StandInPhotoset photoset = new StandInPhotoset(createId(), parameters.get("title"), parameters.get("description"));
+			photoset.photoIds.add(primaryPhoto.id);
+			photosets.put(photoset.id, photoset);
+
+			return createOkResponse("<photoset id=\"" + photoset.id + "\" url=\"http://localhost/sets/" + photoset.id + "\"/>");
+		}
+		else if ("flickr.photosets.getInfo".equals(method)) {
+			StandInPhotoset photoset = photosets.get(photosetId);
+
+			if (photoset == null) {
+				return createErrorResponse(ERROR_NOT_FOUND, "Photoset not found");
+			}
+
+			return createOkResponse(toPhotosetInfoXml(photoset));
+		}
+		else if ("flickr.photosets.getPhotos".equals(method)) {
+			StandInPhotoset photoset = photosets.get(photosetId);
+
+			if (photoset == null) {
+				return createErrorResponse(ERROR_NOT_FOUND, "Photoset not found");
+			}
+
+			return createOkResponse(toPhotoListXml("photoset", getPhotos(photoset.photoIds), extras, parameters));
+		}
+		else if ("flickr.photosets.addPhoto".equals(method)) {
+			StandInPhotoset photoset = photosets.get(photosetId);
+
+			if (photoset == null || !photos.containsKey(photoId)) {
+				return createErrorResponse(ERROR_NOT_FOUND, "Photoset or photo not found");
+			}
+			else if (!photoset.photoIds.add(photoId)) {
+				return createErrorResponse(ERROR_PHOTO_ALREADY_IN_SET, "Photo already in set");
+			}
+
+			return createOkResponse("");
+		}
+		else if ("flickr.photosets.editMeta".equals(method)) {
+			StandInPhotoset photoset = photosets.get(photosetId);
+
+			if (photoset == null) {
+				return createErrorResponse(ERROR_NOT_FOUND, "Photoset not found");
+			}
+
+			photoset.title = parameters.get("title");
+			photoset.description = parameters.get("description");
+
+			return createOkResponse("");
+		}
+		else if ("flickr.photosets.delete".equals(method)) {
+			if (photosets.remove(photosetId) == null) {
+				return createErrorResponse(ERROR_NOT_FOUND, "Photoset not found");
+			}
+
+			return createOkResponse("");
+		}
+		else if ("flickr.photos.getInfo".equals(method)) {
+			StandInPhoto photo = photos.get(photoId);
+
+			if (photo == null) {
+				return createErrorResponse(ERROR_NOT_FOUND, "Photo not found");
+			}
+
+			return createOkResponse(toPhotoInfoXml(photo));
+		}
+		else if ("flickr.photos.setMeta".equals(method)) {
+			StandInPhoto photo = photos.get(photoId);
+
+			if (photo == null) {
+				return createErrorResponse(ERROR_NOT_FOUND, "Photo not found");
+			}
+
+			photo.title = parameters.get("title");
+			photo.description = parameters.get("description");
+			photo.lastUpdate = createLastUpdate();
+
+			return createOkResponse("");
+		}
+		else if ("flickr.photos.delete".equals(method)) {
+			if (photos.remove(photoId) == null) {
+				return createErrorResponse(ERROR_NOT_FOUND, "Photo not found");
+			}
+
+			for (StandInPhotoset photoset : photosets.values()) {
+				photoset.photoIds.remove(photoId);
+			}
+
+			return createOkResponse("");
+		}
+		else if ("flickr.photos.getAllContexts".equals(method)) {
+			if (!photos.containsKey(photoId)) {
+				return createErrorResponse(ERROR_NOT_FOUND, "Photo not found");
+			}
+
+			StringBuilder contextsXml = new StringBuilder();
+
+			for (StandInPhotoset photoset : photosets.values()) {
+				if (photoset.photoIds.contains(photoId)) {
+					contextsXml.append("<set id=\"").append(photoset.id).append("\" title=\"").append(escapeXml(photoset.title))
+							.append("\" view_count=\"0\" comment_count=\"0\" count_photo=\"").append(photoset.photoIds.size()).append("\" count_video=\"0\"/>");
+				}
+			}
+
+			return createOkResponse(contextsXml.toString());
+		}
+		else if ("flickr.photos.getNotInSet".equals(method)) {
+			List<StandInPhoto> notInSetPhotos = new ArrayList<StandInPhoto>(photos.values());
+
+			for (StandInPhotoset photoset : photosets.values()) {
+				notInSetPhotos.removeAll(getPhotos(photoset.photoIds));
+			}
+
+			return createOkResponse(toPhotoListXml("photos", notInSetPhotos, extras, parameters));
+		}
+		else if ("flickr.photos.recentlyUpdated".equals(method)) {
+			long minLastUpdate = Long.parseLong(parameters.get("min_date"));
+			List<StandInPhoto> updatedPhotos = new ArrayList<StandInPhoto>();
+
+			for (StandInPhoto photo : photos.values()) {
+				if (photo.lastUpdate >= minLastUpdate) {
+					updatedPhotos.add(photo);
+				}
+			}
+
+			return createOkResponse(toPhotoListXml("photos", updatedPhotos, extras, parameters));
+		}
+		else {
+			return createErrorResponse(ERROR_UNKNOWN_METHOD, "Method \"" + method + "\" not found");
+		}
+	}
+
+	private void handleUpload(HttpExchange exchange) throws IOException {
+		countRequest("upload");
+
+		Matcher boundaryMatcher = MULTIPART_BOUNDARY_PATTERN.matcher(exchange.getRequestHeaders().getFirst("Content-Type"));
+
+		if (!boundaryMatcher.find()) {
+			sendResponse(exchange, 400, "text/plain", "Multipart boundary missing".getBytes(StandardCharsets.UTF_8));
+			return;
+		}
+
+		Map<String, byte[]> parts = parseMultipart(readRequestBody(exchange), boundaryMatcher.group(1));
+		String responseXml;
+
+		if (!parts.containsKey("photo")) {
+			responseXml = createErrorResponse("2", "No photo specified");
+		}
+		else {
+			StandInPhoto photo = new StandInPhoto(createId(), toString(parts.get("title")), toString(parts.get("description")), parts.get("photo"));
+
+			synchronized (this) {
+				photos.put(photo.id, photo);
+			}
+
+			if (lostUploadResponses.getAndDecrement() > 0) {
+				throw new IOException("Simulated lost response for uploaded photo " + photo.id);
+			}
+
+			responseXml = createOkResponse("<photoid>" + photo.id + "</photoid>");
+		}
+
+		sendResponse(exchange, 200, "text/xml", responseXml.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void handleImage(HttpExchange exchange, String photoId, String originalSecret) throws IOException {
+		countRequest("image");
+
+		StandInPhoto photo;
+
+		synchronized (this) {
+			photo = photos.get(photoId);
+		}
+
+		if (photo == null || !photo.originalSecret.equals(originalSecret)) {
+			sendResponse(exchange, 404, "text/plain", "Image not found".getBytes(StandardCharsets.UTF_8));
+		}
+		else {
+			String range = exchange.getRequestHeaders().getFirst("Range");
+			Matcher rangeMatcher = (range != null && rangeRequests) ? RANGE_PATTERN.matcher(range) : null;
+
+			if (rangeMatcher != null && rangeMatcher.matches()) {
+				sendImageRange(exchange, photo.data, rangeMatcher.group(1), rangeMatcher.group(2));
+			}
+			else {
+				imageBytes.addAndGet(photo.data.length);
+				sendResponse(exchange, 200, "image/png", photo.data);
+			}
+		}
+	}
+
+	/**
+	 * Sends the given range of the image (HTTP 206), i.e. from <tt>first</tt> to <tt>last</tt>
+	 * (both inclusive, <tt>last</tt> is optional), or the last <tt>last</tt> bytes if 
+	 * <tt>first</tt> is empty.
+	 */
+	private void sendImageRange(HttpExchange exchange, byte[] image, String first, String last) throws IOException {
+		int rangeStart, rangeEnd;
+
+		if (first.isEmpty()) {
+			rangeStart = Math.max(0, image.length - Integer.parseInt(last));
+			rangeEnd = image.length;
+		}
+		else {
+			rangeStart = Integer.parseInt(first);
+			rangeEnd = (last.isEmpty()) ? image.length : Math.min(image.length, Integer.parseInt(last) + 1);
+		}
+
+		if (rangeStart >= rangeEnd) {
+			exchange.getResponseHeaders().set("Content-Range", "bytes */" + image.length);
+			sendResponse(exchange, 416, "text/plain", "Range not satisfiable".getBytes(StandardCharsets.UTF_8));
+		}
+		else {
+			imageBytes.addAndGet(rangeEnd - rangeStart);
+
+			exchange.getResponseHeaders().set("Content-Range", "bytes " + rangeStart + "-" + (rangeEnd - 1) + "/" + image.length);
+			sendResponse(exchange, 206, "image/png", Arrays.copyOfRange(image, rangeStart, rangeEnd));
+		}
+	}
+
+	private List<StandInPhoto> getPhotos(Set<String> photoIds) {
+		List<StandInPhoto> photoList = new ArrayList<StandInPhoto>();
+
+		for (String photoId : photoIds) {
+			photoList.add(photos.get(photoId));
+		}
+
+		return photoList;
+	}
+
+	private String toPhotosetInfoXml(StandInPhotoset photoset) {
+		String primaryPhotoId = (photoset.photoIds.isEmpty()) ? "0" : photoset.photoIds.iterator().next();
+
+		return "<photoset id=\"" + photoset.id + "\" owner=\"stand-in\" primary=\"" + primaryPhotoId + "\" secret=\"s" + photoset.id + "\""
+				+ " server=\"" + SERVER + "\" farm=\"" + FARM + "\" photos=\"" + photoset.photoIds.size() + "\" count_photos=\"" + photoset.photoIds.size() + "\""
+				+ " count_videos=\"0\" count_views=\"0\" count_comments=\"0\" can_comment=\"0\" date_create=\"0\" date_update=\"0\">"
+				+ "<title>" + escapeXml(photoset.title) + "</title><description>" + escapeXml(photoset.description) + "</description></photoset>";
+	}
+
+	/**
+	 * Creates a paged photo list, as returned by <tt>photosets.getPhotos</tt> (root element
+	 * <tt>photoset</tt>) and the <tt>photos.*</tt> list methods (root element <tt>photos</tt>).
+	 */
+	private String toPhotoListXml(String rootElement, List<StandInPhoto> photoList, String extras, Map<String, String> parameters) {
+		int perPage = (parameters.containsKey("per_page")) ? Integer.parseInt(parameters.get("per_page")) : 100;
+		int page = (parameters.containsKey("page")) ? Math.max(1, Integer.parseInt(parameters.get("page"))) : 1;
+		int pages = Math.max(1, (photoList.size() + perPage - 1) / perPage);
+
+		List<String> extrasList = (extras != null) ? Arrays.asList(extras.split(",")) : new ArrayList<String>();
+		StringBuilder photoListXml = new StringBuilder();
+
+		photoListXml.append("<").append(rootElement).append(" page=\"").append(page).append("\" pages=\"").append(pages).append("\" perpage=\"")
+				.append(perPage).append("\" per_page=\"").append(perPage).append("\" total=\"").append(photoList.size()).append("\">");
+
+		for (StandInPhoto photo : photoList.subList(Math.min(photoList.size(), (page - 1) * perPage), Math.min(photoList.size(), page * perPage))) {
+			photoListXml.append("<photo id=\"").append(photo.id).append("\" secret=\"").append(photo.secret).append("\" server=\"").append(SERVER)
+					.append("\" farm=\"").append(FARM).append("\" title=\"").append(escapeXml(photo.title))
+					.append("\" ispublic=\"0\" isfriend=\"0\" isfamily=\"0\"");
+
+			if (extrasList.contains("original_format")) {
+				photoListXml.append(" originalsecret=\"").append(photo.originalSecret).append("\" originalformat=\"png\"");
+			}
+
+			if (extrasList.contains("last_update")) {
+				photoListXml.append(" lastupdate=\"").append(photo.lastUpdate).append("\"");
+			}
+
+			if (extrasList.contains("description")) {
+				photoListXml.append("><description>").append(escapeXml(photo.description)).append("</description></photo>");
+			}
+			else {
+				photoListXml.append("/>");
+			}
+		}
+
+		photoListXml.append("</").append(rootElement).append(">");
+		return photoListXml.toString();
+	}
+
+	private String toPhotoInfoXml(StandInPhoto photo) {
+		return "<photo id=\"" + photo.id + "\" secret=\"" + photo.secret + "\" server=\"" + SERVER + "\" farm=\"" + FARM + "\""
+				+ " originalsecret=\"" + photo.originalSecret + "\" originalformat=\"png\" dateuploaded=\"" + photo.lastUpdate + "\""
+				+ " isfavorite=\"0\" license=\"0\" rotation=\"0\" media=\"photo\" views=\"0\">"
+				+ "<owner nsid=\"stand-in\" username=\"stand-in\"/>"
+				+ "<title>" + escapeXml(photo.title) + "</title><description>" + escapeXml(photo.description) + "</description>"
+				+ "<visibility ispublic=\"0\" isfriend=\"0\" isfamily=\"0\"/>"
+				+ "<dates posted=\"" + photo.lastUpdate + "\" taken=\"2014-01-01 00:00:00\" takengranularity=\"0\" lastupdate=\"" + photo.lastUpdate + "\"/>"
+				+ "</photo>";
+	}
+
+	private String createOkResponse(String payloadXml) {
+		return "<?xml version=\"1.0\" encoding=\"utf-8\" ?><rsp stat=\"ok\">" + payloadXml + "</rsp>";
+	}
+
+	private String createErrorResponse(String errorCode, String errorMessage) {
+		return "<?xml version=\"1.0\" encoding=\"utf-8\" ?><rsp stat=\"fail\"><err code=\"" + errorCode + "\" msg=\"" + escapeXml(errorMessage) + "\"/></rsp>";
+	}
+
+	private String createId() {
+		return String.valueOf(nextId.incrementAndGet());
+	}
+
+	/**
+	 * Creates a secret with 10 hex digits, like Flickr does. Flickr4Java rejects
+	 * (original) secrets with less than 9 characters.
+	 */
+	private String createSecret() {
+		return String.format("%010x", random.nextLong() & 0xffffffffffL);
+	}
+
+	private long createLastUpdate() {
+		return System.currentTimeMillis() / 1000;
+	}
+
+	private void countRequest(String method) {
+		requestCounts.putIfAbsent(String.valueOf(method), new AtomicInteger());
+		requestCounts.get(String.valueOf(method)).incrementAndGet();
+	}
+
+	private byte[] readRequestBody(HttpExchange exchange) throws IOException {
+		try (InputStream requestBodyStream = exchange.getRequestBody()) {
+			byte[] requestBody = IOUtils.toByteArray(requestBodyStream);
+			throttle(requestBody.length);
+
+			return requestBody;
+		}
+	}
+
+	private void sendResponse(HttpExchange exchange, int statusCode, String contentType, byte[] responseBody) throws IOException {
+		throttle(responseBody.length);
+
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(statusCode, responseBody.length);
+
+		try (OutputStream responseBodyStream = exchange.getResponseBody()) {
+			responseBodyStream.write(responseBody);
+		}
+	}
+
+	private void throttle(long transferredBytes) {
+		if (bandwidth > 0) {
+			sleep((int) (transferredBytes * 1000 / bandwidth));
+		}
+	}
+
+	private void sleep(int millis) {
+		if (millis > 0) {
+			try {
+				Thread.sleep(millis);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Splits a <tt>multipart/form-data</tt> body into its parts (name to content).
+	 * The parts are searched as bytes, because the photo part is binary.
+	 */
+	private Map<String, byte[]> parseMultipart(byte[] body, String boundary) {
+		Map<String, byte[]> parts = new HashMap<String, byte[]>();
+
+		byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.UTF_8);
+		byte[] headerEnd = "\r\n\r\n".getBytes(StandardCharsets.UTF_8);
+
+		int partStart = indexOf(body, delimiter, 0);
+
+		while (partStart >= 0) {
+			int headerStart = partStart + delimiter.length + 2; // Skip CRLF
+			int contentStart = indexOf(body, headerEnd, headerStart);
+			int nextPartStart = indexOf(body, delimiter, headerStart);
+
+			if (contentStart < 0 || nextPartStart < 0) {
+				break;
+			}
+
+			String headers = new String(body, headerStart, contentStart - headerStart, StandardCharsets.UTF_8);
+			Matcher nameMatcher = MULTIPART_NAME_PATTERN.matcher(headers);
+
+			if (nameMatcher.find()) {
+				int contentEnd = nextPartStart - 2; // Strip CRLF before delimiter
+				parts.put(nameMatcher.group(1), Arrays.copyOfRange(body, contentStart + headerEnd.length, contentEnd));
+			}
+
+			partStart = nextPartStart;
+		}
+
+		return parts;
+	}
+
+	private int indexOf(byte[] haystack, byte[] needle, int fromIndex) {
+		outer: for (int i = fromIndex; i <= haystack.length - needle.length; i++) {
+			for (int j = 0; j < needle.length; j++) {
+				if (haystack[i + j] != needle[j]) {
+					continue outer;
+				}
+			}
+
+			return i;
+		}
+
+		return -1;
+	}
+
+	private Map<String, String> parseParameters(String formEncodedParameters) throws UnsupportedEncodingException {
+		Map<String, String> parameters = new HashMap<String, String>();
+
+		if (formEncodedParameters != null && !formEncodedParameters.isEmpty()) {
+			for (String parameter : formEncodedParameters.split("&")) {
+				String[] nameAndValue = parameter.split("=", 2);
+				String value = (nameAndValue.length > 1) ? URLDecoder.decode(nameAndValue[1], "UTF-8") : "";
+
+				parameters.put(URLDecoder.decode(nameAndValue[0], "UTF-8"), value);
+			}
+		}
+
+		return parameters;
+	}
+
+	private String toString(byte[] bytes) {
+		return (bytes != null) ? new String(bytes, StandardCharsets.UTF_8) : null;
+	}
+
+	private String escapeXml(String text) {
+		if (text == null) {
+			return "";
+		}
+
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	private class StandInPhoto {
+		private String id;
+		private String secret;
+		private String originalSecret;
+		private String title;
+		private String description;
+		private long lastUpdate;
+		private byte[] data;
+
+		public StandInPhoto(String id, String title, String description, byte[] data) {
+			this.id = id;
+			this.secret = createSecret();
+			this.originalSecret = createSecret();
+			this.title = title;
+			this.description = description;
+			this.lastUpdate = createLastUpdate();
+			this.data = data;
+		}
+	}
+
+	private class StandInPhotoset {
+		private String id;
+		private String title;
+		private String description;
+		private Set<String> photoIds;
+
+		public StandInPhotoset(String id, String title, String description) {
+			this.id = id;
+			this.title = title;
+			this.description = description;
+			this.photoIds = new LinkedHashSet<String>();
+		}
+	}
+}
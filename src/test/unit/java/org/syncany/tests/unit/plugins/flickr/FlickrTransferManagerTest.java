@@ -0,0 +1,664 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2014 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.unit.plugins.flickr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.syncany.chunk.ZipMultiChunk;
+import org.syncany.database.ChunkEntry.ChunkChecksum;
+import org.syncany.database.MultiChunkEntry.MultiChunkId;
+import org.syncany.plugins.flickr.FlickrCommitMarker;
+import org.syncany.plugins.flickr.FlickrTransferManager;
+import org.syncany.plugins.flickr.FlickrTransferSettings;
+import org.syncany.plugins.flickr.FlickrTransferSettings.FlickrAuth;
+import org.syncany.plugins.transfer.StorageException;
+import org.syncany.plugins.transfer.files.DatabaseRemoteFile;
+import org.syncany.plugins.transfer.files.MultichunkRemoteFile;
+import org.syncany.plugins.transfer.files.RemoteFile;
+import org.syncany.plugins.transfer.files.SyncanyRemoteFile;
+import org.syncany.plugins.transfer.files.TempRemoteFile;
+import org.syncany.tests.unit.util.TestFileUtil;
+
+import com.flickr4java.flickr.auth.Auth;
+import com.flickr4java.flickr.auth.Permission;
+import com.flickr4java.flickr.people.User;
+
+public class FlickrTransferManagerTest {
+	private FlickrStandInServer server;
+	private File tempDir;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new FlickrStandInServer();
+		server.start();
+
+		tempDir = TestFileUtil.createTempDirectoryInSystemTemp();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+		TestFileUtil.deleteDirectory(tempDir);
+	}
+
+	@Test
+	public void testUploadListDownloadAndDelete() throws Exception {
+		FlickrTransferSettings settings = createSettings(server.getEndpoint());
+		FlickrTransferManager transferManager = createTransferManager(settings, true);
+
+		RemoteFile[] remoteFiles = new RemoteFile[] {
+				new SyncanyRemoteFile(),
+				new DatabaseRemoteFile("database-A-0000000001"),
+				new MultichunkRemoteFile("multichunk-84f7e2b31440aaef9b73de3cadcf4e449aeb55a1"),
+				new MultichunkRemoteFile("multichunk-beefbeefbeefbeefbeefbeefbeefbeefbeefbeef") };
+
+		for (RemoteFile remoteFile : remoteFiles) {
+			File localFile = new File(tempDir, remoteFile.getName());
+			File downloadedFile = new File(tempDir, remoteFile.getName() + "-downloaded");
+
+			TestFileUtil.createRandomFile(localFile, 50 * 1024);
+
+			transferManager.upload(localFile, remoteFile);
+			transferManager.download(remoteFile, downloadedFile);
+
+			assertArrayEquals(TestFileUtil.createChecksum(localFile), TestFileUtil.createChecksum(downloadedFile));
+		}
+
+		assertEquals(1, transferManager.list(SyncanyRemoteFile.class).size());
+		assertEquals(1, transferManager.list(DatabaseRemoteFile.class).size());
+		assertEquals(2, transferManager.list(MultichunkRemoteFile.class).size());
+
+		for (RemoteFile remoteFile : remoteFiles) {
+			assertTrue(transferManager.delete(remoteFile));
+		}
+
+		assertEquals(0, transferManager.list(DatabaseRemoteFile.class).size());
+		assertEquals(0, transferManager.list(MultichunkRemoteFile.class).size());
+
+		transferManager.disconnect();
+	}
+
+	@Test
+	public void testMoveAndListFromOtherClient() throws Exception {
+		FlickrTransferSettings settings = createSettings(server.getEndpoint());
+		FlickrTransferManager transferManager = createTransferManager(settings, true);
+
+		DatabaseRemoteFile databaseFile = new DatabaseRemoteFile("database-A-0000000001");
+		TempRemoteFile tempFile = new TempRemoteFile(databaseFile);
+
+		File localFile = new File(tempDir, "database");
+		TestFileUtil.createRandomFile(localFile, 10 * 1024);
+
+		transferManager.upload(localFile, tempFile);
+		transferManager.move(tempFile, databaseFile);
+		transferManager.disconnect();
+
+		// Other client with the same album sees the moved file
+		FlickrTransferManager otherTransferManager = createTransferManager(settings, false);
+		Map<String, DatabaseRemoteFile> databaseFiles = otherTransferManager.list(DatabaseRemoteFile.class);
+
+		assertEquals(1, databaseFiles.size());
+		assertTrue(databaseFiles.containsKey(databaseFile.getName()));
+		assertFalse(otherTransferManager.list(TempRemoteFile.class).containsKey(tempFile.getName()));
+
+		File downloadedFile = new File(tempDir, "database-downloaded");
+		otherTransferManager.download(databaseFile, downloadedFile);
+
+		assertArrayEquals(TestFileUtil.createChecksum(localFile), TestFileUtil.createChecksum(downloadedFile));
+	}
+
+	@Test
+	public void testMigrateToMetadataAlbumOnlyWhenWriting() throws Exception {
+		FlickrTransferSettings settings = createSettings(server.getEndpoint());
+		FlickrTransferManager transferManager = createTransferManager(settings, true);
+
+		uploadAndMoveDatabaseFiles(transferManager, 1, 1);
+		transferManager.disconnect();
+
+		// Repository created before metadata albums existed: No link in the main album
+		server.setPhotosetDescription(settings.getAlbum(), "Flickr-based Syncany repository. Details at www.syncany.org!");
+		int photosetCount = server.getPhotosetCount();
+
+		FlickrTransferManager oldRepoTransferManager = createTransferManager(createLinkedSettings(settings), false);
+
+		assertEquals(1, oldRepoTransferManager.list(DatabaseRemoteFile.class).size());
+		assertEquals(photosetCount, server.getPhotosetCount());
+
+		// Writing a metadata file migrates the repository
+		uploadAndMoveDatabaseFiles(oldRepoTransferManager, 2, 1);
+		oldRepoTransferManager.disconnect();
+
+		assertEquals(photosetCount + 1, server.getPhotosetCount());
+		assertTrue(server.getPhotosetDescription(settings.getAlbum()).contains("[syncany-metadata-album:"));
+
+		FlickrTransferManager otherTransferManager = createTransferManager(createLinkedSettings(settings), false);
+		assertEquals(2, otherTransferManager.list(DatabaseRemoteFile.class).size());
+		otherTransferManager.disconnect();
+	}
+
+	@Test
+	public void testRepairMetadataAlbumAfterConcurrentMigration() throws Exception {
+		FlickrTransferSettings settings = createSettings(server.getEndpoint());
+		FlickrTransferManager transferManager = createTransferManager(settings, true);
+
+		uploadAndMoveDatabaseFiles(transferManager, 1, 1);
+		transferManager.disconnect();
+
+		// Client resolves the metadata album via the link in the main album ...
+		FlickrTransferManager linkedTransferManager = createTransferManager(createLinkedSettings(settings), false);
+		assertEquals(1, linkedTransferManager.list(DatabaseRemoteFile.class).size());
+
+		// ... which is then overwritten by another client (lost migration race)
+		String linkedMetadataAlbum = server.createPhotoset("Syncany (metadata)", "");
+		String mainAlbumDescription = server.getPhotosetDescription(settings.getAlbum());
+
+		server.setPhotosetDescription(settings.getAlbum(), mainAlbumDescription.replace(settings.getMetadataAlbum(), linkedMetadataAlbum));
+
+		// Files uploaded in the meantime are added to the linked album before the client stops
+		uploadAndMoveDatabaseFiles(linkedTransferManager, 2, 1);
+		linkedTransferManager.disconnect();
+
+		List<String> linkedMetadataAlbumTitles = server.getPhotosetPhotoTitles(linkedMetadataAlbum);
+
+		assertTrue(linkedMetadataAlbumTitles.contains(new DatabaseRemoteFile("A", 1).getName()));
+		assertTrue(linkedMetadataAlbumTitles.contains(new DatabaseRemoteFile("A", 2).getName()));
+
+		FlickrTransferManager otherTransferManager = createTransferManager(createLinkedSettings(settings), false);
+		assertEquals(2, otherTransferManager.list(DatabaseRemoteFile.class).size());
+		otherTransferManager.disconnect();
+	}
+
+	@Test
+	public void testPackSmallFiles() throws Exception {
+		FlickrTransferSettings settings = createSettings(server.getEndpoint());
+		settings.setPackSmallFiles(true);
+
+		FlickrTransferManager transferManager = createTransferManager(settings, true);
+		int photoCountBeforeUpload = server.getPhotoCount();
+
+		// Upload all temp. files first, then move them (like a transaction commit)
+		List<TempRemoteFile> tempFiles = new ArrayList<TempRemoteFile>();
+
+		for (int i = 1; i <= 3; i++) {
+			DatabaseRemoteFile databaseFile = new DatabaseRemoteFile("A", i);
+			TempRemoteFile tempFile = new TempRemoteFile(databaseFile);
+			File localFile = new File(tempDir, databaseFile.getName());
+
+			TestFileUtil.createRandomFile(localFile, 2 * 1024);
+			transferManager.upload(localFile, tempFile);
+
+			tempFiles.add(tempFile);
+		}
+
+		for (TempRemoteFile tempFile : tempFiles) {
+			transferManager.move(tempFile, tempFile.getTargetRemoteFile());
+		}
+
+		transferManager.disconnect();
+
+		assertEquals(photoCountBeforeUpload + 1, server.getPhotoCount());
+		assertFalse(server.getPhotoTitles().contains(new DatabaseRemoteFile("A", 1).getName()));
+
+		FlickrTransferManager otherTransferManager = createTransferManager(settings, false);
+		assertEquals(3, otherTransferManager.list(DatabaseRemoteFile.class).size());
+
+		for (int i = 1; i <= 3; i++) {
+			DatabaseRemoteFile databaseFile = new DatabaseRemoteFile("A", i);
+			File downloadedFile = new File(tempDir, databaseFile.getName() + "-downloaded");
+
+			otherTransferManager.download(databaseFile, downloadedFile);
+			assertArrayEquals(TestFileUtil.createChecksum(new File(tempDir, databaseFile.getName())), TestFileUtil.createChecksum(downloadedFile));
+		}
+	}
+
+	@Test
+	public void testRetryAfterLostUploadResponse() throws Exception {
+		FlickrTransferSettings settings = createSettings(server.getEndpoint());
+		FlickrTransferManager transferManager = createTransferManager(settings, true);
+
+		MultichunkRemoteFile multichunkFile = new MultichunkRemoteFile("multichunk-84f7e2b31440aaef9b73de3cadcf4e449aeb55a1");
+		File localFile = new File(tempDir, multichunkFile.getName());
+
+		TestFileUtil.createRandomFile(localFile, 50 * 1024);
+
+		int photoCountBeforeUpload = server.getPhotoCount();
+		int uploadCountBeforeUpload = server.getRequestCount("upload");
+
+		server.setLostUploadResponses(1);
+
+		try {
+			transferManager.upload(localFile, multichunkFile);
+			fail("Upload should have failed.");
+		}
+		catch (StorageException e) {
+			// Photo was stored, but the response was lost
+		}
+
+		// Retry finds the photo of the first upload, and does not upload it again
+		transferManager.upload(localFile, multichunkFile);
+
+		assertEquals(uploadCountBeforeUpload + 1, server.getRequestCount("upload"));
+		assertEquals(photoCountBeforeUpload + 1, server.getPhotoCount());
+		assertEquals(1, transferManager.list(MultichunkRemoteFile.class).size());
+
+		File downloadedFile = new File(tempDir, multichunkFile.getName() + "-downloaded");
+		transferManager.download(multichunkFile, downloadedFile);
+
+		assertArrayEquals(TestFileUtil.createChecksum(localFile), TestFileUtil.createChecksum(downloadedFile));
+		transferManager.disconnect();
+	}
+
+	@Test
+	public void testSkipIdenticalUpload() throws Exception {
+		FlickrTransferSettings settings = createSettings(server.getEndpoint());
+		FlickrTransferManager transferManager = createTransferManager(settings, true);
+
+		DatabaseRemoteFile databaseFile = new DatabaseRemoteFile("database-A-0000000001");
+		File localFile = new File(tempDir, databaseFile.getName());
+
+		TestFileUtil.createRandomFile(localFile, 10 * 1024);
+		transferManager.upload(localFile, databaseFile);
+		transferManager.disconnect();
+
+		int uploadCountAfterFirstUpload = server.getRequestCount("upload");
+
+		// Other client (without index) re-uploads the identical file, e.g. after a crash
+		FlickrTransferManager otherTransferManager = createTransferManager(settings, false);
+		assertEquals(1, otherTransferManager.list(DatabaseRemoteFile.class).size());
+
+		otherTransferManager.upload(localFile, databaseFile);
+		assertEquals(uploadCountAfterFirstUpload, server.getRequestCount("upload"));
+
+		// Different content under the same name is uploaded
+		File changedLocalFile = new File(tempDir, databaseFile.getName() + "-changed");
+
+		TestFileUtil.createRandomFile(changedLocalFile, 10 * 1024);
+		otherTransferManager.upload(changedLocalFile, databaseFile);
+
+		assertEquals(uploadCountAfterFirstUpload + 1, server.getRequestCount("upload"));
+		otherTransferManager.disconnect();
+	}
+
+	@Test
+	public void testBulkMoveAndDelete() throws Exception {
+		FlickrTransferSettings settings = createSettings(server.getEndpoint());
+		settings.setParallelism(4);
+
+		FlickrTransferManager transferManager = createTransferManager(settings, true);
+		Map<RemoteFile, RemoteFile> moveFiles = new LinkedHashMap<RemoteFile, RemoteFile>();
+
+		for (int i = 0; i < 20; i++) {
+			MultichunkRemoteFile multichunkFile = new MultichunkRemoteFile(MultiChunkId.secureRandomMultiChunkId());
+			File localFile = new File(tempDir, multichunkFile.getName());
+
+			TestFileUtil.createRandomFile(localFile, 10 * 1024);
+			transferManager.upload(localFile, multichunkFile);
+
+			moveFiles.put(multichunkFile, new TempRemoteFile(multichunkFile));
+		}
+
+		transferManager.disconnect();
+
+		// Other client (without index) resolves all files with one listing, and ignores missing files
+		MultichunkRemoteFile missingFile = new MultichunkRemoteFile(MultiChunkId.secureRandomMultiChunkId());
+		moveFiles.put(missingFile, new TempRemoteFile(missingFile));
+
+		FlickrTransferManager otherTransferManager = createTransferManager(settings, false);
+		int tempFileCountBeforeMove = server.getPhotoCount() - 20; // Dummy photo of the album
+		int listCountBeforeMove = server.getRequestCount("flickr.photosets.getPhotos");
+
+		otherTransferManager.moveAll(moveFiles);
+
+		assertEquals(listCountBeforeMove + 1, server.getRequestCount("flickr.photosets.getPhotos"));
+		assertEquals(0, server.getRequestCount("flickr.photos.getNotInSet"));
+		assertEquals(0, otherTransferManager.list(MultichunkRemoteFile.class).size());
+		assertEquals(tempFileCountBeforeMove + 20, otherTransferManager.list(TempRemoteFile.class).size());
+
+		int photoCountBeforeDelete = server.getPhotoCount();
+		Set<RemoteFile> failedRemoteFiles = otherTransferManager.deleteAll(moveFiles.values());
+
+		assertTrue(failedRemoteFiles.isEmpty());
+		assertEquals(listCountBeforeMove + 1, server.getRequestCount("flickr.photosets.getPhotos"));
+		assertEquals(photoCountBeforeDelete - 20, server.getPhotoCount());
+		assertEquals(tempFileCountBeforeMove, otherTransferManager.list(TempRemoteFile.class).size());
+
+		otherTransferManager.disconnect();
+	}
+
+	@Test
+	public void testBulkDeleteReturnsFailedFiles() throws Exception {
+		FlickrTransferSettings settings = createSettings(server.getEndpoint());
+		settings.setParallelism(4);
+
+		FlickrTransferManager transferManager = createTransferManager(settings, true);
+		int tempFileCountBeforeUpload = transferManager.list(TempRemoteFile.class).size(); // Dummy photo of the album
+		List<RemoteFile> deleteFiles = new ArrayList<RemoteFile>();
+
+		for (int i = 0; i < 5; i++) {
+			TempRemoteFile tempFile = new TempRemoteFile(new MultichunkRemoteFile(MultiChunkId.secureRandomMultiChunkId()));
+			File localFile = new File(tempDir, tempFile.getName());
+
+			TestFileUtil.createRandomFile(localFile, 1024);
+			transferManager.upload(localFile, tempFile);
+
+			deleteFiles.add(tempFile);
+		}
+
+		transferManager.disconnect();
+
+		// Lookup fails: nothing is deleted, all files are returned
+		FlickrTransferManager otherTransferManager = createTransferManager(settings, false);
+		server.setFailedRequests("flickr.photosets.getPhotos", 1);
+
+		assertEquals(new HashSet<RemoteFile>(deleteFiles), otherTransferManager.deleteAll(deleteFiles));
+		assertEquals(tempFileCountBeforeUpload + 5, otherTransferManager.list(TempRemoteFile.class).size());
+
+		// Some deletes fail: only these files are returned
+		server.setFailedRequests("flickr.photos.delete", 2);
+
+		assertEquals(2, otherTransferManager.deleteAll(deleteFiles).size());
+		assertEquals(tempFileCountBeforeUpload + 2, otherTransferManager.list(TempRemoteFile.class).size());
+
+		otherTransferManager.disconnect();
+	}
+
+	@Test
+	public void testCommitMarkerPublishesMovesAtOnce() throws Exception {
+		FlickrTransferSettings settings = createSettings(server.getEndpoint());
+		settings.setCommitMarkers(true);
+
+		FlickrTransferManager transferManager = createTransferManager(settings, true);
+		List<File> localFiles = uploadAndMoveDatabaseFiles(transferManager, 1, 3);
+
+		// Moves are deferred; the first commit uploads the marker
+		int setMetaCountAfterMoves = server.getRequestCount("flickr.photos.setMeta");
+		int uploadCountAfterMoves = server.getRequestCount("upload");
+
+		assertEquals(3, transferManager.list(DatabaseRemoteFile.class).size());
+		assertEquals(setMetaCountAfterMoves, server.getRequestCount("flickr.photos.setMeta"));
+		assertEquals(uploadCountAfterMoves + 1, server.getRequestCount("upload"));
+
+		// Next commit only updates the marker
+		localFiles.addAll(uploadAndMoveDatabaseFiles(transferManager, 4, 2));
+		uploadCountAfterMoves = server.getRequestCount("upload");
+
+		assertEquals(5, transferManager.list(DatabaseRemoteFile.class).size());
+		assertEquals(setMetaCountAfterMoves + 1, server.getRequestCount("flickr.photos.setMeta"));
+		assertEquals(uploadCountAfterMoves, server.getRequestCount("upload"));
+
+		transferManager.disconnect();
+
+		// Other client sees the final names only
+		FlickrTransferManager otherTransferManager = createTransferManager(settings, false);
+		Map<String, DatabaseRemoteFile> databaseFiles = otherTransferManager.list(DatabaseRemoteFile.class);
+
+		assertEquals(5, databaseFiles.size());
+		assertTrue(databaseFiles.containsKey(new DatabaseRemoteFile("A", 5).getName()));
+
+		for (String tempFileName : otherTransferManager.list(TempRemoteFile.class).keySet()) {
+			assertFalse(tempFileName.contains("database-"));
+		}
+
+		for (int i = 1; i <= 5; i++) {
+			File downloadedFile = new File(tempDir, "database-" + i + "-downloaded");
+			otherTransferManager.download(new DatabaseRemoteFile("A", i), downloadedFile);
+
+			assertArrayEquals(TestFileUtil.createChecksum(localFiles.get(i - 1)), TestFileUtil.createChecksum(downloadedFile));
+		}
+
+		// Deleting a published file (via a temp. file) works as usual
+		DatabaseRemoteFile deletedFile = new DatabaseRemoteFile("A", 1);
+		TempRemoteFile deletedTempFile = new TempRemoteFile(deletedFile);
+
+		otherTransferManager.move(deletedFile, deletedTempFile);
+		assertEquals(4, otherTransferManager.list(DatabaseRemoteFile.class).size());
+
+		assertTrue(otherTransferManager.delete(deletedTempFile));
+		assertFalse(otherTransferManager.list(TempRemoteFile.class).containsKey(deletedTempFile.getName()));
+
+		otherTransferManager.disconnect();
+	}
+
+	@Test
+	public void testCommitMarkerCompaction() throws Exception {
+		FlickrTransferSettings settings = createSettings(server.getEndpoint());
+		settings.setCommitMarkers(true);
+		settings.setParallelism(4);
+
+		FlickrTransferManager transferManager = createTransferManager(settings, true);
+
+		uploadAndMoveDatabaseFiles(transferManager, 1, 60);
+		assertEquals(60, transferManager.list(DatabaseRemoteFile.class).size());
+		assertEquals(1, getCommitMarkerCount());
+
+		// Fits into the marker: one description update
+		int setMetaCountBeforeCommits = server.getRequestCount("flickr.photos.setMeta");
+
+		uploadAndMoveDatabaseFiles(transferManager, 61, 30);
+		assertEquals(90, transferManager.list(DatabaseRemoteFile.class).size());
+		assertEquals(1, getCommitMarkerCount());
+		assertEquals(setMetaCountBeforeCommits + 1, server.getRequestCount("flickr.photos.setMeta"));
+
+		// Marker would exceed 100 entries: a new marker supersedes it
+		uploadAndMoveDatabaseFiles(transferManager, 91, 60);
+		assertEquals(150, transferManager.list(DatabaseRemoteFile.class).size());
+		assertEquals(2, getCommitMarkerCount());
+
+		// More entries than a description holds: a single new marker, stored in the image
+		List<File> localFiles = uploadAndMoveDatabaseFiles(transferManager, 151, 150);
+		assertEquals(300, transferManager.list(DatabaseRemoteFile.class).size());
+		assertEquals(3, getCommitMarkerCount());
+
+		// Published photos are not renamed before the compaction
+		assertEquals(setMetaCountBeforeCommits + 1, server.getRequestCount("flickr.photos.setMeta"));
+		assertFalse(server.getPhotoTitles().contains(new DatabaseRemoteFile("A", 1).getName()));
+
+		FlickrTransferManager otherTransferManager = createTransferManager(settings, false);
+		assertEquals(300, otherTransferManager.list(DatabaseRemoteFile.class).size());
+
+		File downloadedFile = new File(tempDir, "database-300-downloaded");
+		otherTransferManager.download(new DatabaseRemoteFile("A", 300), downloadedFile);
+		assertArrayEquals(TestFileUtil.createChecksum(localFiles.get(149)), TestFileUtil.createChecksum(downloadedFile));
+
+		// Superseded markers are compacted, only the current marker is left
+		transferManager.disconnect();
+
+		assertEquals(1, getCommitMarkerCount());
+		assertTrue(server.getPhotoTitles().contains(new DatabaseRemoteFile("A", 1).getName()));
+		assertTrue(server.getPhotoTitles().contains(new DatabaseRemoteFile("A", 150).getName()));
+		assertFalse(server.getPhotoTitles().contains(new DatabaseRemoteFile("A", 151).getName()));
+
+		assertEquals(300, otherTransferManager.list(DatabaseRemoteFile.class).size());
+		otherTransferManager.disconnect();
+
+		FlickrTransferManager newTransferManager = createTransferManager(settings, false);
+		assertEquals(300, newTransferManager.list(DatabaseRemoteFile.class).size());
+		newTransferManager.disconnect();
+	}
+
+	private int getCommitMarkerCount() {
+		int commitMarkerCount = 0;
+
+		for (String title : server.getPhotoTitles()) {
+			if (FlickrCommitMarker.isMarkerTitle(title)) {
+				commitMarkerCount++;
+			}
+		}
+
+		return commitMarkerCount;
+	}
+
+	private List<File> uploadAndMoveDatabaseFiles(FlickrTransferManager transferManager, int firstVersion, int count) throws Exception {
+		List<File> localFiles = new ArrayList<File>();
+		List<TempRemoteFile> tempFiles = new ArrayList<TempRemoteFile>();
+
+		for (int i = firstVersion; i < firstVersion + count; i++) {
+			DatabaseRemoteFile databaseFile = new DatabaseRemoteFile("A", i);
+			TempRemoteFile tempFile = new TempRemoteFile(databaseFile);
+			File localFile = new File(tempDir, databaseFile.getName());
+
+			TestFileUtil.createRandomFile(localFile, 1024);
+			transferManager.upload(localFile, tempFile);
+
+			localFiles.add(localFile);
+			tempFiles.add(tempFile);
+		}
+
+		for (TempRemoteFile tempFile : tempFiles) {
+			transferManager.move(tempFile, tempFile.getTargetRemoteFile());
+		}
+
+		return localFiles;
+	}
+
+	@Test
+	public void testDownloadChunksOfMultichunk() throws Exception {
+		FlickrTransferSettings settings = createSettings(server.getEndpoint());
+		FlickrTransferManager transferManager = createTransferManager(settings, true);
+
+		// Multichunk in the format of the ZipMultiChunk, 128 chunks of 16 KB
+		MultichunkRemoteFile multichunkFile = new MultichunkRemoteFile(MultiChunkId.secureRandomMultiChunkId());
+		File localFile = new File(tempDir, multichunkFile.getName());
+		Map<ChunkChecksum, byte[]> chunks = createZipMultichunk(localFile, 128, 16 * 1024);
+
+		transferManager.upload(localFile, multichunkFile);
+		transferManager.disconnect();
+
+		// Other client downloads the first two and one other chunk
+		FlickrTransferManager otherTransferManager = createTransferManager(settings, false);
+		List<ChunkChecksum> chunkChecksums = new ArrayList<ChunkChecksum>(chunks.keySet());
+		List<ChunkChecksum> downloadChunkChecksums = Arrays.asList(chunkChecksums.get(0), chunkChecksums.get(1), chunkChecksums.get(100));
+		File partialFile = new File(tempDir, multichunkFile.getName() + "-partial");
+
+		long imageBytesBefore = server.getImageBytes();
+		assertTrue(otherTransferManager.downloadChunks(multichunkFile, new HashSet<ChunkChecksum>(downloadChunkChecksums), partialFile));
+
+		long imageBytes = server.getImageBytes() - imageBytesBefore;
+		assertTrue("Too many image bytes downloaded: " + imageBytes, imageBytes < localFile.length() / 4);
+
+		ZipMultiChunk partialMultiChunk = new ZipMultiChunk(partialFile);
+
+		for (ChunkChecksum chunkChecksum : downloadChunkChecksums) {
+			assertArrayEquals(chunks.get(chunkChecksum), IOUtils.toByteArray(partialMultiChunk.getChunkInputStream(chunkChecksum.getBytes())));
+		}
+
+		partialMultiChunk.close();
+
+		// Not a ZIP file (e.g. encrypted): No partial download
+		MultichunkRemoteFile encryptedMultichunkFile = new MultichunkRemoteFile(MultiChunkId.secureRandomMultiChunkId());
+		File encryptedLocalFile = new File(tempDir, encryptedMultichunkFile.getName());
+
+		TestFileUtil.createRandomFile(encryptedLocalFile, 64 * 1024);
+		transferManager.upload(encryptedLocalFile, encryptedMultichunkFile);
+		transferManager.disconnect();
+
+		assertFalse(otherTransferManager.downloadChunks(encryptedMultichunkFile, new HashSet<ChunkChecksum>(downloadChunkChecksums), partialFile));
+
+		// Image host without range requests: No partial download
+		server.setRangeRequests(false);
+		assertFalse(otherTransferManager.downloadChunks(multichunkFile, new HashSet<ChunkChecksum>(downloadChunkChecksums), partialFile));
+
+		otherTransferManager.disconnect();
+	}
+
+	private Map<ChunkChecksum, byte[]> createZipMultichunk(File zipFile, int chunkCount, int chunkSize) throws Exception {
+		Map<ChunkChecksum, byte[]> chunks = new LinkedHashMap<ChunkChecksum, byte[]>();
+		Random random = new Random();
+
+		try (ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(zipFile))) {
+			zipOutputStream.setLevel(ZipOutputStream.STORED); // Like ZipMultiChunk
+
+			for (int i = 0; i < chunkCount; i++) {
+				byte[] checksum = new byte[20];
+				byte[] content = new byte[chunkSize];
+
+				random.nextBytes(checksum);
+				random.nextBytes(content);
+
+				ChunkChecksum chunkChecksum = new ChunkChecksum(checksum);
+				chunks.put(chunkChecksum, content);
+
+				zipOutputStream.putNextEntry(new ZipEntry(chunkChecksum.toString()));
+				zipOutputStream.write(content);
+				zipOutputStream.closeEntry();
+			}
+		}
+
+		return chunks;
+	}
+
+	public static FlickrTransferSettings createSettings(String apiEndpoint) {
+		Auth auth = new Auth();
+
+		auth.setToken("stand-in-token");
+		auth.setTokenSecret("stand-in-secret");
+		auth.setPermission(Permission.DELETE);
+		auth.setUser(new User());
+
+		FlickrTransferSettings settings = new FlickrTransferSettings();
+
+		settings.auth = new FlickrAuth(auth);
+		settings.setApiEndpoint(apiEndpoint);
+		settings.setMaxRequestsPerHour(1000 * 3600); // Requests go through the scheduler, but are never paced
+
+
+		return settings;
+	}
+
+	/**
+	 * Creates settings for another client of the repository created with the given settings. Unlike
+	 * the creating client, this client resolves the metadata album via the link in the main album.
+	 */
+	public static FlickrTransferSettings createLinkedSettings(FlickrTransferSettings settings) {
+		FlickrTransferSettings linkedSettings = createSettings(settings.getApiEndpoint());
+		linkedSettings.setAlbum(settings.getAlbum());
+
+		return linkedSettings;
+	}
+
+	public static FlickrTransferManager createTransferManager(FlickrTransferSettings settings, boolean createIfRequired) throws Exception {
+		FlickrTransferManager transferManager = new FlickrTransferManager(settings, null);
+
+		transferManager.init(createIfRequired);
+		transferManager.connect();
+
+		return transferManager;
+	}
+}
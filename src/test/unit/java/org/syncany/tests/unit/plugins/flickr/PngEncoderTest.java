@@ -0,0 +1,135 @@
+/*
+ * Syncany, www.syncany.org
+ * Copyright (C) 2011-2014 Philipp C. Heckel <philipp.heckel@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.syncany.tests.unit.plugins.flickr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.syncany.plugins.flickr.PngEncoder;
+import org.syncany.plugins.flickr.PngEncoder.Profile;
+import org.syncany.plugins.flickr.PngEncoder.Trailer;
+
+public class PngEncoderTest {
+	private static final int[] BASELINE_PAYLOAD_LENGTHS = new int[] { 0, 1, 2, 3, 100, 4099 };
+
+	@Test
+	public void testDecodeBaselineImages() throws Exception {
+		// Images encoded by the original PngEncoder, i.e. photos uploaded by older versions
+		for (int payloadLength : BASELINE_PAYLOAD_LENGTHS) {
+			byte[] baselineImage = readBaselineImage(payloadLength);
+			assertArrayEquals("Payload length " + payloadLength, createPayload(payloadLength), PngEncoder.decodeFromPng(new ByteArrayInputStream(baselineImage)));
+		}
+	}
+
+	@Test
+	public void testReadTrailerOffsetWithoutTrailer() throws Exception {
+		// End of the image data is arbitrary payload, it must never be mistaken for a locator
+		for (int payloadLength = 1000; payloadLength < 1200; payloadLength++) {
+			byte[] image = encode(createPayload(payloadLength), Profile.STORED);
+			assertEquals("Payload length " + payloadLength, -1, PngEncoder.readTrailerOffset(image));
+		}
+
+		for (int payloadLength : BASELINE_PAYLOAD_LENGTHS) {
+			byte[] baselineImage = readBaselineImage(payloadLength);
+
+			if (baselineImage.length >= PngEncoder.TRAILER_LOCATOR_SIZE) {
+				assertEquals("Payload length " + payloadLength, -1, PngEncoder.readTrailerOffset(baselineImage));
+			}
+		}
+	}
+
+	@Test
+	public void testReadTrailerWithSyncPoints() throws Exception {
+		byte[] payload = createPayload(100 * 1024);
+		byte[] image = encode(payload, Profile.STORED.withSyncInterval(16 * 1024));
+
+		long trailerOffset = PngEncoder.readTrailerOffset(Arrays.copyOfRange(image, image.length - PngEncoder.TRAILER_LOCATOR_SIZE, image.length));
+		assertTrue(trailerOffset > 0 && trailerOffset < image.length);
+
+		Trailer trailer = PngEncoder.readTrailer(Arrays.copyOfRange(image, (int) trailerOffset, image.length), trailerOffset);
+		assertEquals(trailerOffset, trailer.getOffset());
+		assertTrue(trailer.getSyncPointCount() > 1);
+	}
+
+	@Test
+	public void testDecodeRangeWithoutTrailer() throws Exception {
+		byte[] payload = createPayload(100 * 1024);
+		byte[] image = encode(payload, Profile.DEFAULT);
+
+		assertDecodeRange(payload, image, 0, 10);
+		assertDecodeRange(payload, image, 12345, 20000);
+		assertDecodeRange(payload, image, payload.length - 1, 1);
+		assertDecodeRange(payload, image, payload.length, 0);
+
+		byte[] baselinePayload = createPayload(4099);
+		byte[] baselineImage = readBaselineImage(4099);
+
+		assertDecodeRange(baselinePayload, baselineImage, 0, 4099);
+		assertDecodeRange(baselinePayload, baselineImage, 1000, 2000);
+	}
+
+	private void assertDecodeRange(byte[] payload, byte[] image, int payloadOffset, int rangeLength) throws IOException {
+		ByteArrayOutputStream rangeOutputStream = new ByteArrayOutputStream();
+		PngEncoder.decodeFromPng(new ByteArrayInputStream(image), rangeOutputStream, payloadOffset, rangeLength);
+
+		assertArrayEquals("Range " + payloadOffset + "+" + rangeLength, Arrays.copyOfRange(payload, payloadOffset, payloadOffset + rangeLength),
+				rangeOutputStream.toByteArray());
+	}
+
+	private byte[] encode(byte[] payload, Profile profile) throws IOException {
+		ByteArrayOutputStream imageOutputStream = new ByteArrayOutputStream();
+		PngEncoder.encodeToPng(new ByteArrayInputStream(payload), payload.length, imageOutputStream, profile);
+
+		return imageOutputStream.toByteArray();
+	}
+
+	private byte[] createPayload(int payloadLength) {
+		byte[] payload = new byte[payloadLength];
+		new Random(payloadLength).nextBytes(payload);
+
+		return payload;
+	}
+
+	private byte[] readBaselineImage(int payloadLength) throws IOException {
+		InputStream imageInputStream = getClass().getResourceAsStream("/org/syncany/plugins/flickr/baseline-" + payloadLength + ".png");
+		ByteArrayOutputStream imageOutputStream = new ByteArrayOutputStream();
+
+		try {
+			byte[] buffer = new byte[4096];
+			int read;
+
+			while ((read = imageInputStream.read(buffer)) != -1) {
+				imageOutputStream.write(buffer, 0, read);
+			}
+		}
+		finally {
+			imageInputStream.close();
+		}
+
+		return imageOutputStream.toByteArray();
+	}
+}